@@ -34,6 +34,7 @@ package com.sun.honeycomb.adm.cli.commands;
 
 import java.math.BigInteger;
 import java.util.Properties;
+import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -98,6 +99,8 @@ implements ExitCodes {
             = new PrintfFormat("  %-15s %8s %10s %10s %8s %10s %10s ");
     private PrintfFormat statsFormatter 
             = new PrintfFormat("  %-15s  %8s %10s  %12s");
+    private PrintfFormat latencyFormatter 
+            = new PrintfFormat("  %-15s %8s %9s %9s %9s %9s %9s ");
     
     private int pollingInterval = 0;
     
@@ -369,7 +372,48 @@ implements ExitCodes {
                            +"  Usage: "+
                            getPercentage(stats.getUsePercent()));
 	System.out.println();
+	printLatencies(stats);
+    }
 
+    /**
+     * Print the latency distribution of the operations and stages
+     * timed since the last poll.  The server renders each histogram
+     * as "name ops mean p50 p90 p99 max", times in microseconds.
+     */
+    private void printLatencies(HCPerfStats stats) {
+	String latencies = stats.getLatencies();
+	if (latencies == null || latencies.length() == 0)
+	    return;
+
+	System.out.println("Latency (ms):\n");
+	System.out.println(latencyFormatter.sprintf(
+	    new String[] {
+		"", "# Ops", "Mean", "50%", "90%", "99%", "Max"
+	    }));
+	System.out.println(latencyFormatter.sprintf(
+	    new String[] {
+		"",
+		"--------",
+		"---------",
+		"---------",
+		"---------",
+		"---------",
+		"---------",
+	    }));
+	StringTokenizer entries = new StringTokenizer(latencies, ",");
+	while (entries.hasMoreTokens()) {
+	    StringTokenizer fields = new StringTokenizer(entries.nextToken());
+	    if (fields.countTokens() != 7)
+		continue;
+	    String[] row = new String[7];
+	    row[0] = new StringBuffer(fields.nextToken()).append(":").toString();
+	    row[1] = fields.nextToken();
+	    for (int i = 2; i < row.length; i++) {
+		row[i] = getMillisValue(fields.nextToken());
+	    }
+	    System.out.println(latencyFormatter.sprintf(row));
+	}
+	System.out.println();
     }
 
     private void printDatabasePerfElement(
@@ -424,6 +468,16 @@ implements ExitCodes {
 	}
     }
     
+    private String getMillisValue(String micros) {
+	try {
+	    return PrecisionFormatter.formatValue(
+		Long.parseLong(micros) / 1000.0, 2);
+	}
+	catch (NumberFormatException nfe) {
+	    return micros;
+	}
+    }
+    
     private String getLoadAvgValue(String value) {
 	if (value == null || value.length() == 0)
 	    return "-";
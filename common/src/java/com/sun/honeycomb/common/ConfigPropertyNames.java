@@ -162,10 +162,24 @@ public interface ConfigPropertyNames {
     static final String PROP_PROTOCOL_MINTHREADS = "honeycomb.protocol.jetty.minthreads";
     static final String PROP_PROTOCOL_MAXTHREADS = "honeycomb.protocol.jetty.maxthreads";
     static final String PROP_PROTOCOL_MAXIDLETIME = "honeycomb.protocol.maxidletime";
+    static final String PROP_PROTOCOL_READAHEAD = "honeycomb.protocol.retrieve.readahead";
     static final String PROP_MDSERVER_MAXTHREADS = "honeycomb.mdserver.threads";
+    static final String PROP_EMD_QUERY_PREFETCH = "honeycomb.emd.query.prefetch";
     static final String PROP_CM_NUMTHREADS = "honeycomb.cm.cmagent.num_threads";
     static final String PROP_CM_MAXTHREADS = "honeycomb.cm.cmagent.max_threads";
+    static final String PROP_CM_BINARY_RPC = "honeycomb.cm.cmagent.binary_rpc";
     static final String PROP_OA_MAXPOOLS = "honeycomb.oa.pools.max";
+    static final String PROP_OA_PARALLEL_APPEND = "honeycomb.oa.append.parallel";
+    static final String PROP_OA_MMAP_READ_MAXBYTES = "honeycomb.oa.mmap.read.maxbytes";
+    static final String PROP_OA_FRAGMENTER_FUSED = "honeycomb.oa.fragmenter.fused";
+    static final String PROP_OA_BACKUP_THREADS = "honeycomb.oa.bulk.backup.threads";
+    static final String PROP_OA_BACKUP_PREFETCH_BYTES = "honeycomb.oa.bulk.backup.prefetch_bytes";
+    static final String PROP_OA_BACKUP_FORMAT = "honeycomb.oa.bulk.backup.format";
+    static final String PROP_OA_BACKUP_JOURNAL = "honeycomb.oa.bulk.journal";
+    static final String PROP_OA_BACKUP_JOURNAL_BYTES = "honeycomb.oa.bulk.journal.max_bytes";
+    static final String PROP_COORD_DEDUP = "honeycomb.coordinator.dedup";
+    static final String PROP_COORD_DEDUP_MIN_SIZE = "honeycomb.coordinator.dedup.min_size";
+    static final String PROP_COORD_COMPRESSION = "honeycomb.coordinator.compression";
     
     /*
      * Data Doctor Constants
@@ -173,6 +187,14 @@ public interface ConfigPropertyNames {
     
     static final String PROP_REMOVE_TEMP_WAIT_WINDOW = 
                       "honeycomb.datadoctor.remove_temp_frags.step_wait_window";
+    static final String PROP_DD_MANIFEST_CACHE_BYTES =
+                      "honeycomb.datadoctor.manifest.cache_bytes";
+    static final String PROP_DD_RECOVER_THREADS =
+                      "honeycomb.datadoctor.recover.threads";
+    static final String PROP_DD_RECOVER_BANDWIDTH =
+                      "honeycomb.datadoctor.recover.bandwidth";
+    static final String PROP_DD_RECOVER_LATENCY_FACTOR =
+                      "honeycomb.datadoctor.recover.latency_factor";
 
     /*
      * HADB config properties
@@ -211,6 +233,16 @@ public interface ConfigPropertyNames {
      */
     static final String PROP_HADBM_NODE_START_TIMEOUT =
         "honeycomb.hadb.node_start_timeout";
+
+    /**
+     * Group commit of the metadata inserts of the HADB hook: how long
+     * an insert waits for others to join its batch, in ms (0 disables
+     * batching), and the max. number of objects in a batch
+     */
+    static final String PROP_HADB_INSERT_BATCH_WINDOW =
+        "honeycomb.hadbhook.insert.batch_window";
+    static final String PROP_HADB_INSERT_BATCH_SIZE =
+        "honeycomb.hadbhook.insert.batch_size";
     
     /*
      *  Config properties for the Explorer tool required to run logdump command
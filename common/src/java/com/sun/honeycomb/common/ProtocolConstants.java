@@ -130,6 +130,7 @@ public interface ProtocolConstants {
     static final char   RANGE_SEPARATOR = '-';
     static final char   RANGE_DELIMITER = ',';
     static final String CHUNKSIZE_HEADER = "commit-chunksize-bytes";
+    static final String COMPRESSION_HEADER = "Honeycomb-Compression";
     static final String SEND_STACK_TRACE = "send-stack-trace";
 
     static final String DEPTH_HEADER = "depth";
@@ -669,6 +669,17 @@ public class OAClient implements ContextConsumer {
                  oid.toHexString());
     }
 
+    // The emulator has no footer extension to keep archive indexes
+    // in; readers rebuild them as needed.
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+        throws ArchiveException {
+        return null;
+    }
+
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+        throws ArchiveException {
+    }
+
     // Remove a legal hold tag
     public void removeLegalHold(NewObjectIdentifier oid, String legalHold)
         throws ArchiveException {
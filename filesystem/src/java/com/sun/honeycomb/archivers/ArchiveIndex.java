@@ -0,0 +1,206 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.archivers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of contents of an archive object: the name, stat data and
+ * data offset of every member, in archive order, including the
+ * directories ArchiveReader.nextWithFill() synthesizes.
+ *
+ * Reading an archive with ArchiveReader means streaming through it up
+ * to the member wanted. The index is built with one such pass, after
+ * which members can be looked up directly. If the archive is a plain
+ * (uncompressed) tar, the member data is stored as is in the object,
+ * at the offset libarchive reports as the Stat index; the index is then
+ * "seekable" and a member can be read with a ranged read of the
+ * archive object.
+ *
+ * The index serializes to a byte array so it can be kept with the
+ * archive object.
+ */
+public class ArchiveIndex {
+
+    private static final int MAGIC = 0x48435849; // "HCXI"
+    private static final short VERSION = 1;
+
+    private static final int TAR_BLOCK = 512;
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final String TAR_MAGIC = "ustar";
+
+    private final boolean seekable;
+    private final List entries;
+    private final Map byName;
+
+    private ArchiveIndex(boolean seekable, List entries) {
+        this.seekable = seekable;
+        this.entries = entries;
+        this.byName = new HashMap(2 * entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            HCXArchive.Stat stat = (HCXArchive.Stat) entries.get(i);
+            byName.put(stat.name(), stat);
+        }
+    }
+
+    /**
+     * Build the index by reading the whole archive. firstBlock is the
+     * beginning of the archive object, used to tell if its members can
+     * be read in place.
+     */
+    public static ArchiveIndex build(ArchiveReader ar, byte[] firstBlock) {
+        boolean seekable = isPlainTar(firstBlock);
+        List entries = new ArrayList();
+
+        HCXArchive.Stat stat;
+        while ((stat = ar.nextWithFill()) != null) {
+            entries.add(stat);
+
+            // Tar member data always starts on a block boundary;
+            // anything else means we did not understand the format
+            if (seekable && stat.index() >= 0 && !isDirectory(stat) &&
+                    stat.index() % TAR_BLOCK != 0)
+                seekable = false;
+        }
+
+        return new ArchiveIndex(seekable, entries);
+    }
+
+    /** Parse an index previously returned by toBytes() */
+    public static ArchiveIndex fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an archive index");
+        short version = in.readShort();
+        if (version != VERSION)
+            throw new IOException("Unknown archive index version " + version);
+
+        boolean seekable = in.readBoolean();
+        int n = in.readInt();
+        List entries = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            long size = in.readLong();
+            long index = in.readLong();
+            long uid = in.readLong();
+            long gid = in.readLong();
+            long mtime = in.readLong();
+            long atime = in.readLong();
+            long mode = in.readLong();
+            entries.add(new HCXArchive.Stat(name, size, index, uid, gid,
+                                            mtime, atime, mode));
+        }
+
+        return new ArchiveIndex(seekable, entries);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeBoolean(seekable);
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                HCXArchive.Stat stat = (HCXArchive.Stat) entries.get(i);
+                out.writeUTF(stat.name());
+                out.writeLong(stat.size());
+                out.writeLong(stat.index());
+                out.writeLong(stat.uid());
+                out.writeLong(stat.gid());
+                out.writeLong(stat.mtime());
+                out.writeLong(stat.atime());
+                out.writeLong(stat.mode());
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /** Can member data be read directly from the archive object? */
+    public boolean isSeekable() { return seekable; }
+
+    /** The members, in archive order */
+    public List entries() { return entries; }
+
+    public int size() { return entries.size(); }
+
+    /** Look up a member by path, null if it is not in the archive */
+    public HCXArchive.Stat lookup(String path) {
+        if ((path = ArchiveReader.canonicalize(path)) == null)
+            return null;
+        return (HCXArchive.Stat) byName.get(path);
+    }
+
+    /** Was this entry synthesized for a directory missing in the archive? */
+    public static boolean isSynthetic(HCXArchive.Stat stat) {
+        return stat.index() < 0;
+    }
+
+    public static boolean isDirectory(HCXArchive.Stat stat) {
+        int m = (int) stat.mode();
+        return (m & HCXArchive.MODEMASK_TYPEM) == HCXArchive.MODEMASK_IFDIR;
+    }
+
+    private static boolean isPlainTar(byte[] block) {
+        if (block == null ||
+                block.length < TAR_MAGIC_OFFSET + TAR_MAGIC.length())
+            return false;
+        for (int i = 0; i < TAR_MAGIC.length(); i++)
+            if (block[TAR_MAGIC_OFFSET + i] != TAR_MAGIC.charAt(i))
+                return false;
+        return true;
+    }
+
+    public String toString() {
+        return "ArchiveIndex{" + entries.size() + " entries" +
+            (seekable ? ", seekable}" : "}");
+    }
+}
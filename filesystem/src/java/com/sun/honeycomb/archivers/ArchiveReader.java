@@ -74,6 +74,7 @@ public class ArchiveReader {
     private Set synthetics = null;
 
     private OutputStream os = null;
+    private boolean failed = false;
 
     public ArchiveReader() {
         archive = new LibArchive();
@@ -103,6 +104,7 @@ public class ArchiveReader {
         }
         catch (IOException e) {
             logger.log(Level.WARNING, "Couldn't skip in archive", e);
+            failed = true;
         }
         return null;
     }
@@ -117,6 +119,7 @@ public class ArchiveReader {
         }
         catch (IOException e) {
             logger.log(Level.WARNING, "Couldn't skip in archive", e);
+            failed = true;
         }
         return null;
     }
@@ -132,6 +135,9 @@ public class ArchiveReader {
         return null;
     }
 
+    /** Did next() or nextWithFill() stop on an error rather than EOF? */
+    public boolean failed() { return failed; }
+
     /** Is the current object a directory? */
     public boolean isDirectory() {
         if (currentHeader == null)
@@ -395,7 +401,7 @@ public class ArchiveReader {
     ////////////////////////////////////////////////////////////////
     // private static methods
 
-    private static String canonicalize(String path) {
+    static String canonicalize(String path) {
         if (path == null)
             return null;
 
@@ -249,7 +249,7 @@ public class DerbySimulator extends Simulator {
         try {
             ResultSet rs = execQuery(query);
 
-            while (rs.next()) {
+            while (!listener.isCancelled() && rs.next()) {
                 String v = rs.getString(1);
                 if (v != null && v.length() > 0) {
                     l++;
@@ -298,7 +298,7 @@ public class DerbySimulator extends Simulator {
         try {
             ResultSet rs = execQuery(query);
 
-            while (rs.next()) {
+            while (!listener.isCancelled() && rs.next()) {
                 Map metadata = new HashMap();
 
                 int i;
@@ -127,6 +127,7 @@ public class HCGlue extends HCInterface {
 
     private static MetadataClient mdClient = null;
     private static Coordinator coord = null;
+    private static QueryPlanner planner = null;
 
     private static boolean initialized = false;
     private static RetrieveHandler handler = null;
@@ -140,8 +141,6 @@ public class HCGlue extends HCInterface {
     // some fraction of the fs cache size
     private static final float CR6676969_LIMIT = 50f; // percent
 
-    private int valuesLimit;
-
     static ArrayList oidAttr  = null;
 
     /** Get the singleton instance that implements the interface */
@@ -183,6 +182,7 @@ public class HCGlue extends HCInterface {
 
         mdClient = MetadataClient.getInstance();
         coord = Coordinator.getInstance();
+        planner = new QueryPlanner();
         MDHandler.init();
         initialized = true;
     }
@@ -247,6 +247,12 @@ public class HCGlue extends HCInterface {
      * this code needs to be aware of tables. If the query attributes
      * span multiple tables, use one outer join queryPlus for
      * everything (including optional attributes like filesystem.*).
+     *
+     * That decision is now made by QueryPlanner, per view query,
+     * from the table layout and the times and result counts it has
+     * seen for each way of running that query. The listener's
+     * optionalAttrs() are the attributes it applies to; the system
+     * attributes for getObject() are handled the same way.
      */
 
     /*
@@ -273,7 +279,32 @@ public class HCGlue extends HCInterface {
      */
     public int query(String[] names, String[] values, ArrayList requiredAttrs,
                      MDListener listener) {
-        Object[] boundParameters;
+        // Workaround for bug 6676969: limit # results to X % of the cache
+        int valuesLimit = (int)
+            (0.5 + FSCache.getInstance().getCacheSize()*CR6676969_LIMIT/100);
+
+        return query(names, values, requiredAttrs, listener, valuesLimit,
+                     false);
+    }
+
+    /**
+     * The results go straight to the listener and not into the
+     * cache, so there's no need to apply the CR6676969 limit.
+     */
+    public int streamQuery(String[] names, String[] values,
+                           ArrayList requiredAttrs, MDListener listener) {
+        return query(names, values, requiredAttrs, listener,
+                     Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * If streaming, the time taken includes the listener sending
+     * results to the client, so the query planner doesn't learn from
+     * it.
+     */
+    private int query(String[] names, String[] values, ArrayList requiredAttrs,
+                      MDListener listener, int valuesLimit,
+                      boolean streaming) {
 
         if (logger.isLoggable(Level.FINE)) {
             String delim = "";
@@ -288,21 +319,18 @@ public class HCGlue extends HCInterface {
         int numResults = 0;
         long startTime = System.currentTimeMillis(), elapsed;
 
-        // Workaround for bug 6676969: limit # results to X % of the cache
-        valuesLimit = (int)
-            (0.5 + FSCache.getInstance().getCacheSize()*CR6676969_LIMIT/100);
-
         if (values.length < names.length)
             // Instead of using selectUnique, just use QueryPlus to
             // get matching objects and manually build up a Set of
             // their attrName values
             numResults = 
                 getUniqueValues(q.query, names[values.length], q.boundParameters,
-                                listener);
+                                listener, valuesLimit);
 
         else if (values.length == names.length)
-            numResults = getAllObjects(q.query, requiredAttrs, q.boundParameters, 
-                                       listener);
+            numResults = getAllObjects(names, q.query, requiredAttrs,
+                                       q.boundParameters, listener,
+                                       valuesLimit, streaming);
 
         else
             throw new InternalException("Too many values in query");
@@ -340,33 +368,15 @@ public class HCGlue extends HCInterface {
          * are in multiple tables, an outer join will need to be
          * done. Instead, partition the attributes by table and do one
          * query for each subset.
-         *
-         * We're going to defer this correct solution; for now, do one
-         * query for system.* attributes and one for filesystem.*;
-         * then one for the remaining.
          */
 
-        ArrayList[] attrLists = new ArrayList[3];
-
-        for (int i = 0; i < attrLists.length; i++)
-            attrLists[i] = new ArrayList();
-
-        for (int i = 0; i < desiredAttrs.size(); i++) {
-            String attrName = (String) desiredAttrs.get(i);
-            if (attrName.startsWith("system."))
-                attrLists[0].add(attrName);
-            else if (attrName.startsWith("filesystem."))
-                attrLists[1].add(attrName);
-            else
-                attrLists[2].add(attrName);
-        }
+        List attrLists = planner.partition(desiredAttrs);
 
         // Do the required number of queries
 
         Map allValues = new HashMap();
-        for (int i = 0; i < attrLists.length; i++)
-            if (attrLists[i].size() > 0)
-                queryAttributes(oid, attrLists[i], allValues);
+        for (int i = 0; i < attrLists.size(); i++)
+            queryAttributes(oid, (ArrayList) attrLists.get(i), allValues);
 
         // and collect the results together
 
@@ -391,9 +401,6 @@ public class HCGlue extends HCInterface {
             logger.info("Querying " + s + " to Map " + values);
         }
 
-        String request = null;
-        String msg = "";
-
         long startTime = System.currentTimeMillis();
         long elapsed = 0;
 
@@ -430,9 +437,21 @@ public class HCGlue extends HCInterface {
             throw new InternalException(e);
         }
 
-        for (int i = 0; i < desiredAttrs.size(); i++)
+        putValues(mdvalues, desiredAttrs, values);
+
+        if (logger.isLoggable(Level.INFO))
+            logger.info("INSTR " + elapsed + " QUERYobj " + 
+                        toString(query, desiredAttrs, boundParameters));
+    }
+
+    /** Add the (canonical string) values of attrs in mdvalues to values */
+    private static void putValues(QueryMap mdvalues, ArrayList attrs,
+                                  Map values) {
+        String msg = "";
+
+        for (int i = 0; i < attrs.size(); i++) {
+            String name = (String) attrs.get(i);
             try {
-                String name = (String) desiredAttrs.get(i);
                 Object value = mdvalues.get(name);
 
                 if (logger.isLoggable(Level.FINE))
@@ -442,16 +461,13 @@ public class HCGlue extends HCInterface {
                 values.put(name, CanonicalStrings.encode(value, name));
             }
             catch (Exception e) {
-                logger.log(Level.SEVERE, request, e);
+                logger.log(Level.SEVERE, name, e);
                 throw new InternalException(e);
             }
+        }
 
         if (logger.isLoggable(Level.FINE))
             logger.fine(msg);
-
-        if (logger.isLoggable(Level.INFO))
-            logger.info("INSTR " + elapsed + " QUERYobj " + 
-                        toString(query, desiredAttrs, boundParameters));
     }
 
     /** Get an arbitrary object that satisfies the names/values */
@@ -483,15 +499,27 @@ public class HCGlue extends HCInterface {
         }
 
         /*
-         * Here, we'll be better off getting the matching OID and then
-         * doing a separate query to get the sysAttrs. If we put it
-         * into the same query, HADB will be doing a join between the
-         * system table and everything else.
+         * Usually we'll be better off getting the matching OID and
+         * then doing a separate query to get the sysAttrs. If we put
+         * it into the same query, HADB will be doing a join between
+         * the system table and everything else -- but when the query
+         * is a join already, that may be the cheaper way. Let the
+         * planner decide.
          */
 
+        QueryPlanner.Plan plan =
+            planner.getPlan(names, values.length, oidAttr,
+                            MDHandler.sysAttrs);
+        int how = planner.choose(plan);
+
+        ArrayList attrs = oidAttr;
+        if (how == QueryPlanner.JOINED)
+            attrs = QueryPlanner.union(oidAttr, MDHandler.sysAttrs);
+
         if (logger.isLoggable(Level.FINE))
-            logger.fine("Getting " + toString(q.query, oidAttr,
-                                              q.boundParameters));
+            logger.fine("Getting " + toString(q.query, attrs,
+                                              q.boundParameters) +
+                        " plan " + QueryPlanner.planName(how));
 
         List result = null;
         try {
@@ -499,7 +527,7 @@ public class HCGlue extends HCInterface {
 
             try {
                 QueryResult rv =
-                    mdClient.queryPlus(ECACHE, q.query, oidAttr,
+                    mdClient.queryPlus(ECACHE, q.query, attrs,
                                        null, 1, -1, true,
                                        q.boundParameters);
                 elapsed = System.currentTimeMillis() - startTime;
@@ -531,10 +559,18 @@ public class HCGlue extends HCInterface {
             // Get OID in INTERNAL form.
             NewObjectIdentifier oid = h.constructOid();
 
-            // Now query for the system attributes of this OID
+            // The system attributes of this OID: either they're in
+            // the result, or we query for them now
 
             Map sysValues = new HashMap();
-            queryAttributes(oid, MDHandler.sysAttrs, sysValues);
+            if (how == QueryPlanner.JOINED)
+                putValues((QueryMap) h.getExtraInfo(), MDHandler.sysAttrs,
+                          sysValues);
+            else
+                queryAttributes(oid, MDHandler.sysAttrs, sysValues);
+
+            planner.record(plan, how,
+                           System.currentTimeMillis() - startTime, 1);
 
             long ctime = 0, size = 0;
 
@@ -778,6 +814,18 @@ public class HCGlue extends HCInterface {
         return coord.isComplianceDeletable(oid);
     }
 
+    /** Get the member index kept in the object's footer extension */
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+            throws ArchiveException {
+        return coord.getArchiveIndex(oid);
+    }
+
+    /** Keep the member index in the object's footer extension */
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+            throws ArchiveException {
+        coord.putArchiveIndex(oid, index);
+    }
+
     //////////////////////////////////////////////////////////////////////
     // Cluster properties
 
@@ -825,7 +873,9 @@ public class HCGlue extends HCInterface {
         Set values = null;
         private Object lastObject = null;
         private int numValues = 0;
-        SelectUniqueListener(String attrName) {
+        private int valuesLimit;
+        SelectUniqueListener(String attrName, int valuesLimit) {
+            this.valuesLimit = valuesLimit;
             attrs = new ArrayList();
             values = new HashSet();
             attrs.add(attrName);
@@ -870,7 +920,8 @@ public class HCGlue extends HCInterface {
     }
 
     private int getUniqueValues(String query, String attrName, 
-                                Object[] boundParameters, MDListener listener) {
+                                Object[] boundParameters, MDListener listener,
+                                int valuesLimit) {
         if (query == null)
             // We cannot use null queries. Since we're trying to find
             // unique values, it suffices to use "attrName IS NOT NULL" 
@@ -879,7 +930,8 @@ public class HCGlue extends HCInterface {
 
         long startTime = 0, elapsed = 0;
 
-        SelectUniqueListener lsnr = new SelectUniqueListener(attrName);
+        SelectUniqueListener lsnr =
+            new SelectUniqueListener(attrName, valuesLimit);
         ArrayList l = new ArrayList();
         l.add(attrName);
 
@@ -904,7 +956,8 @@ public class HCGlue extends HCInterface {
 
         elapsed = System.currentTimeMillis() - startTime;
 
-        for (Iterator i = lsnr.values.iterator(); i.hasNext(); )
+        for (Iterator i = lsnr.values.iterator();
+                 i.hasNext() && !listener.isCancelled(); )
             listener.nextValue((String)i.next());
 
         if (logger.isLoggable(Level.INFO)) {
@@ -923,9 +976,12 @@ public class HCGlue extends HCInterface {
         private MDListener listener;
         private Object lastObject = null;
         private int numValues = 0;
-        GetObjectsListener(ArrayList attrs, MDListener listener) {
+        private int valuesLimit;
+        GetObjectsListener(ArrayList attrs, MDListener listener,
+                           int valuesLimit) {
             this.attrs = attrs;
             this.listener = listener;
+            this.valuesLimit = valuesLimit;
         }
         public Object getLastObject() { return lastObject; }
         public void clearLastObject() {
@@ -937,6 +993,9 @@ public class HCGlue extends HCInterface {
             if (!(o instanceof MDHit))
                 return;
 
+            if (listener.isCancelled())
+                throw new EMDException("Query cancelled by listener");
+
             numValues++;
 
             if (numValues > valuesLimit)
@@ -958,25 +1017,60 @@ public class HCGlue extends HCInterface {
             listener.nextObject(oid, metadata);
         }
     }
-    private int getAllObjects(String query, ArrayList requiredAttrs, 
-                              Object[] boundParameters, MDListener listener) {
-        GetObjectsListener l = new GetObjectsListener(requiredAttrs, listener);
+    private int getAllObjects(String[] names, String query,
+                              ArrayList requiredAttrs, 
+                              Object[] boundParameters, MDListener listener,
+                              int valuesLimit, boolean streaming) {
+        // If the listener wants more attributes than the query
+        // requires, the planner decides whether to get them here in
+        // an outer join (queryPlus keeps rows with NULLs since
+        // forceResults is set) or leave the listener to look them up.
+
+        QueryPlanner.Plan plan = null;
+        int how = QueryPlanner.SPLIT;
+        ArrayList attrs = requiredAttrs;
+
+        ArrayList optionalAttrs = listener.optionalAttrs();
+        if (optionalAttrs != null && optionalAttrs.size() > 0) {
+            plan = planner.getPlan(names, names.length, requiredAttrs,
+                                   optionalAttrs);
+            how = planner.choose(plan);
+            if (how == QueryPlanner.JOINED)
+                attrs = QueryPlanner.union(requiredAttrs, optionalAttrs);
+        }
+
+        GetObjectsListener l =
+            new GetObjectsListener(attrs, listener, valuesLimit);
 
         long startTime = System.currentTimeMillis();
+        boolean completed = false;
 
         try {
-            mdClient.queryPlus(ECACHE, query, requiredAttrs, null, -1, -1, true,
+            mdClient.queryPlus(ECACHE, query, attrs, null, -1, -1, true,
                                boundParameters, l);
+            completed = true;
         }
         catch (EMDException e) {
-            logger.log(Level.WARNING, "Couldn't run query \"" + query + "\"", e);
+            if (listener.isCancelled())
+                logger.info("Query \"" + query + "\" cancelled after " +
+                            l.numValues() + " results");
+            else
+                logger.log(Level.WARNING,
+                           "Couldn't run query \"" + query + "\"", e);
         }
 
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        if (plan != null && completed && !streaming)
+            planner.record(plan, how, elapsed, l.numValues());
+
         if (logger.isLoggable(Level.INFO)) {
             StringBuffer msg = new StringBuffer("INSTR ");
-            msg.append(System.currentTimeMillis() - startTime);
+            msg.append(elapsed);
             msg.append(" QUERYallobjs ");
-            msg.append(toString(query, requiredAttrs, boundParameters));
+            msg.append(toString(query, attrs, boundParameters));
+            if (plan != null)
+                msg.append(" plan ").append(QueryPlanner.planName(how));
             logger.info(msg.toString());
         }
 
@@ -108,6 +108,17 @@ public abstract class HCInterface {
                               ArrayList desiredAttrs,
                               MDListener listener);
 
+    /**
+     * Like query, but for results that are handed on as they arrive
+     * and not kept in the fs cache, so the number of results need
+     * not be limited to what the cache can hold.
+     */
+    public int streamQuery(String[] names, String[] values,
+                           ArrayList desiredAttrs,
+                           MDListener listener) {
+        return query(names, values, desiredAttrs, listener);
+    }
+
     /**
      * The existence of an intermediate directory in the filesystem
      * means at least one object exists somewhere under there. So
@@ -190,6 +201,20 @@ public abstract class HCInterface {
     public abstract boolean isDeletable(NewObjectIdentifier oid)
         throws ArchiveException;
 
+    /**
+     * Get the member index stored with an archive object, null if it
+     * has none. Connectors that cannot store one keep these defaults.
+     */
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+            throws ArchiveException {
+        return null;
+    }
+
+    /** Store the member index of an archive object */
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+            throws ArchiveException {
+    }
+
     //////////////////////////////////////////////////////////////////////
     // Convenience methods
 
@@ -34,6 +34,7 @@
 package com.sun.honeycomb.connectors;
 
 import com.sun.honeycomb.fscache.HCFile;
+import com.sun.honeycomb.fscache.ChildListener;
 
 import com.sun.honeycomb.fscache.FSCacheObject;
 import com.sun.honeycomb.fscache.FSCacheException;
@@ -48,6 +49,8 @@ import com.sun.honeycomb.emd.config.Filename;
 import com.sun.honeycomb.emd.config.Namespace;
 import com.sun.honeycomb.emd.config.RootNamespace;
 
+import java.io.IOException;
+
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
@@ -67,12 +70,17 @@ public class MDHandler implements MDListener {
     private short viewIndex;
     private HCFile parent;
 
+    // If set, children are handed to it instead of the cache
+    private ChildListener childListener = null;
+    private IOException failure = null;
+
     private long numObjects = 0;
 
     private static boolean initialized = false;
 
     static ArrayList fsAttrs = null;
     static ArrayList sysAttrs = null;
+    static ArrayList sysFsAttrs = null;
 
     synchronized static void init() {
         if (initialized)
@@ -89,6 +97,9 @@ public class MDHandler implements MDListener {
         fsAttrs.add(HCInterface.FIELD_MTIME);
         fsAttrs.add(HCInterface.FIELD_MIMETYPE);
 
+        sysFsAttrs = new ArrayList(sysAttrs);
+        sysFsAttrs.addAll(fsAttrs);
+
         initialized = true;
     }
 
@@ -98,6 +109,11 @@ public class MDHandler implements MDListener {
         viewIndex = parent.getViewIndex();
     }
 
+    MDHandler(HCFile parent, ChildListener listener) {
+        this(null, parent);
+        this.childListener = listener;
+    }
+
     long numAdded() {
         return numObjects;
     }
@@ -111,8 +127,13 @@ public class MDHandler implements MDListener {
         if (logger.isLoggable(Level.FINE))
             logger.fine("    object " + oid);
 
+        if (isCancelled())
+            return;
+
         try {
-            if (HCFile.fileCache.add(objGroup, newFile(oid, metadata)))
+            if (childListener != null)
+                deliver(newFile(oid, metadata));
+            else if (HCFile.fileCache.add(objGroup, newFile(oid, metadata)))
                 numObjects++;
         }
         catch (NoSuchElementException e) {
@@ -130,11 +151,13 @@ public class MDHandler implements MDListener {
         if (logger.isLoggable(Level.FINE))
             logger.fine("    value \"" + name + "\"");
 
-        if (name == null || name.length() == 0)
+        if (name == null || name.length() == 0 || isCancelled())
             return;
 
         try {
-            if (HCFile.fileCache.add(objGroup, newDirectory(name)))
+            if (childListener != null)
+                deliver(newDirectory(name));
+            else if (HCFile.fileCache.add(objGroup, newDirectory(name)))
                 numObjects++;
         }
         catch (Exception e) {
@@ -142,9 +165,34 @@ public class MDHandler implements MDListener {
         }
     }
 
+    public boolean isCancelled() {
+        return failure != null;
+    }
+
+    public ArrayList optionalAttrs() {
+        init();
+        if (parent.viewUsesExtendedAttrs())
+            return sysFsAttrs;
+        return sysAttrs;
+    }
+
     //////////////////////////////////////////////////////////////////////
     // Private
 
+    private void deliver(HCFile child) {
+        try {
+            childListener.nextChild(child);
+            numObjects++;
+        }
+        catch (IOException e) {
+            // Probably the client went away; stop the query
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("Listing of " + parent.fileName() +
+                            " abandoned: " + e);
+            failure = e;
+        }
+    }
+
     private HCFile newDirectory(String name) throws EMDException {
         int length = 0;
         String[] parentAttributes = parent.getAttributes();
@@ -192,10 +240,10 @@ public class MDHandler implements MDListener {
             fileName = filenameRep.convert(metadata);
         }
 
-        // Query for the system attributes
+        // The system attributes, if the query didn't already get them
 
         long crtime = 0, size = 0;
-        String[] values = HCFile.hc.queryObject(oid, sysAttrs);
+        String[] values = getValues(oid, metadata, sysAttrs);
         for (int i = 0; i < sysAttrs.size(); i++) 
             try {
                 String name = (String) sysAttrs.get(i);
@@ -208,12 +256,19 @@ public class MDHandler implements MDListener {
                 throw new InternalException(e);
             }
 
-        return makeObject(oid, parent, fileName, crtime, size);
+        return makeObject(oid, parent, fileName, crtime, size, metadata);
     }
 
     public static HCFile makeObject(NewObjectIdentifier oid,
                                     HCFile parent, String fileName,
                                     long crTime, long size) {
+        return makeObject(oid, parent, fileName, crTime, size, null);
+    }
+
+    /** metadata (if not null) may already have the filesystem attributes */
+    private static HCFile makeObject(NewObjectIdentifier oid,
+                                     HCFile parent, String fileName,
+                                     long crTime, long size, Map metadata) {
         init();
         if (logger.isLoggable(Level.FINE))
             logger.fine(parent.fileName() + ": \"" + fileName + "\", ctime=" +
@@ -227,11 +282,13 @@ public class MDHandler implements MDListener {
 
         if (parent.viewUsesExtendedAttrs()) {
             /*
-             * Do another query for filesystem attributes.  We cannot
-             * do a single query because that query will skip the entries
-             * without filesystem attributes defined
+             * Unless the query planner chose to fetch them in the
+             * (outer join) query, do another query for filesystem
+             * attributes. They cannot be required attributes of the
+             * query because that would skip the entries without
+             * filesystem attributes defined
              */
-            String[] values = HCFile.hc.queryObject(oid, fsAttrs);
+            String[] values = getValues(oid, metadata, fsAttrs);
 
             if (logger.isLoggable(Level.FINE)) {
                 String msg = "";
@@ -335,6 +392,31 @@ public class MDHandler implements MDListener {
                                           Filename filename)
             throws FSCacheException {
         init();
+        return parent.hc.query(names, values,
+                               requiredAttrs(names, values, filename),
+                               new MDHandler(group, parent));
+    }
+
+    /**
+     * Like runQueryAddChildren, but each child is handed to the
+     * listener as the query returns it; nothing is added to the cache.
+     */
+    public static int runQueryStreamChildren(HCFile parent,
+                                             String[] names, String[] values,
+                                             Filename filename,
+                                             ChildListener listener)
+            throws IOException {
+        init();
+        MDHandler handler = new MDHandler(parent, listener);
+        parent.hc.streamQuery(names, values,
+                              requiredAttrs(names, values, filename), handler);
+        if (handler.failure != null)
+            throw handler.failure;
+        return (int) handler.numAdded();
+    }
+
+    private static ArrayList requiredAttrs(String[] names, String[] values,
+                                           Filename filename) {
         ArrayList required = null;
 
         if (values.length < names.length) {
@@ -345,14 +427,12 @@ public class MDHandler implements MDListener {
         else {
             required = filename.getNeededAttributes();
 
-            // System attributes (ctime, size) always exist and we'll
-            // query for them separately, otherwise HADB will need to
-            // join the system table too just to handle the query.
-
-            // The others (e.g. the filesystem attributes) are in a
-            // different table, and we do a separate query for those
-            // attributes if the view has "fsattrs" set. (That's done
-            // in the newFile callback.)
+            // System attributes (ctime, size) always exist, and
+            // the filesystem attributes are needed if the view has
+            // "fsattrs" set; but they're in different tables, so
+            // they're optionalAttrs(), not required. HCGlue's query
+            // planner decides whether to join them into the query
+            // or have the newFile callback look them up per object.
 
             if (logger.isLoggable(Level.FINE)) {
                 StringBuffer sb = new StringBuffer();
@@ -365,8 +445,7 @@ public class MDHandler implements MDListener {
             }
         }
 
-        return parent.hc.query(names, values, required,
-                               new MDHandler(group, parent));
+        return required;
     }
 
     /** Validate that the name exists and the value is legal for it */
@@ -400,6 +479,25 @@ public class MDHandler implements MDListener {
         }
     }
 
+    /**
+     * The values of attrs: from the metadata the query returned if
+     * it has all of them, otherwise from another query.
+     */
+    private static String[] getValues(NewObjectIdentifier oid, Map metadata,
+                                      ArrayList attrs) {
+        if (metadata != null) {
+            String[] values = new String[attrs.size()];
+            for (int i = 0; i < values.length; i++) {
+                String name = (String) attrs.get(i);
+                if (!metadata.containsKey(name))
+                    return HCFile.hc.queryObject(oid, attrs);
+                values[i] = (String) metadata.get(name);
+            }
+            return values;
+        }
+        return HCFile.hc.queryObject(oid, attrs);
+    }
+
     private static long getLong(Map m, String name) {
         Object o = m.get(name);
         if (o instanceof Long) {
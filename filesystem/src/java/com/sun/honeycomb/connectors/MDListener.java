@@ -33,6 +33,7 @@
 
 package com.sun.honeycomb.connectors;
 
+import java.util.ArrayList;
 import java.util.Map;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 
@@ -49,4 +50,17 @@ public interface MDListener {
      *  in CanonicalStrings format.
      */
     void nextValue(String value);
+
+    /**
+     * True if the listener wants no more results; the query is
+     * abandoned at the next one.
+     */
+    boolean isCancelled();
+
+    /**
+     * Attributes the listener would also like with each object. The
+     * query may or may not include them in the metadata Map; if it
+     * doesn't, the listener has to look them up itself. May be null.
+     */
+    ArrayList optionalAttrs();
 }
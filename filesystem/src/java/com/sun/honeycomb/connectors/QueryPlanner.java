@@ -0,0 +1,300 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+
+package com.sun.honeycomb.connectors;
+
+import com.sun.honeycomb.emd.config.Field;
+import com.sun.honeycomb.emd.config.RootNamespace;
+import com.sun.honeycomb.emd.config.EMDConfigException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides how HCGlue fetches the attributes a listener would like
+ * with each object a query returns (see the comments in HCGlue about
+ * HADB joins). There are two ways:
+ *
+ *   JOINED: select them in the query itself, an outer join across
+ *           all the tables involved;
+ *   SPLIT:  query only the tables the query needs, then look the
+ *           attributes up by OID, one query per table per object.
+ *
+ * Which is cheaper depends on how many tables the query already
+ * spans, how many objects it matches, and how big the tables are --
+ * none of which the metadata store will tell us directly. So a plan
+ * is kept for each view query (names, required and optional
+ * attributes) with the result counts and times actually observed for
+ * each way of running it, and the cheaper one is used. Every so often
+ * the other one is tried, so the choice follows the data as it grows.
+ */
+class QueryPlanner {
+    private static final Logger logger =
+        Logger.getLogger(QueryPlanner.class.getName());
+
+    static final int JOINED = 0;
+    static final int SPLIT = 1;
+
+    private static final String[] planNames = { "joined", "split" };
+
+    // Until the other plan has been timed a few times, try it every
+    // EXPLORE_INTERVAL runs; after that, every REFRESH_INTERVAL runs.
+    private static final int MIN_SAMPLES = 3;
+    private static final int EXPLORE_INTERVAL = 8;
+    private static final int REFRESH_INTERVAL = 64;
+
+    // Weight of the latest observation in the running averages
+    private static final double DECAY = 0.25;
+
+    private static final int MAX_PLANS = 1024;
+
+    private Map plans = null;
+    private Map tables = null;
+
+    QueryPlanner() {
+        plans = new LinkedHashMap(64, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return size() > MAX_PLANS;
+                }
+            };
+        tables = new HashMap();
+    }
+
+    /**
+     * The plan for a query on names (of which the first numValues
+     * have values) that returns objects with requiredAttrs, and
+     * would like optionalAttrs too.
+     */
+    synchronized Plan getPlan(String[] names, int numValues,
+                              List requiredAttrs, List optionalAttrs) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < names.length; i++)
+            sb.append(i == numValues ? ';' : ',').append(names[i]);
+        sb.append('|').append(requiredAttrs);
+        sb.append('|').append(optionalAttrs);
+        String key = sb.toString();
+
+        Plan plan = (Plan) plans.get(key);
+        if (plan != null)
+            return plan;
+
+        Set queryTables = new TreeSet();
+        for (int i = 0; i < names.length; i++)
+            queryTables.add(tableOf(names[i]));
+        for (int i = 0; i < requiredAttrs.size(); i++)
+            queryTables.add(tableOf((String) requiredAttrs.get(i)));
+
+        Set extraTables = new TreeSet();
+        for (int i = 0; i < optionalAttrs.size(); i++) {
+            String table = tableOf((String) optionalAttrs.get(i));
+            if (!queryTables.contains(table))
+                extraTables.add(table);
+        }
+
+        plan = new Plan(key, queryTables, extraTables);
+        plans.put(key, plan);
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("New query plan " + plan);
+
+        return plan;
+    }
+
+    /** Which way to run the query this time */
+    synchronized int choose(Plan plan) {
+        plan.runs++;
+
+        // The optional attributes are in tables the query has to
+        // join anyway, so fetching them costs nothing extra
+        if (plan.extraTables.size() == 0)
+            return JOINED;
+
+        int best = plan.best();
+        int other = 1 - best;
+
+        int interval = EXPLORE_INTERVAL;
+        if (plan.samples[other] >= MIN_SAMPLES)
+            interval = REFRESH_INTERVAL;
+
+        if (plan.runs % interval == 0)
+            return other;
+        return best;
+    }
+
+    /** A query run with the given plan took elapsed ms for numResults */
+    synchronized void record(Plan plan, int how,
+                             long elapsed, int numResults) {
+        int before = plan.best();
+
+        if (plan.samples[how]++ == 0) {
+            plan.elapsed[how] = elapsed;
+            plan.results[how] = numResults;
+        }
+        else {
+            plan.elapsed[how] += DECAY * (elapsed - plan.elapsed[how]);
+            plan.results[how] += DECAY * (numResults - plan.results[how]);
+        }
+
+        if (plan.samples[JOINED] + plan.samples[SPLIT] == 1)
+            plan.expected = numResults;
+        else
+            plan.expected += DECAY * (numResults - plan.expected);
+
+        int after = plan.best();
+        if (after != before && logger.isLoggable(Level.INFO))
+            logger.info("Query plan now \"" + planNames[after] + "\": " +
+                        plan);
+    }
+
+    /**
+     * Split a list of attributes into lists of attributes that live
+     * in the same table, so each can be fetched without a join.
+     */
+    synchronized List partition(List attrs) {
+        Map byTable = new LinkedHashMap();
+        for (int i = 0; i < attrs.size(); i++) {
+            String attr = (String) attrs.get(i);
+            String table = tableOf(attr);
+            ArrayList l = (ArrayList) byTable.get(table);
+            if (l == null)
+                byTable.put(table, l = new ArrayList());
+            l.add(attr);
+        }
+        return new ArrayList(byTable.values());
+    }
+
+    /** The attributes of a followed by those of b that aren't in a */
+    static ArrayList union(List a, List b) {
+        ArrayList result = new ArrayList(a);
+        for (int i = 0; i < b.size(); i++)
+            if (!result.contains(b.get(i)))
+                result.add(b.get(i));
+        return result;
+    }
+
+    static String planName(int how) {
+        return planNames[how];
+    }
+
+    /**
+     * The table an attribute is stored in. Attributes that don't
+     * have a table column (e.g. system.*) are kept in a table named
+     * after their namespace.
+     */
+    private String tableOf(String attr) {
+        String table = (String) tables.get(attr);
+        if (table != null)
+            return table;
+
+        try {
+            Field field = RootNamespace.getInstance().resolveField(attr);
+            if (field != null && field.getTableColumn() != null)
+                table = field.getTableColumn().getTable().getName();
+        }
+        catch (EMDConfigException e) {
+            logger.log(Level.WARNING, "Couldn't resolve " + attr, e);
+        }
+
+        if (table == null) {
+            int pos = attr.indexOf('.');
+            table = (pos < 0)? attr : attr.substring(0, pos);
+        }
+
+        tables.put(attr, table);
+        return table;
+    }
+
+    /** What's known about one query */
+    static class Plan {
+        private String key;
+        private Set queryTables;
+        private Set extraTables;
+
+        private int runs = 0;
+        private double expected = 0;
+
+        // Running averages per plan of elapsed time and no. of results
+        private int[] samples = new int[2];
+        private double[] elapsed = new double[2];
+        private double[] results = new double[2];
+
+        private Plan(String key, Set queryTables, Set extraTables) {
+            this.key = key;
+            this.queryTables = queryTables;
+            this.extraTables = extraTables;
+        }
+
+        /**
+         * The estimated cost of a plan is its average time scaled by
+         * the no. of results we now expect.
+         */
+        private double cost(int how) {
+            double scale = Math.max(expected, 1) / Math.max(results[how], 1);
+            return elapsed[how] * scale;
+        }
+
+        private int best() {
+            if (samples[JOINED] > 0 && samples[SPLIT] > 0)
+                return (cost(JOINED) <= cost(SPLIT))? JOINED : SPLIT;
+            if (samples[JOINED] > 0)
+                return JOINED;
+            if (samples[SPLIT] > 0)
+                return SPLIT;
+
+            // No data yet: if the query is already a join, adding
+            // tables to it is likely cheaper than a query per object
+            return (queryTables.size() > 1)? JOINED : SPLIT;
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append(key).append(" tables ").append(queryTables);
+            sb.append(" + ").append(extraTables);
+            sb.append(" expect ").append((long) expected);
+            for (int i = 0; i < planNames.length; i++)
+                if (samples[i] > 0)
+                    sb.append(' ').append(planNames[i]).append('=')
+                        .append((long) cost(i)).append("ms");
+            return sb.toString();
+        }
+    }
+}
@@ -704,7 +704,8 @@ public class Simulator extends HCInterface {
         }
 
         int n = 0;
-        for (Iterator i = newValues.iterator(); i.hasNext(); n++)
+        for (Iterator i = newValues.iterator();
+                 i.hasNext() && !listener.isCancelled(); n++)
             listener.nextValue((String)i.next());
         return n;
     }
@@ -713,7 +714,8 @@ public class Simulator extends HCInterface {
                               ArrayList desiredAttrs,
                               MDListener listener) {
         int n = 0;
-        for (Iterator i = table.keySet().iterator(); i.hasNext(); ) {
+        for (Iterator i = table.keySet().iterator();
+                 i.hasNext() && !listener.isCancelled(); ) {
             Row r = (Row) table.get(i.next());
             if (logger.isLoggable(Level.FINEST))
                 logger.finest("Testing row " + r);
@@ -37,9 +37,12 @@ import com.sun.honeycomb.fscache.HCFile;
 import com.sun.honeycomb.connectors.HCInterface;
 import com.sun.honeycomb.archivers.HCXArchive;
 import com.sun.honeycomb.archivers.ArchiveReader;
+import com.sun.honeycomb.archivers.ArchiveIndex;
 
+import com.sun.honeycomb.common.ArchiveException;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
@@ -63,6 +66,12 @@ class HCArchiveReader {
     protected static final Logger logger =
         Logger.getLogger(HCArchiveReader.class.getName());
 
+    // Larger indexes are kept in memory only: the footer extension is
+    // read whole for every legal hold operation on the object
+    private static final int MAX_STORED_INDEX = 1024 * 1024;
+
+    private static final int FIRST_BLOCK_SIZE = 512;
+
     // This object is an archive object. Lookup path and all its
     // ancestors in one swoop. This assumes that ancestors of nodes
     // always come before nodes; if that is not the case, this method
@@ -140,8 +149,12 @@ class HCArchiveReader {
             // trim leading slash from relPath
             relPath = relPathBuf.substring(1);
 
-        // Load the archive file into the archive reader
-        ArchiveReader ar = openArchive(archiveRoot);
+        // Look the components up in the index; without one, load the
+        // archive file into the archive reader
+        ArchiveIndex index = archiveRoot.getArchiveIndex();
+        ArchiveReader ar = null;
+        if (index == null)
+            ar = openArchive(archiveRoot);
 
         sb = new StringBuffer(relPath);
 
@@ -153,13 +166,23 @@ class HCArchiveReader {
             if (logger.isLoggable(Level.FINE))
                 logger.fine("Trying \"" + newPath + "\" in archive");
 
-            HCXArchive.Stat stat = ar.skipTo(newPath);
+            HCXArchive.Stat stat;
+            if (index != null)
+                stat = index.lookup(newPath);
+            else
+                stat = ar.skipTo(newPath);
             if (stat == null)
                 // No such directory
                 return null;
 
+            boolean isDir;
+            if (index != null)
+                isDir = ArchiveIndex.isDirectory(stat);
+            else
+                isDir = ar.isDirectory();
+
             byte type = FSCacheObject.ARCHIVEFILETYPE;
-            if (ar.isDirectory())
+            if (isDir)
                 type = FSCacheObject.ARCHIVEDIRTYPE;
 
             f = new HCFile(type, archiveRoot.fileName(), newPath,
@@ -195,18 +218,23 @@ class HCArchiveReader {
             // cache. We also need to figure out if they are directories
             // or plain files.
 
-            ar = openArchive(archiveRoot);
-
             // Some archives don't include entries for all
             // directories; nextWithFill() inserts the "missing"
             // directories so we get a complete tree rooted at the
-            // parent
+            // parent. The index has those too.
+
+            ArchiveIndex index = archiveRoot.getArchiveIndex();
+            Iterator entries = null;
+            if (index != null)
+                entries = index.entries().iterator();
+            else
+                ar = openArchive(archiveRoot);
 
             if (logger.isLoggable(Level.FINE))
                 logger.fine("Importing children for " + parent);
 
             HCXArchive.Stat stat;
-            while ((stat = ar.nextWithFill()) != null) {
+            while ((stat = nextStat(entries, ar)) != null) {
 
                 String fullPath = archiveRootPath + "/" + stat.name();
                 String parentPath = parentOf(fullPath);
@@ -217,8 +245,14 @@ class HCArchiveReader {
                                  "; parentOf(o) = \"" + parentPath + "\"");
 
                 if (parentPath.equals(parent.fileName())) {
+                    boolean isDir;
+                    if (entries != null)
+                        isDir = ArchiveIndex.isDirectory(stat);
+                    else
+                        isDir = ar.isDirectory();
+
                     byte type = FSCacheObject.ARCHIVEFILETYPE;
-                    if (ar.isDirectory())
+                    if (isDir)
                         type = FSCacheObject.ARCHIVEDIRTYPE;
 
                     HCFile f = new HCFile(type, archiveRootPath, stat.name(),
@@ -280,12 +314,21 @@ class HCArchiveReader {
         Set dirs = new HashSet();
 
         try {
-            ar = openArchive(archObj);
-            if (ar == null)
+            // The top level dirs are those actually in the archive, so
+            // skip the synthesized ones if reading from the index
+            ArchiveIndex index = archObj.getArchiveIndex();
+            Iterator entries = null;
+            if (index != null)
+                entries = index.entries().iterator();
+            else if ((ar = openArchive(archObj)) == null)
                 return null;
 
             HCXArchive.Stat stat;
-            while ((stat = ar.next()) != null) {
+            while ((stat = (entries != null) ?
+                    nextStat(entries, null) : ar.next()) != null) {
+                if (entries != null && ArchiveIndex.isSynthetic(stat))
+                    continue;
+
                 String path = stat.name() + "/";
 
                 if (!hasAncestorInDirs(dirs, path))
@@ -312,6 +355,94 @@ class HCArchiveReader {
         return dirs;
     }
 
+    /**
+     * Load the member index of an archive object from the object, or
+     * build it by reading the whole archive and store it with the
+     * object. The archive data is immutable, so the index never needs
+     * rebuilding. Returns null if the archive cannot be read.
+     */
+    static ArchiveIndex loadIndex(HCFile archObj) {
+        NewObjectIdentifier oid = archObj.getOID();
+
+        try {
+            byte[] bytes = HCFile.hc.getArchiveIndex(oid);
+            if (bytes != null) {
+                ArchiveIndex index = ArchiveIndex.fromBytes(bytes);
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Loaded " + index + " for " + archObj);
+                return index;
+            }
+        }
+        catch (Exception e) {
+            logger.log(Level.WARNING, "Reading index of " + archObj, e);
+        }
+
+        byte[] firstBlock = null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            long len = Math.min(archObj.size(), FIRST_BLOCK_SIZE);
+            if (HCFile.hc.writeObject(oid, bos, 0L, len))
+                firstBlock = bos.toByteArray();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Reading " + archObj, e);
+        }
+
+        ArchiveReader ar = new ArchiveReader();
+        WorkerThread writer = null;
+        ArchiveIndex index = null;
+        boolean complete = false;
+        try {
+            writer = writeObjectAsync(ar.getStream(), oid, archObj.size());
+            index = ArchiveIndex.build(ar, firstBlock);
+
+            // Libarchive reports a read error as EOF; only trust the
+            // index if the archive was fed to it without error
+            writer.abandon();
+            complete = !ar.failed() && !writer.failed();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Opening archive " + archObj, e);
+            return null;
+        }
+        finally {
+            try {
+                ar.close();
+            } catch (IOException e) {}
+        }
+
+        if (!complete) {
+            logger.warning("Couldn't read all of archive " + archObj);
+            return null;
+        }
+
+        byte[] bytes = index.toBytes();
+        if (bytes.length <= MAX_STORED_INDEX) {
+            try {
+                HCFile.hc.putArchiveIndex(oid, bytes);
+            }
+            catch (ArchiveException e) {
+                logger.log(Level.WARNING, "Storing index of " + archObj, e);
+            }
+        }
+
+        if (logger.isLoggable(Level.INFO))
+            logger.info("Built " + index + " (" + bytes.length +
+                        " bytes) for " + archObj);
+        return index;
+    }
+
+    // The next entry from the index iterator if there is one, from
+    // the archive reader otherwise
+    private static HCXArchive.Stat nextStat(Iterator entries,
+                                            ArchiveReader ar) {
+        if (entries == null)
+            return ar.nextWithFill();
+        if (!entries.hasNext())
+            return null;
+        return (HCXArchive.Stat) entries.next();
+    }
+
     // return value: whether or not path has an ancestor in the list
     // of directories
     private static boolean hasAncestorInDirs(Set dirs, String path) {
@@ -345,11 +476,12 @@ class HCArchiveReader {
         return path.substring(0, pos);
     }
 
-    static private void writeObjectAsync(OutputStream os,
-                                         NewObjectIdentifier oid,
-                                         long objSize) {
+    static private WorkerThread writeObjectAsync(OutputStream os,
+                                                 NewObjectIdentifier oid,
+                                                 long objSize) {
         WorkerThread wr = new WorkerThread(os, oid, objSize);
         wr.start();
+        return wr;
     }
 
     static class WorkerThread extends Thread {
@@ -357,6 +489,11 @@ class HCArchiveReader {
         private NewObjectIdentifier oid;
         private long size;
 
+        // Set if the object could not be written before the reader
+        // abandoned the stream
+        private volatile boolean failed = false;
+        private volatile boolean abandoned = false;
+
         public WorkerThread(OutputStream os, NewObjectIdentifier oid, long l) {
             this.os = os;
             this.oid = oid;
@@ -364,14 +501,22 @@ class HCArchiveReader {
         }
 
         public void run() {
+            boolean ok = false;
             try {
-                HCFile.hc.writeObject(oid, os, 0L, size);
+                ok = HCFile.hc.writeObject(oid, os, 0L, size);
             }
             catch (Exception e) {}
             finally {
+                if (!ok && !abandoned)
+                    failed = true;
                 try { os.close(); } catch (Exception e) {}
             }
         }
+
+        /** The reader is done; errors from now on are its doing */
+        void abandon() { abandoned = true; }
+
+        boolean failed() { return failed; }
     }
 
     public static void main(String[] args) {
@@ -36,6 +36,7 @@ package com.sun.honeycomb.fscache;
 
 import com.sun.honeycomb.archivers.HCXArchive;
 import com.sun.honeycomb.archivers.ArchiveReader;
+import com.sun.honeycomb.archivers.ArchiveIndex;
 
 import com.sun.honeycomb.connectors.HCInterface;
 import com.sun.honeycomb.connectors.MDHandler;
@@ -115,6 +116,8 @@ public class HCFile extends FSCacheObject {
     private NewObjectIdentifier oid; // null if this is a ROOTFILETYPE
 
     private Set archiveTopLevelDirs = null;
+    private ArchiveIndex archiveIndex = null;
+    private boolean archiveIndexLoaded = false;
     private Filename viewFilename = null;
 
     //////////////////////////////////////////////////////////////////////
@@ -561,6 +564,22 @@ public class HCFile extends FSCacheObject {
         return archiveTopLevelDirs;
     }
 
+    /**
+     * The member index of this archive object, loaded or built on
+     * first use; null if the archive could not be read.
+     */
+    synchronized ArchiveIndex getArchiveIndex() {
+        if (fileType() != FILELEAFTYPE || !isArchiveObject())
+            throw new InternalException("not an archive object");
+
+        if (!archiveIndexLoaded) {
+            archiveIndex = HCArchiveReader.loadIndex(this);
+            archiveIndexLoaded = true;
+        }
+
+        return archiveIndex;
+    }
+
     public boolean delete() {
         try {
             hc.delete(getOID());
@@ -610,6 +629,40 @@ public class HCFile extends FSCacheObject {
         return numChildren();
     }
 
+    /**
+     * Hand each child to the listener as it's found. If the children
+     * aren't already in the cache, they're taken straight from the
+     * query results and not added to it, so even a view that expands
+     * to a huge number of objects can be listed without having to
+     * hold all of them. (The root and archive objects are small
+     * enough to go through the cache.)
+     */
+    public int streamChildren(Object group, ChildListener listener)
+            throws FSCacheException, IOException {
+
+        if (fileType() == ROOTFILETYPE || isArchiveObject() ||
+                (isComplete() && !isOld())) {
+            int n = 0;
+            List children = fileCache.listChildren(group, this);
+            if (children == null)
+                throw new FSCacheException(FSCacheException.FSERR_SERVERFAULT,
+                                           "Couldn't list " + fileName());
+            for (Iterator i = children.iterator(); i.hasNext(); n++)
+                listener.nextChild((HCFile) i.next());
+            return n;
+        }
+
+        long startTime = System.currentTimeMillis();
+        int numValues = queryChildren(group, listener);
+
+        if (logger.isLoggable(Level.INFO))
+            logger.info("To list " + numValues + " children of \"" +
+                        fileName() + "\": " +
+                        (System.currentTimeMillis() - startTime) + "ms");
+
+        return numValues;
+    }
+
     public void setMimeType(String mimeType) {
         super.setMimeType(mimeType);
 
@@ -697,6 +750,28 @@ public class HCFile extends FSCacheObject {
             logger.fine("Searching archive \"" + fileName() +
                      "\" for \"" + path + "\"");
 
+        // If the member is stored as is in the archive object, read
+        // it from there instead of streaming the archive up to it
+        ArchiveIndex index = getArchiveIndex();
+        if (index != null && index.isSeekable()) {
+            HCXArchive.Stat stat = index.lookup(path);
+            if (stat != null && !ArchiveIndex.isDirectory(stat) &&
+                    !ArchiveIndex.isSynthetic(stat)) {
+                if (len == HCInterface.UNKNOWN_SIZE ||
+                        offset + len > stat.size())
+                    len = stat.size() - offset;
+
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Writing " + stat + ": " + len +
+                                " bytes (offset " + offset + ") in place");
+
+                if (len <= 0)
+                    return true;
+                return hc.writeObject(getOID(), Channels.newChannel(os),
+                                      stat.index() + offset, len);
+            }
+        }
+
         ArchiveReader ar = HCArchiveReader.openArchive(this);
         try {
             HCXArchive.Stat stat = ar.skipTo(path);
@@ -746,10 +821,7 @@ public class HCFile extends FSCacheObject {
             return views.length;
         }
 
-        if ((viewIndex < 0) || (viewIndex >= views.length))
-            throw new FSCacheException(FSCacheException.FSERR_SERVERFAULT,
-                                       "Invalid view index: " + viewIndex);
-        FsView view = views[viewIndex];
+        getView();
 
         // When an object is first created and its MIME type set, we
         // also figured out whether or not it's an auto-open archive
@@ -757,12 +829,36 @@ public class HCFile extends FSCacheObject {
         if (isArchiveObject())
             return importArchiveChildren(group);
 
+        // Otherwise, we need to do a EMD query.
+
+        try {
+            return queryChildren(group, null);
+        }
+        catch (IOException e) {
+            // Only a ChildListener can fail this way
+            throw new InternalException(e);
+        }
+    }
+
+    private FsView getView() throws FSCacheException {
+        if ((viewIndex < 0) || (viewIndex >= views.length))
+            throw new FSCacheException(FSCacheException.FSERR_SERVERFAULT,
+                                       "Invalid view index: " + viewIndex);
+        return views[viewIndex];
+    }
+
+    /**
+     * Run the queries for the children of this directory. They're
+     * added to the cache, or if there's a listener, given to it.
+     */
+    private int queryChildren(Object group, ChildListener listener)
+            throws FSCacheException, IOException {
+        FsView view = getView();
+
         if (fileType() == FILELEAFTYPE)
             throw new FSCacheException(FSCacheException.FSERR_NOENT,
                                        "Not a directory: " + fileName());
 
-        // Otherwise, we need to do a EMD query.
-
         int nValues = 0;
         String[] attrNames = getViewAttrNames();
         String[] names;         // actually used in the query
@@ -781,10 +877,8 @@ public class HCFile extends FSCacheObject {
             for ( ; i < values.length; i++)
                 values[i] = null;
 
-            nValues +=
-                MDHandler.runQueryAddChildren(this, group,
-                                              attrNames, values,
-                                              view.getFilename());
+            nValues += runQuery(group, attrNames, values,
+                                view.getFilename(), listener);
 
             // For directory children, if we're collapsing nulls we
             // have to relax the restriction that all attributes in
@@ -810,13 +904,22 @@ public class HCFile extends FSCacheObject {
 
         // Run query and add children
 
-        nValues += MDHandler.runQueryAddChildren(this, group,
-                                                 names, values,
-                                                 view.getFilename());
+        nValues += runQuery(group, names, values, view.getFilename(),
+                            listener);
 
         return nValues;
     }
 
+    private int runQuery(Object group, String[] names, String[] values,
+                         Filename filename, ChildListener listener)
+            throws FSCacheException, IOException {
+        if (listener == null)
+            return MDHandler.runQueryAddChildren(this, group, names, values,
+                                                 filename);
+        return MDHandler.runQueryStreamChildren(this, names, values,
+                                                filename, listener);
+    }
+
     // This method is not called for archive objects
     private void setFilename() {
         String rootPath = fileCache.getRoot().fileName();
@@ -0,0 +1,419 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+
+package com.sun.honeycomb.fscache;
+
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Serialized cache objects kept in a direct (i.e. off-heap) buffer
+ * of fixed size; ShardedFSCache puts the objects it evicts here.
+ *
+ * Records are appended to the buffer as a ring, and when there's no
+ * room the oldest are dropped, so objects leave in the order they
+ * were evicted. The index from path to record is open addressing
+ * over two int arrays keyed by the hash of the path, so none of this
+ * adds to the objects the GC has to trace.
+ *
+ * Not thread-safe; the caller synchronizes.
+ */
+class OffHeapStore {
+
+    // Record layout:
+    //     int     length of the record (including this header)
+    //     byte    1 if live, 0 if removed
+    //     int     hash of the path
+    //     long    time stored
+    //     short   length of the OID, then the OID
+    //     short   length of the path, then the path (UTF-8)
+    //     short   length of the display name (-1 for none), then the name
+    //     ...     the object, as written by FSCacheObject.writeOut()
+
+    private static final int LENGTH_OFFSET = 0;
+    private static final int LIVE_OFFSET = 4;
+    private static final int HASH_OFFSET = 5;
+    private static final int STAMP_OFFSET = 9;
+    private static final int OID_OFFSET = 17;
+
+    private static final int MIN_INDEX_SIZE = 64;
+
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    /** What's handed back for a path */
+    static class Record {
+        long stamp;
+        String displayName;
+        byte[] data;
+    }
+
+    private ByteBuffer buf;
+    private int capacity;
+
+    // Live records are in [head, tail), or if the ring has wrapped,
+    // [head, wrapAt) followed by [0, tail)
+    private int head = 0;
+    private int tail = 0;
+    private int wrapAt = -1;
+
+    private int numRecords = 0;     // including removed ones
+    private int numLive = 0;
+    private long liveBytes = 0;
+
+    // Index slots: the path hash, and 1 + the record's offset (or
+    // EMPTY or DELETED)
+    private int[] hashes;
+    private int[] slots;
+    private int numUsedSlots = 0;   // including DELETED ones
+
+    OffHeapStore(int capacity) {
+        this.capacity = capacity;
+        buf = ByteBuffer.allocateDirect(capacity);
+        hashes = new int[MIN_INDEX_SIZE];
+        slots = new int[MIN_INDEX_SIZE];
+    }
+
+    int size() { return numLive; }
+    long bytesUsed() { return liveBytes; }
+    int capacity() { return capacity; }
+
+    /**
+     * Store the object's data under path, replacing any older copy;
+     * returns false if it doesn't fit at all.
+     */
+    boolean put(String path, byte[] oid, String displayName, byte[] data,
+                long stamp) {
+        byte[] pathBytes = utf8(path);
+        byte[] nameBytes = (displayName == null)? null : utf8(displayName);
+
+        int length = OID_OFFSET + 2 + oid.length + 2 + pathBytes.length +
+            2 + ((nameBytes == null)? 0 : nameBytes.length) + data.length;
+        if (length > capacity)
+            return false;
+
+        remove(path);
+
+        int offset = allocate(length);
+
+        ByteBuffer b = buf.duplicate();
+        b.position(offset);
+        b.putInt(length);
+        b.put((byte) 1);
+        b.putInt(path.hashCode());
+        b.putLong(stamp);
+        b.putShort((short) oid.length);
+        b.put(oid);
+        b.putShort((short) pathBytes.length);
+        b.put(pathBytes);
+        if (nameBytes == null)
+            b.putShort((short) -1);
+        else {
+            b.putShort((short) nameBytes.length);
+            b.put(nameBytes);
+        }
+        b.put(data);
+
+        numRecords++;
+        numLive++;
+        liveBytes += length;
+
+        addToIndex(path.hashCode(), offset);
+        return true;
+    }
+
+    /** Remove and return the record for path, or null if there's none */
+    Record take(String path) {
+        int slot = find(path);
+        if (slot < 0)
+            return null;
+
+        int offset = slots[slot] - 1;
+
+        ByteBuffer b = buf.duplicate();
+        b.position(offset + STAMP_OFFSET);
+
+        Record r = new Record();
+        r.stamp = b.getLong();
+        skip(b);                                // OID
+        skip(b);                                // path
+
+        short nameLength = b.getShort();
+        if (nameLength >= 0) {
+            byte[] name = new byte[nameLength];
+            b.get(name);
+            r.displayName = fromUtf8(name);
+        }
+
+        r.data = new byte[offset + buf.getInt(offset) - b.position()];
+        b.get(r.data);
+
+        kill(offset);
+        removeSlot(slot);
+        return r;
+    }
+
+    boolean remove(String path) {
+        int slot = find(path);
+        if (slot < 0)
+            return false;
+
+        kill(slots[slot] - 1);
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Remove all records for an OID. There's no index by OID, so this
+     * walks all the records; it's only used for deletes.
+     */
+    int removeOid(byte[] oid) {
+        int removed = 0;
+
+        for (int offset = head, n = 0; n < numRecords; n++) {
+            if (offset == wrapAt)
+                offset = 0;
+
+            int length = buf.getInt(offset + LENGTH_OFFSET);
+
+            if (buf.get(offset + LIVE_OFFSET) != 0 && oidIs(offset, oid)) {
+                removeFromIndex(offset);
+                kill(offset);
+                removed++;
+            }
+
+            offset += length;
+        }
+
+        return removed;
+    }
+
+    void clear() {
+        head = tail = 0;
+        wrapAt = -1;
+        numRecords = numLive = 0;
+        liveBytes = 0;
+        Arrays.fill(hashes, 0);
+        Arrays.fill(slots, EMPTY);
+        numUsedSlots = 0;
+    }
+
+    public String toString() {
+        return "OffHeapStore " + numLive + " objects, " + liveBytes +
+            "/" + capacity + " bytes";
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // The ring
+
+    /** Find room for length bytes, dropping the oldest records */
+    private int allocate(int length) {
+        for (;;) {
+            if (numRecords == 0) {
+                head = tail = 0;
+                wrapAt = -1;
+            }
+
+            if (wrapAt < 0) {
+                if (tail + length <= capacity)
+                    break;
+
+                // Start again from the beginning
+                wrapAt = tail;
+                tail = 0;
+            }
+
+            if (tail + length <= head)
+                break;
+
+            dropOldest();
+        }
+
+        int offset = tail;
+        tail += length;
+        return offset;
+    }
+
+    private void dropOldest() {
+        int length = buf.getInt(head + LENGTH_OFFSET);
+
+        if (buf.get(head + LIVE_OFFSET) != 0) {
+            removeFromIndex(head);
+            kill(head);
+        }
+
+        numRecords--;
+        head += length;
+
+        if (head == wrapAt) {
+            head = 0;
+            wrapAt = -1;
+        }
+    }
+
+    private void kill(int offset) {
+        buf.put(offset + LIVE_OFFSET, (byte) 0);
+        numLive--;
+        liveBytes -= buf.getInt(offset + LENGTH_OFFSET);
+    }
+
+    private boolean oidIs(int offset, byte[] oid) {
+        int pos = offset + OID_OFFSET;
+        if (buf.getShort(pos) != oid.length)
+            return false;
+        pos += 2;
+        for (int i = 0; i < oid.length; i++)
+            if (buf.get(pos + i) != oid[i])
+                return false;
+        return true;
+    }
+
+    private boolean pathIs(int offset, byte[] path) {
+        int pos = offset + OID_OFFSET;
+        pos += 2 + buf.getShort(pos);
+        if (buf.getShort(pos) != path.length)
+            return false;
+        pos += 2;
+        for (int i = 0; i < path.length; i++)
+            if (buf.get(pos + i) != path[i])
+                return false;
+        return true;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // The index
+
+    private int find(String path) {
+        int hash = path.hashCode();
+        int mask = slots.length - 1;
+        byte[] pathBytes = null;
+
+        for (int i = hash & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == DELETED || hashes[i] != hash)
+                continue;
+            if (pathBytes == null)
+                pathBytes = utf8(path);
+            if (pathIs(slots[i] - 1, pathBytes))
+                return i;
+        }
+
+        return -1;
+    }
+
+    private void removeFromIndex(int offset) {
+        int hash = buf.getInt(offset + HASH_OFFSET);
+        int mask = slots.length - 1;
+
+        for (int i = hash & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+            if (slots[i] == offset + 1) {
+                removeSlot(i);
+                return;
+            }
+    }
+
+    private void removeSlot(int slot) {
+        slots[slot] = DELETED;
+    }
+
+    private void addToIndex(int hash, int offset) {
+        if (2 * (numUsedSlots + 1) > slots.length)
+            rebuildIndex();
+
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != EMPTY)
+            i = (i + 1) & mask;
+
+        hashes[i] = hash;
+        slots[i] = offset + 1;
+        numUsedSlots++;
+    }
+
+    /** Drop DELETED slots, growing or shrinking the index to suit */
+    private void rebuildIndex() {
+        int size = MIN_INDEX_SIZE;
+        while (size < 4 * (numLive + 1))
+            size *= 2;
+
+        int[] oldHashes = hashes;
+        int[] oldSlots = slots;
+
+        hashes = new int[size];
+        slots = new int[size];
+        numUsedSlots = 0;
+
+        int mask = size - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == EMPTY || oldSlots[j] == DELETED)
+                continue;
+
+            int i = oldHashes[j] & mask;
+            while (slots[i] != EMPTY)
+                i = (i + 1) & mask;
+
+            hashes[i] = oldHashes[j];
+            slots[i] = oldSlots[j];
+            numUsedSlots++;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+
+    /** Skip over a length-prefixed field */
+    private static void skip(ByteBuffer b) {
+        short length = b.getShort();
+        b.position(b.position() + length);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,925 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+
+package com.sun.honeycomb.fscache;
+
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.common.StringUtil;
+import com.sun.honeycomb.common.ByteArrays;
+
+/**
+ * An FSCache for many concurrent clients. Paths are spread over a
+ * number of shards by their hash; each shard has a ConcurrentHashMap
+ * of the objects in memory, so lookups don't lock anything, and its
+ * own CLOCK (approximate LRU) reclaimer that works down from the
+ * hi-water mark to the lo-water mark.
+ *
+ * Objects that are reclaimed are written out to the shard's
+ * OffHeapStore, a byte-budgeted ring in direct memory, and brought
+ * back if they're looked up again. An object that's been out of
+ * memory for longer than the coherency time is not brought back,
+ * since it would have been out of date anyway.
+ *
+ * Directory listings are snapshots of the directory's children; a
+ * snapshot is kept until the cache adds or removes a child of that
+ * directory, so repeated listings of the same directory don't lock
+ * anything either.
+ */
+public class ShardedFSCache extends FSCache {
+
+    protected static final Logger logger =
+        Logger.getLogger(ShardedFSCache.class.getName());
+
+    public static final String PNAME_SHARDS = "shards";
+    public static final String PNAME_OFFHEAP_SIZE = "offheap.size";
+
+    public static final int DEFAULT_SHARDS = 16;
+    public static final long DEFAULT_OFFHEAP_SIZE = 64L * 1024 * 1024;
+
+    /** A cached object and its reclaimer state */
+    private static class Entry {
+        FSCacheObject obj;
+        volatile boolean referenced = true;
+        volatile List children = null;
+        volatile int version = 0;
+        boolean removed = false;        // protected by the shard
+
+        Entry(FSCacheObject obj) {
+            this.obj = obj;
+        }
+    }
+
+    private static class Shard {
+        ConcurrentHashMap entries = new ConcurrentHashMap();
+        OffHeapStore store;
+
+        // The CLOCK: all entries in the shard, and the hand
+        ArrayList ring = new ArrayList();
+        int hand = 0;
+
+        Shard(int storeSize) {
+            store = new OffHeapStore(storeSize);
+        }
+    }
+
+    private Shard[] shards = null;
+    private int shardHiWater;
+    private int shardLoWater;
+
+    private ConcurrentHashMap oidMap = null;
+
+    //////////////////////////////////////////////////////////////////////
+
+    public void ShardedFSCache() {}
+
+    public void initialize(FSCacheObject root, Properties config)
+            throws FSCacheException {
+        super.initialize(root, config);
+        init();
+    }
+
+    // Operations may be grouped to form a "transaction"
+    public Object startGroup() throws FSCacheException {
+        return null;
+    }
+
+    public void endGroup(Object group) throws FSCacheException {
+    }
+
+    //////////////////////////////////////////////////////////////////////
+
+    // Basic lookup methods
+    public FSCacheObject lookup(Object o, String path)
+            throws FSCacheException {
+        long startTime = System.currentTimeMillis();
+        FSCacheObject result = cacheLookup(path);
+
+        if (result == null) {
+            int err = FSCacheException.FSERR_NOENT;
+            String msg = "File \"" + path + "\" not found";
+            throw new FSCacheException(err, msg);
+        }
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("instr " + (System.currentTimeMillis() - startTime) +
+                        " lookup \"" + path + "\"");
+        return result;
+    }
+
+    // Directory listing: returns list of FSCacheObject
+    public List listChildren(Object o, FSCacheObject node)
+            throws FSCacheException {
+        long startTime = System.currentTimeMillis();
+
+        if (node.isOld())
+            // refresh it
+            try {
+                node.addChildren(o);
+            }
+            catch (FSCacheException e) {
+                logger.warning("Failed to add children: " + node.fileName());
+                return null;
+            }
+
+        Entry e = (Entry) shard(node.fileName()).entries.get(node.fileName());
+        List children = (e == null)? null : e.children;
+
+        if (children == null) {
+            int version = (e == null)? 0 : e.version;
+
+            List kids = node.children();
+            synchronized (kids) {
+                children = Collections.unmodifiableList(new ArrayList(kids));
+            }
+
+            if (e != null) {
+                e.children = children;
+                if (e.version != version)
+                    // A child was added or removed meanwhile
+                    e.children = null;
+            }
+        }
+
+        if (e != null)
+            e.referenced = true;
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("LS   " + node.fileName() + " -> " +
+                        children.size() + " children " +
+                        (System.currentTimeMillis() - startTime) + "ms");
+
+        return children;
+    }
+
+    // Add/remove/update entries
+    public boolean add(Object o, FSCacheObject obj) throws FSCacheException {
+        long startTime = System.currentTimeMillis();
+
+        String name = obj.fileName();
+        if (shard(name).entries.get(name) != null) {
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("Object " + name + " already exists");
+            return true;
+        }
+
+        FSCacheObject parent = null;
+        if (obj.fileType() != FSCacheObject.ROOTFILETYPE) {
+            parent = cacheLookup(parentName(name));
+
+            if (parent == null) {
+                logger.warning("Cache invariant violation: no parent for " +
+                               name);
+                parent = addParentDirs(obj);
+            }
+        }
+
+        insert(obj, parent, true);
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("instr " + (System.currentTimeMillis() - startTime) +
+                        " add \"" + name + "\"");
+        return true;
+    }
+
+    public boolean remove(Object o, FSCacheObject obj, boolean r)
+            throws FSCacheException {
+        long startTime = System.currentTimeMillis();
+
+        String objName = obj.fileName();
+        Shard s = shard(objName);
+        Entry e;
+
+        synchronized (s) {
+            e = (Entry) s.entries.remove(objName);
+            if (e != null)
+                e.removed = true;
+            s.store.remove(objName);
+
+            if (s.ring.size() > 2 * s.entries.size() + 16)
+                compact(s);
+        }
+
+        if (e == null) {
+            logger.warning("Object " + objName + " not in the cache");
+            return true;
+        }
+
+        unlink(e.obj);
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("instr " + (System.currentTimeMillis() - startTime) +
+                        " rm \"" +  objName + "\"");
+
+        return true;
+    }
+
+    public boolean remove(Object group, byte[] oid) throws FSCacheException {
+        long startTime = System.currentTimeMillis();
+
+        boolean ok = true;
+        String[] locations = getLocations(oid);
+
+        if (logger.isLoggable(Level.INFO)) {
+            String msg = "Removing OID " + StringUtil.image(oid) + ":";
+            for (int i = 0; i < locations.length; i++)
+                msg += " " + StringUtil.image(locations[i]);
+            logger.info(msg);
+        }
+
+        for (int i = 0; i < locations.length; i++) {
+            FSCacheObject obj = cacheLookup(locations[i]);
+            if (obj != null && !remove(group, obj, false))
+                ok = false;
+        }
+
+        // And any copies that are out of memory
+        for (int i = 0; i < shards.length; i++)
+            synchronized (shards[i]) {
+                shards[i].store.removeOid(oid);
+            }
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("instr " + (System.currentTimeMillis() - startTime) +
+                        " rm " + ByteArrays.toHexString(oid));
+
+        return ok;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+
+    private void init() throws FSCacheException {
+        int nShards = 1;
+        int n = getProperty(PNAME_SHARDS, DEFAULT_SHARDS);
+        while (nShards < n)
+            nShards *= 2;
+
+        long offHeapSize = getProperty(PNAME_OFFHEAP_SIZE,
+                                       DEFAULT_OFFHEAP_SIZE);
+        int storeSize = (int) Math.min(offHeapSize / nShards,
+                                       Integer.MAX_VALUE);
+
+        shardHiWater = Math.max(1, (cacheSizeMax + nShards - 1) / nShards);
+        shardLoWater = Math.max(1, Math.min(shardHiWater,
+                                            cacheSizeLow / nShards));
+
+        shards = new Shard[nShards];
+        for (int i = 0; i < nShards; i++)
+            shards[i] = new Shard(storeSize);
+
+        oidMap = new ConcurrentHashMap();
+
+        insert(root, null, false);
+
+        if (logger.isLoggable(Level.INFO))
+            logger.info("ShardedFSCache initialized, root = " +
+                        root.fileName() + "; " + nShards + " shards of " +
+                        shardHiWater + " objects, " + storeSize +
+                        " bytes off-heap");
+    }
+
+    public String toString() {
+        int size = 0;
+        int stored = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].entries.size();
+            stored += shards[i].store.size();
+        }
+        return "ShardedFSCache " + size + "+" + stored + " 0x" + hashCode();
+    }
+
+    public synchronized void dump(OutputStream os) throws IOException {
+        OutputStreamWriter out = new OutputStreamWriter(os);
+
+        out.write(toString());
+        out.write('\n');
+
+        int j = 0;
+        for (int k = 0; k < shards.length; k++) {
+            Shard s = shards[k];
+            out.write("\nShard " + k + ": " + s.store + "\n");
+
+            for (Iterator i = s.entries.values().iterator(); i.hasNext(); ) {
+                Entry e = (Entry) i.next();
+                out.write(Integer.toString(++j));
+                out.write(':');
+                out.write(e.obj.toString());
+                out.write('\n');
+            }
+        }
+        out.flush();
+
+        j = 0;
+        out.write("\nObject map (" + oidMap.size() + " elements):\n");
+        for (Iterator i = oidMap.keySet().iterator(); i.hasNext(); ) {
+            OID oid = (OID) i.next();
+            out.write(Integer.toString(++j));
+            out.write(':');
+            out.write(ByteArrays.toHexString(oid.value()));
+
+            String[] paths = getLocations(oid.value());
+            for (int k = 0; k < paths.length; k++) {
+                out.write(" \"");
+                out.write(paths[k]);
+                out.write("\"");
+            }
+            out.write('\n');
+        }
+        out.write("\nDONE!\n");
+        out.flush();
+    }
+
+    private Shard shard(String path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    /**
+     * Lookup a path in the cache, bringing it back from the off-heap
+     * store if it's there. Returns null if it isn't in the cache.
+     */
+    private FSCacheObject cacheLookup(String path) {
+        Shard s = shard(path);
+
+        Entry e = (Entry) s.entries.get(path);
+        if (e != null) {
+            e.referenced = true;
+            return e.obj;
+        }
+
+        OffHeapStore.Record r;
+        synchronized (s) {
+            e = (Entry) s.entries.get(path);
+            if (e != null)
+                return e.obj;
+            r = s.store.take(path);
+        }
+        if (r == null)
+            return null;
+
+        long age = System.currentTimeMillis() - r.stamp;
+        if (age > getCoherencyTime()) {
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("Off-heap copy of " + StringUtil.image(path) +
+                            " too old (" + age + "ms)");
+            return null;
+        }
+
+        // The parent is looked up (or brought back) without holding
+        // the shard, since it may be in another one
+        FSCacheObject parent = cacheLookup(parentName(path));
+        if (parent == null)
+            return null;
+
+        FSCacheObject obj = root.newObject();
+        try {
+            obj.readIn(new DataInputStream(new ByteArrayInputStream(r.data)));
+        }
+        catch (IOException ex) {
+            logger.log(Level.WARNING, "Couldn't read back " +
+                       StringUtil.image(path), ex);
+            return null;
+        }
+        if (r.displayName != null)
+            obj.setDisplayName(r.displayName);
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Back from off-heap: " + StringUtil.image(path));
+
+        return insert(obj, parent, true);
+    }
+
+    /**
+     * Put an object in its shard and link it to its parent. If there
+     * already is an object at that path, that's returned instead.
+     */
+    private FSCacheObject insert(FSCacheObject obj, FSCacheObject parent,
+                                 boolean reclaim) {
+        String name = obj.fileName();
+        Shard s = shard(name);
+        Entry e = new Entry(obj);
+
+        synchronized (s) {
+            Entry prev = (Entry) s.entries.putIfAbsent(name, e);
+            if (prev != null)
+                return prev.obj;
+
+            // Anything stored is out of date now
+            s.store.remove(name);
+            s.ring.add(e);
+        }
+
+        // Make sure "/" entry does not appear as a child of "/" itself.
+        if (obj.fileType() == FSCacheObject.ROOTFILETYPE)
+            return obj;
+
+        if (parent != null) {
+            obj.setParent(parent);
+            parent.addChild(obj);
+            childrenChanged(parent);
+        }
+
+        List objects = getObjList(obj.getOidBytesExternal());
+        synchronized (objects) {
+            objects.add(obj);
+        }
+
+        if (reclaim && s.entries.size() > shardHiWater)
+            synchronized (s) {
+                reclaim(s);
+            }
+
+        return obj;
+    }
+
+    /** Detach a removed object from its parent and the OID map */
+    private void unlink(FSCacheObject obj) {
+        oidMapRemove(obj);
+
+        if (obj.fileType() == FSCacheObject.ROOTFILETYPE)
+            return;
+
+        FSCacheObject parent = obj.parent();
+        if (parent == null) {
+            Entry p = (Entry) shard(parentName(obj.fileName())).entries.get(
+                                                 parentName(obj.fileName()));
+            if (p == null)
+                return;
+            parent = p.obj;
+        }
+
+        parent.removeChild(obj);
+        childrenChanged(parent);
+    }
+
+    /** Throw away the snapshot of a directory's children */
+    private void childrenChanged(FSCacheObject dir) {
+        Entry e = (Entry) shard(dir.fileName()).entries.get(dir.fileName());
+        if (e != null) {
+            e.version++;
+            e.children = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Support for delete by OID
+
+    /** Finds all the locations that an object occurs in the filesystem */
+    public String[] getLocations(byte[] oidBytes) {
+        List paths = new LinkedList();
+
+        List objects = (List) oidMap.get(new OID(oidBytes));
+        if (objects != null)
+            synchronized (objects) {
+                for (Iterator i = objects.iterator(); i.hasNext(); ) {
+                    FSCacheObject f = (FSCacheObject) i.next();
+                    paths.add(f.fileName());
+                }
+            }
+
+        String[] retval = new String[paths.size()];
+        return (String[]) paths.toArray(retval);
+    }
+
+    private List getObjList(byte[] oidBytes) {
+        OID oid = new OID(oidBytes);
+
+        List objects = (List) oidMap.get(oid);
+        if (objects == null) {
+            List newList = new LinkedList();
+            objects = (List) oidMap.putIfAbsent(oid, newList);
+            if (objects == null)
+                objects = newList;
+        }
+        return objects;
+    }
+
+    private void oidMapRemove(FSCacheObject obj) {
+        OID oid = new OID(obj.getOidBytesExternal());
+
+        List objects = (List) oidMap.get(oid);
+        if (objects == null)
+            return;
+
+        synchronized (objects) {
+            objects.remove(obj);
+            if (objects.size() == 0)
+                // All instances of this OID are gone
+                oidMap.remove(oid, objects);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Cache reclamation
+
+    /**
+     * Run the clock until the shard is down to its lo-water mark, or
+     * the hand has been all the way round twice without finding
+     * anything to reclaim. Called with the shard locked.
+     */
+    private void reclaim(Shard s) {
+        int limit = 2 * s.ring.size();
+
+        while (s.entries.size() > shardLoWater && limit-- > 0 &&
+                s.ring.size() > 0) {
+            if (s.hand >= s.ring.size())
+                s.hand = 0;
+
+            Entry e = (Entry) s.ring.get(s.hand);
+
+            if (e.removed) {
+                dropFromRing(s);
+                continue;
+            }
+
+            if (e.referenced) {
+                // Second chance
+                e.referenced = false;
+                s.hand++;
+                continue;
+            }
+
+            if (!canReclaim(e.obj)) {
+                s.hand++;
+                continue;
+            }
+
+            s.entries.remove(e.obj.fileName());
+            e.removed = true;
+            dropFromRing(s);
+
+            unlink(e.obj);
+            spill(s, e.obj);
+        }
+    }
+
+    /** Drop removed entries from the ring */
+    private void compact(Shard s) {
+        ArrayList live = new ArrayList(s.entries.size());
+        for (Iterator i = s.ring.iterator(); i.hasNext(); ) {
+            Entry e = (Entry) i.next();
+            if (!e.removed)
+                live.add(e);
+        }
+        s.ring = live;
+        s.hand = 0;
+    }
+
+    /** Remove the entry under the hand: swap the last one into its place */
+    private void dropFromRing(Shard s) {
+        Object last = s.ring.remove(s.ring.size() - 1);
+        if (s.hand < s.ring.size())
+            s.ring.set(s.hand, last);
+    }
+
+    private boolean canReclaim(FSCacheObject obj) {
+        // If this node has any children, reclaiming it would result
+        // in a violation of the cache invariant
+        if (obj.numChildren() > 0)
+            return false;
+
+        // Don't reclaim the root or any view objects.
+        if (obj.fileType() == FSCacheObject.ROOTFILETYPE ||
+                obj.parent() == null ||
+                obj.parent().fileType() == FSCacheObject.ROOTFILETYPE)
+            return false;
+
+        return true;
+    }
+
+    /** Write a reclaimed object to the shard's off-heap store */
+    private void spill(Shard s, FSCacheObject obj) {
+        // Objects inside archives can't be reconstructed from what
+        // writeOut() saves; they'll be re-read from the archive
+        if (obj.pathInArchive() != null)
+            return;
+
+        byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            obj.writeOut(new DataOutputStream(bytes));
+            data = bytes.toByteArray();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Couldn't write out " +
+                       StringUtil.image(obj.fileName()), e);
+            return;
+        }
+
+        if (!s.store.put(obj.fileName(), obj.getOidBytesExternal(),
+                         obj.displayName(), data, System.currentTimeMillis()))
+            logger.info("Object " + StringUtil.image(obj.fileName()) +
+                        " too big for the off-heap store");
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Misc
+
+    /**
+     * A fixer-upper: when the cache invariant is violated (i.e. a
+     * node's parent was reclaimed before the node) create a parent
+     * node and add it to the cache.
+     */
+    private FSCacheObject addParentDirs(FSCacheObject obj) {
+        if (obj.fileType() == FSCacheObject.ROOTFILETYPE)
+            return obj;
+
+        String pName = parentName(obj.fileName());
+        FSCacheObject parent = cacheLookup(pName);
+        if (parent != null)
+            return parent;
+
+        // Only view directories can be made up from the path
+        if (!(obj instanceof HCFile) || obj.pathInArchive() != null)
+            return null;
+
+        HCFile f = (HCFile) obj;
+        String[] attrs = f.getAttributes();
+        if (f.fileType() != FSCacheObject.FILELEAFTYPE) {
+            if (attrs == null || attrs.length == 0)
+                return null;
+            String[] pAttrs = new String[attrs.length - 1];
+            System.arraycopy(attrs, 0, pAttrs, 0, pAttrs.length);
+            attrs = pAttrs;
+        }
+
+        HCFile dir = new HCFile(f.getViewIndex(), attrs);
+        if (!pName.equals(dir.fileName())) {
+            logger.warning("Can't make parent " + StringUtil.image(pName) +
+                           " for " + StringUtil.image(f.fileName()));
+            return null;
+        }
+
+        FSCacheObject grandParent = addParentDirs(dir);
+        return insert(dir, grandParent, false);
+    }
+
+    /** This is just like basename(1)/dirname(1) */
+    private static String parentName(String path) {
+        String name = path.replaceAll("/[^/]*/?$", "");
+        if (name.length() == 0 || path.equals(name))
+            // A bare name "foo" is considered the same as "/foo"
+            return "/";
+        return name;
+    }
+
+    /** A wrapper to let us use byte arrays as keys in a Map */
+    private static class OID {
+        private byte[] value = null;
+        OID(byte[] v) { this.value = v; }
+        byte[] value() { return value; }
+        public int hashCode() { return ByteArrays.hashCode(value); }
+        public boolean equals(Object o) {
+            if (!(o instanceof OID)) return false;
+            return ByteArrays.equals(this.value, ((OID) o).value);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Unit tests
+    //////////////////////////////////////////////////////////////////////
+
+    private static final int OID_SIZE = 30;
+    private static int nextOid = 0;
+
+    /** A cache object that has no children other than what's added */
+    public static class TestCacheObject extends FSCacheObject {
+        private byte[] oid = new byte[OID_SIZE];
+
+        public TestCacheObject() {
+            super();
+        }
+
+        TestCacheObject(String path, byte type) {
+            super();
+            setFileName(path);
+            setFileType(type);
+            int n = ++nextOid;
+            for (int i = 0; i < 4; i++)
+                oid[i] = (byte) (n >>> (8 * i));
+        }
+
+        public FSCacheObject newObject() {
+            return new TestCacheObject();
+        }
+
+        public void readInOID(DataInputStream input) throws IOException {
+            input.readFully(oid);
+        }
+
+        public void writeOutOID(DataOutputStream os) throws IOException {
+            os.write(oid);
+        }
+
+        public byte[] getOidBytesExternal() {
+            return oid;
+        }
+
+        public int addChildren(Object group) throws FSCacheException {
+            setComplete(true);
+            return numChildren();
+        }
+    }
+
+    private static int failures = 0;
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAILED: " + what);
+            failures++;
+        }
+    }
+
+    private static void testCache() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(PNAME_PREFIX + PNAME_CACHE_SIZE_MAX, "64");
+        conf.setProperty(PNAME_PREFIX + PNAME_CACHE_SIZE_LOW, "48");
+        conf.setProperty(PNAME_PREFIX + PNAME_COHERENCY, "3600");
+        conf.setProperty(PNAME_PREFIX + PNAME_SHARDS, "4");
+        conf.setProperty(PNAME_PREFIX + PNAME_OFFHEAP_SIZE, "1048576");
+
+        ShardedFSCache cache = new ShardedFSCache();
+        FSCacheObject tRoot = new TestCacheObject("/", FSCacheObject.ROOTFILETYPE);
+        cache.initialize(tRoot, conf);
+
+        int nDirs = 4, nFiles = 100;
+        for (int d = 0; d < nDirs; d++) {
+            cache.add(null, new TestCacheObject("/d" + d,
+                                                FSCacheObject.DIRECTORYTYPE));
+            for (int f = 0; f < nFiles; f++) {
+                FSCacheObject obj = new TestCacheObject("/d" + d + "/f" + f,
+                                               FSCacheObject.FILELEAFTYPE);
+                obj.setDisplayName("file " + f);
+                obj.setSize(f);
+                cache.add(null, obj);
+            }
+        }
+
+        int inMemory = 0;
+        for (int i = 0; i < cache.shards.length; i++)
+            inMemory += cache.shards[i].entries.size();
+        check(inMemory <= 1 + nDirs + 64, "reclaimed down: " + inMemory);
+
+        // Everything can be found, whether in memory or not
+        for (int d = 0; d < nDirs; d++)
+            for (int f = 0; f < nFiles; f++) {
+                String path = "/d" + d + "/f" + f;
+                FSCacheObject obj = cache.lookup(null, path);
+                check(obj.fileName().equals(path), "name of " + path);
+                check(("file " + f).equals(obj.displayName()),
+                      "display name of " + path);
+                check(obj.size() == f, "size of " + path);
+                check(obj.parent() != null &&
+                      obj.parent().fileName().equals("/d" + d),
+                      "parent of " + path);
+            }
+
+        // A listing has only the directory's children, including
+        // ones brought back from off-heap
+        FSCacheObject f0 = cache.lookup(null, "/d1/f0");
+        List kids = cache.listChildren(null, cache.lookup(null, "/d1"));
+        check(kids.contains(f0), "listing /d1");
+        for (Iterator i = kids.iterator(); i.hasNext(); ) {
+            FSCacheObject obj = (FSCacheObject) i.next();
+            check(obj.fileName().startsWith("/d1/"), "child " + obj);
+        }
+        check(kids == cache.listChildren(null, cache.lookup(null, "/d1")),
+              "listing snapshot kept");
+        cache.add(null, new TestCacheObject("/d1/new",
+                                            FSCacheObject.FILELEAFTYPE));
+        check(kids != cache.listChildren(null, cache.lookup(null, "/d1")),
+              "listing snapshot dropped");
+
+        // Delete by OID, for objects in memory and off-heap
+        String inMem = null, offHeap = null;
+        for (int f = 0; f < nFiles && (inMem == null || offHeap == null); f++) {
+            String path = "/d2/f" + f;
+            if (cache.shard(path).entries.get(path) != null)
+                inMem = (inMem == null)? path : inMem;
+            else
+                offHeap = (offHeap == null)? path : offHeap;
+        }
+        String[] victims = { inMem, offHeap };
+        for (int i = 0; i < victims.length; i++) {
+            if (victims[i] == null)
+                continue;
+            Shard s = cache.shard(victims[i]);
+            byte[] oid;
+            Entry e = (Entry) s.entries.get(victims[i]);
+            if (e != null)
+                oid = e.obj.getOidBytesExternal();
+            else {
+                // Bring it back to find the OID, then send it out again
+                FSCacheObject obj = cache.lookup(null, victims[i]);
+                oid = obj.getOidBytesExternal();
+                cache.remove(null, obj, false);
+                cache.spill(s, obj);
+            }
+            cache.remove(null, oid);
+            try {
+                cache.lookup(null, victims[i]);
+                check(false, "deleted " + victims[i]);
+            }
+            catch (FSCacheException ignored) {}
+        }
+
+        FSCache.reset();
+    }
+
+    private static void testStore() {
+        OffHeapStore store = new OffHeapStore(4096);
+        byte[] oid = new byte[OID_SIZE];
+
+        int n = 200;
+        for (int i = 0; i < n; i++) {
+            oid[0] = (byte) i;
+            byte[] data = new byte[i % 50];
+            java.util.Arrays.fill(data, (byte) i);
+            check(store.put("/path/" + i, oid, "name " + i, data, i),
+                  "put " + i);
+            check(store.bytesUsed() <= store.capacity(), "within budget");
+        }
+
+        // The newest are still there, the oldest are gone
+        check(store.take("/path/0") == null, "oldest dropped");
+        OffHeapStore.Record r = store.take("/path/" + (n - 1));
+        check(r != null && r.stamp == n - 1 &&
+              r.displayName.equals("name " + (n - 1)) &&
+              r.data.length == (n - 1) % 50, "newest kept");
+        check(store.take("/path/" + (n - 1)) == null, "take removes");
+
+        oid[0] = (byte) (n - 2);
+        check(store.removeOid(oid) == 1, "remove by OID");
+        check(store.take("/path/" + (n - 2)) == null, "removed by OID");
+
+        check(store.put("/path/" + (n - 3), oid, null, new byte[10], 0L),
+              "replace");
+        r = store.take("/path/" + (n - 3));
+        check(r != null && r.displayName == null && r.data.length == 10 &&
+              store.take("/path/" + (n - 3)) == null, "replaced");
+    }
+
+    public static void main(String[] args) {
+        try {
+            testStore();
+            testCache();
+        }
+        catch (Exception e) {
+            System.out.println("FAILED: " + e);
+            e.printStackTrace();
+            failures++;
+        }
+
+        System.out.println((failures == 0)? "PASS" : "FAIL");
+        System.exit(failures == 0? 0 : 1);
+    }
+}
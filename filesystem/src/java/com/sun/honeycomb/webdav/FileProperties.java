@@ -38,6 +38,7 @@ import com.sun.honeycomb.common.ArchiveException;
 import com.sun.honeycomb.common.InternalException;
 
 import com.sun.honeycomb.fscache.FSCacheException;
+import com.sun.honeycomb.fscache.ChildListener;
 import com.sun.honeycomb.fscache.HCFile;
 import com.sun.honeycomb.fscache.FSCache;
 
@@ -66,8 +67,6 @@ import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.mortbay.http.HttpException;
-
 /**
  * This is a helper class for the WebDAV filesystem module. It acts
  * as the glue between WebDAV and Honeycomb metadata.
@@ -192,68 +191,75 @@ public class FileProperties {
 
     /**
      * This is a BFS of the sub-tree rooted at this file but limited to
-     * "depth" levels below
+     * "depth" levels below. Each file is handed to the listener as
+     * soon as it's found; only directories are held on to, until
+     * their turn comes. Returns the number of files found.
      *
      * Dunno if this class is the right place for this method, but
      * PropfindHandler is not it
      */
-    static HCFile[] getDescendants(HCFile file, int depth)
-            throws HttpException {
+    static int walkDescendants(HCFile file, int depth,
+                               ChildListener listener)
+            throws IOException {
         if (logger.isLoggable(Level.FINE))
             logger.fine("getting desc. for " + file.toString() + ":" + depth);
 
-        List nextGen = null;
-        try {
-            file.addChildren(null);
-            nextGen = HCFile.fileCache.listChildren(null, file);
-        }
-        catch (FSCacheException e) {
-            // No children -- not an error
-        }
-        catch (Exception e) {
-            logger.log(Level.SEVERE, "Argh!", e);
-        }
-        if (nextGen == null)
-            return null;
+        int numFiles = 0;
+
+        List nextGen = new LinkedList();
+        nextGen.add(file);
 
-        List files = new LinkedList();
         for (int i = 0; depth == INFINITY || i < depth; i++) {
             List thisGen = nextGen;
-            nextGen = new LinkedList();
-
-            for (Iterator c = thisGen.iterator(); c.hasNext(); ) {
-                HCFile f = (HCFile) c.next();
-                files.add(f);
 
-                if (f.isFile())
-                    continue;
+            // If not going any deeper, no need to keep directories
+            if (depth != INFINITY && i >= depth - 1)
+                nextGen = null;
+            else
+                nextGen = new LinkedList();
 
-                if (depth != INFINITY && i >= depth - 1)
-                    // Not going any deeper; no need to add children
-                    continue;
+            for (Iterator c = thisGen.iterator(); c.hasNext(); ) {
+                HCFile dir = (HCFile) c.next();
+                c.remove();
 
-                // Add all of f's children to nextGen
-                List children = null;
+                Generation gen = new Generation(listener, nextGen);
                 try {
-                    f.addChildren(null);
-                    children = HCFile.fileCache.listChildren(null, f);
+                    dir.streamChildren(null, gen);
                 }
                 catch (FSCacheException e) {
-                    logger.log(Level.SEVERE, "Argh!", e);
-                    return null;
+                    // No children -- not an error at the top
+                    if (dir != file)
+                        logger.log(Level.WARNING,
+                                   "Couldn't list " + dir.fileName(), e);
                 }
-
-                if (children != null)
-                    for (Iterator j = children.iterator(); j.hasNext(); )
-                        nextGen.add(j.next());
+                numFiles += gen.numFiles;
             }
 
-            if (nextGen.size() == 0)
+            if (nextGen == null || nextGen.size() == 0)
                 break;
         }
 
-        HCFile[] fileArray = new HCFile[files.size()];
-        return (HCFile[]) files.toArray(fileArray);
+        return numFiles;
+    }
+
+    /** Passes files on, and keeps the directories for the next level */
+    private static class Generation implements ChildListener {
+        private ChildListener listener;
+        private List dirs;
+        int numFiles = 0;
+
+        Generation(ChildListener listener, List dirs) {
+            this.listener = listener;
+            this.dirs = dirs;
+        }
+
+        public void nextChild(HCFile child) throws IOException {
+            listener.nextChild(child);
+            numFiles++;
+
+            if (dirs != null && !child.isFile())
+                dirs.add(child);
+        }
     }
 
     //////////////////////////////////////////////////////////////////////
@@ -39,6 +39,7 @@ import com.sun.honeycomb.fscache.HCFile;
 import com.sun.honeycomb.fscache.FSCache;
 import com.sun.honeycomb.fscache.FSCacheObject;
 import com.sun.honeycomb.fscache.FSCacheException;
+import com.sun.honeycomb.fscache.ChildListener;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -70,11 +71,17 @@ public class GetHandler extends SpecificHandler {
     private static final int DEFAULT_HTTP_BUFFER_SIZE = 2048;
     private static final String PNAME_BUFSIZ = "buffer.size";
 
+    // Directories with up to this many entries are listed sorted
+    private static final int DEFAULT_SORT_LIMIT = 1000;
+    private static final String PNAME_SORTLIMIT = "listing.sort_limit";
+
     private int bufSize = 0;
+    private int sortLimit = 0;
 
     public GetHandler() {
         bufSize = HCDAV.getIntProperty(PNAME_BUFSIZ, DEFAULT_HTTP_BUFFER_SIZE);
         logger.info("Using HTTP buffer size " + bufSize + " bytes.");
+        sortLimit = HCDAV.getIntProperty(PNAME_SORTLIMIT, DEFAULT_SORT_LIMIT);
     }
 
     public void handle(HCFile file, String[] extraPath,
@@ -147,12 +154,14 @@ public class GetHandler extends SpecificHandler {
             throw new RuntimeException(e);
         }
     }
+    private void endHTMLbuffer(StringBuffer buffer) {
+        buffer.append("<hr><p><a href=\"");
+        buffer.append(ProtocolConstants.WEBDAV_PATH);
+        buffer.append("/\"><i>Honeycomb</i></a>");
+        buffer.append("</body></html>");
+    }
     private byte[] getContent(StringBuffer buffer) {
         try {
-            buffer.append("<hr><p><a href=\"");
-            buffer.append(ProtocolConstants.WEBDAV_PATH);
-            buffer.append("/\"><i>Honeycomb</i></a>");
-            buffer.append("</body></html>");
             return buffer.toString().getBytes("UTF-8");
         } catch (java.io.UnsupportedEncodingException e) {
             throw new RuntimeException(e);
@@ -208,38 +217,89 @@ public class GetHandler extends SpecificHandler {
             throw new HttpException(HttpResponse.__500_Internal_Server_Error,
                                     "No fileCache for: " + file.fileName());
 
-        // TODO: The entire directory listing is constructed into a
-        // string and returned. This could be done better....
+        // The listing is written out as the children are found, so
+        // there's no Content-Length and the response is chunked.
+        response.setContentType("text/html; charset=UTF-8");
 
-        StringBuffer buffer = newHTMLbuffer(file.fileName());
+        Listing listing = new Listing(os, newHTMLbuffer(file.fileName()));
 
-        newEntry(buffer, file.fileName(), ".");
-        newEntry(buffer, file.parentName(), "..");
+        newEntry(listing.buffer, file.fileName(), ".");
+        newEntry(listing.buffer, file.parentName(), "..");
 
-        List children = HCFile.fileCache.listChildren(null, file);
+        file.streamChildren(null, listing);
 
-        Collections.sort(children, new HCFileComparer());
+        listing.finish();
+    }
 
-        for (Iterator i = children.iterator(); i.hasNext(); ) {
-            HCFile child = (HCFile) i.next();
-            newEntry(buffer, child.fileName(), child.displayName());
+    /**
+     * Writes a directory listing a buffer at a time. The first
+     * sortLimit entries are held back so that a directory with no
+     * more than that many is listed sorted; beyond that, entries are
+     * written in the order the query returns them.
+     */
+    private class Listing implements ChildListener {
+        private OutputStream os;
+        private StringBuffer buffer;
+        private List pending = new ArrayList();
+        private boolean sorting = true;
+        private int pageSize =
+            (bufSize > 0)? bufSize : DEFAULT_HTTP_BUFFER_SIZE;
+
+        Listing(OutputStream os, StringBuffer buffer) {
+            this.os = os;
+            this.buffer = buffer;
         }
 
-        // Finalise: get the properly encoded (UTF-8) bytes
-        byte[] content = getContent(buffer);
+        public void nextChild(HCFile child) throws IOException {
+            if (sorting) {
+                pending.add(child);
+                if (pending.size() <= sortLimit)
+                    return;
 
-        response.setContentType("text/html; charset=UTF-8");
-        response.setContentLength(content.length);
-
-        long pos = 0;
-        long toWrite = content.length;
-        while (toWrite > 0) {
-            long len = toWrite;
-            if (bufSize > 0 && len > bufSize)
-                len = bufSize;
-            os.write(content, (int)pos, (int)len);
-            pos += len;
-            toWrite -= len;
+                // Too big to sort; send what we have
+                addPending();
+                sorting = false;
+            }
+            else
+                newEntry(buffer, child.fileName(), child.displayName());
+
+            if (buffer.length() >= pageSize)
+                send(true);
+        }
+
+        void finish() throws IOException {
+            addPending();
+            endHTMLbuffer(buffer);
+            send(false);
+        }
+
+        private void addPending() {
+            Collections.sort(pending, new HCFileComparer());
+            for (Iterator i = pending.iterator(); i.hasNext(); ) {
+                HCFile child = (HCFile) i.next();
+                newEntry(buffer, child.fileName(), child.displayName());
+            }
+            pending.clear();
+        }
+
+        private void send(boolean flush) throws IOException {
+            // Finalise: get the properly encoded (UTF-8) bytes
+            byte[] content = getContent(buffer);
+            buffer.setLength(0);
+
+            long pos = 0;
+            long toWrite = content.length;
+            while (toWrite > 0) {
+                long len = toWrite;
+                if (bufSize > 0 && len > bufSize)
+                    len = bufSize;
+                os.write(content, (int)pos, (int)len);
+                pos += len;
+                toWrite -= len;
+            }
+
+            if (flush)
+                os.flush();
         }
     }
 
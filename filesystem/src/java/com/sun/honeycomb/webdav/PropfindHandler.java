@@ -35,6 +35,7 @@ package com.sun.honeycomb.webdav;
 
 import com.sun.honeycomb.fscache.HCFile;
 import com.sun.honeycomb.fscache.FSCache;
+import com.sun.honeycomb.fscache.ChildListener;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.common.ProtocolConstants;
 
@@ -87,6 +88,9 @@ public class PropfindHandler extends SpecificHandler {
     private static final int FIND_ALL_PROP = 1;
     private static final int FIND_PROPERTY_NAMES = 2;
     
+    // How many responses to send between flushes
+    private static final int FLUSH_INTERVAL = 64;
+
     private static final String statusOK =
         "HTTP/1.1 " + HttpResponse.__200_OK + " OK";
     private static final String statusNotFound =
@@ -297,30 +301,52 @@ public class PropfindHandler extends SpecificHandler {
             LOG.fine("getting descendants for " + file.fileName() +
                      " (depth=" + depth + ")");
 
-        HCFile[] kids = FileProperties.getDescendants(file, depth);
+        // Each descendant's response is sent as soon as it's found,
+        // without waiting for the rest
+        Responder responder =
+            new Responder(request, file, xmlOut, type, props);
+        int numKids = FileProperties.walkDescendants(file, depth, responder);
 
-        if (kids == null || kids.length == 0) {
+        if (numKids == 0) {
             if (LOG.isLoggable(Level.FINER))
                 LOG.finer("No children for \"" + file.fileName() + "\"");
             return sendProperties(request, file, file, xmlOut, type, props);
         }
 
-        String msg = null;
         if (LOG.isLoggable(Level.FINER))
-            msg = "File " + file.fileName() + " has " + kids.length +
-                " children at depth " + depth + ":";
+            LOG.finer("File " + file.fileName() + " has " + numKids +
+                      " children at depth " + depth);
 
-        for (int i = 0; i < kids.length; i++) {
-            sendProperties(request, kids[i], file, xmlOut, type, props);
-            xmlOut.sendData(false);
-            if (LOG.isLoggable(Level.FINER))
-                msg += " \"" + kids[i].fileName() + "\"";
+        return true;
+    }
+
+    /** Emits the response for each descendant as it's found */
+    private class Responder implements ChildListener {
+        private HttpRequest request;
+        private HCFile requestRoot;
+        private XMLWriter xmlOut;
+        private int type;
+        private Vector props;
+        private int numSent = 0;
+
+        Responder(HttpRequest request, HCFile requestRoot, XMLWriter xmlOut,
+                  int type, Vector props) {
+            this.request = request;
+            this.requestRoot = requestRoot;
+            this.xmlOut = xmlOut;
+            this.type = type;
+            this.props = props;
         }
 
-        if (LOG.isLoggable(Level.FINER))
-            LOG.finer(msg);
+        public void nextChild(HCFile kid) throws IOException {
+            sendProperties(request, kid, requestRoot, xmlOut, type, props);
+            xmlOut.sendData(false);
 
-        return true;
+            // Get the first response out right away, then the rest
+            // in batches
+            if (numSent++ % FLUSH_INTERVAL == 0)
+                xmlOut.flush();
+        }
     }
 
     /** Print file's specified properties to the XML output stream */
@@ -285,4 +285,14 @@ public class XMLWriter {
     }
 
 
+    /**
+     * Push data sent so far out to the client.
+     */
+    public void flush()
+        throws IOException {
+        if (writer != null)
+            writer.flush();
+    }
+
+
 }
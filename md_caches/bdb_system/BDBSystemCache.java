@@ -74,12 +74,16 @@ import java.io.UnsupportedEncodingException;
 import com.sun.honeycomb.common.NameValueXML;
 import com.sun.honeycomb.common.Encoding;
 import com.sun.honeycomb.emd.common.MDHit;
+import com.sun.honeycomb.common.ByteArrays;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 
 public class BDBSystemCache
     extends BDBCache {
 
     private static final String INDEX_MAPID     = "perMapId";
     private static final String INDEX_MDID      = "perMDId";
+    private static final String INDEX_HASH      = "perContentHash";
 
     // ATime = (CTime > DTime ? CTime : DTime)
     private static final String INDEX_ATIMEID    = "perATime";
@@ -92,6 +96,7 @@ public class BDBSystemCache
     private static final int QUERY_CODE_HOLD            = 5;
     private static final int QUERY_CODE_ISRESTORED      = 6;
     private static final int QUERY_CODE_SETNOTRESTORED  = 7;
+    private static final int QUERY_CODE_GETBYHASH       = 8;
 
     /**********************************************************************
      *
@@ -173,6 +178,8 @@ public class BDBSystemCache
             return null;
         case QUERY_CODE_SETNOTRESTORED:
             return null;
+        case QUERY_CODE_GETBYHASH:
+            return null;
         }
         
         return(result);
@@ -236,6 +243,8 @@ public class BDBSystemCache
                     type = QUERY_CODE_ISRESTORED;
                 } else if(arguments[0].equals(SystemCacheConstants.SYSTEM_QUERY_SETNOTRESTORED)) {
                     type = QUERY_CODE_SETNOTRESTORED;
+                } else if(arguments[0].equals(SystemCacheConstants.SYSTEM_QUERY_GETBYHASH)) {
+                    type = QUERY_CODE_GETBYHASH;
                 }
             }
             if (type == QUERY_CODE_UNKNOWN) {
@@ -280,6 +289,18 @@ public class BDBSystemCache
         //            new MDIdKeyCreate(), cookie, null);
         createIndex(INDEX_ATIMEID, MAINDB_NAME,
                     new ATimeKeyCreate(), cookie, new ATimeCompare());
+
+        /*
+         * Same warning as above: only pay for the content hash index
+         * when the coordinator is going to look things up in it. If
+         * dedup gets turned on later the index is built from the main
+         * db the next time the disk is registered.
+         */
+        if (ClusterProperties.getInstance().getPropertyAsBoolean(
+                ConfigPropertyNames.PROP_COORD_DEDUP, false)) {
+            createIndex(INDEX_HASH, MAINDB_NAME,
+                        new ContentHashKeyCreate(), cookie, null);
+        }
     }
     
     protected void setMetadata(NewObjectIdentifier oid,
@@ -623,6 +644,76 @@ public class BDBSystemCache
         }
     }
 
+    private void getByContentHash(MDOutputStream output,
+                                  PerDiskRecord disk,
+                                  byte[] contentHash,
+                                  long size,
+                                  ArrayList attributes,
+                                  NewObjectIdentifier cookie,
+                                  int maxResults)
+        throws EMDException, DbException {
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Running the getByContentHash query for size "+size);
+        }
+
+        Db db = (Db)disk.getDb(INDEX_HASH);
+        if (db == null) {
+            throw new EMDException("The "+INDEX_HASH+" index could not be found");
+        }
+        Dbt key = new Dbt();
+        Dbt pkey = null;
+        Dbt data = new Dbt();
+
+        if (cookie == null) {
+            pkey = new Dbt();
+        } else {
+            pkey = encodeDbt(cookie, SIZE_OBJECTID);
+        }
+
+        ContentHashKeyCreate.createDbt(key, contentHash, size);
+
+        Dbc cursor = null;
+        int errorCode;
+
+        try {
+            cursor = db.cursor(null, 0);
+
+            if (cookie == null) {
+                errorCode = cursor.get(key, pkey, data, Db.DB_SET);
+            } else {
+                errorCode = cursor.get(key, pkey, data, Db.DB_GET_BOTH);
+            }
+
+            int resultNum = 0;
+            while (errorCode != Db.DB_NOTFOUND &&
+                   (maxResults > 0 ? resultNum < maxResults : true)) {
+                NewObjectIdentifier oid = (NewObjectIdentifier)decodeDbt(pkey);
+                Object extraInfo = null;
+
+                if ( (cookie == null)
+                     || (oid.compareTo(cookie) > 0) ) {
+
+                    if (attributes != null) {
+                        // QueryPlus, also send the SystemMetadata
+                        extraInfo = (SystemMetadata)decodeDbt(data);
+                    }
+                    output.sendObject(new MDHit(oid, extraInfo));
+                    resultNum++;
+                }
+
+                errorCode = cursor.get(key, pkey, data, Db.DB_NEXT_DUP);
+            }
+        } finally {
+            try {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            } catch (DbException ignored) {
+            }
+        }
+    }
+
     private void isNotRestored(MDOutputStream output, PerDiskRecord disk) 
             throws EMDException, DbException {
 
@@ -959,6 +1050,15 @@ public class BDBSystemCache
                 dbName = MAINDB_NAME;
 	            setNotRestored(output, disk);
 	            break;
+	        case QUERY_CODE_GETBYHASH:
+                dbName = INDEX_HASH;
+	            byte[] contentHash =
+                    ByteArrays.toByteArray(query.getArguments()[1]);
+	            long size = Long.parseLong(query.getArguments()[2]);
+	            getByContentHash(output, disk, contentHash, size, attributes,
+                                 (cookie != null ? cookie.getLastOid() : null),
+                                 maxResults);
+	            break;
 	        }
         } catch (DbException e) {
             handleException(e, disk, "query", dbName);
@@ -134,6 +134,54 @@ public class RetryableCode {
         retryCall(call);
     }
 
+    /**
+     * Binds the literals to the parameters of a prepared statement,
+     * converting object ids to their internal form.
+     */
+    public static void setParameters(PreparedStatement statement,
+                                     List literals)
+        throws SQLException {
+        statement.clearParameters();
+        if (literals != null) {
+            for (int i = 0; i < literals.size(); i++) {
+                Object obj = literals.get(i);
+                if (obj == null) {
+                    statement.setObject(i+1,null);
+                } else if (obj instanceof byte[]) {
+                    statement.setBytes(i+1,(byte [])obj);
+                } else if (obj instanceof String) {
+                    statement.setString(i+1,(String)obj);
+                } else if (obj instanceof Long) {
+                    statement.setLong(i+1,((Long)obj).longValue());
+                } else if (obj instanceof Double) {
+                    statement.setDouble(i+1,((Double)obj).doubleValue());
+                } else if (obj instanceof Date) {
+                    statement.setDate(i+1,(Date)obj);
+                } else if (obj instanceof Time) {
+                    statement.setTime(i+1,(Time)obj);
+                } else if (obj instanceof Timestamp) {
+                    statement.setTimestamp(i+1,(Timestamp)obj);
+                } else if (obj instanceof ExternalObjectIdentifier) {
+                    /* Convert objectid fields to internal form */
+                    ExternalObjectIdentifier eoid = 
+                        (ExternalObjectIdentifier) obj;
+                    byte[] bytes;
+                    if (eoid.toByteArray().length == 0) {
+                        bytes = new byte[0];
+                    } else {
+                        NewObjectIdentifier oid =
+                            NewObjectIdentifier.fromExternalObjectID(eoid);
+                        bytes = oid.getDataBytes();
+                    }
+                    statement.setBytes(i+1,bytes);
+                } else {
+                    throw new InternalException("object of unhandled type: "+
+                                                obj.getClass().getCanonicalName());
+                } // if / elseif / else
+            } // for
+        } // if (literals != null)
+    } // setParameters
+
     public static Object retryCall(RetryableCall call)
         throws SQLException {
         Object result = null;
@@ -223,45 +271,7 @@ public class RetryableCode {
             throws SQLException {
             Object result = null;
             
-            statement.clearParameters();
-            if (literals != null) {
-                for (int i = 0; i < literals.size(); i++) {
-                    Object obj = literals.get(i);
-                    if (obj == null) {
-                        statement.setObject(i+1,null);
-                    } else if (obj instanceof byte[]) {
-                        statement.setBytes(i+1,(byte [])obj);
-                    } else if (obj instanceof String) {
-                        statement.setString(i+1,(String)obj);
-                    } else if (obj instanceof Long) {
-                        statement.setLong(i+1,((Long)obj).longValue());
-                    } else if (obj instanceof Double) {
-                        statement.setDouble(i+1,((Double)obj).doubleValue());
-                    } else if (obj instanceof Date) {
-                        statement.setDate(i+1,(Date)obj);
-                    } else if (obj instanceof Time) {
-                        statement.setTime(i+1,(Time)obj);
-                    } else if (obj instanceof Timestamp) {
-                        statement.setTimestamp(i+1,(Timestamp)obj);
-                    } else if (obj instanceof ExternalObjectIdentifier) {
-                        /* Convert objectid fields to internal form */
-                        ExternalObjectIdentifier eoid = 
-                            (ExternalObjectIdentifier) obj;
-                        byte[] bytes;
-                        if (eoid.toByteArray().length == 0) {
-                            bytes = new byte[0];
-                        } else {
-                            NewObjectIdentifier oid =
-                                NewObjectIdentifier.fromExternalObjectID(eoid);
-                            bytes = oid.getDataBytes();
-                        }
-                        statement.setBytes(i+1,bytes);
-                    } else {
-                        throw new InternalException("object of unhandled type: "+
-                                                    obj.getClass().getCanonicalName());
-                    } // if / elseif / else
-                } // for
-            } // if (literals != null)
+            setParameters(statement, literals);
             
             if (isQuery) {
                 result = statement.executeQuery();
@@ -618,7 +618,7 @@ public class HADBHook
      * Returns a list of literal values that can be passed to
      * RetryableCode.
      */
-    private static List getLiteralsForInsert(Table table,
+    static List getLiteralsForInsert(Table table,
                                              NewObjectIdentifier oid, 
                                              Map attributes) 
         throws EMDException {
@@ -679,14 +679,34 @@ public class HADBHook
     }
 
     /** Add a row to table "tableName" using values from attributes */
-    private static void addRow(Connection conn, NewObjectIdentifier oid,
+    private static void addRow(StatementCache statements,
+                               NewObjectIdentifier oid,
                                Table table, Map attributes)
         throws SQLException, EMDException {
 
         if (!useHADB)
             return;
 
-        addRowUsingSQL(conn, oid, table, attributes);
+        addRowUsingSQL(statements, oid, table, attributes);
+    }
+
+    /**
+     * Add the rows of an object to all its tables. The system table
+     * goes last, since we use autocommit.
+     */
+    static void insertRows(StatementCache statements,
+                           NewObjectIdentifier oid,
+                           List tables,
+                           Table systemTable,
+                           Map attributes)
+        throws SQLException, EMDException {
+
+        for (int i = 0; i < tables.size(); i++) {
+            addRow(statements, oid, (Table)tables.get(i), attributes);
+        }
+
+        if (systemTable != null)
+            addRow(statements, oid, systemTable, attributes);
     }
 
     // WARNING, clients should not use the boolean return value
@@ -732,17 +752,16 @@ public class HADBHook
         }
         
         Connection conn = null;
+        StatementCache statements = null;
         try {
 
             // Get all attribute tables that will be involved
             Set tables = getTables(attributes, RootNamespace.getInstance());
             
-            if (useHADB)
-                conn = HADBJdbc.getInstance().getConnection();
-            
             // We need to commit the system table last, because
             // we use autocommit
             Table systemTable = null;
+            List otherTables = new ArrayList(tables.size());
 
             RootNamespace rootNS = RootNamespace.getInstance();
             Field field = rootNS.resolveField(INSERT_COMMIT_PROPERTY);
@@ -759,12 +778,26 @@ public class HADBHook
                 if (tableName.equalsIgnoreCase(commitTableName))
                     systemTable = table;
                 else
-                    addRow(conn, oid, table, attributes);
+                    otherTables.add(table);
                 
             }
 
-            if (systemTable != null)
-                addRow(conn, oid, systemTable, attributes);
+            // Group commit with the concurrent stores if enabled
+            InsertBatcher batcher =
+                useHADB ? InsertBatcher.getInstance() : null;
+            if (batcher != null) {
+                Boolean inserted = batcher.insert(oid, otherTables,
+                                                  systemTable, attributes);
+                if (inserted != null)
+                    return inserted.booleanValue();
+                // Not picked up in time: insert it on our own
+            }
+
+            if (useHADB)
+                conn = HADBJdbc.getInstance().getConnection();
+            statements = new StatementCache(conn);
+
+            insertRows(statements, oid, otherTables, systemTable, attributes);
             
         } catch (SQLException e) {
         
@@ -783,6 +816,10 @@ public class HADBHook
                         e.getMessage()+"]");
             return false;
         } finally {
+            if (statements != null) {
+                statements.close();
+                statements = null;
+            }
             if (conn != null) {
                 HADBJdbc.getInstance().freeConnection(conn);
                 conn = null;
@@ -791,30 +828,21 @@ public class HADBHook
         return true;
     }
 
-    /** Construct SQL and execute it */
-    private static void addRowUsingSQL(Connection conn,
+    /**
+     * Construct SQL and execute it. The statement is prepared once
+     * per table and connection, and closed with the statement cache.
+     */
+    private static void addRowUsingSQL(StatementCache statements,
                                        NewObjectIdentifier oid,
                                        Table table,
                                        Map attributes)
         throws SQLException, EMDException {
 
-        long startTime = System.currentTimeMillis();
         List literals = getLiteralsForInsert(table, oid, attributes);
-        String ins = AttributeTable.getInstance().makeInsertStatement(table);
-        PreparedStatement stmt = conn.prepareStatement(ins);
-        if (LOG.isLoggable(Level.FINE)) {
-            long elapsed = System.currentTimeMillis() - startTime;
-            LOG.fine("instr " + elapsed + "ms to prepare \"" + ins + "\"");
-        }
+        PreparedStatement stmt = statements.get(table);
+        String ins = statements.getInsertStatement(table);
 
-        try {
-            AttributeTable.addRowPreparedStatement(stmt,literals,ins);
-        } finally {
-            try { stmt.close(); } catch (SQLException e) { 
-                LOG.log(Level.WARNING,"Unable to close Add Row Prepared Statement." + e);
-            }
-            stmt = null;
-        }
+        AttributeTable.addRowPreparedStatement(stmt,literals,ins);
     }
 
 
@@ -0,0 +1,489 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.hook;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+
+import com.sun.honeycomb.config.ClusterProperties;
+
+import com.sun.honeycomb.emd.common.EMDException;
+import com.sun.honeycomb.emd.config.Table;
+
+import com.sun.honeycomb.hadb.HADBJdbc;
+import com.sun.honeycomb.hadb.NoConnectionException;
+import com.sun.honeycomb.hadb.RetryableCode;
+
+/**
+ * Group commit of the metadata inserts of HADBHook.
+ *
+ * The store threads queue their inserts and wait. A single thread
+ * takes the queue, waiting at most the batch window after the oldest
+ * insert for others to join, and inserts the whole batch on one
+ * connection with one JDBC batch per table. The rows of all the
+ * tables but the system table are committed first, then the system
+ * table rows: an object never shows up in the system table before its
+ * other attributes are in the database, as with one insert at a time.
+ *
+ * Each transaction of a batch goes through RetryableCode like a
+ * single insert does. If it still fails, it is rolled back and the
+ * objects are inserted one at a time, so that a bad object only fails
+ * its own store.
+ *
+ * A store thread never depends on the batcher for good: if its insert
+ * has not been picked up within QUEUE_TIMEOUT it takes it back and
+ * the caller inserts it on its own, and a batcher thread that died is
+ * restarted.
+ */
+class InsertBatcher
+    implements Runnable {
+
+    private static final Logger LOG =
+        Logger.getLogger(InsertBatcher.class.getName());
+
+    private static final int DEFAULT_BATCH_WINDOW = 0; // ms, disabled
+    private static final int DEFAULT_BATCH_SIZE = 32;
+
+    // How long an insert waits in the queue before its store thread
+    // gives up on the batcher and inserts it itself
+    private static final long QUEUE_TIMEOUT = 10000; // ms
+
+    private static InsertBatcher instance = null;
+    private static boolean initialized = false;
+
+    /**
+     * Returns the batcher, or null if group commit is disabled in
+     * the cluster config.
+     */
+    static synchronized InsertBatcher getInstance() {
+        if (instance != null && !instance.thread.isAlive()) {
+            LOG.severe("Insert batcher thread is gone; restarting it");
+            instance.start();
+        }
+        if (!initialized) {
+            initialized = true;
+
+            int window = DEFAULT_BATCH_WINDOW;
+            int size = DEFAULT_BATCH_SIZE;
+            try {
+                ClusterProperties config = ClusterProperties.getInstance();
+                window = config.getPropertyAsInt(
+                    ConfigPropertyNames.PROP_HADB_INSERT_BATCH_WINDOW,
+                    DEFAULT_BATCH_WINDOW);
+                size = config.getPropertyAsInt(
+                    ConfigPropertyNames.PROP_HADB_INSERT_BATCH_SIZE,
+                    DEFAULT_BATCH_SIZE);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad insert batch config; batching disabled - [" +
+                            e.getMessage() + "]");
+                window = 0;
+            }
+
+            if (window > 0 && size > 1) {
+                LOG.info("Metadata inserts are batched: window " + window +
+                         "ms, max. " + size + " objects");
+                instance = new InsertBatcher(window, size);
+                instance.start();
+            }
+        }
+        return instance;
+    }
+
+    private final long window;
+    private final int maxBatch;
+    private final LinkedList queue;
+    private volatile Thread thread;
+
+    private InsertBatcher(long window, int maxBatch) {
+        this.window = window;
+        this.maxBatch = maxBatch;
+        queue = new LinkedList();
+    }
+
+    private void start() {
+        thread = new Thread(this, "HADBInsertBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Inserts the rows of an object and waits until they are
+     * committed. Returns Boolean.FALSE if the insert failed, or null
+     * if the batcher did not get to it in time, in which case the
+     * caller has to insert the rows itself.
+     *
+     * @param tables the tables to insert into, but the system table
+     * @param systemTable the system table, or null
+     */
+    Boolean insert(NewObjectIdentifier oid,
+                   List tables,
+                   Table systemTable,
+                   Map attributes) {
+
+        Request request = new Request(oid, tables, systemTable, attributes);
+        synchronized (queue) {
+            queue.add(request);
+            queue.notify();
+        }
+
+        if (request.waitForCompletion(QUEUE_TIMEOUT)) {
+            return Boolean.valueOf(request.succeeded());
+        }
+        if (request.abandon()) {
+            synchronized (queue) {
+                queue.remove(request);
+            }
+            LOG.warning("Insert of " + oid.toHexString() + " not picked up" +
+                        " by the batcher in " + QUEUE_TIMEOUT + "ms;" +
+                        " inserting it alone");
+            return null;
+        }
+
+        // The batcher has it; it completes every request it takes,
+        // unless its thread dies with the request
+        while (!request.waitForCompletion(QUEUE_TIMEOUT)) {
+            if (!request.takenBy().isAlive()) {
+                LOG.severe("Insert batcher died while inserting " +
+                           oid.toHexString());
+                return Boolean.FALSE;
+            }
+        }
+        return Boolean.valueOf(request.succeeded());
+    }
+
+    public void run() {
+        while (true) {
+            List batch = null;
+            try {
+                batch = nextBatch();
+                flush(batch);
+            } catch (InterruptedException e) {
+                LOG.warning("Insert batcher interrupted");
+            } catch (Throwable t) {
+                // Whatever it is, this thread is all the store threads
+                // have: fail the batch and keep going
+                LOG.log(Level.SEVERE, "Insert batch failed", t);
+                complete(batch, false);
+            }
+        }
+    }
+
+    /**
+     * Waits for the next batch: the oldest queued insert and the ones
+     * queued in the window following it, up to the batch size.
+     */
+    private List nextBatch()
+        throws InterruptedException {
+
+        synchronized (queue) {
+            while (queue.isEmpty()) {
+                queue.wait();
+            }
+
+            long deadline = ((Request)queue.getFirst()).queueTime + window;
+            long now = System.currentTimeMillis();
+            while (queue.size() < maxBatch && now < deadline) {
+                queue.wait(deadline - now);
+                now = System.currentTimeMillis();
+            }
+
+            List batch = new ArrayList(Math.min(queue.size(), maxBatch));
+            while (!queue.isEmpty() && batch.size() < maxBatch) {
+                Request r = (Request)queue.removeFirst();
+                if (r.take()) {
+                    batch.add(r);
+                }
+            }
+            return batch;
+        }
+    }
+
+    private void flush(List batch) {
+
+        if (batch.isEmpty())
+            return;
+
+        Connection conn = null;
+        try {
+            conn = HADBJdbc.getInstance().getConnection();
+        } catch (SQLException e) {
+            LOG.warning("Failed to get a connection for " + batch.size() +
+                        " inserts - [" + e.getMessage() + "]");
+            complete(batch, false);
+            return;
+        } catch (NoConnectionException e) {
+            LOG.warning("Failed to get a connection for " + batch.size() +
+                        " inserts - [" + e.getMessage() + "]");
+            complete(batch, false);
+            return;
+        }
+
+        StatementCache statements = new StatementCache(conn);
+        try {
+            if (batch.size() > 1 && insertBatch(statements, batch)) {
+                complete(batch, true);
+            } else {
+                insertEach(statements, batch);
+            }
+        } finally {
+            statements.close();
+            HADBJdbc.getInstance().freeConnection(conn);
+        }
+    }
+
+    /**
+     * Inserts the batch in two transactions, the system table last.
+     * Returns false, after a rollback, if the batch failed.
+     */
+    private boolean insertBatch(StatementCache statements, List batch) {
+
+        Connection conn = statements.getConnection();
+        long startTime = System.currentTimeMillis();
+        boolean committed = false;
+        try {
+            // Table, literals pairs of each transaction
+            List attributeRows = new ArrayList();
+            List systemRows = new ArrayList();
+            for (int i = 0; i < batch.size(); i++) {
+                Request r = (Request)batch.get(i);
+                for (int j = 0; j < r.tables.size(); j++) {
+                    Table table = (Table)r.tables.get(j);
+                    attributeRows.add(table);
+                    attributeRows.add(HADBHook.getLiteralsForInsert(table,
+                                                                    r.oid,
+                                                                    r.attributes));
+                }
+                if (r.systemTable != null) {
+                    systemRows.add(r.systemTable);
+                    systemRows.add(HADBHook.getLiteralsForInsert(r.systemTable,
+                                                                 r.oid,
+                                                                 r.attributes));
+                }
+            }
+
+            conn.setAutoCommit(false);
+            RetryableCode.retryCall(new BatchCommit(statements, attributeRows));
+            RetryableCode.retryCall(new BatchCommit(statements, systemRows));
+            committed = true;
+
+            if (LOG.isLoggable(Level.INFO)) {
+                long elapsed = System.currentTimeMillis() - startTime;
+                LOG.info("instr " + elapsed + "ms to insert a batch of " +
+                         batch.size() + " objects");
+            }
+
+        } catch (SQLException e) {
+            LOG.warning("Batch of " + batch.size() + " inserts failed," +
+                        " inserting one at a time - [" + e.getMessage() + "]");
+        } catch (EMDException e) {
+            LOG.warning("Batch of " + batch.size() + " inserts failed," +
+                        " inserting one at a time - [" + e.getMessage() + "]");
+        } finally {
+            if (!committed) {
+                try { conn.rollback(); } catch (SQLException ignored) {}
+            }
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOG.warning("Failed to restore autocommit - [" +
+                            e.getMessage() + "]");
+            }
+        }
+        return committed;
+    }
+
+    /** Inserts the objects of the batch one at a time, with autocommit */
+    private void insertEach(StatementCache statements, List batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Request r = (Request)batch.get(i);
+            boolean succeeded = false;
+            try {
+                HADBHook.insertRows(statements, r.oid, r.tables,
+                                    r.systemTable, r.attributes);
+                succeeded = true;
+            } catch (SQLException e) {
+                LOG.warning("setMetadata failed for oid ["+
+                            r.oid.toHexString()+"] - ["+
+                            e.getMessage()+"]");
+            } catch (EMDException e) {
+                LOG.warning("setMetadata failed for oid ["+
+                            r.oid.toHexString()+"] - ["+
+                            e.getMessage()+"]");
+            }
+            r.complete(succeeded);
+        }
+    }
+
+    /**
+     * One transaction of a batch, as a RetryableCall: the rows are
+     * bound again on each attempt since a failed attempt is rolled
+     * back and its batches cleared.
+     */
+    private static class BatchCommit
+        implements RetryableCode.RetryableCall {
+
+        private final StatementCache statements;
+        private final List rows;
+
+        BatchCommit(StatementCache statements, List rows) {
+            this.statements = statements;
+            this.rows = rows;
+        }
+
+        public Object call()
+            throws SQLException {
+            Connection conn = statements.getConnection();
+            try {
+                for (int i = 0; i < rows.size(); i += 2) {
+                    statements.addBatch((Table)rows.get(i),
+                                        (List)rows.get(i + 1));
+                }
+                statements.executeBatch();
+                conn.commit();
+            } catch (EMDException e) {
+                // Can't happen, the literals are already built
+                try { conn.rollback(); } catch (SQLException ignored) {}
+                SQLException sqle = new SQLException(e.getMessage());
+                sqle.initCause(e);
+                throw sqle;
+            } catch (SQLException e) {
+                try { conn.rollback(); } catch (SQLException ignored) {}
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    private static void complete(List batch, boolean succeeded) {
+        if (batch == null)
+            return;
+        for (int i = 0; i < batch.size(); i++) {
+            ((Request)batch.get(i)).complete(succeeded);
+        }
+    }
+
+    /** An object waiting for its rows to be inserted */
+    private static class Request {
+        final NewObjectIdentifier oid;
+        final List tables;
+        final Table systemTable;
+        final Map attributes;
+        final long queueTime;
+
+        private static final int QUEUED = 0;
+        private static final int TAKEN = 1;     // by the batcher
+        private static final int ABANDONED = 2; // by the store thread
+
+        private int state;
+        private Thread taker;
+        private boolean done;
+        private boolean succeeded;
+
+        Request(NewObjectIdentifier oid, List tables, Table systemTable,
+                Map attributes) {
+            this.oid = oid;
+            this.tables = tables;
+            this.systemTable = systemTable;
+            this.attributes = attributes;
+            queueTime = System.currentTimeMillis();
+            state = QUEUED;
+            done = false;
+            succeeded = false;
+        }
+
+        /** Called by the batcher; false if the store thread gave up */
+        synchronized boolean take() {
+            if (state != QUEUED)
+                return false;
+            state = TAKEN;
+            taker = Thread.currentThread();
+            return true;
+        }
+
+        /** Called by the store thread; false if the batcher has it */
+        synchronized boolean abandon() {
+            if (state != QUEUED)
+                return false;
+            state = ABANDONED;
+            return true;
+        }
+
+        synchronized void complete(boolean result) {
+            if (done)
+                return;
+            succeeded = result;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Thread takenBy() {
+            return taker;
+        }
+
+        synchronized boolean succeeded() {
+            return succeeded;
+        }
+
+        /** Returns true if the insert completed within the timeout */
+        synchronized boolean waitForCompletion(long timeout) {
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + timeout;
+            long now = System.currentTimeMillis();
+            while (!done && now < deadline) {
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    // The insert is on its way; wait for the outcome
+                    interrupted = true;
+                }
+                now = System.currentTimeMillis();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return done;
+        }
+    }
+}
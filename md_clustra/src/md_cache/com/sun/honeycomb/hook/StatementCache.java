@@ -0,0 +1,165 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.hook;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.sun.honeycomb.emd.common.EMDException;
+import com.sun.honeycomb.emd.config.Table;
+
+import com.sun.honeycomb.hadb.AttributeTable;
+import com.sun.honeycomb.hadb.RetryableCode;
+
+/**
+ * The insert statements prepared on a connection, keyed by attribute
+ * table. Inserting the rows of several objects into the same table
+ * reuses a single prepared statement instead of going back to HADB to
+ * prepare it for every row.
+ *
+ * The statements belong to the connection: the cache has to be closed
+ * before the connection is given back to the pool.
+ */
+class StatementCache {
+
+    private static final Logger LOG =
+        Logger.getLogger(StatementCache.class.getName());
+
+    private Connection conn;
+
+    // table name -> PreparedStatement
+    private Map statements;
+
+    // table name -> insert SQL, for the logs
+    private Map inserts;
+
+    // statements that have rows in their batch
+    private List pending;
+
+    StatementCache(Connection conn) {
+        this.conn = conn;
+        statements = new HashMap();
+        inserts = new HashMap();
+        pending = new ArrayList();
+    }
+
+    Connection getConnection() {
+        return conn;
+    }
+
+    /** Returns the insert statement of the table, preparing it if needed */
+    PreparedStatement get(Table table)
+        throws SQLException, EMDException {
+
+        AttributeTable attrTable = AttributeTable.getInstance();
+        String tableName = attrTable.getTableName(table);
+
+        PreparedStatement stmt = (PreparedStatement)statements.get(tableName);
+        if (stmt == null) {
+            long startTime = System.currentTimeMillis();
+            String ins = attrTable.makeInsertStatement(table);
+            stmt = conn.prepareStatement(ins);
+            if (LOG.isLoggable(Level.FINE)) {
+                long elapsed = System.currentTimeMillis() - startTime;
+                LOG.fine("instr " + elapsed + "ms to prepare \"" + ins + "\"");
+            }
+            statements.put(tableName, stmt);
+            inserts.put(tableName, ins);
+        }
+        return stmt;
+    }
+
+    /** Returns the SQL of the insert statement of the table */
+    String getInsertStatement(Table table)
+        throws SQLException, EMDException {
+        get(table);
+        return (String)inserts.get(AttributeTable.getInstance().getTableName(table));
+    }
+
+    /** Queues a row in the batch of the table's insert statement */
+    void addBatch(Table table, List literals)
+        throws SQLException, EMDException {
+
+        PreparedStatement stmt = get(table);
+        RetryableCode.setParameters(stmt, literals);
+        stmt.addBatch();
+        if (!pending.contains(stmt))
+            pending.add(stmt);
+    }
+
+    /**
+     * Executes the batches queued since the last call, in the order
+     * the tables were first added. The batches are cleared even if one
+     * of them fails.
+     */
+    void executeBatch()
+        throws SQLException {
+
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                PreparedStatement stmt = (PreparedStatement)pending.get(i);
+                stmt.executeBatch();
+            }
+        } finally {
+            for (int i = 0; i < pending.size(); i++) {
+                PreparedStatement stmt = (PreparedStatement)pending.get(i);
+                try { stmt.clearBatch(); } catch (SQLException ignored) {}
+            }
+            pending.clear();
+        }
+    }
+
+    /** Closes all the prepared statements */
+    void close() {
+        for (Iterator i = statements.values().iterator(); i.hasNext(); ) {
+            PreparedStatement stmt = (PreparedStatement)i.next();
+            try { stmt.close(); } catch (SQLException e) {
+                LOG.log(Level.WARNING,"Unable to close Add Row Prepared Statement." + e);
+            }
+        }
+        statements.clear();
+        inserts.clear();
+        pending.clear();
+    }
+}
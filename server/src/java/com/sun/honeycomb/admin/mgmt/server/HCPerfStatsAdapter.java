@@ -44,6 +44,8 @@ import com.sun.honeycomb.common.AlertConstants;
 import com.sun.honeycomb.common.BandwidthStatsAccumulator;
 import com.sun.honeycomb.common.CliConstants;
 import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.Metrics;
+import com.sun.honeycomb.common.LatencyHistogram;
 import com.sun.honeycomb.common.PerfStats;
 import com.sun.honeycomb.common.StatsAccumulator;
 import com.sun.honeycomb.config.ClusterProperties;
@@ -93,6 +95,8 @@ public class HCPerfStatsAdapter
 
 	lastPutWebDAVStats = new BandwidthStatsAccumulator[size];
 	lastGetWebDAVStats = new BandwidthStatsAccumulator[size];
+
+	lastMetrics = new Metrics.Snapshot[size];
     }
     
     public BigInteger reset(BigInteger dummy) throws MgmtException {
@@ -324,6 +328,7 @@ public class HCPerfStatsAdapter
                 cellPerfStats.addTotalMem(perfStats.getTotalMem());
                 cellPerfStats.addDiskUsed(perfStats.getDiskUsed());
                 cellPerfStats.addDiskSize(perfStats.getDiskSize());
+                cellPerfStats.addMetrics(perfStats.getMetrics());
 	    }
 	    if (statsAvailable == false) {
 		throw new MgmtException("Performance statistics are currently not available.");
@@ -567,6 +572,17 @@ public class HCPerfStatsAdapter
 	    lastGetWebDAVStats[mapIdx] = bStats;
 	}
 
+        alertObj = (AlertApi.AlertObject) obMap.get(
+	    getNodeAlertKey(nodeId, AlertConstants.PERF_METRICS_BRANCH_LOOKUP_KEY));
+	if (alertObj != null) {
+	    Metrics.Snapshot metrics = 
+		Metrics.Snapshot.parse(alertObj.getPropertyValueString());
+	    if (lastMetrics[mapIdx] != null) {
+		perfStats.setMetrics(metrics.subtract(lastMetrics[mapIdx]));
+	    }
+	    lastMetrics[mapIdx] = metrics;
+	}
+
         alertObj = (AlertApi.AlertObject) obMap.get(
 	    getNodeAlertKey(nodeId, AlertConstants.LOAD_STATS_BRANCH_LOOKUP_KEY));
 	if (alertObj != null) {
@@ -668,6 +684,35 @@ public class HCPerfStatsAdapter
         return perfStats;
     }
     
+    /**
+     * Summarize the latency histograms for the CLI, which does not have
+     * the server classes needed to parse a Metrics.Snapshot.  Each
+     * histogram with samples is rendered as
+     * "name ops mean p50 p90 p99 max", times in microseconds,
+     * and histograms are separated by ','.
+     */
+    private String formatLatencies(Metrics.Snapshot metrics) {
+        StringBuffer buf = new StringBuffer();
+        String[] names = metrics.getHistogramNames();
+        for (int i = 0; i < names.length; i++) {
+            LatencyHistogram.Snapshot hist = metrics.getHistogram(names[i]);
+            if (hist.getCount() == 0) {
+                continue;
+            }
+            if (buf.length() > 0) {
+                buf.append(",");
+            }
+            buf.append(names[i])
+                .append(" ").append(hist.getCount())
+                .append(" ").append(hist.getMean())
+                .append(" ").append(hist.getPercentile(50))
+                .append(" ").append(hist.getPercentile(90))
+                .append(" ").append(hist.getPercentile(99))
+                .append(" ").append(hist.getMax());
+        }
+        return buf.toString();
+    }
+
     /**
      * Get the full alert lookup key.  This routine adds AlertConstants.ROOT_BRANCH_KEY
      * + "." + nodeId + "."  to the beginning of the passed in alertSuffixKey.
@@ -862,6 +907,9 @@ public class HCPerfStatsAdapter
             _totalMb=BigInteger.valueOf(diskSize);
 	    _usePercent = Double.toString(divide(diskUsed, diskSize) * 100);
 
+	    // Latency histograms
+	    _latencies = formatLatencies(perfStats.getMetrics());
+
         }  catch (NumberFormatException nfe) {
 	    logger.log(Level.SEVERE, "Parsing exception: ", nfe); 
         } 
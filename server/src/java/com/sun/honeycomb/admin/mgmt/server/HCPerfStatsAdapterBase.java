@@ -41,6 +41,7 @@ import java.math.BigInteger;
 import com.sun.honeycomb.protocol.server.ProtocolProxy;
 import com.sun.honeycomb.common.BandwidthStatsAccumulator;
 import com.sun.honeycomb.common.StatsAccumulator;
+import com.sun.honeycomb.common.Metrics;
 
 public abstract class HCPerfStatsAdapterBase implements HCPerfStatsAdapterInterface {
     private static transient final Logger logger = 
@@ -67,6 +68,8 @@ public abstract class HCPerfStatsAdapterBase implements HCPerfStatsAdapterInterf
     protected static BandwidthStatsAccumulator lastPutWebDAVStats[];
     protected static BandwidthStatsAccumulator lastGetWebDAVStats[];
 
+    protected static Metrics.Snapshot lastMetrics[];
+
     protected static final String alertPerfStatProps[] = { 
 	AlertConstants.PERF_STORE_BRANCH_LOOKUP_KEY,
 	AlertConstants.PERF_STORE_MD_BRANCH_LOOKUP_KEY,
@@ -79,6 +82,7 @@ public abstract class HCPerfStatsAdapterBase implements HCPerfStatsAdapterInterf
 	AlertConstants.PERF_GET_SCHEMA_TIME_BRANCH_LOOKUP_KEY,
 	AlertConstants.PERF_WEBDAV_PUT_BRANCH_LOOKUP_KEY,
 	AlertConstants.PERF_WEBDAV_GET_BRANCH_LOOKUP_KEY,
+	AlertConstants.PERF_METRICS_BRANCH_LOOKUP_KEY,
 	AlertConstants.LOAD_STATS_BRANCH_LOOKUP_KEY,
         AlertConstants.MEMORY_STATS_BRANCH_LOOKUP_KEY,
     };
@@ -103,6 +107,7 @@ public abstract class HCPerfStatsAdapterBase implements HCPerfStatsAdapterInterf
     static BigInteger  _usedMb = null;
     static BigInteger  _totalMb = null;
     static String  _usePercent = null;
+    static String  _latencies = null;
 
     //
     // Hit on each call
@@ -143,6 +148,7 @@ public abstract class HCPerfStatsAdapterBase implements HCPerfStatsAdapterInterf
     public BigInteger getDiskUsedMb() throws MgmtException { return _usedMb; }
     public BigInteger getDiskTotalMb() throws MgmtException { return _totalMb; }
     public String getUsePercent() throws MgmtException { return _usePercent; }
+    public String getLatencies() throws MgmtException { return _latencies; }
 
     /*
      * This is the list of custom actions
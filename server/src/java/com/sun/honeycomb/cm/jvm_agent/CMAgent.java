@@ -127,6 +127,7 @@ public class CMAgent implements JVMService {
 
     private static int numDispatchThreads = DEFAULT_DISPATCH_THREADS;
     private static int maxDispatchThreads = DEFAULT_MAX_DISPATCH_THREADS;
+    private static boolean binaryRpc = false;
 
     private static boolean initialized = false;
     private static synchronized void initProperties() {
@@ -141,8 +142,13 @@ public class CMAgent implements JVMService {
             props.getPropertyAsInt(ConfigPropertyNames.PROP_CM_MAXTHREADS,
                                    DEFAULT_MAX_DISPATCH_THREADS);
 
+        binaryRpc =
+            props.getPropertyAsBoolean(ConfigPropertyNames.PROP_CM_BINARY_RPC,
+                                       false);
+
         logger.info("Dispatch threads: " +
-                    numDispatchThreads + "," + maxDispatchThreads);
+                    numDispatchThreads + "," + maxDispatchThreads +
+                    " binary rpc: " + binaryRpc);
         initialized = true;
     }
 
@@ -413,6 +419,9 @@ public class CMAgent implements JVMService {
             listener.register(dispatch, SelectionKey.OP_ACCEPT, "listener");
             logger.info("ClusterMgmt - JVM " + agentName + 
                         " connected to " + addr.toString());
+            if (binaryRpc) {
+                RpcServer.start(hostName, portAgent, maxDispatchThreads);
+            }
         } catch (Exception e) {
             throw new CMAException(e);
         }
@@ -522,6 +531,19 @@ public class CMAgent implements JVMService {
      * internal
      */
 
+    /**
+     * Return the service with the given identifier, or null.
+     */
+    static Service getService(int suid) {
+        for (int i = 0; i < services.size(); i++) {
+            Service svc = (Service) services.get(i);
+            if (svc.getSid() == suid) {
+                return svc;
+            }
+        }
+        return null;
+    }
+
     static void addToDispatcher(CMSAP sap) {
         synchronized (saps) {
             saps.add(sap);
@@ -701,14 +723,7 @@ public class CMAgent implements JVMService {
                     }
                 }
                 sap.accept();
-                Service target = null;
-                for (int i = 0; i < services.size(); i++) {
-                    Service svc = (Service) services.get(i);
-                    if (svc.getSid() == sap.suid) {
-                        target = svc;
-                        break;
-                    } 
-                }
+                Service target = getService(sap.suid);
                 if (target != null) {
                     reuseSAP = target.invoke(sap);
                 } else {
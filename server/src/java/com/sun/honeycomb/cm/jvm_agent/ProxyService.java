@@ -115,6 +115,25 @@ final class ProxyService {
             this.hdr = hdr;
         }
 
+        /*
+         * The header of a JVM of an older release says the default
+         * port (0) but nothing listens there: use the object streams
+         * from then on.
+         */
+        private RpcChannel getRpcChannel() throws IOException {
+            try {
+                return RpcChannel.get(hdr.sap.host, hdr.getRpcPort());
+            } catch (IOException ioe) {
+                if (hdr.rpcPort != 0) {
+                    throw ioe;
+                }
+                logger.info("ClusterMgmt - no binary rpc on " + hdr.sap +
+                            " " + ioe);
+                hdr.rpcPort = Service.ProxyHeader.NO_RPC_PORT;
+                return null;
+            }
+        }
+
         /*
          * trampoline code in the proxy API -
          * dispatch the method call to the correct managed service.
@@ -127,24 +146,39 @@ final class ProxyService {
             CMSAP sap = null;
             try {
                 /*
-                 * do the RMI call.
+                 * do the RMI call, on the binary rpc channel of the
+                 * remote JVM if it has one and can carry this method.
                  */
-                sap = hdr.sap.duplicate();
-                ret = sap.call(method, args);
-                
-                if (ret instanceof ManagedService.RemoteChannel) {
-                    /*
-                     * the return object is a stream channel shared
-                     * between the 2 services. Don't release the socket
-                     */
-                    ManagedService.RemoteChannel sc;
-                    sc = (ManagedService.RemoteChannel)ret;
-                    sc.setChannel(new ServiceChannelImpl(sap, false));
-                } else {
-                    /*
-                     * release and cache the underlying socket.
-                     */
-                    sap.disconnect();
+                ret = RpcChannel.UNSUPPORTED;
+                RpcCodec.MethodCodec codec = null;
+                if (hdr.hasRpc()) {
+                    codec = RpcCodec.forMethod(method);
+                }
+                RpcChannel rpc = null;
+                if (codec != null) {
+                    rpc = getRpcChannel();
+                }
+                if (rpc != null) {
+                    ret = rpc.call(hdr.sap.suid, codec, args);
+                }
+                if (ret == RpcChannel.UNSUPPORTED) {
+                    sap = hdr.sap.duplicate();
+                    ret = sap.call(method, args);
+
+                    if (ret instanceof ManagedService.RemoteChannel) {
+                        /*
+                         * the return object is a stream channel shared
+                         * between the 2 services. Don't release the socket
+                         */
+                        ManagedService.RemoteChannel sc;
+                        sc = (ManagedService.RemoteChannel)ret;
+                        sc.setChannel(new ServiceChannelImpl(sap, false));
+                    } else {
+                        /*
+                         * release and cache the underlying socket.
+                         */
+                        sap.disconnect();
+                    }
                 }
             } catch (IOException ioe) {
                 /*
@@ -157,7 +191,8 @@ final class ProxyService {
                 if (sap != null) {
                     sap.close();
                 }
-                logger.warning("ClusterMgmt - remote call on " + sap + 
+                logger.warning("ClusterMgmt - remote call on " + 
+                               ((sap != null) ? sap : hdr.sap) +
                                " failed " + ioe);
                 StackTraceElement[] stack = ioe.getStackTrace();
                 for (int i = 0; i < stack.length; i++) {
@@ -233,6 +268,9 @@ final class ProxyService {
             for (int i = 0; i < api.length; i++) {
                 api[i] = hdr.rmi[i].forClass();
             }
+            if (hdr.hasRpc()) {
+                RpcCodec.register(api);
+            }
             
             if (api.length > 0) {
                 proxy.api = (ManagedService.RemoteInvocation) 
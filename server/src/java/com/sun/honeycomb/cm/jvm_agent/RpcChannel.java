@@ -0,0 +1,373 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.cm.jvm_agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.coding.ByteBufferCoder;
+import com.sun.honeycomb.coding.Codable;
+import com.sun.honeycomb.coding.Decoder;
+import com.sun.honeycomb.coding.Encoder;
+
+/**
+ * Client side of the binary RPC transport: one persistent connection
+ * to the RpcServer of a remote JVM, shared by all the calls made to
+ * the services of that JVM.
+ *
+ * <p>
+ *
+ * Every request carries a call id, and a reader thread hands each
+ * reply to the caller waiting for it, so calls from many threads are
+ * in flight at the same time on the one socket.
+ *
+ * <p>
+ *
+ * Frames are an int length followed by the body. A request is the
+ * call id, the service id, the method key and the arguments. A reply
+ * is the call id, a status and either the result, the serialized
+ * exception thrown by the method, or nothing when the server cannot
+ * take the call and the caller must use the object streams instead.
+ */
+final class RpcChannel implements Runnable {
+
+    private static final Logger logger =
+        Logger.getLogger(RpcChannel.class.getName());
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_THROWN = 1;
+    static final byte STATUS_UNSUPPORTED = 2;
+
+    /** Replies with this status have no result */
+    static final Object UNSUPPORTED = new Object();
+
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int INITIAL_FRAME = 1024;
+    private static final int CONNECT_TIMEOUT = 15000; // 15s
+
+    /** host:port to RpcChannel */
+    private static final HashMap channels = new HashMap();
+
+    private final String key;
+    private final SocketChannel sc;
+    private final HashMap pending = new HashMap();
+    private int nextId = 0;
+    private boolean closed = false;
+
+    /**
+     * Returns the channel to the given RpcServer, connecting it if
+     * needed.
+     */
+    static RpcChannel get(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        synchronized (channels) {
+            RpcChannel channel = (RpcChannel) channels.get(key);
+            if (channel == null) {
+                channel = new RpcChannel(key, host, port);
+                channels.put(key, channel);
+            }
+            return channel;
+        }
+    }
+
+    private RpcChannel(String key, String host, int port) throws IOException {
+        this.key = key;
+        sc = SocketChannel.open();
+        try {
+            sc.socket().connect(new InetSocketAddress(host, port),
+                                CONNECT_TIMEOUT);
+            setup(sc);
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+        Thread reader = new Thread(this, "RpcChannel-" + key);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Calls a method of a remote service.
+     *
+     * @return the result, the Throwable thrown by the method, or
+     *         UNSUPPORTED if the call must go through the object streams
+     */
+    Object call(int suid, RpcCodec.MethodCodec codec, Object[] args)
+        throws IOException {
+        Call call = new Call();
+        int id;
+        synchronized (pending) {
+            id = nextId++;
+        }
+
+        ByteBuffer frame = null;
+        int size = INITIAL_FRAME;
+        while (frame == null) {
+            frame = ByteBuffer.allocate(size);
+            try {
+                frame.position(4);
+                frame.putInt(id);
+                frame.putInt(suid);
+                frame.putInt(codec.key);
+                codec.encodeArgs(newCoder(frame), args);
+            } catch (BufferOverflowException e) {
+                if (size >= MAX_FRAME) {
+                    // too large for a frame, use the object streams
+                    return UNSUPPORTED;
+                }
+                frame = null;
+                size = growFrame(size);
+            }
+        }
+
+        synchronized (pending) {
+            if (closed) {
+                throw new IOException("channel to " + key + " is closed");
+            }
+            pending.put(new Integer(id), call);
+        }
+        try {
+            writeFrame(sc, frame);
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        }
+
+        synchronized (call) {
+            while (!call.done) {
+                try {
+                    call.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        if (call.error != null) {
+            IOException ioe = new IOException("call to " + key + " failed");
+            ioe.initCause(call.error);
+            throw ioe;
+        }
+
+        ByteBuffer reply = call.reply;
+        switch (reply.get()) {
+        case STATUS_OK:
+            return codec.decodeResult(newCoder(reply));
+        case STATUS_THROWN:
+            return readThrowable(reply);
+        case STATUS_UNSUPPORTED:
+            return UNSUPPORTED;
+        default:
+            throw new IOException("bad reply status from " + key);
+        }
+    }
+
+    /**
+     * Reader thread - hands out the replies.
+     */
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer reply = readFrame(sc);
+                Integer id = new Integer(reply.getInt());
+                Call call;
+                synchronized (pending) {
+                    call = (Call) pending.remove(id);
+                }
+                if (call == null) {
+                    logger.warning("ClusterMgmt - unexpected reply " + id +
+                                   " on " + key);
+                    continue;
+                }
+                synchronized (call) {
+                    call.reply = reply;
+                    call.done = true;
+                    call.notify();
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void close(IOException cause) {
+        synchronized (channels) {
+            if (channels.get(key) == this) {
+                channels.remove(key);
+            }
+        }
+        HashMap failed;
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = new HashMap(pending);
+            pending.clear();
+        }
+        if (!(cause instanceof EOFException)) {
+            logger.info("ClusterMgmt - closing rpc channel " + key + 
+                        ": " + cause);
+        }
+        try {
+            sc.close();
+        } catch (IOException ignored) {
+        }
+        Iterator it = failed.values().iterator();
+        while (it.hasNext()) {
+            Call call = (Call) it.next();
+            synchronized (call) {
+                call.error = cause;
+                call.done = true;
+                call.notify();
+            }
+        }
+    }
+
+    private static final class Call {
+        boolean done = false;
+        ByteBuffer reply = null;
+        IOException error = null;
+    }
+
+    /*
+     * Framing, shared with the RpcServer
+     */
+
+    static void setup(SocketChannel sc) {
+        try {
+            sc.socket().setTcpNoDelay(true);
+            sc.socket().setKeepAlive(true);
+        } catch (SocketException se) {
+            logger.warning("ClusterMgmt - rpc setup failed " + se);
+        }
+    }
+
+    static ByteBufferCoder newCoder(ByteBuffer buffer) {
+        return new ByteBufferCoder(buffer, false, DELEGATE);
+    }
+
+    static int growFrame(int size) {
+        return Math.min(size * 4, MAX_FRAME);
+    }
+
+    /**
+     * Writes a frame whose body starts at offset 4 and ends at the
+     * current position of the buffer.
+     */
+    static void writeFrame(SocketChannel sc, ByteBuffer frame)
+        throws IOException {
+        frame.flip();
+        frame.putInt(0, frame.limit() - 4);
+        synchronized (sc) {
+            while (frame.hasRemaining()) {
+                sc.write(frame);
+            }
+        }
+    }
+
+    /**
+     * Reads the body of the next frame. Only one thread reads a
+     * given channel.
+     */
+    static ByteBuffer readFrame(SocketChannel sc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(sc, header);
+        int length = header.getInt(0);
+        if ((length < 0) || (length > MAX_FRAME)) {
+            throw new IOException("bad rpc frame length " + length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(sc, body);
+        body.flip();
+        return body;
+    }
+
+    private static void readFully(SocketChannel sc, ByteBuffer buffer)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            if (sc.read(buffer) < 0) {
+                throw new EOFException("rpc channel closed by peer");
+            }
+        }
+    }
+
+    static byte[] writeThrowable(Throwable t) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(t);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Throwable readThrowable(ByteBuffer reply)
+        throws IOException {
+        byte[] bytes = new byte[reply.remaining()];
+        reply.get(bytes);
+        ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (Throwable) in.readObject();
+        } catch (ClassNotFoundException e) {
+            IOException ioe = new IOException("cannot read remote exception");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Instantiates the Codable classes with the class loader of the
+     * CM classes.
+     */
+    private static final Decoder.Delegate DELEGATE = new Decoder.Delegate() {
+            public Codable newInstance(String className)
+                throws ClassNotFoundException, InstantiationException,
+                       IllegalAccessException {
+                Class cls = Class.forName(className, true,
+                                          RpcChannel.class.getClassLoader());
+                return (Codable) cls.newInstance();
+            }
+        };
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.cm.jvm_agent;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import com.sun.honeycomb.coding.Codable;
+import com.sun.honeycomb.coding.Decoder;
+import com.sun.honeycomb.coding.Encoder;
+
+/**
+ * Codecs of the remote methods carried by the binary RPC transport.
+ *
+ * <p>
+ *
+ * A remote method can use the binary transport when its parameters
+ * and result are primitives, their wrappers, strings, arrays of
+ * bytes, ints, longs or strings, or {@link Codable} objects. The
+ * codec of each parameter is found once from the declared types of
+ * the method, so that a call is encoded as the raw values in order,
+ * without type information or class descriptors. Other methods, such
+ * as the ones returning a stream channel, use the object streams.
+ */
+final class RpcCodec {
+
+    /**
+     * Encodes and decodes the values of one declared type.
+     */
+    interface ValueCodec {
+        void encode(Encoder encoder, Object value);
+        Object decode(Decoder decoder);
+    }
+
+    /**
+     * Codecs of the parameters and result of a remote method.
+     */
+    static final class MethodCodec {
+
+        final Method method;
+        final int key;
+        private final ValueCodec[] args;
+        private final ValueCodec result;
+
+        private MethodCodec(Method method, ValueCodec[] args,
+                            ValueCodec result) {
+            this.method = method;
+            this.key = method.hashCode();
+            this.args = args;
+            this.result = result;
+        }
+
+        void encodeArgs(Encoder encoder, Object[] values) {
+            int count = (values == null) ? 0 : values.length;
+            if (count != args.length) {
+                throw new IllegalArgumentException("expected " + args.length +
+                                                   " arguments, got " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                args[i].encode(encoder, values[i]);
+            }
+        }
+
+        Object[] decodeArgs(Decoder decoder) {
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args[i].decode(decoder);
+            }
+            return values;
+        }
+
+        void encodeResult(Encoder encoder, Object value) {
+            result.encode(encoder, value);
+        }
+
+        Object decodeResult(Decoder decoder) {
+            return result.decode(decoder);
+        }
+    }
+
+    /** Declared type to ValueCodec */
+    private static final HashMap codecs = new HashMap();
+
+    /** Method to MethodCodec, or to NONE if it cannot be carried */
+    private static final HashMap methods = new HashMap();
+    private static final Object NONE = new Object();
+
+    private RpcCodec() {
+    }
+
+    /**
+     * Compiles the codecs of all the methods of the given remote
+     * interfaces ahead of the first call.
+     */
+    static void register(Class[] api) {
+        for (int i = 0; i < api.length; i++) {
+            Method[] all = api[i].getMethods();
+            for (int j = 0; j < all.length; j++) {
+                forMethod(all[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns the codec of a remote method, or null if it cannot use
+     * the binary transport.
+     */
+    static MethodCodec forMethod(Method method) {
+        synchronized (methods) {
+            Object codec = methods.get(method);
+            if (codec == null) {
+                codec = compile(method);
+                methods.put(method, (codec == null) ? NONE : codec);
+            }
+            return (codec == NONE) ? null : (MethodCodec) codec;
+        }
+    }
+
+    private static MethodCodec compile(Method method) {
+        Class[] types = method.getParameterTypes();
+        ValueCodec[] args = new ValueCodec[types.length];
+        for (int i = 0; i < types.length; i++) {
+            args[i] = forType(types[i]);
+            if (args[i] == null) {
+                return null;
+            }
+        }
+        ValueCodec result = forType(method.getReturnType());
+        if (result == null) {
+            return null;
+        }
+        return new MethodCodec(method, args, result);
+    }
+
+    private static ValueCodec forType(Class type) {
+        ValueCodec codec = (ValueCodec) codecs.get(type);
+        if ((codec == null) && Codable.class.isAssignableFrom(type)) {
+            codec = CODABLE;
+        }
+        return codec;
+    }
+
+    /*
+     * Values of reference types are preceded by a flag telling if
+     * they are null. Codable objects carry their class, as they may
+     * be of a subclass of the declared type.
+     */
+
+    private static abstract class NullableCodec implements ValueCodec {
+        public final void encode(Encoder encoder, Object value) {
+            encoder.encodeBoolean(value != null);
+            if (value != null) {
+                encodeValue(encoder, value);
+            }
+        }
+        public final Object decode(Decoder decoder) {
+            return decoder.decodeBoolean() ? decodeValue(decoder) : null;
+        }
+        abstract void encodeValue(Encoder encoder, Object value);
+        abstract Object decodeValue(Decoder decoder);
+    }
+
+    private static final ValueCodec VOID = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+            }
+            public Object decode(Decoder decoder) {
+                return null;
+            }
+        };
+
+    private static final ValueCodec CODABLE = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeCodable((Codable) value);
+            }
+            public Object decode(Decoder decoder) {
+                return decoder.decodeCodable();
+            }
+        };
+
+    private static final ValueCodec BOOLEAN = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeBoolean(((Boolean) value).booleanValue());
+            }
+            public Object decode(Decoder decoder) {
+                return Boolean.valueOf(decoder.decodeBoolean());
+            }
+        };
+
+    private static final ValueCodec BYTE = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeByte(((Byte) value).byteValue());
+            }
+            public Object decode(Decoder decoder) {
+                return new Byte(decoder.decodeByte());
+            }
+        };
+
+    private static final ValueCodec SHORT = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeShort(((Short) value).shortValue());
+            }
+            public Object decode(Decoder decoder) {
+                return new Short(decoder.decodeShort());
+            }
+        };
+
+    private static final ValueCodec INT = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeInt(((Integer) value).intValue());
+            }
+            public Object decode(Decoder decoder) {
+                return new Integer(decoder.decodeInt());
+            }
+        };
+
+    private static final ValueCodec LONG = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeLong(((Long) value).longValue());
+            }
+            public Object decode(Decoder decoder) {
+                return new Long(decoder.decodeLong());
+            }
+        };
+
+    private static final ValueCodec FLOAT = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeFloat(((Float) value).floatValue());
+            }
+            public Object decode(Decoder decoder) {
+                return new Float(decoder.decodeFloat());
+            }
+        };
+
+    private static final ValueCodec DOUBLE = new ValueCodec() {
+            public void encode(Encoder encoder, Object value) {
+                encoder.encodeLong(Double.doubleToRawLongBits
+                                   (((Double) value).doubleValue()));
+            }
+            public Object decode(Decoder decoder) {
+                return new Double(Double.longBitsToDouble
+                                  (decoder.decodeLong()));
+            }
+        };
+
+    private static final ValueCodec STRING = new NullableCodec() {
+            void encodeValue(Encoder encoder, Object value) {
+                encoder.encodeString((String) value);
+            }
+            Object decodeValue(Decoder decoder) {
+                return decoder.decodeString();
+            }
+        };
+
+    private static final ValueCodec BYTES = new NullableCodec() {
+            void encodeValue(Encoder encoder, Object value) {
+                encoder.encodeBytes((byte[]) value);
+            }
+            Object decodeValue(Decoder decoder) {
+                return decoder.decodeBytes();
+            }
+        };
+
+    private static final ValueCodec INTS = new NullableCodec() {
+            void encodeValue(Encoder encoder, Object value) {
+                int[] array = (int[]) value;
+                encoder.encodeInt(array.length);
+                for (int i = 0; i < array.length; i++) {
+                    encoder.encodeInt(array[i]);
+                }
+            }
+            Object decodeValue(Decoder decoder) {
+                int[] array = new int[decoder.decodeInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = decoder.decodeInt();
+                }
+                return array;
+            }
+        };
+
+    private static final ValueCodec LONGS = new NullableCodec() {
+            void encodeValue(Encoder encoder, Object value) {
+                long[] array = (long[]) value;
+                encoder.encodeInt(array.length);
+                for (int i = 0; i < array.length; i++) {
+                    encoder.encodeLong(array[i]);
+                }
+            }
+            Object decodeValue(Decoder decoder) {
+                long[] array = new long[decoder.decodeInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = decoder.decodeLong();
+                }
+                return array;
+            }
+        };
+
+    private static final ValueCodec STRINGS = new NullableCodec() {
+            void encodeValue(Encoder encoder, Object value) {
+                String[] array = (String[]) value;
+                encoder.encodeInt(array.length);
+                for (int i = 0; i < array.length; i++) {
+                    STRING.encode(encoder, array[i]);
+                }
+            }
+            Object decodeValue(Decoder decoder) {
+                String[] array = new String[decoder.decodeInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (String) STRING.decode(decoder);
+                }
+                return array;
+            }
+        };
+
+    static {
+        codecs.put(void.class, VOID);
+        codecs.put(boolean.class, BOOLEAN);
+        codecs.put(byte.class, BYTE);
+        codecs.put(short.class, SHORT);
+        codecs.put(int.class, INT);
+        codecs.put(long.class, LONG);
+        codecs.put(float.class, FLOAT);
+        codecs.put(double.class, DOUBLE);
+        codecs.put(Boolean.class, nullable(BOOLEAN));
+        codecs.put(Byte.class, nullable(BYTE));
+        codecs.put(Short.class, nullable(SHORT));
+        codecs.put(Integer.class, nullable(INT));
+        codecs.put(Long.class, nullable(LONG));
+        codecs.put(Float.class, nullable(FLOAT));
+        codecs.put(Double.class, nullable(DOUBLE));
+        codecs.put(String.class, STRING);
+        codecs.put(byte[].class, BYTES);
+        codecs.put(int[].class, INTS);
+        codecs.put(long[].class, LONGS);
+        codecs.put(String[].class, STRINGS);
+    }
+
+    private static ValueCodec nullable(final ValueCodec codec) {
+        return new NullableCodec() {
+                void encodeValue(Encoder encoder, Object value) {
+                    codec.encode(encoder, value);
+                }
+                Object decodeValue(Decoder decoder) {
+                    return codec.decode(decoder);
+                }
+            };
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.cm.jvm_agent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.cm.ManagedServiceException;
+
+/**
+ * Server side of the binary RPC transport, one per JVM. Its port is
+ * advertised in the proxy header of every service of the JVM.
+ *
+ * <p>
+ *
+ * Each connection has a reader thread that hands the requests to a
+ * pool of threads, so the calls multiplexed on a connection run
+ * concurrently. The reader never runs a call itself, as a call that
+ * makes an RPC back to its caller would then deadlock the connection.
+ * When all the threads are busy and the queue of waiting calls is
+ * full, the call is failed with an error reply instead. See
+ * RpcChannel for the frame format.
+ */
+final class RpcServer implements Runnable {
+
+    private static final Logger logger =
+        Logger.getLogger(RpcServer.class.getName());
+
+    private static final int IDLE_THREAD_EXPIRATION = 60; // 1mn
+    private static final int MAX_QUEUED_CALLS = 256;
+
+    // The default port of a JVM is its agent port plus this
+    private static final int PORT_OFFSET = 1000;
+
+    private static RpcServer instance = null;
+
+    private final ServerSocketChannel listener;
+    private final int port;
+    private final ThreadPoolExecutor workers;
+    private int threadCount = 0;
+
+    /**
+     * Returns the default port of the RPC server of the JVM whose
+     * agent listens on the given port.
+     */
+    static int defaultPort(int agentPort) {
+        return agentPort + PORT_OFFSET;
+    }
+
+    /**
+     * Starts the RPC server of this JVM, on its default port if it is
+     * free.
+     *
+     * @return the port it listens on
+     */
+    static synchronized int start(String host, int agentPort, int maxThreads)
+        throws IOException {
+        if (instance == null) {
+            instance = new RpcServer(host, defaultPort(agentPort), maxThreads);
+            Thread t = new Thread(instance, "RpcServer-listener");
+            t.setDaemon(true);
+            t.start();
+            logger.info("ClusterMgmt - binary rpc on " + host + ":" +
+                        instance.port);
+        }
+        return instance.port;
+    }
+
+    private static ServerSocketChannel listen(String host, int port)
+        throws IOException {
+        ServerSocketChannel result = ServerSocketChannel.open();
+        try {
+            result.socket().setReuseAddress(true);
+            result.socket().bind(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the port of the RPC server, 0 if it is not running.
+     */
+    static synchronized int getPort() {
+        return (instance == null) ? 0 : instance.port;
+    }
+
+    private RpcServer(String host, int defaultPort, int maxThreads)
+        throws IOException {
+        ServerSocketChannel channel;
+        try {
+            channel = listen(host, defaultPort);
+        } catch (IOException e) {
+            logger.info("ClusterMgmt - rpc port " + defaultPort +
+                        " is busy " + e);
+            channel = listen(host, 0);
+        }
+        listener = channel;
+        port = listener.socket().getLocalPort();
+
+        // core size is the max, so calls queue only when all the
+        // threads are busy; the threads are still started on demand
+        int threads = Math.max(1, maxThreads);
+        workers = new ThreadPoolExecutor(threads, threads,
+                                         IDLE_THREAD_EXPIRATION,
+                                         TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue
+                                         (MAX_QUEUED_CALLS),
+                                         new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RpcServer-" + nextThread());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private synchronized int nextThread() {
+        return threadCount++;
+    }
+
+    /**
+     * Listener thread - one reader thread per connection.
+     */
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel sc = listener.accept();
+                RpcChannel.setup(sc);
+                Thread t = new Thread(new Connection(sc), "RpcServer-" +
+                                      sc.socket().getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                logger.warning("ClusterMgmt - rpc accept failed " + e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final SocketChannel sc;
+
+        Connection(SocketChannel sc) {
+            this.sc = sc;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final ByteBuffer request = RpcChannel.readFrame(sc);
+                    try {
+                        workers.execute(new Runnable() {
+                                public void run() {
+                                    handle(sc, request);
+                                }
+                            });
+                    } catch (RejectedExecutionException e) {
+                        int id = request.getInt(request.position());
+                        logger.warning("ClusterMgmt - rpc server busy," +
+                                       " rejecting call " + id + " from " +
+                                       sc.socket().getRemoteSocketAddress());
+                        reply(sc, id, RpcChannel.STATUS_THROWN, null, null,
+                              new CMAException("rpc server busy"));
+                    }
+                }
+            } catch (IOException e) {
+                if (!(e instanceof EOFException)) {
+                    logger.info("ClusterMgmt - rpc connection " +
+                                sc.socket().getRemoteSocketAddress() +
+                                " closed: " + e);
+                }
+            } finally {
+                try {
+                    sc.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Invokes one call and writes its reply.
+     */
+    private void handle(SocketChannel sc, ByteBuffer request) {
+        int id = request.getInt();
+        int suid = request.getInt();
+        int key = request.getInt();
+
+        Service svc = CMAgent.getService(suid);
+        Method method = (svc == null) ? null : svc.getMethod(key);
+        RpcCodec.MethodCodec codec =
+            (method == null) ? null : RpcCodec.forMethod(method);
+
+        byte status = RpcChannel.STATUS_OK;
+        Object result = null;
+        Throwable thrown = null;
+
+        if (svc == null) {
+            thrown = new ManagedServiceException("NoSuchService " + suid);
+        } else if (codec == null) {
+            // let the caller go through the object streams
+            status = RpcChannel.STATUS_UNSUPPORTED;
+        } else {
+            try {
+                Object[] args;
+                try {
+                    args = codec.decodeArgs(RpcChannel.newCoder(request));
+                } catch (RuntimeException e) {
+                    // internal error, as in Service.invoke
+                    throw new CMAException(e);
+                }
+                result = svc.invokeMethod(method, args);
+            } catch (InvocationTargetException e) {
+                logger.log(Level.INFO,"ClusterMgmt - invoke failed ",e);
+                thrown = e.getCause();
+            } catch (Exception e) {
+                logger.log(Level.WARNING,"ClusterMgmt - invoke failed ",e);
+                thrown = e;
+            }
+        }
+
+        reply(sc, id, status, codec, result, thrown);
+    }
+
+    /**
+     * Writes the reply of a call: the exception if thrown is not
+     * null, else the status and, if OK, the result.
+     */
+    private void reply(SocketChannel sc, int id, byte status,
+                       RpcCodec.MethodCodec codec, Object result,
+                       Throwable thrown) {
+        ByteBuffer reply = null;
+        int size = 1024;
+        while (reply == null) {
+            reply = ByteBuffer.allocate(size);
+            try {
+                reply.position(4);
+                reply.putInt(id);
+                if (thrown != null) {
+                    reply.put(RpcChannel.STATUS_THROWN);
+                    reply.put(RpcChannel.writeThrowable(thrown));
+                } else {
+                    reply.put(status);
+                    if (status == RpcChannel.STATUS_OK) {
+                        codec.encodeResult(RpcChannel.newCoder(reply), result);
+                    }
+                }
+            } catch (BufferOverflowException e) {
+                reply = null;
+                if (size < RpcChannel.MAX_FRAME) {
+                    size = RpcChannel.growFrame(size);
+                } else {
+                    thrown = new CMAException("rpc reply larger than " +
+                                              RpcChannel.MAX_FRAME + " bytes");
+                    size = 1024;
+                }
+            } catch (Exception e) {
+                // cannot encode the result, return the error instead
+                logger.log(Level.WARNING,"ClusterMgmt - rpc reply failed ",e);
+                thrown = new CMAException(e);
+                reply = null;
+            }
+        }
+
+        try {
+            RpcChannel.writeFrame(sc, reply);
+        } catch (IOException e) {
+            logger.info("ClusterMgmt - rpc reply to " +
+                        sc.socket().getRemoteSocketAddress() + " failed " + e);
+            try {
+                sc.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -121,6 +121,13 @@ public final class Service extends ThreadGroup implements Mailbox.Listener {
                 api.put(key, methods[j]);
             }
         }
+        if (hdr.hasRpc()) {
+            Class[] rmi = new Class[hdr.rmi.length];
+            for (int i = 0; i < rmi.length; i++) {
+                rmi[i] = hdr.rmi[i].forClass();
+            }
+            RpcCodec.register(rmi);
+        }
         publish();
     }
     
@@ -132,12 +139,29 @@ public final class Service extends ThreadGroup implements Mailbox.Listener {
      * This provides the underlying mechanism for the RMI framework,
      */
     public static class ProxyHeader implements java.io.Serializable {
-        
+
+        // computed from the header without rpcPort, so that headers
+        // of older JVMs still decode (with rpcPort 0)
+        private static final long serialVersionUID = 7756658689760427417L;
+
+        static final int NO_RPC_PORT = -1;
+
         CMSAP sap;
         ObjectStreamClass[] rmi;
+        // binary rpc server of the JVM: 0 for its default port,
+        // NO_RPC_PORT if none
+        int rpcPort;
         
         public ProxyHeader(Class cls, CMSAP sap) throws CMAException {
             this.sap = sap;
+            int port = RpcServer.getPort();
+            if (port == 0) {
+                rpcPort = NO_RPC_PORT;
+            } else if (port == RpcServer.defaultPort(sap.port)) {
+                rpcPort = 0;
+            } else {
+                rpcPort = port;
+            }
             Class all[] = cls.getInterfaces();
             Class pub[] = new Class[all.length];
             
@@ -156,6 +180,14 @@ public final class Service extends ThreadGroup implements Mailbox.Listener {
                 }
             }
         }
+
+        boolean hasRpc() {
+            return rpcPort != NO_RPC_PORT;
+        }
+
+        int getRpcPort() {
+            return (rpcPort == 0) ? RpcServer.defaultPort(sap.port) : rpcPort;
+        }
     }
     
     /**
@@ -240,6 +272,26 @@ public final class Service extends ThreadGroup implements Mailbox.Listener {
         } while (again);
     }
 
+    /**
+     * Return the remote method with the given key, or null.
+     */
+    Method getMethod(int key) {
+        return (Method) api.get(new Integer(key));
+    }
+
+    /**
+     * Invoke a remote method in the managed service, for the binary
+     * rpc transport.
+     */
+    Object invokeMethod(Method method, Object[] args) throws Exception {
+        ManagedService svc = service;
+        if (svc == null) {
+            // service is currently disabled - internal error
+            throw new CMAException("Service disabled " + svcName());
+        }
+        return method.invoke(svc, args);
+    }
+
     /**
      * remote invocation trampoline -
      * invoke the method in the managed service.
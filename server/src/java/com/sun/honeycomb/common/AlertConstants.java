@@ -209,5 +209,15 @@ public class AlertConstants
     public static final String PERF_WEBDAV_GET_BRANCH_LOOKUP_KEY = 
 	new StringBuffer(WEBDAV_BRANCH_KEY).append(".")
 	    .append(ProtocolProxy.WEBDAV_GET_BW).toString();
+
+    /**
+     * Suffix for retreiving the latency histograms and counters of the
+     * node, see Metrics.
+     * ROOT_KEY + "." + nodeId + "." must be prepended to this value
+     * to get the full key recorded in the alert tree.   
+     */
+    public static final String PERF_METRICS_BRANCH_LOOKUP_KEY = 
+	new StringBuffer(PROTOCOL_BRANCH_KEY).append(".")
+	    .append(ProtocolProxy.METRICS).toString();
     
 }
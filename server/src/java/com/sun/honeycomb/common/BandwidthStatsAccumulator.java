@@ -52,10 +52,16 @@ import java.util.NoSuchElementException;
  * <LI>bytes/sec transferrred</LI>
  * <LI>Response Time</LI>
  * </UL>
+ * <P>
+ * add() does not take a lock, the counters are striped across threads.
  */
 public class BandwidthStatsAccumulator extends Stats {
 
     private long bytesProcessed = 0;
+
+    private final StripedCounter ops = new StripedCounter();
+    private final StripedCounter execTime = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
     
     public BandwidthStatsAccumulator() {
         super();
@@ -100,10 +106,18 @@ public class BandwidthStatsAccumulator extends Stats {
      * @param execTime the amount of time in milliseconds it
      *    took to execute the perf action
      */
-    synchronized public void add(long sizeInBytes, long execTime) {
-	totalExecTime += execTime;
-        totalOps++;
-	bytesProcessed += sizeInBytes;
+    public void add(long sizeInBytes, long execTime) {
+	this.execTime.add(execTime);
+        ops.increment();
+	bytes.add(sizeInBytes);
+    }
+
+    public long getTotalOps() {
+	return totalOps + ops.get();
+    }
+
+    public long getTotalExecTime() {
+	return totalExecTime + execTime.get();
     }
 
     /**
@@ -122,7 +136,7 @@ public class BandwidthStatsAccumulator extends Stats {
      * @return long total number of bytes processed to date  
      */
     public long getTotalBytesProcessed() {
-        return bytesProcessed; 
+        return bytesProcessed + bytes.get(); 
     }
     
     /**
@@ -130,11 +144,11 @@ public class BandwidthStatsAccumulator extends Stats {
      * in the alert tree.  This string can then be reconsisted via the
      * the constructor for this object
      */
-    synchronized public String getStatsStr() {
+    public String getStatsStr() {
 	// NOTE: Any changes to this string will require changes to 
 	// constructor that reconsistutes this object from the string
 	// Values should be comma seperated.
-	return new StringBuffer().append(totalOps)
+	return new StringBuffer().append(getTotalOps())
 	    .append(",").append(getTotalExecTime())
 	    .append(",").append(getTotalBytesProcessed())
 	    .toString();
@@ -0,0 +1,259 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.honeycomb.common;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in microseconds, updated without locks.
+ * <P>
+ * Buckets are log-linear as in HDR histograms: values below 16 have
+ * their own bucket, and every power of two above is split in 16
+ * buckets. A value is known within 1/16 (6%) of itself, from 1us up to
+ * 2^40us (12 days) with 592 buckets. Each thread records in one of
+ * StripedCounter.STRIPES copies of the buckets, which snapshot() adds
+ * up.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts;
+    private final StripedCounter sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+        sum = new StripedCounter();
+        max = new AtomicLong(0);
+    }
+
+    /**
+     * @param micros the latency to record, in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(StripedCounter.stripe() * BUCKETS
+                               + bucket(micros));
+        sum.add(micros);
+
+        long current = max.get();
+        while ((micros > current) && (!max.compareAndSet(current, micros))) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>, a value
+     * returned by System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+
+        for (int s = 0; s < StripedCounter.STRIPES; s++) {
+            int base = s * BUCKETS;
+            for (int b = 0; b < BUCKETS; b++) {
+                long n = counts.get(base + b);
+                merged[b] += n;
+                count += n;
+            }
+        }
+        return new Snapshot(merged, count, sum.get(), max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int)value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int)(value >>> shift) - SUB_COUNT;
+    }
+
+    /** Highest value recorded in the bucket */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket / SUB_COUNT) - 1;
+        long mantissa = (bucket % SUB_COUNT) + SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * State of a histogram at a point in time. Snapshots taken on
+     * several nodes are merged with add() and the activity between
+     * two snapshots is obtained with subtract().
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] nCounts, long nCount, long nSum, long nMax) {
+            counts = nCounts;
+            count = nCount;
+            sum = nSum;
+            max = nMax;
+        }
+
+        public Snapshot() {
+            this(new long[BUCKETS], 0, 0, 0);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /** Sum of the recorded values, in microseconds */
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below which <code>percentile</code> percent
+         * of the recorded values are, in microseconds
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil((percentile / 100) * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank) {
+                    return Math.min(highestValue(b), max);
+                }
+            }
+            return max;
+        }
+
+        public Snapshot add(Snapshot other) {
+            long[] result = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                result[b] = counts[b] + other.counts[b];
+            }
+            return new Snapshot(result, count + other.count,
+                                sum + other.sum, Math.max(max, other.max));
+        }
+
+        /**
+         * Activity since <code>older</code>. The maximum cannot be
+         * computed for the interval, the one of this snapshot is kept.
+         */
+        public Snapshot subtract(Snapshot older) {
+            long[] result = new long[BUCKETS];
+            long total = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                // Counters only go down when the service restarted
+                result[b] = Math.max(0, counts[b] - older.counts[b]);
+                total += result[b];
+            }
+            return new Snapshot(result, total,
+                                Math.max(0, sum - older.sum), max);
+        }
+
+        /**
+         * Compact form, parsed back by parse(): the count, sum and max
+         * followed by the non empty buckets as bucket:count.
+         */
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+            buf.append(count).append(" ").append(sum).append(" ").append(max);
+            for (int b = 0; b < BUCKETS; b++) {
+                if (counts[b] != 0) {
+                    buf.append(" ").append(b).append(":").append(counts[b]);
+                }
+            }
+            return buf.toString();
+        }
+
+        public static Snapshot parse(String str)
+            throws NoSuchElementException, NumberFormatException {
+            String[] st = str.trim().split(" ");
+            if (st.length < 3) {
+                throw new NoSuchElementException("Unexpected histogram format: "
+                                                 + str);
+            }
+            long[] counts = new long[BUCKETS];
+            for (int i = 3; i < st.length; i++) {
+                int sep = st[i].indexOf(':');
+                if (sep < 0) {
+                    throw new NoSuchElementException("Unexpected bucket format: "
+                                                     + st[i]);
+                }
+                int b = Integer.parseInt(st[i].substring(0, sep));
+                if ((b < 0) || (b >= BUCKETS)) {
+                    throw new NoSuchElementException("Bucket out of range: "
+                                                     + st[i]);
+                }
+                counts[b] = Long.parseLong(st[i].substring(sep + 1));
+            }
+            return new Snapshot(counts,
+                                Long.parseLong(st[0]),
+                                Long.parseLong(st[1]),
+                                Long.parseLong(st[2]));
+        }
+    }
+}
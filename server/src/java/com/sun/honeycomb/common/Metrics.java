@@ -0,0 +1,259 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.honeycomb.common;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Registry of the counters and latency histograms of a JVM.
+ * <P>
+ * Recording does not take any lock: callers keep the counter or
+ * histogram returned by counter() or histogram(), usually in a static
+ * field, and only registration is synchronized. snapshot() returns the
+ * state of all of them, in a form published in the alert tree by the
+ * protocol service and aggregated by the perfstats mgmt adapter.
+ */
+public class Metrics {
+
+    /*
+     * Latency of the API operations, as seen by the protocol handlers
+     */
+    public static final String STORE = "store";
+    public static final String RETRIEVE = "retrieve";
+    public static final String RANGE_RETRIEVE = "rangeRetrieve";
+    public static final String QUERY = "query";
+    public static final String DELETE = "delete";
+
+    /*
+     * Latency of the stages of an operation
+     */
+    public static final String FRAGMENT_IO = "fragmentIO";
+    public static final String ERASURE_CODING = "erasureCoding";
+    public static final String MD_INSERT = "mdInsert";
+
+    /*
+     * Counters
+     */
+    public static final String STORE_BYTES = "storeBytes";
+    public static final String RETRIEVE_BYTES = "retrieveBytes";
+
+    // name -> LatencyHistogram
+    private static final TreeMap histograms = new TreeMap();
+    // name -> StripedCounter
+    private static final TreeMap counters = new TreeMap();
+
+    private Metrics() {
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        synchronized (histograms) {
+            LatencyHistogram result = (LatencyHistogram)histograms.get(name);
+            if (result == null) {
+                result = new LatencyHistogram();
+                histograms.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    public static StripedCounter counter(String name) {
+        synchronized (counters) {
+            StripedCounter result = (StripedCounter)counters.get(name);
+            if (result == null) {
+                result = new StripedCounter();
+                counters.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    public static Snapshot snapshot() {
+        Snapshot result = new Snapshot();
+
+        synchronized (histograms) {
+            Iterator it = histograms.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                result.histograms.put(entry.getKey(),
+                    ((LatencyHistogram)entry.getValue()).snapshot());
+            }
+        }
+        synchronized (counters) {
+            Iterator it = counters.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                result.counters.put(entry.getKey(),
+                    new Long(((StripedCounter)entry.getValue()).get()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Values of all the counters and histograms at a point in time.
+     */
+    public static class Snapshot {
+
+        // name -> LatencyHistogram.Snapshot
+        private final TreeMap histograms = new TreeMap();
+        // name -> Long
+        private final TreeMap counters = new TreeMap();
+
+        public Snapshot() {
+        }
+
+        /** Names of the histograms, in alphabetical order */
+        public String[] getHistogramNames() {
+            return (String[])histograms.keySet().toArray(new String[0]);
+        }
+
+        public String[] getCounterNames() {
+            return (String[])counters.keySet().toArray(new String[0]);
+        }
+
+        /** The histogram, or null if there is none with that name */
+        public LatencyHistogram.Snapshot getHistogram(String name) {
+            return (LatencyHistogram.Snapshot)histograms.get(name);
+        }
+
+        public long getCounter(String name) {
+            Long value = (Long)counters.get(name);
+            return (value == null) ? 0 : value.longValue();
+        }
+
+        /** Sum of this snapshot and of <code>other</code> */
+        public Snapshot add(Snapshot other) {
+            Snapshot result = new Snapshot();
+            result.histograms.putAll(histograms);
+            result.counters.putAll(counters);
+
+            Iterator it = other.histograms.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                LatencyHistogram.Snapshot value =
+                    (LatencyHistogram.Snapshot)entry.getValue();
+                LatencyHistogram.Snapshot mine = getHistogram((String)entry.getKey());
+                result.histograms.put(entry.getKey(),
+                                      (mine == null) ? value : mine.add(value));
+            }
+            it = other.counters.keySet().iterator();
+            while (it.hasNext()) {
+                String name = (String)it.next();
+                result.counters.put(name, new Long(getCounter(name)
+                                                   + other.getCounter(name)));
+            }
+            return result;
+        }
+
+        /** Activity since <code>older</code> */
+        public Snapshot subtract(Snapshot older) {
+            Snapshot result = new Snapshot();
+
+            Iterator it = histograms.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                LatencyHistogram.Snapshot value =
+                    (LatencyHistogram.Snapshot)entry.getValue();
+                LatencyHistogram.Snapshot old =
+                    older.getHistogram((String)entry.getKey());
+                result.histograms.put(entry.getKey(),
+                                      (old == null) ? value : value.subtract(old));
+            }
+            it = counters.keySet().iterator();
+            while (it.hasNext()) {
+                String name = (String)it.next();
+                long delta = getCounter(name) - older.getCounter(name);
+                result.counters.put(name, new Long(Math.max(0, delta)));
+            }
+            return result;
+        }
+
+        /**
+         * Form stored in the alert tree, parsed back by parse(). Entries
+         * are separated by commas, a histogram is
+         * "name=" + LatencyHistogram.Snapshot.toString() and a counter
+         * "name#value".
+         */
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+
+            Iterator it = histograms.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                if (buf.length() > 0) {
+                    buf.append(",");
+                }
+                buf.append(entry.getKey()).append("=").append(entry.getValue());
+            }
+            it = counters.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                if (buf.length() > 0) {
+                    buf.append(",");
+                }
+                buf.append(entry.getKey()).append("#").append(entry.getValue());
+            }
+            return buf.toString();
+        }
+
+        public static Snapshot parse(String str)
+            throws NoSuchElementException, NumberFormatException {
+            Snapshot result = new Snapshot();
+            if ((str == null) || (str.trim().length() == 0)) {
+                return result;
+            }
+
+            String[] st = str.split(",");
+            for (int i = 0; i < st.length; i++) {
+                int sep = st[i].indexOf('=');
+                if (sep > 0) {
+                    result.histograms.put(st[i].substring(0, sep).trim(),
+                        LatencyHistogram.Snapshot.parse(st[i].substring(sep + 1)));
+                    continue;
+                }
+                sep = st[i].indexOf('#');
+                if (sep > 0) {
+                    result.counters.put(st[i].substring(0, sep).trim(),
+                        new Long(Long.parseLong(st[i].substring(sep + 1).trim())));
+                    continue;
+                }
+                throw new NoSuchElementException("Unexpected metrics format: "
+                                                 + st[i]);
+            }
+            return result;
+        }
+    }
+}
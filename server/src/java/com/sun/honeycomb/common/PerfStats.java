@@ -87,6 +87,9 @@ public class PerfStats {
         float totalMem = 0;
         long diskUsed = 0; 
         long diskSize = 0;
+
+        // Latency histograms and counters, see Metrics
+        private Metrics.Snapshot metrics = new Metrics.Snapshot();
   
         public PerfStats() {}
 	
@@ -242,6 +245,10 @@ public class PerfStats {
             this.diskSize += diskSize;
         }
 
+        public void addMetrics(Metrics.Snapshot deltaMetrics) {
+            this.metrics = this.metrics.add(deltaMetrics);
+        }
+
 	public long getStoreBytesProcessed() {
             return storeBytesProcessed;
         }
@@ -394,6 +401,10 @@ public class PerfStats {
             return diskSize;
         }
 
+        public Metrics.Snapshot getMetrics() {
+            return metrics;
+        }
+
         public void setStoreBytesProcessed(long deltaBytesProcessed) {
             this.storeBytesProcessed = deltaBytesProcessed;
         }
@@ -545,6 +556,10 @@ public class PerfStats {
         public void setDiskSize(long diskSize) {
             this.diskSize = diskSize;
         }
+
+        public void setMetrics(Metrics.Snapshot deltaMetrics) {
+            this.metrics = deltaMetrics;
+        }
 	
 	public String toString() {
 	    StringBuffer buf = new StringBuffer();
@@ -45,9 +45,14 @@ import java.util.NoSuchElementException;
  * <LI>Avg Ops/sec</LI>
  * <LI>Response Time</LI>
  * </UL>
+ * <P>
+ * add() does not take a lock, the counters are striped across threads.
  */
 public class StatsAccumulator extends Stats {
 
+    private final StripedCounter ops = new StripedCounter();
+    private final StripedCounter execTime = new StripedCounter();
+
     public StatsAccumulator() {
 	super();
     };
@@ -86,9 +91,17 @@ public class StatsAccumulator extends Stats {
      * @param execTime the amount of time in milliseconds it took to perform
      * the action associated with this object.
      */
-    synchronized public void add(long execTime) {
-	totalExecTime += execTime;
-        totalOps++;
+    public void add(long execTime) {
+	this.execTime.add(execTime);
+        ops.increment();
+    }
+
+    public long getTotalOps() {
+	return totalOps + ops.get();
+    }
+
+    public long getTotalExecTime() {
+	return totalExecTime + execTime.get();
     }
     
     /**
@@ -96,11 +109,11 @@ public class StatsAccumulator extends Stats {
      * in the alert tree.  This string can then be reconsisted via the
      * the constructor for this object
      */
-    synchronized  public String getStatsStr() {
+    public String getStatsStr() {
 	// NOTE: Any changes to this string will require changes to 
 	// constructor that reconsistutes this object from the string
 	// Values should be comma seperated.
-	return new StringBuffer().append(totalOps).append(",")
+	return new StringBuffer().append(getTotalOps()).append(",")
 	    .append(getTotalExecTime()).toString(); 
     }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.honeycomb.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads without contending on a single
+ * memory location. Each thread adds to one of several cells, chosen
+ * from its thread id, and get() sums the cells.
+ */
+public class StripedCounter {
+
+    // Cells are kept a cache line apart
+    private static final int PAD = 8;
+    private static final int MAX_STRIPES = 8;
+
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        cells = new AtomicLongArray(STRIPES * PAD);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(stripe() * PAD, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * The sum is not an atomic snapshot: adds done while it is computed
+     * may or may not be counted.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    public String toString() {
+        return Long.toString(get());
+    }
+
+    /** Cell of the calling thread, between 0 and STRIPES-1 */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while ((stripes < cpus) && (stripes < MAX_STRIPES)) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -147,6 +147,12 @@ public interface BackingStore extends ContextConsumer {
     public boolean isComplianceDeletable(NewObjectIdentifier oid)
         throws ArchiveException;
 
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+        throws ArchiveException;
+
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+        throws ArchiveException;
+
     public int checkIndexed(String CacheId, NewObjectIdentifier oid)
         throws ArchiveException;
 }
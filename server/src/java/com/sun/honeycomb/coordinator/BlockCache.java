@@ -36,79 +36,96 @@ package com.sun.honeycomb.coordinator;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.resources.ByteBufferPool;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Cache of the blocks read through the coordinator, bounded in bytes.
+ *
+ * The cache is split in stripes by (oid, blockId), each with its own
+ * lock and its share of the memory budget, so that the API threads do
+ * not all serialize on one lock.
+ *
+ * Each stripe is a segmented LRU: new blocks go to a probation segment,
+ * and only blocks hit again while there move to the protected segment.
+ * Blocks are ejected from probation first, so a large retrieve that
+ * reads every block once cannot flush the blocks of hot small objects.
+ *
+ * Each stripe keeps a per-OID index of the block ids it caches, under
+ * the stripe lock, so delete(oid) visits each stripe once and is then
+ * proportional to the number of blocks of that object. No lock is
+ * shared by all the stripes.
+ *
+ * The cache owns the buffers put in it; they are checked back in to
+ * the ByteBufferPool when ejected, replaced or deleted. Readers get a
+ * read-only view checked out under the stripe lock, so a block can
+ * be ejected while a reader still uses it.
+ */
 public class BlockCache {
 
     private static final float LOAD_FACTOR = .75F;
 
+    private static final int MAX_STRIPES = 16;
+    private static final int MIN_BLOCKS_PER_STRIPE = 8;
+
+    // Share of a stripe's budget for the blocks that were hit again
+    private static final int PROTECTED_PERCENT = 80;
+
     private static final Logger LOGGER =
         Logger.getLogger(BlockCache.class.getName());
 
-    private int maxBlocks;
-    private Map cache;
-    private Key probe;
-
-    public int hits;
-    public int misses;
-    public int puts;
-    public int puthits;
-    public int deletes;
-    public int ejects;
+    private long maxBytes;
+    private int blockSize;
+    private Stripe[] stripes;
+
+    /**
+     * @param newMaxBytes the memory budget of the cache
+     * @param newBlockSize the size of the cached blocks
+     */
+    public BlockCache(long newMaxBytes, int newBlockSize) {
+        maxBytes = newMaxBytes;
+        blockSize = newBlockSize;
+
+        // Power of 2 stripes, each big enough for a few blocks
+        int nbStripes = 1;
+        while ((nbStripes < MAX_STRIPES) &&
+               (maxBytes / (2 * nbStripes) >= (long)MIN_BLOCKS_PER_STRIPE * blockSize)) {
+            nbStripes *= 2;
+        }
 
-    public BlockCache(int newMaxBlocks) {
-        maxBlocks = newMaxBlocks;
+        stripes = new Stripe[nbStripes];
+        for (int i = 0; i < nbStripes; i++) {
+            stripes[i] = new Stripe(maxBytes / nbStripes);
+        }
 
         if (LOGGER.isLoggable(Level.FINE)) {
-            LOGGER.fine("max blocks = " + maxBlocks);
-        }
-
-        // anonymous class construct extends LinkedHashMap
-        // and overrides its removeEldestEntry method
-        // to let us manage return of buffers to the pool.
-        //
-        // This map is ACCESS ordered, therefore cache.get()
-        // is a structural modification and must be synchronized!
-        // cache.put() as well, of course.
-        //
-        cache = new LinkedHashMap(maxBlocks, LOAD_FACTOR, true) {
-
-            public boolean removeEldestEntry(Map.Entry eldest) {
-
-                boolean result = (size() >= maxBlocks);
-                if (result) {
-                    // Stale block will be retired from the cache
-                    // by the put() once we return 'true' from here; 
-                    // check in its buffer back to the buffer pool.
-                    ByteBuffer block = (ByteBuffer)eldest.getValue();
-                    if (LOGGER.isLoggable(Level.FINEST)) {
-                        LOGGER.finest("cache full: size " + size() +
-                                      " (max size " + maxBlocks + 
-                                      "), ejecting block " +
-                                      getIdentityString(block) + " " +
-                                      (Key)eldest.getKey());
-                    }
-                    ByteBufferPool.getInstance().checkInBuffer(block);
-                    ejects++;
-                }
-
-                return result;
-            }
-        };
-
-        probe = new Key();
-
-        resetStats();
+            LOGGER.fine("max bytes = " + maxBytes + 
+                        " block size = " + blockSize +
+                        " stripes = " + nbStripes);
+        }
     }
 
     private static String getIdentityString(Object object) {
         return Integer.toHexString(System.identityHashCode(object));
     }
 
+    private Stripe stripeFor(Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 7);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * Adds a block to the cache, which takes ownership of the buffer.
+     * A block already cached for (oid, blockId) is replaced.
+     */
     public void put(NewObjectIdentifier oid, long blockId, ByteBuffer block) {
         if (LOGGER.isLoggable(Level.FINEST)) {
             LOGGER.finest("inserting block " + getIdentityString(block) +
@@ -116,85 +133,144 @@ public class BlockCache {
                           " blockId = " + blockId);
         }
 
-        ByteBuffer other = (ByteBuffer)cache.put(new Key(oid, blockId), block);
-        if (other != null) {
-            if (LOGGER.isLoggable(Level.FINEST)) {
-                LOGGER.finest("replaced buffer " + getIdentityString(other) + 
-                              " with buffer " + getIdentityString(block) + 
-                              " oid = " + oid + " blockId = " + blockId);
-            }
-            ByteBufferPool.getInstance().checkInBuffer(other);
-            puthits++;
-        } else {
-            puts++;
+        Key key = new Key(oid, blockId);
+        Stripe stripe = stripeFor(key);
+
+        synchronized (stripe) {
+            stripe.put(key, block);
         }
     }
 
-    public ByteBuffer get(NewObjectIdentifier oid, long blockId) {
-        probe.oid = oid;
-        probe.blockId = blockId;
-        ByteBuffer result = (ByteBuffer)cache.get(probe);
-        if (result != null) {
-            hits++;
-        } else { 
-            misses++;
+    /**
+     * Returns a read-only view of the cached block, checked out of the
+     * ByteBufferPool, or null if the block is not cached. The caller
+     * checks the view back in.
+     */
+    public ByteBuffer checkOut(NewObjectIdentifier oid, long blockId) {
+        Key key = new Key();
+        key.oid = oid;
+        key.blockId = blockId;
+        Stripe stripe = stripeFor(key);
+
+        synchronized (stripe) {
+            ByteBuffer block = stripe.get(key);
+            if (block == null) {
+                return null;
+            }
+            return ByteBufferPool.getInstance().checkOutReadOnlyBuffer(block);
         }
-        return result;
     }
 
-    // pgates: NOTE - This implementation traverses the entire hash
-    // structure to find objects to delete. This is OK as long as the
-    // map is small. Our servers currently cache at most 512 blocks so
-    // there's nothing to worry about, but we'll probably need to
-    // revisit this later. Fortunately LinkedHashMap has a very
-    // efficient entry iterator since it's also a linked list.
+    /** Removes all the blocks of an object */
     public void delete(NewObjectIdentifier oid) {
         if (LOGGER.isLoggable(Level.FINEST)) {
             LOGGER.finest("deleting all buffers for oid: " + oid);
         }
-        Iterator entries = cache.entrySet().iterator();
 
-        while (entries.hasNext()) {
-            Map.Entry entry = (Map.Entry)entries.next();
-            Key key = (Key)entry.getKey();
-            ByteBuffer buffer = (ByteBuffer)entry.getValue();
-
-            if (key.oid.equals(oid)) {
-                if (LOGGER.isLoggable(Level.FINEST)) {
-                    LOGGER.finest("deleting block " + 
-                                  getIdentityString(buffer) + 
-                                  " " + key);
-                }
-                entries.remove();
-                ByteBufferPool.getInstance().checkInBuffer(buffer);
-                deletes++;
-            } 
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) {
+                stripes[s].delete(oid);
+            }
         }
     }
 
     private String showCache() {
         StringBuffer contents = new StringBuffer("\n\n");
-        Iterator entries = cache.entrySet().iterator();
-        while (entries.hasNext()) {
-            Map.Entry entry = (Map.Entry)entries.next();
-            Key key = (Key)entry.getKey();
-            ByteBuffer buffer = (ByteBuffer)entry.getValue();
-            contents.append("buffer " + getIdentityString(buffer) +
-                            " " + key + "\n");
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) {
+                stripes[s].show(contents, "protected", stripes[s].protectedBlocks);
+                stripes[s].show(contents, "probation", stripes[s].probation);
+            }
         }
         contents.append("\n");
         return contents.toString();
     }
 
-    public int getCacheSize() { return cache.size(); }
-    public int getCacheMaxSize() { return maxBlocks; }
+    /*
+     * Statistics, summed over the stripes
+     */
+
+    public int getHits() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].hits; }
+        }
+        return result;
+    }
+
+    public int getMisses() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].misses; }
+        }
+        return result;
+    }
+
+    public int getPuts() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].puts; }
+        }
+        return result;
+    }
+
+    public int getPuthits() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].puthits; }
+        }
+        return result;
+    }
+
+    public int getDeletes() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].deletes; }
+        }
+        return result;
+    }
+
+    public int getEjects() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) { result += stripes[s].ejects; }
+        }
+        return result;
+    }
+
+    public int getCacheSize() {
+        int result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) {
+                result += stripes[s].probation.size() +
+                    stripes[s].protectedBlocks.size();
+            }
+        }
+        return result;
+    }
+
+    public long getCacheBytes() {
+        long result = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) {
+                result += stripes[s].probationBytes +
+                    stripes[s].protectedBytes;
+            }
+        }
+        return result;
+    }
+
+    /** The max. number of full blocks that fit in the cache */
+    public int getCacheMaxSize() { return (int)(maxBytes / blockSize); }
+    public long getCacheMaxBytes() { return maxBytes; }
    
     public String getCacheStats(boolean verbose) {
         String stats =
-            "Cache size=" + cache.size() + " maxsize=" + maxBlocks +
-            " hits=" + hits + " misses=" + misses + 
-            " puts=" + puts + " puthits=" + puthits +
-            " deletes=" + deletes + " ejects=" + ejects;
+            "Cache size=" + getCacheSize() + " maxsize=" + getCacheMaxSize() +
+            " bytes=" + getCacheBytes() + " maxbytes=" + maxBytes +
+            " hits=" + getHits() + " misses=" + getMisses() + 
+            " puts=" + getPuts() + " puthits=" + getPuthits() +
+            " deletes=" + getDeletes() + " ejects=" + getEjects();
         if (verbose) {
             return stats + "\n" + showCache();
         } else {
@@ -207,7 +283,207 @@ public class BlockCache {
             LOGGER.finest("zeroing out cache stats counters, " +
                           " old values: " + getCacheStats(false));
         }
-        hits = misses = puts = puthits = deletes = ejects = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            synchronized (stripes[s]) {
+                Stripe stripe = stripes[s];
+                stripe.hits = stripe.misses = stripe.puts = 0;
+                stripe.puthits = stripe.deletes = stripe.ejects = 0;
+            }
+        }
+    }
+
+    /**
+     * One stripe of the cache. All the methods are called with the
+     * stripe locked.
+     */
+    private class Stripe {
+
+        private long maxBytes;
+        private long maxProtectedBytes;
+
+        // Both maps are ACCESS ordered, eldest first
+        private LinkedHashMap probation;
+        private LinkedHashMap protectedBlocks;
+        private long probationBytes;
+        private long protectedBytes;
+
+        // oid -> Set of Long ids of the blocks cached in this stripe
+        private HashMap blocksByOid;
+
+        private int hits;
+        private int misses;
+        private int puts;
+        private int puthits;
+        private int deletes;
+        private int ejects;
+
+        private Stripe(long newMaxBytes) {
+            maxBytes = newMaxBytes;
+            maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
+            probation = new LinkedHashMap(16, LOAD_FACTOR, true);
+            protectedBlocks = new LinkedHashMap(16, LOAD_FACTOR, true);
+            probationBytes = protectedBytes = 0;
+            blocksByOid = new HashMap();
+        }
+
+        private ByteBuffer get(Key key) {
+            ByteBuffer block = (ByteBuffer)protectedBlocks.get(key);
+            if (block == null) {
+                block = (ByteBuffer)probation.remove(key);
+                if (block != null) {
+                    // Second hit: promote, demoting the eldest protected
+                    // blocks back to probation if needed. The probe key
+                    // references the caller's oid, so store a copy.
+                    probationBytes -= block.capacity();
+                    protectedBlocks.put(new Key(key.oid, key.blockId), block);
+                    protectedBytes += block.capacity();
+                    demote();
+                }
+            }
+
+            if (block != null) {
+                hits++;
+            } else { 
+                misses++;
+            }
+            return block;
+        }
+
+        private void put(Key key, ByteBuffer block) {
+            ByteBuffer other = (ByteBuffer)protectedBlocks.get(key);
+            if (other != null) {
+                protectedBlocks.put(key, block);
+                protectedBytes += block.capacity() - other.capacity();
+            } else {
+                other = (ByteBuffer)probation.put(key, block);
+                probationBytes += block.capacity();
+                if (other != null) {
+                    probationBytes -= other.capacity();
+                }
+            }
+
+            if (other != null) {
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("replaced buffer " + getIdentityString(other) + 
+                                  " with buffer " + getIdentityString(block) + 
+                                  " " + key);
+                }
+                ByteBufferPool.getInstance().checkInBuffer(other);
+                puthits++;
+            } else {
+                index(key);
+                puts++;
+            }
+
+            demote();
+            eject();
+        }
+
+        private void delete(NewObjectIdentifier oid) {
+            Set blockIds = (Set)blocksByOid.remove(oid);
+            if (blockIds == null) {
+                return;
+            }
+
+            Key key = new Key();
+            key.oid = oid;
+            for (Iterator i = blockIds.iterator(); i.hasNext(); ) {
+                key.blockId = ((Long)i.next()).longValue();
+                delete(key);
+            }
+        }
+
+        private void delete(Key key) {
+            ByteBuffer block = (ByteBuffer)protectedBlocks.remove(key);
+            if (block != null) {
+                protectedBytes -= block.capacity();
+            } else {
+                block = (ByteBuffer)probation.remove(key);
+                if (block == null) {
+                    return;
+                }
+                probationBytes -= block.capacity();
+            }
+
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("deleting block " + 
+                              getIdentityString(block) + " " + key);
+            }
+            ByteBufferPool.getInstance().checkInBuffer(block);
+            deletes++;
+        }
+
+        private void index(Key key) {
+            Set blockIds = (Set)blocksByOid.get(key.oid);
+            if (blockIds == null) {
+                blockIds = new HashSet();
+                blocksByOid.put(key.oid, blockIds);
+            }
+            blockIds.add(new Long(key.blockId));
+        }
+
+        private void unindex(Key key) {
+            Set blockIds = (Set)blocksByOid.get(key.oid);
+            if (blockIds != null) {
+                blockIds.remove(new Long(key.blockId));
+                if (blockIds.isEmpty()) {
+                    blocksByOid.remove(key.oid);
+                }
+            }
+        }
+
+        /** Moves the eldest protected blocks over the budget to probation */
+        private void demote() {
+            Iterator entries = protectedBlocks.entrySet().iterator();
+            while ((protectedBytes > maxProtectedBytes) && entries.hasNext()) {
+                Map.Entry entry = (Map.Entry)entries.next();
+                ByteBuffer block = (ByteBuffer)entry.getValue();
+                entries.remove();
+                protectedBytes -= block.capacity();
+                probation.put(entry.getKey(), block);
+                probationBytes += block.capacity();
+            }
+        }
+
+        /** Ejects blocks, probation first, until the stripe fits its budget */
+        private void eject() {
+            while (probationBytes + protectedBytes > maxBytes) {
+                LinkedHashMap segment =
+                    probation.isEmpty() ? protectedBlocks : probation;
+                Iterator entries = segment.entrySet().iterator();
+                if (!entries.hasNext()) {
+                    break;
+                }
+                Map.Entry eldest = (Map.Entry)entries.next();
+                Key key = (Key)eldest.getKey();
+                ByteBuffer block = (ByteBuffer)eldest.getValue();
+                entries.remove();
+                if (segment == probation) {
+                    probationBytes -= block.capacity();
+                } else {
+                    protectedBytes -= block.capacity();
+                }
+
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("cache full: ejecting block " +
+                                  getIdentityString(block) + " " + key);
+                }
+                unindex(key);
+                ByteBufferPool.getInstance().checkInBuffer(block);
+                ejects++;
+            }
+        }
+
+        private void show(StringBuffer contents, String name, Map segment) {
+            Iterator entries = segment.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry)entries.next();
+                Key key = (Key)entry.getKey();
+                ByteBuffer buffer = (ByteBuffer)entry.getValue();
+                contents.append(name + " buffer " + getIdentityString(buffer) +
+                                " " + key + "\n");
+            }
+        }
     }
 
     private static class Key implements Comparable {
@@ -0,0 +1,572 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.coordinator;
+
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.config.ClusterProperties;
+import com.sun.honeycomb.diskmonitor.DiskProxy;
+import com.sun.honeycomb.disks.Disk;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of the changes made through the API on this node: stores,
+ * deletes, retention and legal hold updates. An incremental backup
+ * reads the journals of all the nodes (see oa.bulk.JournalOIDIterator)
+ * instead of querying the system cache of every disk for the window.
+ *
+ * Records are appended to segment files in the journal directory of
+ * the first enabled local disk. A caller of record() returns once its
+ * record is synced to disk; one flusher thread syncs for all the
+ * pending writers, so the cost of a sync is shared by concurrent API
+ * calls.
+ *
+ * The journal answers for the changes made since its "since" time
+ * only. It is reset when the journal moves to another disk, after an
+ * unclean shutdown and when records could not be written, and it
+ * moves forward when old segments are dropped to stay under
+ * honeycomb.oa.bulk.journal.max_bytes. A reader whose window starts
+ * before it falls back to the system cache.
+ */
+public class ChangeJournal {
+
+    public static final byte OP_CREATE = 1;
+    public static final byte OP_DELETE = 2;
+    public static final byte OP_RETENTION = 3;
+    public static final byte OP_LEGAL_HOLD = 4;
+
+    private static final Logger LOG =
+        Logger.getLogger(ChangeJournal.class.getName());
+
+    private static final String DIR_NAME = "journal";
+    private static final String SEGMENT_PREFIX = "changes-";
+    private static final String SINCE_FILE = "since";
+    private static final String OWNER_FILE = "owner";
+    private static final String OPEN_FILE = "open";
+
+    private static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_BYTES = 1024 * 1024 * 1024;
+
+    private static volatile boolean initialized = false;
+    private static volatile ChangeJournal instance = null;
+
+    /** Journal of this node, null if journaling is disabled */
+    public static ChangeJournal getInstance() {
+        if (!initialized) {
+            init();
+        }
+        return instance;
+    }
+
+    private static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        ClusterProperties props = ClusterProperties.getInstance();
+        if (props.getPropertyAsBoolean(ConfigPropertyNames.PROP_OA_BACKUP_JOURNAL,
+                                       false)) {
+            long maxBytes = props.getPropertyAsLong
+                (ConfigPropertyNames.PROP_OA_BACKUP_JOURNAL_BYTES,
+                 DEFAULT_MAX_BYTES);
+            instance = new ChangeJournal(maxBytes);
+            LOG.info("change journal enabled, max bytes " + maxBytes);
+        }
+        initialized = true;
+    }
+
+    /** Record a change made on this node, no-op if journaling is off */
+    public static void record(byte op, NewObjectIdentifier oid) {
+        ChangeJournal journal = getInstance();
+        if (journal != null && oid != null) {
+            journal.append(op, oid);
+        }
+    }
+
+    /** Close the journal cleanly on service shutdown */
+    public static void shutdown() {
+        ChangeJournal journal = instance;
+        if (journal != null) {
+            journal.close(true);
+        }
+    }
+
+    /**
+     * One batch of records read by a remote backup session. The reader
+     * continues from (segment, offset) until done is set.
+     */
+    public static class Batch implements Serializable {
+        /** the journal holds all the changes since the window start */
+        public boolean covered;
+        public String[] oids;
+        public long[] times;
+        public long segment;
+        public long offset;
+        public boolean done;
+    }
+
+    private final long maxBytes;
+    private final Thread flusher;
+
+    private File dir = null;
+    private FileOutputStream fos = null;
+    private DataOutputStream out = null;
+    private long segmentSize = 0;
+    private long since = Long.MAX_VALUE;
+    private boolean lost = false;
+    private boolean closed = false;
+
+    // sequence numbers of the appended and the synced records
+    private long appended = 0;
+    private long synced = 0;
+
+    private ChangeJournal(long maxBytes) {
+        this.maxBytes = maxBytes;
+        flusher = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop();
+                }
+            }, "ChangeJournalFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void append(byte op, NewObjectIdentifier oid) {
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            try {
+                if (out == null) {
+                    open(now);
+                }
+                String hex = oid.toHexString();
+                out.writeLong(now);
+                out.writeByte(op);
+                out.writeUTF(hex);
+                segmentSize += 8 + 1 + 2 + hex.length();
+                if (lost) {
+                    // changes before now are missing from the journal
+                    setSince(now);
+                    lost = false;
+                }
+                if (segmentSize >= SEGMENT_BYTES) {
+                    roll(now);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "failed to journal " + oid, e);
+                close(false);
+                lost = true;
+                return;
+            }
+            seq = ++appended;
+            notifyAll();
+            while (synced < seq && !closed && out != null) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            FileOutputStream toSync;
+            long seq;
+            synchronized (this) {
+                while (appended == synced || out == null) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                seq = appended;
+                toSync = fos;
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "failed to flush the journal", e);
+                    close(false);
+                    lost = true;
+                    notifyAll();
+                    continue;
+                }
+            }
+            boolean ok = true;
+            try {
+                toSync.getFD().sync();
+            } catch (IOException e) {
+                // the segment may have been rolled and closed under us,
+                // in which case close() synced it already
+                ok = (toSync != fos);
+                if (!ok) {
+                    LOG.log(Level.WARNING, "failed to sync the journal", e);
+                }
+            }
+            synchronized (this) {
+                if (ok) {
+                    synced = Math.max(synced, seq);
+                } else if (toSync == fos) {
+                    close(false);
+                    lost = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Open the journal on the first enabled local disk. Coverage is
+     * kept only if every reachable disk agrees that this directory
+     * was the last one used and it was closed cleanly.
+     */
+    private void open(long now) throws IOException {
+        Disk[] disks = DiskProxy.getLocalDisks();
+        if (disks == null) {
+            throw new IOException("local disks not available");
+        }
+        File chosen = null;
+        ArrayList dirs = new ArrayList();
+        for (int i = 0; i < disks.length; i++) {
+            if (disks[i] == null || !disks[i].isEnabled()) {
+                continue;
+            }
+            File d = new File(disks[i].getPath(), DIR_NAME);
+            dirs.add(d);
+            if (chosen == null) {
+                chosen = d;
+            }
+        }
+        if (chosen == null) {
+            throw new IOException("no enabled local disk");
+        }
+        if (!chosen.isDirectory() && !chosen.mkdirs()) {
+            throw new IOException("cannot create " + chosen);
+        }
+
+        boolean continuous = new File(chosen, SINCE_FILE).exists()
+            && !new File(chosen, OPEN_FILE).exists();
+        for (int i = 0; continuous && i < dirs.size(); i++) {
+            String owner = readString(new File((File) dirs.get(i), OWNER_FILE));
+            continuous = chosen.getPath().equals(owner);
+        }
+
+        dir = chosen;
+        if (continuous) {
+            since = Long.parseLong(readString(new File(dir, SINCE_FILE)));
+        } else {
+            String[] old = listSegments();
+            for (int i = 0; i < old.length; i++) {
+                new File(dir, old[i]).delete();
+            }
+            setSince(now);
+        }
+        for (int i = 0; i < dirs.size(); i++) {
+            File d = (File) dirs.get(i);
+            if (d.isDirectory() || d.mkdirs()) {
+                writeString(new File(d, OWNER_FILE), dir.getPath());
+            }
+        }
+        writeString(new File(dir, OPEN_FILE), Long.toString(now));
+        openSegment(now);
+        lost = false;
+        LOG.info("change journal in " + dir + " covers changes since "
+                 + since + (continuous ? "" : " (reset)"));
+    }
+
+    private void openSegment(long now) throws IOException {
+        File f = new File(dir, SEGMENT_PREFIX + now);
+        while (f.exists()) {
+            f = new File(dir, SEGMENT_PREFIX + (++now));
+        }
+        fos = new FileOutputStream(f);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        segmentSize = 0;
+    }
+
+    /** Start a new segment and drop the oldest ones over the cap */
+    private void roll(long now) throws IOException {
+        out.flush();
+        fos.getFD().sync();
+        out.close();
+        synced = appended;
+        openSegment(now + 1);
+
+        String[] segs = listSegments();
+        long total = 0;
+        for (int i = 0; i < segs.length; i++) {
+            total += new File(dir, segs[i]).length();
+        }
+        for (int i = 0; i < segs.length - 1 && total > maxBytes; i++) {
+            File f = new File(dir, segs[i]);
+            total -= f.length();
+            f.delete();
+            setSince(Math.max(since, segmentTime(segs[i + 1])));
+        }
+    }
+
+    private void close(boolean clean) {
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.flush();
+                    fos.getFD().sync();
+                    synced = appended;
+                } catch (IOException ignored) {
+                }
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+                fos = null;
+                if (clean) {
+                    new File(dir, OPEN_FILE).delete();
+                }
+            }
+            if (clean) {
+                closed = true;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Read the records of the window [start, end] from the given
+     * position, at most max of them. A segment of -1 starts from the
+     * first segment that may hold the window.
+     */
+    public Batch read(long start, long end, long segment, long offset,
+                      int max) {
+        Batch batch = new Batch();
+        ArrayList oids = new ArrayList();
+        ArrayList times = new ArrayList();
+        String[] segs;
+        synchronized (this) {
+            if (out == null && !closed) {
+                try {
+                    open(System.currentTimeMillis());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "cannot open the journal", e);
+                    lost = true;
+                }
+            }
+            batch.covered = (out != null && !lost && since <= start);
+            if (!batch.covered) {
+                batch.done = true;
+                return batch;
+            }
+            try {
+                out.flush();
+            } catch (IOException ignored) {
+            }
+            segs = listSegments();
+        }
+
+        int index = -1;
+        if (segment < 0) {
+            index = 0;
+            for (int i = 0; i < segs.length; i++) {
+                if (segmentTime(segs[i]) <= start) {
+                    index = i;
+                }
+            }
+            offset = 0;
+        } else {
+            for (int i = 0; i < segs.length; i++) {
+                if (segmentTime(segs[i]) == segment) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                // dropped while the session was reading it
+                batch.covered = false;
+                batch.done = true;
+                return batch;
+            }
+        }
+
+        boolean done = (index >= segs.length);
+        while (!done && oids.size() < max) {
+            long pos = offset;
+            DataInputStream in = null;
+            boolean eof = false;
+            try {
+                FileInputStream fis = new FileInputStream(new File(dir, segs[index]));
+                if (pos > 0 && fis.skip(pos) != pos) {
+                    throw new EOFException();
+                }
+                in = new DataInputStream(new BufferedInputStream(fis));
+                while (oids.size() < max) {
+                    long time;
+                    String hex;
+                    try {
+                        time = in.readLong();
+                        in.readByte();
+                        hex = in.readUTF();
+                    } catch (EOFException e) {
+                        // end of segment, or a record still being written
+                        eof = true;
+                        break;
+                    }
+                    if (time > end) {
+                        done = true;
+                        break;
+                    }
+                    pos += 8 + 1 + 2 + hex.length();
+                    if (time >= start) {
+                        oids.add(hex);
+                        times.add(new Long(time));
+                    }
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "failed to read " + segs[index], e);
+                batch.covered = false;
+                done = true;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            offset = pos;
+            if (eof) {
+                if (index + 1 < segs.length) {
+                    index++;
+                    offset = 0;
+                } else {
+                    done = true;
+                }
+            }
+        }
+
+        batch.oids = (String[]) oids.toArray(new String[oids.size()]);
+        batch.times = new long[times.size()];
+        for (int i = 0; i < batch.times.length; i++) {
+            batch.times[i] = ((Long) times.get(i)).longValue();
+        }
+        batch.segment = (index < segs.length) ? segmentTime(segs[index]) : -1;
+        batch.offset = offset;
+        batch.done = done;
+        return batch;
+    }
+
+    private String[] listSegments() {
+        String[] names = dir.list();
+        ArrayList segs = new ArrayList();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].startsWith(SEGMENT_PREFIX)) {
+                segs.add(names[i]);
+            }
+        }
+        Long[] times = new Long[segs.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = new Long(segmentTime((String) segs.get(i)));
+        }
+        Arrays.sort(times);
+        String[] sorted = new String[times.length];
+        for (int i = 0; i < times.length; i++) {
+            sorted[i] = SEGMENT_PREFIX + times[i];
+        }
+        return sorted;
+    }
+
+    private static long segmentTime(String name) {
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+    }
+
+    private void setSince(long time) throws IOException {
+        writeString(new File(dir, SINCE_FILE), Long.toString(time));
+        since = time;
+    }
+
+    private static String readString(File f) {
+        if (!f.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(f));
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void writeString(File f, String value) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeUTF(value);
+            dos.flush();
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(f)) {
+            throw new IOException("cannot rename " + tmp + " to " + f);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.coordinator;
+
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.ObjectCorruptedException;
+import com.sun.honeycomb.common.SystemMetadata;
+import com.sun.honeycomb.config.ClusterProperties;
+import com.sun.honeycomb.oa.FragmentFooter;
+import com.sun.honeycomb.resources.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the data stream of an object, done by the coordinator
+ * before the data reaches OA. Fragments, parity and the disks only ever
+ * see the compressed bytes.
+ *
+ * The logical data is cut in blocks of one read buffer that are
+ * compressed independently and stored back to back. A block that does
+ * not shrink is stored raw. The stored length of each block follows
+ * the last one, and the codec, block size, logical size and where
+ * that index starts are kept in the footer metadata field of the data
+ * object, which is not used otherwise. A ranged read only inflates the
+ * blocks it covers.
+ *
+ * OA, the system cache and backup deal with the stored size; the
+ * coordinator hands out the logical one.
+ */
+public class Compression {
+
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    // Deflate at its fastest level. Stands for a real fast codec.
+    public static final byte FAST = 2;
+
+    private static final String[] CODEC_NAMES = {"none", "deflate", "fast"};
+
+    /** Key of the Writer or Reader in the context of the data stream */
+    public static final String CONTEXT_KEY = Compression.class.getName();
+
+    private static final int MAGIC = 0x48435a31; // HCZ1
+    private static final int FIELD_LENGTH = 29;
+    private static final int RAW_BLOCK = 0x80000000;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(Compression.class.getName());
+
+    public static byte getCodec(String name) {
+        for (int i = 0; i < CODEC_NAMES.length; i++) {
+            if (CODEC_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return (byte)i;
+            }
+        }
+        throw new IllegalArgumentException("unknown compression codec [" +
+                                           name + "]");
+    }
+
+    public static String getCodecName(byte codec) {
+        if (codec < 0 || codec >= CODEC_NAMES.length) {
+            return "unknown(" + codec + ")";
+        }
+        return CODEC_NAMES[codec];
+    }
+
+    /** The codec of new data objects, from the cluster config */
+    public static byte getDefaultCodec() {
+        String name = ClusterProperties.getInstance().getProperty
+            (ConfigPropertyNames.PROP_COORD_COMPRESSION, "none");
+        try {
+            return getCodec(name);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning(e.getMessage() + " - storing uncompressed");
+            return NONE;
+        }
+    }
+
+    /**
+     * Replaces the stored size of a compressed data object by its
+     * logical size. Does nothing if the object is not compressed.
+     */
+    public static void setLogicalSize(SystemMetadata sm) {
+        Reader reader = Reader.create(sm.getMetadataField());
+        if (reader != null) {
+            sm.setSize(reader.getLogicalSize());
+        }
+    }
+
+    /**
+     * Compresses the data stream of one object. write() and finish()
+     * hand back pool buffers holding the bytes to store; the caller
+     * checks them in.
+     */
+    public static class Writer implements Disposable {
+
+        private final byte codec;
+        private final int blockSize;
+        private final Deflater deflater;
+        private final MessageDigest digest;
+
+        private final byte[] block;
+        private final byte[] output;
+        private int blockLength;
+
+        private int[] lengths;
+        private int blockCount;
+        private long logicalSize;
+        private long storedSize;
+        private byte[] contentHash;
+
+        public Writer(byte codec, int blockSize) {
+            if (codec != DEFLATE && codec != FAST) {
+                throw new IllegalArgumentException("cannot compress with " +
+                                                   getCodecName(codec));
+            }
+            this.codec = codec;
+            this.blockSize = blockSize;
+            deflater = new Deflater((codec == FAST)
+                                    ? Deflater.BEST_SPEED
+                                    : Deflater.DEFAULT_COMPRESSION);
+            try {
+                digest = MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+
+            block = new byte[blockSize];
+            output = new byte[blockSize];
+            lengths = new int[16];
+        }
+
+        public byte getCodec() {
+            return codec;
+        }
+
+        public long getLogicalSize() {
+            return logicalSize;
+        }
+
+        public ByteBuffer[] write(ByteBuffer buffer) {
+            ArrayList result = new ArrayList();
+
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(),
+                                      blockSize - blockLength);
+                buffer.get(block, blockLength, length);
+                blockLength += length;
+                logicalSize += length;
+
+                if (blockLength == blockSize) {
+                    result.add(compressBlock());
+                }
+            }
+
+            return (ByteBuffer[])result.toArray(new ByteBuffer[result.size()]);
+        }
+
+        /** Compresses the last block and appends the block index */
+        public ByteBuffer[] finish() {
+            if (contentHash != null) {
+                throw new IllegalStateException("already finished");
+            }
+            ArrayList result = new ArrayList();
+
+            if (blockLength > 0) {
+                result.add(compressBlock());
+            }
+            contentHash = digest.digest();
+
+            if (blockCount > 0) {
+                ByteBuffer index =
+                    ByteBufferPool.getInstance().checkOutBuffer(blockCount * 4);
+                for (int i = 0; i < blockCount; i++) {
+                    index.putInt(lengths[i]);
+                }
+                index.flip();
+                result.add(index);
+            }
+
+            return (ByteBuffer[])result.toArray(new ByteBuffer[result.size()]);
+        }
+
+        /** SHA1 of the logical data, so clients see the hash they computed */
+        public byte[] getContentHash() {
+            if (contentHash == null) {
+                throw new IllegalStateException("not finished");
+            }
+            return contentHash;
+        }
+
+        public byte[] getMetadataField() {
+            ByteBuffer field =
+                ByteBuffer.wrap(new byte[FragmentFooter.METADATA_FIELD_LENGTH]);
+            field.putInt(MAGIC);
+            field.put(codec);
+            field.putInt(blockSize);
+            field.putLong(logicalSize);
+            field.putLong(storedSize);
+            field.putInt(blockCount);
+            return field.array();
+        }
+
+        private ByteBuffer compressBlock() {
+            digest.update(block, 0, blockLength);
+
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+
+            // Give up as soon as the output is as big as the input
+            int length = 0;
+            while (!deflater.finished() && length < blockLength) {
+                length += deflater.deflate(output, length, blockLength - length);
+            }
+
+            boolean raw = !deflater.finished() || length >= blockLength;
+            if (raw) {
+                length = blockLength;
+            }
+
+            ByteBuffer result = ByteBufferPool.getInstance().checkOutBuffer(length);
+            result.put((raw) ? block : output, 0, length);
+            result.flip();
+
+            if (blockCount == lengths.length) {
+                int[] newLengths = new int[lengths.length * 2];
+                System.arraycopy(lengths, 0, newLengths, 0, blockCount);
+                lengths = newLengths;
+            }
+            lengths[blockCount++] = (raw) ? (length | RAW_BLOCK) : length;
+            storedSize += length;
+            blockLength = 0;
+
+            return result;
+        }
+
+        public void dispose() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Locates and inflates the blocks of a compressed data object. The
+     * block index has to be read from the object and given to
+     * setIndex() before any block is read.
+     */
+    public static class Reader implements Disposable {
+
+        private final byte codec;
+        private final int blockSize;
+        private final long logicalSize;
+        private final long indexOffset;
+        private final int blockCount;
+
+        private long[] offsets;
+        private int[] lengths;
+        private Inflater inflater;
+        private byte[] input;
+        private byte[] output;
+
+        // The last stripe read from the backing store, as blocks are
+        // usually smaller than a stripe
+        private long stripeID;
+        private ByteBuffer stripe;
+
+        /** Returns null if the field is not one of a compressed object */
+        public static Reader create(byte[] metadataField) {
+            if (metadataField == null || metadataField.length < FIELD_LENGTH) {
+                return null;
+            }
+            ByteBuffer field = ByteBuffer.wrap(metadataField);
+            if (field.getInt() != MAGIC) {
+                return null;
+            }
+            return new Reader(field.get(), field.getInt(), field.getLong(),
+                              field.getLong(), field.getInt());
+        }
+
+        private Reader(byte codec,
+                       int blockSize,
+                       long logicalSize,
+                       long indexOffset,
+                       int blockCount) {
+            this.codec = codec;
+            this.blockSize = blockSize;
+            this.logicalSize = logicalSize;
+            this.indexOffset = indexOffset;
+            this.blockCount = blockCount;
+            stripeID = -1;
+        }
+
+        public byte getCodec() {
+            return codec;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public long getLogicalSize() {
+            return logicalSize;
+        }
+
+        public long getIndexOffset() {
+            return indexOffset;
+        }
+
+        public int getIndexLength() {
+            return blockCount * 4;
+        }
+
+        /** Size of the object as stored, index included */
+        public long getStoredSize() {
+            return indexOffset + getIndexLength();
+        }
+
+        public boolean hasIndex() {
+            return offsets != null;
+        }
+
+        public void setIndex(byte[] index)
+            throws ObjectCorruptedException {
+
+            if (index.length != getIndexLength()) {
+                throw new ObjectCorruptedException("compression index has " +
+                                                   index.length +
+                                                   " bytes instead of " +
+                                                   getIndexLength());
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(index);
+            long[] newOffsets = new long[blockCount];
+            int[] newLengths = new int[blockCount];
+            long offset = 0;
+
+            for (int i = 0; i < blockCount; i++) {
+                newLengths[i] = buffer.getInt();
+                newOffsets[i] = offset;
+                if ((newLengths[i] & ~RAW_BLOCK) > blockSize) {
+                    throw new ObjectCorruptedException("compressed block " + i +
+                                                       " is bigger than " +
+                                                       blockSize);
+                }
+                offset += newLengths[i] & ~RAW_BLOCK;
+            }
+
+            if (offset != indexOffset) {
+                throw new ObjectCorruptedException("compressed blocks end at " +
+                                                   offset +
+                                                   " but the index is at " +
+                                                   indexOffset);
+            }
+            offsets = newOffsets;
+            lengths = newLengths;
+        }
+
+        public long getStoredOffset(int blockID) {
+            return offsets[blockID];
+        }
+
+        public int getStoredLength(int blockID) {
+            return lengths[blockID] & ~RAW_BLOCK;
+        }
+
+        public int getLogicalLength(int blockID) {
+            return (int)Math.min(blockSize,
+                                 logicalSize - (long)blockID * blockSize);
+        }
+
+        /** A buffer big enough for any stored block */
+        public byte[] getInputBuffer() {
+            if (input == null) {
+                input = new byte[blockSize];
+            }
+            return input;
+        }
+
+        /** A buffer big enough for any inflated block */
+        public byte[] getOutputBuffer() {
+            if (output == null) {
+                output = new byte[blockSize];
+            }
+            return output;
+        }
+
+        /**
+         * Inflates block blockID, whose stored bytes are at the start of
+         * stored, into dest at destOffset.
+         */
+        public void decompress(int blockID,
+                               byte[] stored,
+                               byte[] dest,
+                               int destOffset)
+            throws ObjectCorruptedException {
+
+            int length = getLogicalLength(blockID);
+            if ((lengths[blockID] & RAW_BLOCK) != 0) {
+                System.arraycopy(stored, 0, dest, destOffset, length);
+                return;
+            }
+
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(stored, 0, getStoredLength(blockID));
+
+            int done = 0;
+            try {
+                while (done < length && !inflater.finished()) {
+                    int n = inflater.inflate(dest, destOffset + done,
+                                             length - done);
+                    if (n == 0 && (inflater.needsInput() ||
+                                   inflater.needsDictionary())) {
+                        break;
+                    }
+                    done += n;
+                }
+            } catch (DataFormatException e) {
+                throw new ObjectCorruptedException("block " + blockID +
+                                                   " does not inflate", e);
+            }
+
+            if (done != length) {
+                throw new ObjectCorruptedException("block " + blockID +
+                                                   " inflated to " + done +
+                                                   " bytes instead of " +
+                                                   length);
+            }
+        }
+
+        /** The cached stripe, or null if it is not stripeID */
+        public ByteBuffer getStripe(long stripeID) {
+            return (stripeID == this.stripeID) ? stripe : null;
+        }
+
+        /** Caches a stripe; the reader now owns the buffer */
+        public void setStripe(long stripeID, ByteBuffer stripe) {
+            if (this.stripe != null) {
+                ByteBufferPool.getInstance().checkInBuffer(this.stripe);
+            }
+            this.stripeID = stripeID;
+            this.stripe = stripe;
+        }
+
+        public void dispose() {
+            setStripe(-1, null);
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ import com.sun.honeycomb.coding.Encoder;
 import com.sun.honeycomb.common.ArchiveException;
 import com.sun.honeycomb.common.CacheRecord;
 import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.common.ObjectCorruptedException;
 import com.sun.honeycomb.common.SystemMetadata;
 import com.sun.honeycomb.common.Encoding;
 import com.sun.honeycomb.resources.ByteBufferList;
@@ -176,8 +177,8 @@ public class Coordinator
         }
 
         if (cachingEnabled) {
-            dataCache = new BlockCache(MAX_DATA_MEMORY / readBufferSize);
-            metadataCache = new BlockCache(MAX_METADATA_MEMORY / readBufferSize);
+            dataCache = new BlockCache(MAX_DATA_MEMORY, readBufferSize);
+            metadataCache = new BlockCache(MAX_METADATA_MEMORY, readBufferSize);
         }
     }
 
@@ -496,6 +497,18 @@ public class Coordinator
         throws ArchiveException {
 
         backingStore.restoreContextForStore(oid, explicitClose, ctx);
+
+        // The compressor is not persistent, the data written so far
+        // cannot be completed once it is lost
+        CoordinatorContext coctx =
+            (CoordinatorContext)ctx.getPersistentObject(COORDINATOR_KEY);
+        if (coctx != null && coctx.compression != Compression.NONE) {
+            ctx.dispose();
+            throw new ArchiveException("cannot resume the " +
+                                       Compression.getCodecName(coctx.compression) +
+                                       " compressed store of oid " + oid +
+                                       ": its write context was ejected");
+        }
     }
 
     private void restoreContextForRetrieve(NewObjectIdentifier oid, Context ctx)
@@ -667,11 +680,61 @@ public class Coordinator
         }
 
         ctx.registerPersistentObject(COORDINATOR_KEY, coctx);
+
+        if (dataSize != NO_CONTENT) {
+            byte codec = Compression.getDefaultCodec();
+            if (codec != Compression.NONE) {
+                coctx.compression = codec;
+                ctx.registerTransientObject(Compression.CONTEXT_KEY,
+                                            new Compression.Writer(codec,
+                                                                   readBufferSize));
+            }
+        }
         checkInWriteContext(result, ctx);
 
         return result;
     }
 
+    /**
+     * Overrides the compression policy for the data of an object. Must
+     * be called before any data is written.
+     */
+    public void setCompression(NewObjectIdentifier oid, byte codec)
+        throws ArchiveException {
+
+        Context ctx = checkOutWriteContext(oid, true);
+        try {
+            CoordinatorContext coctx =
+                (CoordinatorContext)ctx.getPersistentObject(COORDINATOR_KEY);
+            BufferState state = coctx.dataState;
+            if (!state.enabled) {
+                return;
+            }
+
+            Compression.Writer compressor = (Compression.Writer)
+                ctx.getTransientObject(Compression.CONTEXT_KEY);
+            if ((compressor != null && compressor.getLogicalSize() > 0) ||
+                state.offset > 0 ||
+                (state.bufferList != null && state.bufferList.hasRemaining())) {
+                throw new IllegalStateException("compression cannot change" +
+                                                " once data is written");
+            }
+
+            if (compressor != null) {
+                compressor.dispose();
+                ctx.removeTransientObject(Compression.CONTEXT_KEY);
+            }
+            coctx.compression = codec;
+            if (codec != Compression.NONE) {
+                ctx.registerTransientObject(Compression.CONTEXT_KEY,
+                                            new Compression.Writer(codec,
+                                                                   readBufferSize));
+            }
+        } finally {
+            checkInWriteContext(oid, ctx);
+        }
+    }
+
     public void writeData(NewObjectIdentifier oid,
                           ByteBuffer buffer,
                           long offset,
@@ -748,6 +811,22 @@ public class Coordinator
             return;
         }
 
+        Compression.Writer compressor = (isData)
+            ? (Compression.Writer)ctx.getTransientObject(Compression.CONTEXT_KEY)
+            : null;
+        if (compressor != null) {
+            // Offsets are in the logical data, before compression
+            if (validateOffset && offset != compressor.getLogicalSize()) {
+                throw new IllegalArgumentException("mismatched write at last " +
+                                                   " offset: actual = " +
+                                                   offset +
+                                                   " expected = " +
+                                                   compressor.getLogicalSize());
+            }
+            appendCompressed(ctx, state, compressor.write(buffer));
+            return;
+        }
+
         ByteBufferList bufferList = state.bufferList;
         if (bufferList == null) {
             bufferList = new ByteBufferList();
@@ -756,16 +835,50 @@ public class Coordinator
 
         // pgates: Later this will reorder buffers. For now just make sure
         // they're in order.
-        long stateOffset = state.offset;
-        if (validateOffset && offset != stateOffset + bufferList.remaining()) {
+        if (validateOffset && offset != state.offset + bufferList.remaining()) {
             // pgates: update this exception
             throw new IllegalArgumentException("mismatched write at last " +
                                                " offset: actual = " +
                                                offset +
                                                " expected = " +
-                                               stateOffset + bufferList.remaining());
+                                               state.offset + bufferList.remaining());
         }
 
+        append(ctx, state, buffer, isData);
+    }
+
+    private void appendCompressed(Context ctx,
+                                  BufferState state,
+                                  ByteBuffer[] buffers)
+        throws ArchiveException {
+
+        ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+        int i = 0;
+
+        try {
+            for (; i < buffers.length; i++) {
+                append(ctx, state, buffers[i], true);
+                bufferPool.checkInBuffer(buffers[i]);
+            }
+        } finally {
+            for (; i < buffers.length; i++) {
+                bufferPool.checkInBuffer(buffers[i]);
+            }
+        }
+    }
+
+    private void append(Context ctx,
+                        BufferState state,
+                        ByteBuffer buffer,
+                        boolean isData)
+        throws ArchiveException {
+
+        ByteBufferList bufferList = state.bufferList;
+        if (bufferList == null) {
+            bufferList = new ByteBufferList();
+        }
+        long stateOffset = state.offset;
+
         bufferList.appendBuffer(buffer);
         int remaining = bufferList.remaining();
         int bufferSize = backingStore.getWriteBufferSize();
@@ -845,9 +958,16 @@ public class Coordinator
                                                 " writes");
             }
 
-            result = state.offset;
-            if (state.bufferList != null) {
-                result += state.bufferList.remaining();
+            Compression.Writer compressor = (isData)
+                ? (Compression.Writer)ctx.getTransientObject(Compression.CONTEXT_KEY)
+                : null;
+            if (compressor != null) {
+                result = compressor.getLogicalSize();
+            } else {
+                result = state.offset;
+                if (state.bufferList != null) {
+                    result += state.bufferList.remaining();
+                }
             }
         } finally {
             checkInWriteContext(oid, ctx);
@@ -869,6 +989,12 @@ public class Coordinator
 
             BufferState state = coctx.dataState;
             if (state.enabled) {
+                Compression.Writer compressor = (Compression.Writer)
+                    ctx.getTransientObject(Compression.CONTEXT_KEY);
+                if (compressor != null) {
+                    appendCompressed(ctx, state, compressor.finish());
+                }
+
                 if (state.bufferList != null && state.bufferList.remaining() > 0) {
                     backingStore.writeData(state.bufferList, state.offset, ctx);
                 }
@@ -887,6 +1013,7 @@ public class Coordinator
             // must be given a chance to append extra metadata to the metadata object
             extraMetadata = new ByteBufferList();
             smd = backingStore.closeData(extraMetadata, hasMetadata, ctx);
+            NewObjectIdentifier dataOid = (smd != null) ? smd.getOID() : null;
 
             if (extraMetadata.remaining() > 0) {
                 appendMetadata(ctx, extraMetadata, true);
@@ -911,6 +1038,11 @@ public class Coordinator
             }
 
             ctx.dispose();
+
+            if (dataOid != null && !dataOid.equals(oid)) {
+                ChangeJournal.record(ChangeJournal.OP_CREATE, dataOid);
+            }
+            ChangeJournal.record(ChangeJournal.OP_CREATE, oid);
         } catch (ArchiveException e) {
             checkInWriteContext(oid, ctx);
             throw e;
@@ -959,6 +1091,10 @@ public class Coordinator
 
         // First delete it from the backing store
         backingStore.delete(oid, immediate, shred);
+        ChangeJournal.record(ChangeJournal.OP_DELETE, oid);
+        if (dataOid != null && !dataOid.equals(oid)) {
+            ChangeJournal.record(ChangeJournal.OP_DELETE, dataOid);
+        }
 	    
         // Now clear from all caches we can
         ProtocolProxy[] proxies = ProtocolProxy.getProxies();
@@ -987,17 +1123,13 @@ public class Coordinator
             }
         }
 
-	synchronized (dataCache) {
-	    dataCache.delete(oid);
-            if (dataOid != null && !dataOid.equals(oid)) {
-                dataCache.delete(dataOid);
-            }
-	}
-	
-	synchronized (metadataCache) {
-	    metadataCache.delete(oid);
-            // dataOid is never in MD cache
+        dataCache.delete(oid);
+        if (dataOid != null && !dataOid.equals(oid)) {
+            dataCache.delete(dataOid);
         }
+	
+        metadataCache.delete(oid);
+        // dataOid is never in MD cache
 
 	// Remove any read data or metadata or write contexts
 	// Otherwise a quick read, delete, read sequence will return a
@@ -1166,13 +1298,7 @@ public class Coordinator
             }
         } else {
             BlockCache cache = (isData) ? dataCache : metadataCache;
-	  
-            synchronized (cache) {
-                result = cache.get(oid, blockID);
-                if (result != null) {
-                    result = bufferPool.checkOutReadOnlyBuffer(result);
-                }
-            }
+            result = cache.checkOut(oid, blockID);
 
             if (result != null) {
                 if (LOGGER.isLoggable(Level.FINEST)) {
@@ -1221,6 +1347,15 @@ public class Coordinator
 
             objectSize = smd.getSize();
             CoordinatorContext coctx = new CoordinatorContext(isData, !isData);
+
+            Compression.Reader decompressor = (isData)
+                ? Compression.Reader.create(smd.getMetadataField())
+                : null;
+            if (decompressor != null) {
+                objectSize = decompressor.getLogicalSize();
+                ctx.registerTransientObject(Compression.CONTEXT_KEY,
+                                            decompressor);
+            }
             coctx.objectSize = objectSize;
 
             ctx.registerTransientObject(COORDINATOR_KEY, coctx);
@@ -1242,10 +1377,17 @@ public class Coordinator
                           " read offset = " + readOffset);
         }
 
+        Compression.Reader decompressor = (Compression.Reader)
+            ctx.getTransientObject(Compression.CONTEXT_KEY);
         ByteBuffer buffer = bufferPool.checkOutBuffer(bufferSize);
 
         try {
-            backingStore.read(buffer, readOffset, bufferSize, ctx);
+            if (decompressor != null) {
+                readCompressed(buffer, readOffset, bufferSize, objectSize,
+                               decompressor, ctx);
+            } else {
+                backingStore.read(buffer, readOffset, bufferSize, ctx);
+            }
         } catch (ArchiveException e) {
             bufferPool.checkInBuffer(buffer);
             ctx.dispose();
@@ -1259,10 +1401,8 @@ public class Coordinator
             result = buffer;
         } else {
             BlockCache cache = (isData) ? dataCache : metadataCache;
-            synchronized (cache) {
-                result = bufferPool.checkOutReadOnlyBuffer(buffer);
-                cache.put(oid, blockID, buffer);
-            }
+            result = bufferPool.checkOutReadOnlyBuffer(buffer);
+            cache.put(oid, blockID, buffer);
         }
 
         if (LOGGER.isLoggable(Level.FINEST)) {
@@ -1274,6 +1414,99 @@ public class Coordinator
         return result;
     }
 
+    /**
+     * Fills buffer with length bytes of the logical data of a
+     * compressed object from offset on, inflating the compressed blocks that overlap it.
+     */
+    private void readCompressed(ByteBuffer buffer,
+                                long offset,
+                                int length,
+                                long objectSize,
+                                Compression.Reader decompressor,
+                                Context ctx)
+        throws ArchiveException {
+
+        if (!decompressor.hasIndex()) {
+            byte[] index = new byte[decompressor.getIndexLength()];
+            readStored(index, decompressor.getIndexOffset(), index.length,
+                       decompressor, ctx);
+            decompressor.setIndex(index);
+        }
+
+        int blockSize = decompressor.getBlockSize();
+        long end = Math.min(offset + length, objectSize);
+        byte[] stored = decompressor.getInputBuffer();
+        byte[] block = decompressor.getOutputBuffer();
+
+        for (long position = offset; position < end; ) {
+            int blockID = (int)(position / blockSize);
+
+            readStored(stored,
+                       decompressor.getStoredOffset(blockID),
+                       decompressor.getStoredLength(blockID),
+                       decompressor,
+                       ctx);
+            decompressor.decompress(blockID, stored, block, 0);
+
+            int from = (int)(position - (long)blockID * blockSize);
+            int count = (int)Math.min(decompressor.getLogicalLength(blockID) - from,
+                                      end - position);
+            buffer.put(block, from, count);
+            position += count;
+        }
+    }
+
+    /**
+     * Reads length stored bytes of a compressed object at offset. The
+     * backing store is read a whole stripe at a time and the last stripe
+     * is kept, since compressed blocks are smaller than a stripe.
+     */
+    private void readStored(byte[] dest,
+                            long offset,
+                            int length,
+                            Compression.Reader decompressor,
+                            Context ctx)
+        throws ArchiveException {
+
+        ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+        int done = 0;
+
+        while (done < length) {
+            long position = offset + done;
+            long stripeID = position / readBufferSize;
+            ByteBuffer stripe = decompressor.getStripe(stripeID);
+
+            if (stripe == null) {
+                int size = getReadBufferSize(stripeID,
+                                             decompressor.getStoredSize());
+                stripe = bufferPool.checkOutBuffer(size);
+                try {
+                    backingStore.read(stripe, stripeID * readBufferSize,
+                                      size, ctx);
+                } catch (ArchiveException e) {
+                    bufferPool.checkInBuffer(stripe);
+                    throw e;
+                }
+                stripe.flip();
+                decompressor.setStripe(stripeID, stripe);
+            }
+
+            int from = (int)(position - stripeID * readBufferSize);
+            int count = Math.min(length - done, stripe.limit() - from);
+            if (count <= 0) {
+                throw new ObjectCorruptedException("compressed object ends" +
+                                                   " at " + position +
+                                                   " instead of " +
+                                                   decompressor.getStoredSize());
+            }
+
+            ByteBuffer view = stripe.duplicate();
+            view.position(from);
+            view.get(dest, done, count);
+            done += count;
+        }
+    }
+
     private int getReadBufferSize(long blockID, long objectSize) {
         long bytesRemaining = objectSize - (blockID * readBufferSize);
 
@@ -1292,6 +1525,8 @@ public class Coordinator
         BufferState metadataState;
         CacheRecord metadataRecord;
         long objectSize;
+        // Codec of the data, its Compression.Writer is transient
+        byte compression = Compression.NONE;
 
         CoordinatorContext(boolean dataEnabled, boolean metadataEnabled) {
             dataState = new BufferState(dataEnabled);
@@ -1301,6 +1536,7 @@ public class Coordinator
         public void encode(Encoder encoder) {
             encoder.encodeKnownClassCodable(dataState);
             encoder.encodeKnownClassCodable(metadataState);
+            encoder.encodeByte(compression);
         }
 
         public void decode(Decoder decoder) {
@@ -1309,6 +1545,7 @@ public class Coordinator
 
             metadataState = new BufferState(false);
             decoder.decodeKnownClassCodable(metadataState);
+            compression = decoder.decodeByte();
         }
 
         public void dispose() {
@@ -1370,22 +1607,22 @@ public class Coordinator
     /* Access to block cache statistics
      */
     public int getCacheHits(boolean data) {
-        return (data ? dataCache.hits : metadataCache.hits);
+        return (data ? dataCache.getHits() : metadataCache.getHits());
     }
     public int getCacheMisses(boolean data) {
-        return (data ? dataCache.misses : metadataCache.misses);
+        return (data ? dataCache.getMisses() : metadataCache.getMisses());
     }
     public int getCachePuts(boolean data) {
-        return (data ? dataCache.puts : metadataCache.puts);
+        return (data ? dataCache.getPuts() : metadataCache.getPuts());
     }
     public int getCachePuthits(boolean data) {
-        return (data ? dataCache.puthits : metadataCache.puthits);
+        return (data ? dataCache.getPuthits() : metadataCache.getPuthits());
     }
     public int getCacheDeletes(boolean data) {
-        return (data ? dataCache.deletes : metadataCache.deletes);
+        return (data ? dataCache.getDeletes() : metadataCache.getDeletes());
     }
     public int getCacheEjects(boolean data) {
-        return (data ? dataCache.ejects : metadataCache.ejects);
+        return (data ? dataCache.getEjects() : metadataCache.getEjects());
     }
     public int getCacheSize(boolean data) {
         return (data ? dataCache.getCacheSize() : metadataCache.getCacheSize());
@@ -1413,6 +1650,7 @@ public class Coordinator
     public void setRetentionTime(NewObjectIdentifier oid, long retentionTime)
 	throws ArchiveException {
         backingStore.setRetentionTime(oid, retentionTime);
+        ChangeJournal.record(ChangeJournal.OP_RETENTION, oid);
     }
 
     // Get the retention time
@@ -1425,12 +1663,14 @@ public class Coordinator
     public void addLegalHold(NewObjectIdentifier oid, String legalHold)
 	throws ArchiveException {
         backingStore.addLegalHold(oid, legalHold);
+        ChangeJournal.record(ChangeJournal.OP_LEGAL_HOLD, oid);
     }
 
     // Remove a legal hold tag
     public void removeLegalHold(NewObjectIdentifier oid, String legalHold)
 	throws ArchiveException {
         backingStore.removeLegalHold(oid, legalHold);
+        ChangeJournal.record(ChangeJournal.OP_LEGAL_HOLD, oid);
     }
 
     public String[] getLegalHolds(NewObjectIdentifier oid)
@@ -1447,6 +1687,7 @@ public class Coordinator
     public void setLegalHolds(NewObjectIdentifier oid, String[] newHolds)
         throws ArchiveException {
         backingStore.setLegalHolds(oid, newHolds);
+        ChangeJournal.record(ChangeJournal.OP_LEGAL_HOLD, oid);
     }
 
     public boolean isComplianceDeletable(NewObjectIdentifier oid)
@@ -1454,6 +1695,18 @@ public class Coordinator
         return backingStore.isComplianceDeletable(oid);
     }
 
+    // Get the member index of an archive object, null if none
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+        throws ArchiveException {
+        return backingStore.getArchiveIndex(oid);
+    }
+
+    // Store the member index of an archive object
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+        throws ArchiveException {
+        backingStore.putArchiveIndex(oid, index);
+    }
+
     public CacheRecord parseMetadata(String cacheId,
                                      InputStream in, 
                                      long mdLength,
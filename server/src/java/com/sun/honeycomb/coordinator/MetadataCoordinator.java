@@ -35,6 +35,7 @@ package com.sun.honeycomb.coordinator;
 
 import java.util.logging.Logger;
 import java.util.Arrays;
+import java.util.ArrayList;
 
 import com.sun.honeycomb.oa.OAClient;
 import com.sun.honeycomb.oa.OAException;
@@ -68,6 +69,10 @@ import java.io.IOException;
 import com.sun.honeycomb.emd.cache.MDHeader;
 import com.sun.honeycomb.emd.MetadataClient;
 import com.sun.honeycomb.emd.SysCacheUtils;
+import com.sun.honeycomb.emd.cache.SystemCacheConstants;
+import com.sun.honeycomb.emd.common.MDHit;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 
 
 public class MetadataCoordinator
@@ -96,6 +101,11 @@ public class MetadataCoordinator
 
     private static Logger LOG = Logger.getLogger(MetadataCoordinator.class.getName());
 
+    // Smallest object worth a system cache lookup when dedup is on
+    private static final long DEFAULT_DEDUP_MIN_SIZE = 65536;
+    // Candidates checked against the fragments before giving up
+    private static final int DEDUP_MAX_CANDIDATES = 4;
+
     /**********************************************************************
      *
      * MetadataCoordinator methods
@@ -649,16 +659,34 @@ public class MetadataCoordinator
                 LOG.fine("Closing the data context");
             }
 
-            SystemMetadata[] dataSystemMetadatas = 
-                oaClient.close(dataContext,
-                               new byte[FragmentFooter.METADATA_FIELD_LENGTH]);
+            // A compressed object records how in the footer metadata
+            // field, and keeps the hash of the data the client sent
+            Compression.Writer compressor = (Compression.Writer)
+                ctx.getTransientObject(Compression.CONTEXT_KEY);
+            SystemMetadata[] dataSystemMetadatas = (compressor != null)
+                ? oaClient.close(dataContext,
+                                 compressor.getMetadataField(),
+                                 compressor.getContentHash())
+                : oaClient.close(dataContext,
+                                 new byte[FragmentFooter.METADATA_FIELD_LENGTH]);
 
-            // Insert MD into system cache(s)
-            SysCacheUtils.insertRecord(dataSystemMetadatas);
-            
             // got to return 1
             dataSystemMetadata = 
                 oaClient.compressChunkSM(dataSystemMetadatas);
+
+            SystemMetadata existing = null;
+            if (persistentContext.storingMetadata()) {
+                existing = dedupData(dataSystemMetadata, metadataContext);
+            }
+
+            if (existing != null) {
+                dataSystemMetadata = existing;
+            } else {
+                // Insert MD into system cache(s)
+                SysCacheUtils.insertRecord(dataSystemMetadatas);
+            }
+            // The system cache has the stored size, the client the real one
+            Compression.setLogicalSize(dataSystemMetadata);
             if (LOG.isLoggable(Level.FINER)) {
                 LOG.finer("dataSystemMetadata (case A)="+dataSystemMetadata);
             }
@@ -673,6 +701,7 @@ public class MetadataCoordinator
                 Context tmpctx = new Context();
                 try {
                     dataSystemMetadata = oaClient.open(dataOID, tmpctx);
+                    Compression.setLogicalSize(dataSystemMetadata);
                     if (LOG.isLoggable(Level.FINER)) {
                         LOG.finer("dataSystemMetadata (case B)="+dataSystemMetadata);
                     }
@@ -781,6 +810,134 @@ public class MetadataCoordinator
         return(dataSystemMetadata);
     }
     
+    /*
+     * When dedup is enabled, look in the system cache for a live data
+     * object with the same content hash and size as the one just closed.
+     * If one is found, take a reference on it, point the metadata object
+     * being stored at it instead and delete the new copy. Returns the
+     * system metadata of the object now referenced, or null if the new
+     * data object is kept.
+     */
+    private SystemMetadata dedupData(SystemMetadata dataSystemMetadata,
+                                     Context metadataContext) {
+        ClusterProperties props = ClusterProperties.getInstance();
+        if (!props.getPropertyAsBoolean(ConfigPropertyNames.PROP_COORD_DEDUP,
+                                        false)) {
+            return(null);
+        }
+        long minSize = props.getPropertyAsLong
+            (ConfigPropertyNames.PROP_COORD_DEDUP_MIN_SIZE,
+             DEFAULT_DEDUP_MIN_SIZE);
+        if (dataSystemMetadata.getSize() < minSize
+            || dataSystemMetadata.getContentHash() == null) {
+            return(null);
+        }
+
+        NewObjectIdentifier newOID = dataSystemMetadata.getOID();
+        ArrayList hits;
+        try {
+            hits = mdClient.queryPlus(CacheClientInterface.SYSTEM_CACHE,
+                                      SystemCacheConstants.SYSTEM_QUERY_GETBYHASH
+                                      + " " + dataSystemMetadata.getContentHashString()
+                                      + " " + dataSystemMetadata.getSize(),
+                                      new ArrayList(), null,
+                                      DEDUP_MAX_CANDIDATES).results;
+        } catch (ArchiveException e) {
+            LOG.log(Level.WARNING, "Dedup lookup failed for "+newOID, e);
+            return(null);
+        }
+
+        for (int i = 0; hits != null && i < hits.size(); i++) {
+            NewObjectIdentifier oid = ((MDHit)hits.get(i)).constructOid();
+            if (oid.equals(newOID)) {
+                continue;
+            }
+
+            // The system cache may lag behind the fragments, so check
+            // the candidate against them before taking a reference
+            SystemMetadata sm;
+            try {
+                sm = oaClient.getSystemMetadata(oid, true, false);
+            } catch (OAException e) {
+                continue;
+            }
+            if (sm.getDTime() != OAClient.NOT_DELETED
+                || sm.getSize() != dataSystemMetadata.getSize()
+                || !Arrays.equals(sm.getContentHash(),
+                                  dataSystemMetadata.getContentHash())
+                || sm.getShred() != dataSystemMetadata.getShred()
+                || sm.getRTime() != dataSystemMetadata.getRTime()
+                || sm.getETime() != dataSystemMetadata.getETime()) {
+                continue;
+            }
+
+            // incRefCount refuses a candidate whose last reference is
+            // being dropped, under the same fragment locks the drop
+            // takes, so a candidate deleted since the check above
+            // fails here
+            try {
+                oaClient.incRefCount(oid);
+            } catch (ArchiveException e) {
+                LOG.info("Dedup of "+newOID+" on "+oid+" failed ["+
+                         e.getMessage()+"]");
+                continue;
+            }
+
+            // Belt and braces: never give up the fresh copy unless the
+            // candidate is still live with our reference on it
+            SystemMetadata current = null;
+            try {
+                current = oaClient.getSystemMetadata(oid, true, false);
+            } catch (OAException e) {
+                LOG.info("Failed to re-read "+oid+" ["+e.getMessage()+"]");
+            }
+            if (current == null || current.getDTime() != OAClient.NOT_DELETED) {
+                undoIncRefCount(oid);
+                continue;
+            }
+            sm = current;
+            try {
+                SysCacheUtils.updateRecord(oid, sm);
+            } catch (ArchiveException e) {
+                // The reference is taken; the record refresh can wait for DD
+                LOG.info("Failed to refresh the system record of "+oid+" ["+
+                         e.getMessage()+"]");
+            }
+
+            try {
+                oaClient.relink(metadataContext, oid);
+            } catch (ArchiveException e) {
+                // Keep the fresh copy and give the reference back
+                LOG.log(Level.WARNING, "Failed to relink to "+oid, e);
+                undoIncRefCount(oid);
+                return(null);
+            }
+
+            try {
+                oaClient.delete(newOID, false, dataSystemMetadata.getShred());
+                SysCacheUtils.updateRecord(newOID, getSystemMetadata(newOID));
+            } catch (ArchiveException e) {
+                LOG.warning("Failed to delete duplicate data object "+newOID+
+                            " ["+e.getMessage()+"]");
+            }
+
+            LOG.info("Stored data "+newOID+" is a duplicate of "+oid);
+            return(sm);
+        }
+
+        return(null);
+    }
+
+    private void undoIncRefCount(NewObjectIdentifier oid) {
+        try {
+            oaClient.decRefCount(oid);
+        } catch (ArchiveException e) {
+            // The extra reference on oid is leaked, not lost
+            LOG.warning("Failed to drop the dedup reference on "+oid+" ["+
+                        e.getMessage()+"]");
+        }
+    }
+
     /********** closeMetadata **********/
 
     public SystemMetadata closeMetadata(Context ctx) throws ArchiveException {
@@ -1042,6 +1199,19 @@ public class MetadataCoordinator
         updateExtensionModifiedTime(oid);
     }
 
+    // Member index of an archive object, kept in its footer
+    // extension. Not a compliance change, so the extension modified
+    // time in the system cache is left alone.
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+        throws ArchiveException {
+        return oaClient.getArchiveIndex(oid);
+    }
+
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+        throws ArchiveException {
+        oaClient.putArchiveIndex(oid, index);
+    }
+
     /**
      *  Check to see whether an object is deletable by checking for a
      *  past retention time and no legal hold tags.
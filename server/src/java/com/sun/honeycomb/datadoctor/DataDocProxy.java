@@ -172,6 +172,31 @@ public class DataDocProxy extends ManagedService.ProxyObject {
     public boolean failureTolerance() { return failureTolerance;}
     public void failureTolerance(boolean t) {failureTolerance = t;}
 
+    /** accessors for the time to get back to full redundancy */
+
+    /** time the cell lost full redundancy, 0 if it has it */
+    public long degradedSince() { return degradedSince; }
+    void degradedSince(long t) { degradedSince = t; }
+
+    /** time the cell ran with reduced redundancy, on average, or -1 */
+    public long meanTimeToRedundancy() {
+        return (redundancyRestores == 0) ? -1
+            : (degradedTime / redundancyRestores);
+    }
+    public int redundancyRestores() { return redundancyRestores; }
+    void redundancyRestored(long t) {
+        degradedTime += t - degradedSince;
+        redundancyRestores++;
+        degradedSince = 0;
+    }
+
+    /** accessors for the fragment reconstructions of this node */
+
+    public int recoverQueued() { return recoverQueued; }
+    public int recoverRunning() { return recoverRunning; }
+    public int recoverThrottle() { return recoverThrottle; }
+    public long meanRepairTime() { return meanRepairTime; }
+
     /** print the cell-wide info, not local done masks */
     public String toString() {
 
@@ -181,6 +206,10 @@ public class DataDocProxy extends ManagedService.ProxyObject {
 
         sb.append("failureTolerance="+failureTolerance()+"    ");
 
+        sb.append("meanTimeToRedundancy="+meanTimeToRedundancy()+
+                  " redundancyRestores="+redundancyRestores()+
+                  " degradedSince="+degradedSince()+"    ");
+
         sb.append("cellDoneMasks - ");
         for (int i=0; i < TaskList.numTasks(); i++) {
             String label = TaskList.taskLabel(i);
@@ -231,6 +260,13 @@ public class DataDocProxy extends ManagedService.ProxyObject {
         for (int i = 0; i < cycleStates.length; i++) {
             ((CycleStates)cycleStates[i]).refresh();
         }
+
+        ReconstructionScheduler scheduler =
+            ReconstructionScheduler.getInstance();
+        recoverQueued = scheduler.getQueued();
+        recoverRunning = scheduler.getRunning();
+        recoverThrottle = scheduler.getThrottle();
+        meanRepairTime = scheduler.getMeanRepairTime();
     }
 
     /*********************  local done masks  *************************
@@ -453,6 +489,15 @@ public class DataDocProxy extends ManagedService.ProxyObject {
 
     private boolean failureTolerance = true;  // dynamic quorum met?
 
+    private long degradedSince = 0;       // time redundancy was lost
+    private long degradedTime = 0;        // total time to restore it
+    private int redundancyRestores = 0;   // times it was restored
+
+    private int recoverQueued = 0;        // reconstructions waiting
+    private int recoverRunning = 0;       // reconstructions running
+    private int recoverThrottle = 100;    // % of concurrency allowed
+    private long meanRepairTime = -1;     // queued to recovered, ms
+
     private class CycleStates implements java.io.Serializable {
         private int _disk;
         private CycleStateInfo[] _values;
@@ -102,6 +102,7 @@ public class DataDoctor implements DataDocIntf, PropertyChangeListener {
     /** Called when stopping the service. */
     public void shutdown() {
         taskList.stopTasks();
+        ReconstructionScheduler.shutdown();
         running = false; 
         LOG.info("DataDoctor now STOPPED");
     }
@@ -365,6 +366,23 @@ public class DataDoctor implements DataDocIntf, PropertyChangeListener {
             }
             proxyChanged = true;
         }
+
+        // time how long it takes to get back to full redundancy
+        long now = System.currentTimeMillis();
+        if (totalFailures > 0) {
+            if (fullRedundancySeen && myProxy.degradedSince() == 0) {
+                myProxy.degradedSince(now);
+                proxyChanged = true;
+            }
+        } else {
+            if (myProxy.degradedSince() != 0) {
+                myProxy.redundancyRestored(now);
+                LOG.info("full redundancy restored, mean time to redundancy "+
+                         (myProxy.meanTimeToRedundancy()/1000)+" seconds");
+                proxyChanged = true;
+            }
+            fullRedundancySeen = true;
+        }
     }
 
     /** failed disks for which recover not finished */
@@ -549,6 +567,8 @@ public class DataDoctor implements DataDocIntf, PropertyChangeListener {
     boolean proxyChanged = false;               // set by task callback
 
     boolean initialTolerance = true; // have we determined current tolerance yet?
+
+    boolean fullRedundancySeen = false; // cell seen fully healed yet?
     
 
     /* PRIVATE CONSTANTS */
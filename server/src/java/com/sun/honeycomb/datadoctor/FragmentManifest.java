@@ -0,0 +1,355 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.datadoctor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
+
+/**
+ * Sorted lists of the fragment files of each map ID of the local disks,
+ * so that the data doctor tasks do not need to read and sort a
+ * directory on every step.
+ *
+ * <p>
+ *
+ * A manifest is valid as long as the modification time of its map
+ * directory has not changed: every create, rename and unlink of a
+ * fragment, whichever node does it over NFS, is applied by this node's
+ * filesystem and updates it. Manifests are kept in memory in LRU order,
+ * bounded by <CODE>honeycomb.datadoctor.manifest.cache_bytes</CODE>, and
+ * saved on the disk under <CODE>manifest/</CODE> so that they survive
+ * restarts and evictions. Names are front coded: each one is stored as
+ * the length of the prefix it shares with the previous one, followed by
+ * the rest of it.
+ *
+ * <p>
+ *
+ * A listing is only kept if the directory did not change while it was
+ * read and was last modified more than {@link #RACY_WINDOW} ms before,
+ * so that a change made within the timestamp granularity of the
+ * filesystem is never missed. A manifest that cannot be read or does
+ * not verify is simply rebuilt from the directory.
+ */
+final class FragmentManifest {
+
+    private static final Logger LOG =
+        Logger.getLogger(FragmentManifest.class.getName());
+
+    /** Directory of the manifests, at the root of each disk */
+    static final String MANIFEST_DIR = "manifest";
+
+    /** A directory modified less than this long ago is re-read */
+    static final long RACY_WINDOW = 2000;
+
+    private static final int MAGIC = 0x4d414e46; // MANF
+    private static final short VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static FragmentManifest instance = null;
+
+    private final long maxBytes;
+    private long cachedBytes = 0;
+
+    /** map directory path to Entry, in access order */
+    private final LinkedHashMap cache = new LinkedHashMap(256, 0.75f, true);
+
+    private long hits = 0;
+    private long loads = 0;
+    private long scans = 0;
+
+    static synchronized FragmentManifest getInstance() {
+        if (instance == null) {
+            long maxBytes = DEFAULT_CACHE_BYTES;
+            try {
+                maxBytes = ClusterProperties.getInstance().getPropertyAsLong
+                    (ConfigPropertyNames.PROP_DD_MANIFEST_CACHE_BYTES,
+                     DEFAULT_CACHE_BYTES);
+            } catch (NumberFormatException e) {
+                LOG.warning("Invalid value for " +
+                            ConfigPropertyNames.PROP_DD_MANIFEST_CACHE_BYTES +
+                            ", using " + DEFAULT_CACHE_BYTES);
+            }
+            instance = new FragmentManifest(maxBytes);
+        }
+        return instance;
+    }
+
+    FragmentManifest(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static final class Entry {
+        final long modified;
+        final String[] names;
+        final long size;
+
+        Entry(long modified, String[] names) {
+            this.modified = modified;
+            this.names = names;
+            long bytes = 64;
+            for (int i = 0; i < names.length; i++) {
+                bytes += 48 + 2 * names[i].length();
+            }
+            this.size = bytes;
+        }
+    }
+
+    /**
+     * Returns the sorted list of the fragment files of a map directory
+     * of a local disk.
+     *
+     * @param mapDir the path of the map directory
+     * @param filter the filter of the fragment file names
+     * @return String[] the sorted names, a copy the caller can modify,
+     *         or null if the directory cannot be read
+     */
+    String[] read(String mapDir, FilenameFilter filter) {
+        File dir = new File(mapDir);
+        long modified = dir.lastModified();
+        if (modified == 0) {
+            // Does not exist or I/O error
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = (Entry) cache.get(mapDir);
+            if (entry != null) {
+                if (entry.modified == modified) {
+                    hits++;
+                    return (String[]) entry.names.clone();
+                }
+                remove(mapDir);
+            }
+        }
+
+        File file = manifestFile(dir);
+        Entry entry = load(file, modified);
+        if (entry != null) {
+            synchronized (this) {
+                loads++;
+            }
+        } else {
+            String[] names = dir.list(filter);
+            if (names == null) {
+                return null;
+            }
+            Arrays.sort(names);
+            synchronized (this) {
+                scans++;
+            }
+
+            // Do not keep a listing that may already be out of date
+            long now = System.currentTimeMillis();
+            if ((dir.lastModified() != modified) ||
+                (now - modified < RACY_WINDOW)) {
+                return names;
+            }
+            entry = new Entry(modified, names);
+            save(file, entry);
+        }
+
+        synchronized (this) {
+            if (cache.get(mapDir) == null) {
+                cache.put(mapDir, entry);
+                cachedBytes += entry.size;
+                evict();
+            }
+        }
+        return (String[]) entry.names.clone();
+    }
+
+    synchronized String getStats() {
+        return "manifests " + cache.size() + " bytes " + cachedBytes +
+            "/" + maxBytes + " hits " + hits + " loads " + loads +
+            " scans " + scans;
+    }
+
+    /**
+     * The manifest of disk/AA/BB is disk/manifest/AA/BB
+     */
+    private static File manifestFile(File mapDir) {
+        File parent = mapDir.getParentFile();
+        File root = parent.getParentFile();
+        return new File(root, MANIFEST_DIR + File.separator +
+                        parent.getName() + File.separator + mapDir.getName());
+    }
+
+    /**
+     * Reads a saved manifest. Returns null if there is none, if it is
+     * for another version of the directory or if it is damaged.
+     */
+    private static Entry load(File file, long modified) {
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked =
+                new CheckedInputStream(new BufferedInputStream
+                                       (new FileInputStream(file)),
+                                       new CRC32());
+            in = new DataInputStream(checked);
+            if ((in.readInt() != MAGIC) || (in.readShort() != VERSION)) {
+                LOG.warning("Ignoring manifest " + file + ": bad header");
+                return null;
+            }
+            if (in.readLong() != modified) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad count " + count);
+            }
+            String[] names = new String[count];
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                int shared = in.readUnsignedShort();
+                if (shared > previous.length()) {
+                    throw new IOException("bad prefix length " + shared);
+                }
+                names[i] = previous.substring(0, shared) + in.readUTF();
+                previous = names[i];
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                throw new IOException("checksum mismatch");
+            }
+            return new Entry(modified, names);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            LOG.warning("Ignoring manifest " + file + ": truncated");
+            return null;
+        } catch (IOException e) {
+            LOG.warning("Ignoring manifest " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Saves a manifest, through a temporary file renamed in place so
+     * that a reader never sees a partial one.
+     */
+    private static void save(File file, Entry entry) {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        DataOutputStream out = null;
+        boolean done = false;
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("cannot create " + parent);
+            }
+            CheckedOutputStream checked =
+                new CheckedOutputStream(new BufferedOutputStream
+                                        (new FileOutputStream(tmp)),
+                                        new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(entry.modified);
+            out.writeInt(entry.names.length);
+            String previous = "";
+            for (int i = 0; i < entry.names.length; i++) {
+                String name = entry.names[i];
+                int shared = 0;
+                int max = Math.min(Math.min(previous.length(), name.length()),
+                                   0xffff);
+                while ((shared < max) &&
+                       (previous.charAt(shared) == name.charAt(shared))) {
+                    shared++;
+                }
+                out.writeShort(shared);
+                out.writeUTF(name.substring(shared));
+                previous = name;
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.close();
+            out = null;
+            done = tmp.renameTo(file);
+            if (!done) {
+                throw new IOException("rename of " + tmp + " failed");
+            }
+        } catch (IOException e) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Failed to save manifest " + file + ": " + e);
+            }
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) {}
+            }
+            if (!done) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void remove(String mapDir) {
+        Entry entry = (Entry) cache.remove(mapDir);
+        if (entry != null) {
+            cachedBytes -= entry.size;
+        }
+    }
+
+    private void evict() {
+        Iterator it = cache.entrySet().iterator();
+        while ((cachedBytes > maxBytes) && it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            cachedBytes -= ((Entry) e.getValue()).size;
+            it.remove();
+        }
+    }
+}
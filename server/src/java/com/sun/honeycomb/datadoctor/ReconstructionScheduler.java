@@ -0,0 +1,582 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.datadoctor;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.alert.AlertException;
+import com.sun.honeycomb.cm.ManagedService;
+import com.sun.honeycomb.cm.ServiceManager;
+import com.sun.honeycomb.common.BandwidthStatsAccumulator;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.Stats;
+import com.sun.honeycomb.common.StatsAccumulator;
+import com.sun.honeycomb.config.ClusterProperties;
+import com.sun.honeycomb.protocol.server.ProtocolProxy;
+import com.sun.honeycomb.protocol.server.ProtocolService;
+
+/**
+ * Runs the fragment reconstructions found by the RecoverLostFrags
+ * tasks of the local disks.
+ *
+ * <p>
+ *
+ * Each disk task queues the missing fragments of the maps it walks
+ * and a pool of worker threads runs them, objects with the fewest
+ * fragments left first. Every disk gets at most {@link #PER_DISK}
+ * reconstructions at a time so that the disks of the node are
+ * rebuilt in parallel rather than one after the other.
+ *
+ * <p>
+ *
+ * The bytes written are charged to a token bucket refilled at
+ * <CODE>honeycomb.datadoctor.recover.bandwidth</CODE> MB/s (0 for no
+ * limit). The mean latency of the API requests of the node is
+ * sampled from the protocol proxy: when it goes above
+ * <CODE>honeycomb.datadoctor.recover.latency_factor</CODE> times its
+ * usual level, the number of reconstructions allowed to run (and the
+ * bandwidth with it) is halved, then grows back one at a time once
+ * the latency is back to normal.
+ */
+final class ReconstructionScheduler {
+
+    private static final Logger LOG =
+        Logger.getLogger(ReconstructionScheduler.class.getName());
+
+    /** Reconstructions running at a time on one disk */
+    static final int PER_DISK = 2;
+
+    /** Reconstructions queued on the node before submitters block */
+    static final int MAX_QUEUED = 20000;
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final double DEFAULT_LATENCY_FACTOR = 2.0;
+
+    private static final long SAMPLE_INTERVAL = 10000;   // 10s
+    private static final long IDLE_WAIT = 1000;          // 1s
+    private static final int MIN_SAMPLE_OPS = 10;
+    private static final long MIN_LATENCY = 20;          // ms
+
+    private static final String[] BW_STATS = {
+        ProtocolProxy.STORE_BW,
+        ProtocolProxy.STORE_BOTH_BW,
+        ProtocolProxy.RETRIEVE_BW
+    };
+    private static final String[] TIME_STATS = {
+        ProtocolProxy.QUERY_TIME,
+        ProtocolProxy.DELETE_TIME
+    };
+
+    private static ReconstructionScheduler instance = null;
+
+    static synchronized ReconstructionScheduler getInstance() {
+        if (instance == null) {
+            instance = new ReconstructionScheduler();
+        }
+        return instance;
+    }
+
+    static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    /**
+     * A reconstruction to run.
+     */
+    abstract static class Job {
+
+        /** fragments of the object that were found */
+        final int remaining;
+
+        /** what submitted the job, see {@link #abort} */
+        final int tag;
+
+        private DiskQueue queue;
+        private long seq;
+        private long submitted;
+
+        Job(int remaining, int tag) {
+            this.remaining = remaining;
+            this.tag = tag;
+        }
+
+        /**
+         * Rebuilds the fragment.
+         *
+         * @return the number of bytes written, or -1 if it failed
+         */
+        abstract long run();
+    }
+
+    /** Fewest fragments left first, then in the order found */
+    private static final Comparator ORDER = new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Job j1 = (Job) o1;
+                Job j2 = (Job) o2;
+                if (j1.remaining != j2.remaining) {
+                    return (j1.remaining < j2.remaining) ? -1 : 1;
+                }
+                if (j1.seq != j2.seq) {
+                    return (j1.seq < j2.seq) ? -1 : 1;
+                }
+                return 0;
+            }
+        };
+
+    private static final class DiskQueue {
+        final PriorityQueue jobs = new PriorityQueue(64, ORDER);
+        int running = 0;
+        int epoch = 0;
+        int resets = 0;
+
+        int pending() {
+            return jobs.size() + running;
+        }
+    }
+
+    private final int threads;
+    private final long bandwidth;         // bytes/s, 0 for no limit
+    private final double latencyFactor;   // 0 to never back off
+
+    /** owner to DiskQueue */
+    private final HashMap queues = new HashMap();
+    private Thread[] workers = null;
+    private Thread monitor = null;
+    private boolean stopped = false;
+
+    private long seq = 0;
+    private int queued = 0;
+    private int active = 0;
+    private int allowed;
+
+    private double tokens = 0;
+    private long lastRefill = 0;
+
+    private long lastOps = -1;
+    private long lastTime = -1;
+    private double baseline = -1;
+    private long latency = -1;
+
+    private long recovered = 0;
+    private long failed = 0;
+    private long bytes = 0;
+    private long repairTime = 0;
+
+    private ReconstructionScheduler() {
+        ClusterProperties config = ClusterProperties.getInstance();
+
+        int nbThreads = DEFAULT_THREADS;
+        long mbps = 0;
+        double factor = DEFAULT_LATENCY_FACTOR;
+        try {
+            nbThreads = config.getPropertyAsInt
+                (ConfigPropertyNames.PROP_DD_RECOVER_THREADS, DEFAULT_THREADS);
+            mbps = config.getPropertyAsLong
+                (ConfigPropertyNames.PROP_DD_RECOVER_BANDWIDTH, 0);
+            factor = config.getPropertyAsDouble
+                (ConfigPropertyNames.PROP_DD_RECOVER_LATENCY_FACTOR,
+                 DEFAULT_LATENCY_FACTOR);
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid reconstruction config, " + e.getMessage());
+        }
+
+        threads = Math.max(1, nbThreads);
+        bandwidth = Math.max(0, mbps) * 1024 * 1024;
+        latencyFactor = factor;
+        allowed = threads;
+
+        LOG.info("reconstruction threads " + threads + " bandwidth " +
+                 ((bandwidth == 0) ? "unlimited" : (mbps + " MB/s")) +
+                 " latency factor " + latencyFactor);
+    }
+
+    /**
+     * Returns the current epoch of an owner. Jobs submitted and waits
+     * started with an older epoch fail, see {@link #cancel}.
+     */
+    synchronized int epoch(Object owner) {
+        return queue(owner).epoch;
+    }
+
+    /**
+     * Returns the number of times the queue of an owner was reset by
+     * {@link #cancel}. Unlike the epoch, it does not change when a
+     * single step is aborted.
+     */
+    synchronized int resets(Object owner) {
+        return queue(owner).resets;
+    }
+
+    /**
+     * Queues a reconstruction, blocking while the node has
+     * {@link #MAX_QUEUED} of them waiting.
+     *
+     * @return false if the owner was cancelled since the given epoch
+     */
+    synchronized boolean submit(Object owner, int epoch, Job job) {
+        DiskQueue q = queue(owner);
+        while ((queued >= MAX_QUEUED) && !stopped && (q.epoch == epoch)) {
+            waitFor(IDLE_WAIT);
+        }
+        if (stopped || (q.epoch != epoch)) {
+            return false;
+        }
+        if (workers == null) {
+            start();
+        }
+        job.queue = q;
+        job.seq = seq++;
+        job.submitted = System.currentTimeMillis();
+        q.jobs.add(job);
+        queued++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits until an owner has at most the given number of
+     * reconstructions queued or running.
+     *
+     * @return false if the owner was cancelled since the given epoch
+     */
+    synchronized boolean await(Object owner, int epoch, int maxPending) {
+        DiskQueue q = queue(owner);
+        while ((q.pending() > maxPending) && !stopped && (q.epoch == epoch)) {
+            waitFor(IDLE_WAIT);
+        }
+        return !stopped && (q.epoch == epoch);
+    }
+
+    /**
+     * Resets the queue of an owner: drops all its queued
+     * reconstructions, and fails its submit and await calls in
+     * progress. Running ones complete.
+     */
+    synchronized void cancel(Object owner) {
+        DiskQueue q = (DiskQueue) queues.get(owner);
+        if (q == null) {
+            return;
+        }
+        q.epoch++;
+        q.resets++;
+        queued -= q.jobs.size();
+        q.jobs.clear();
+        notifyAll();
+    }
+
+    /**
+     * Drops the queued reconstructions of an owner that have the given
+     * tag, and fails its submit and await calls in progress. The jobs
+     * with other tags stay queued.
+     */
+    synchronized void abort(Object owner, int tag) {
+        DiskQueue q = (DiskQueue) queues.get(owner);
+        if (q == null) {
+            return;
+        }
+        q.epoch++;
+        Iterator it = q.jobs.iterator();
+        while (it.hasNext()) {
+            if (((Job) it.next()).tag == tag) {
+                it.remove();
+                queued--;
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized int getQueued() { return queued; }
+    synchronized int getRunning() { return active; }
+    synchronized long getRecovered() { return recovered; }
+
+    /** Percent of the configured concurrency currently allowed */
+    synchronized int getThrottle() {
+        return (allowed * 100) / threads;
+    }
+
+    /** Mean time from queueing to completion, in ms, or -1 */
+    synchronized long getMeanRepairTime() {
+        return (recovered == 0) ? -1 : (repairTime / recovered);
+    }
+
+    synchronized String getStats() {
+        return "queued " + queued + " running " + active + "/" + allowed +
+            " recovered " + recovered + " failed " + failed +
+            " bytes " + bytes + " mean repair " + getMeanRepairTime() +
+            " ms api latency " + latency + " ms";
+    }
+
+    private DiskQueue queue(Object owner) {
+        DiskQueue q = (DiskQueue) queues.get(owner);
+        if (q == null) {
+            q = new DiskQueue();
+            queues.put(owner, q);
+        }
+        return q;
+    }
+
+    private void waitFor(long ms) {
+        try {
+            wait(ms);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void start() {
+        lastRefill = System.currentTimeMillis();
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, "Reconstruct-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        if (latencyFactor > 0) {
+            monitor = new Thread(new Runnable() {
+                    public void run() {
+                        monitor();
+                    }
+                }, "ReconstructMonitor");
+            monitor.setDaemon(true);
+            monitor.start();
+        }
+    }
+
+    private synchronized void stop() {
+        stopped = true;
+        Iterator it = queues.values().iterator();
+        while (it.hasNext()) {
+            ((DiskQueue) it.next()).jobs.clear();
+        }
+        queued = 0;
+        notifyAll();
+        if (monitor != null) {
+            monitor.interrupt();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Job job = null;
+            synchronized (this) {
+                while (job == null) {
+                    if (stopped) {
+                        return;
+                    }
+                    long wait = IDLE_WAIT;
+                    if (active < allowed) {
+                        long refill = refill();
+                        if (refill == 0) {
+                            job = next();
+                        } else {
+                            wait = refill;
+                        }
+                    }
+                    if (job == null) {
+                        waitFor(wait);
+                    }
+                }
+                active++;
+            }
+
+            long written = -1;
+            try {
+                written = job.run();
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "reconstruction failed", t);
+            }
+
+            synchronized (this) {
+                active--;
+                job.queue.running--;
+                if (written >= 0) {
+                    recovered++;
+                    bytes += written;
+                    repairTime += System.currentTimeMillis() - job.submitted;
+                    if (bandwidth > 0) {
+                        tokens -= written;
+                    }
+                } else {
+                    failed++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the first job of the disk queues that are not busy.
+     */
+    private Job next() {
+        DiskQueue best = null;
+        Iterator it = queues.values().iterator();
+        while (it.hasNext()) {
+            DiskQueue q = (DiskQueue) it.next();
+            if ((q.running >= PER_DISK) || q.jobs.isEmpty()) {
+                continue;
+            }
+            if ((best == null) ||
+                (ORDER.compare(q.jobs.peek(), best.jobs.peek()) < 0)) {
+                best = q;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.running++;
+        queued--;
+        return (Job) best.jobs.poll();
+    }
+
+    /**
+     * Refills the token bucket at the allowed share of the bandwidth,
+     * and returns how long to wait before it is no longer in debt.
+     */
+    private long refill() {
+        if (bandwidth == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        double rate = ((double) bandwidth * allowed) / (threads * 1000.0);
+        tokens = Math.min(tokens + (now - lastRefill) * rate,
+                          (double) bandwidth);
+        lastRefill = now;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil(-tokens / rate));
+    }
+
+    private void monitor() {
+        int nodeId = DataDocConfig.getInstance().localNodeId();
+        while (true) {
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException ignored) {
+            }
+            sample(nodeId);
+        }
+    }
+
+    /**
+     * Computes the mean latency of the API requests over the last
+     * interval from the counters published by the protocol service,
+     * and adjusts the allowed concurrency.
+     */
+    private void sample(int nodeId) {
+        ManagedService.ProxyObject obj =
+            ServiceManager.proxyFor(nodeId, ProtocolService.class);
+        if (!(obj instanceof ProtocolProxy)) {
+            return;
+        }
+        ProtocolProxy proxy = (ProtocolProxy) obj;
+        long ops = 0;
+        long time = 0;
+        try {
+            for (int i = 0; i < BW_STATS.length; i++) {
+                Stats s = new BandwidthStatsAccumulator
+                    (proxy.getPropertyValueString(BW_STATS[i]));
+                ops += s.getTotalOps();
+                time += s.getTotalExecTime();
+            }
+            for (int i = 0; i < TIME_STATS.length; i++) {
+                Stats s = new StatsAccumulator
+                    (proxy.getPropertyValueString(TIME_STATS[i]));
+                ops += s.getTotalOps();
+                time += s.getTotalExecTime();
+            }
+        } catch (AlertException e) {
+            return;
+        } catch (RuntimeException e) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("cannot parse protocol stats: " + e);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            long dOps = ops - lastOps;
+            long dTime = time - lastTime;
+            boolean first = (lastOps < 0) || (dOps < 0) || (dTime < 0);
+            lastOps = ops;
+            lastTime = time;
+            if (first) {
+                return;
+            }
+
+            int old = allowed;
+            if (dOps < MIN_SAMPLE_OPS) {
+                // Idle, nothing to protect
+                latency = -1;
+                allowed = Math.min(threads, allowed + 1);
+            } else {
+                latency = dTime / dOps;
+                if (baseline < 0) {
+                    baseline = latency;
+                }
+                if ((latency > MIN_LATENCY) &&
+                    (latency > baseline * latencyFactor)) {
+                    allowed = Math.max(1, allowed / 2);
+                    // Follow a lasting change of workload, slowly
+                    baseline = 0.98 * baseline + 0.02 * latency;
+                } else {
+                    allowed = Math.min(threads, allowed + 1);
+                    baseline = 0.9 * baseline + 0.1 * latency;
+                }
+            }
+            if (allowed != old) {
+                LOG.info("reconstructions allowed " + old + " -> " + allowed +
+                         ", api latency " + latency + " ms (usual " +
+                         (long) baseline + " ms)");
+                notifyAll();
+            }
+        }
+    }
+}
@@ -59,22 +59,24 @@ import com.sun.honeycomb.admin.mgmt.server.HCCellAdapter;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 
 /** 
  * Querys system Metadata to see which fragments should be on this disk.
  * If any are missing, reconstruct via Object Archive Reed-Solomon. 
+ * The reconstructions are run by the ReconstructionScheduler.
  */
-public class RecoverLostFrags implements Steppable {
+public class RecoverLostFrags implements CycleSteppable {
 
 
     private static final long READDIR_TIMEOUT = (10 * 60); // 10mn
+    private static final int MAX_PENDING = 1024;
     private static final LayoutClient lc = LayoutClient.getInstance();
     private static final OAClient oaClient = OAClient.getInstance();
     
@@ -84,13 +86,19 @@ public class RecoverLostFrags implements Steppable {
      */
     private static ExecutorService executor = Executors.newCachedThreadPool();
   
-    private int errorCount;
+    // Bumped by the step thread and by the recoveries on the scheduler
+    // threads. A recovery's failure is counted by the step that reads
+    // the count after it; the last step of a cycle waits for all of
+    // them, so the cycle total is exact.
+    private final AtomicInteger errorCount = new AtomicInteger(0);
+    private int reportedErrors = 0;
     
     private String taskName;
     private DiskMask diskMask;
     private Object diskMaskMonitor = new Object();
     private DiskId myDiskId;
-    private boolean abortStep;
+    private volatile boolean abortStep;
+    private volatile int currentStep = -1;
     private TaskLogger log;
     private String[][] dirsList;
     private Semaphore syncTasks;
@@ -132,18 +140,31 @@ public class RecoverLostFrags implements Steppable {
     /**********************************************************************
      * @inherit javadoc
      **/
-    public int getErrorCount() { return errorCount; }
+    public int getErrorCount() {
+        reportedErrors = errorCount.get();
+        return reportedErrors;
+    }
 
     /**********************************************************************
      * @inherit javadoc
      **/
-    public void resetErrorCount() { errorCount = 0; }
+    public void resetErrorCount() {
+        // Only take back what was reported, so that errors counted in
+        // between by the recoveries are not lost
+        errorCount.addAndGet(-reportedErrors);
+        reportedErrors = 0;
+    }
 
     
     /**********************************************************************
      * @inherit javadoc
      **/
-    public void abortStep() { abortStep = true; }
+    public void abortStep() {
+        abortStep = true;
+        // the step is run again, only drop what it queued; the
+        // recoveries queued by the previous steps still count
+        ReconstructionScheduler.getInstance().abort(this, currentStep);
+    }
 
     /**********************************************************************
      * @inherit javadoc
@@ -154,6 +175,8 @@ public class RecoverLostFrags implements Steppable {
         synchronized (diskMaskMonitor) {
             diskMask = newMask;
         }
+        // the layouts changed, queued recoveries are found again
+        ReconstructionScheduler.getInstance().cancel(this);
     }
 
 
@@ -161,6 +184,26 @@ public class RecoverLostFrags implements Steppable {
      * @inherit javadoc
      **/
     public void step(int stepNum) {
+        currentStep = stepNum;
+        stepMap(stepNum);
+    }
+
+    /**********************************************************************
+     * @inherit javadoc
+     *
+     * The cycle is complete only once everything queued is recovered,
+     * so that the failures are counted in it.
+     **/
+    public void endCycle() {
+        ReconstructionScheduler scheduler =
+            ReconstructionScheduler.getInstance();
+        if (!scheduler.await(this, scheduler.epoch(this), 0)) {
+            log.info("aborting end of cycle");
+            abortStep = false;
+        }
+    }
+
+    private void stepMap(int stepNum) {
 
         int mapId;
         int fragId;
@@ -219,6 +262,8 @@ public class RecoverLostFrags implements Steppable {
          * (not from system MD cache)
          */
         int numDirs = layout.size();
+        int epoch = ReconstructionScheduler.getInstance().epoch(this);
+        int resets = ReconstructionScheduler.getInstance().resets(this);
         syncTasks = new Semaphore(0);
         int numTasks = 0;
         int myIndex = -1;
@@ -261,7 +306,7 @@ public class RecoverLostFrags implements Steppable {
         }
         if (myIndex == -1) {
             log.severe("failed to get my recovery disk");
-            errorCount++;
+            errorCount.incrementAndGet();
             return;
         }
 
@@ -277,12 +322,12 @@ public class RecoverLostFrags implements Steppable {
                            mapId +
                            ", aborting step"
                            );
-                errorCount++;
+                errorCount.incrementAndGet();
                 return;
             }
         } catch (InterruptedException ie) {
             log.severe("thread interrupted waiting for readdir, aborting step");
-            errorCount++;
+            errorCount.incrementAndGet();
             return;
         }
         
@@ -313,7 +358,7 @@ public class RecoverLostFrags implements Steppable {
                          );
             }
             log.warning("failed to collect list for mapId "+mapId+", aborting step");
-            errorCount++;
+            errorCount.incrementAndGet();
             return;
         }
       
@@ -331,7 +376,9 @@ public class RecoverLostFrags implements Steppable {
         // make an array of unique OIDs found in these directories
         // FIXME: this assumes how an oid filename is built (oid_fragnum)
         String [][] oidsList = MergeSorted.truncateAt(Common.fragNumSep, dirsList);
-        List localMap = Arrays.asList(oidsList[myIndex]);
+        // sorted copy for lookups, truncation may change the order
+        String[] localMap = (String[]) oidsList[myIndex].clone();
+        Arrays.sort(localMap);
         MergeSorted.Result[] oids = MergeSorted.mergeSortedLists(oidsList);
         
         if (log.isLoggable (Level.FINE)) {
@@ -339,95 +386,60 @@ public class RecoverLostFrags implements Steppable {
         }
         
         /*
-         * Recover each OID in the list if it does not exist.
+         * Queue each OID that does not exist here. The reconstructions
+         * run in parallel, objects with the fewest fragments left first.
          */
+        ReconstructionScheduler scheduler =
+            ReconstructionScheduler.getInstance();
+        int queuedCount = 0;
+
         for (int i=0; i < oids.length; i++) {
-            
-            if (localMap.contains(oids[i].val)) {
+
+            // check if we're supposed to stop
+            if (abortStep) {
+                log.info("aborting step "+mapId);
+                abortStep = false;
+                return;
+            }
+
+            if (Arrays.binarySearch(localMap, oids[i].val) >= 0) {
                 if (log.isLoggable (Level.FINE)) {
                     log.fine("oid " + oids[i].val + " exists in map "
                              + mapId + " on disk " + myDisk.getId());
                 }
                 continue;
             }
-                    
-            try {
-                NewObjectIdentifier oid = null;
-                try {
-                    oid = new NewObjectIdentifier(oids[i].val);
-                } catch (IllegalArgumentException e) {
-                    log.warning("Skipping file: " + oids[i].val + ": " + e.getMessage());
-                    continue;
-                }
-                                
-                boolean success = false;
-
-                // First, check the current layout. This is generally the
-                // ONLY layout.
-                long timeStart = System.currentTimeMillis();
-                success = recoverViaCopy(oid, fragId, myDisk, healedDisk);
-
-                if (!success && isSloshing) {
-                    if (log.isLoggable (Level.FINE))
-                        log.fine ("failed to recover " + oid 
-                            + ". attempting to recover from pre-slosh layout.");
-                    // If we're sloshing, and the previous call failed, we need
-                    // to check the pre-slosh layout for the fragments we're 
-                    // looking for.
-                    Layout preSloshLayout = lc.getLayoutForSloshing(mapId);
-                    Disk preSloshDisk = preSloshLayout.getDisk (fragId);
-                    success = recoverViaCopy(oid, fragId, myDisk, preSloshDisk, false);
-                }
-
-                // Finally, if we've not bene successful in trying to copy 
-                // the missing fragment, we should attempt to recover it.
-                if (!success) {
-                    if (log.isLoggable (Level.FINE))
-                        log.fine ("failed to recover " + oid 
-                            + ". attempting final recovery.");
-                    success = recoverViaOA (oid, fragId, myDisk);
-                }
 
-                long timeEnd = System.currentTimeMillis();
-                long timeInterval = timeEnd - timeStart;
-                
-                if (success) {
-                    FragmentFile frag = new FragmentFile(oid, fragId, myDisk);
-                    if (frag.exists()) {
-                      frag.open();
-                      long fragSize = frag.getDataSize();
-                      frag.close();
-                      log.info("recovered " + oid + " to " +
-                             myDiskId.toStringShort() + " in " + timeInterval 
-                             + " msec " + fragSize + " bytes of data");
-                    }
-                    else
-                      log.log(Level.SEVERE,
-                        "oid " + oid + " frag " + fragId + 
-                        " does not exist on disk " + myDiskId.toStringShort());
+            NewObjectIdentifier oid = null;
+            try {
+                oid = new NewObjectIdentifier(oids[i].val);
+            } catch (IllegalArgumentException e) {
+                log.warning("Skipping file: " + oids[i].val + ": " + e.getMessage());
+                continue;
+            }
 
-                } else {
-                    errorCount++;
-                    log.severe("Failed to recover(errorCount: " + errorCount 
-                               + ") " +  oids[i].val + " (" + fragId + ") to "
-                               + myDiskId.toStringShort()
-                               );                    
-                }
-            } catch (Throwable e) {
-                // FIXME - This means software bugs that we don't catch.
-                // NOTE: No need to synchronize for errorCount. If more than
-                // one task increments this variable simulataneously, it is still OK.
-                errorCount++;
-                log.log(Level.SEVERE, 
-                        "Failed to recover (errorCount: " + errorCount + ") "
-                           +  oids[i].val + " (" + fragId + ") to "
-                           + myDiskId.toStringShort(), e);
+            Recovery job = new Recovery(oid, oids[i].count, mapId, fragId,
+                                        myDisk, healedDisk, isSloshing,
+                                        resets);
+            if (!scheduler.submit(this, epoch, job)) {
+                log.info("aborting step "+mapId);
+                abortStep = false;
+                return;
             }
+            queuedCount++;
+        }
+
+        // Let the reconstructions run behind the walk of the maps, up
+        // to MAX_PENDING of them, so that they are ranked across maps
+        if (!scheduler.await(this, epoch, MAX_PENDING)) {
+            log.info("aborting step "+mapId);
+            abortStep = false;
+            return;
         }
-        
         if (log.isLoggable (Level.FINE)) {
             long phase4 = System.currentTimeMillis();
             log.info("map " + mapId + " map length " + oids.length + 
+                     " queued " + queuedCount +
                      " phase1 " + (phase1 - phase0) + " msec"+ 
                      " phase2 " + (phase2 - phase1) + " msec"+
                      " phase3 " + (phase3 - phase2) + " msec"+
@@ -557,6 +569,112 @@ public class RecoverLostFrags implements Steppable {
         return false;
     }
 
+    /**********************************************************************
+     * Recovery of one missing fragment, run by the ReconstructionScheduler
+     **/
+    private class Recovery extends ReconstructionScheduler.Job {
+
+        private final NewObjectIdentifier oid;
+        private final int mapId;
+        private final int fragId;
+        private final Disk myDisk;
+        private final Disk healedDisk;
+        private final boolean isSloshing;
+        private final int resets;
+
+        Recovery(NewObjectIdentifier oid, int remaining, int mapId,
+                 int fragId, Disk myDisk, Disk healedDisk,
+                 boolean isSloshing, int resets) {
+            super(remaining, mapId);
+            this.resets = resets;
+            this.oid = oid;
+            this.mapId = mapId;
+            this.fragId = fragId;
+            this.myDisk = myDisk;
+            this.healedDisk = healedDisk;
+            this.isSloshing = isSloshing;
+        }
+
+        long run() {
+            try {
+                boolean success = false;
+
+                // First, check the current layout. This is generally the
+                // ONLY layout.
+                long timeStart = System.currentTimeMillis();
+                success = recoverViaCopy(oid, fragId, myDisk, healedDisk);
+
+                if (!success && isSloshing) {
+                    if (log.isLoggable (Level.FINE))
+                        log.fine ("failed to recover " + oid 
+                            + ". attempting to recover from pre-slosh layout.");
+                    // If we're sloshing, and the previous call failed, we need
+                    // to check the pre-slosh layout for the fragments we're 
+                    // looking for.
+                    Layout preSloshLayout = lc.getLayoutForSloshing(mapId);
+                    Disk preSloshDisk = preSloshLayout.getDisk (fragId);
+                    success = recoverViaCopy(oid, fragId, myDisk, preSloshDisk, false);
+                }
+
+                // Finally, if we've not bene successful in trying to copy 
+                // the missing fragment, we should attempt to recover it.
+                if (!success) {
+                    if (log.isLoggable (Level.FINE))
+                        log.fine ("failed to recover " + oid 
+                            + ". attempting final recovery.");
+                    success = recoverViaOA (oid, fragId, myDisk);
+                }
+
+                long timeEnd = System.currentTimeMillis();
+                long timeInterval = timeEnd - timeStart;
+                
+                if (success) {
+                    long fragSize = 0;
+                    FragmentFile frag = new FragmentFile(oid, fragId, myDisk);
+                    if (frag.exists()) {
+                      frag.open();
+                      fragSize = frag.getDataSize();
+                      frag.close();
+                      log.info("recovered " + oid + " to " +
+                             myDiskId.toStringShort() + " in " + timeInterval 
+                             + " msec " + fragSize + " bytes of data");
+                    }
+                    else
+                      log.log(Level.SEVERE,
+                        "oid " + oid + " frag " + fragId + 
+                        " does not exist on disk " + myDiskId.toStringShort());
+                    return fragSize;
+
+                } else {
+                    log.severe("Failed to recover(errorCount: " + countError()
+                               + ") " +  oid + " (" + fragId + ") to "
+                               + myDiskId.toStringShort()
+                               );                    
+                }
+            } catch (Throwable e) {
+                // FIXME - This means software bugs that we don't catch.
+                log.log(Level.SEVERE, 
+                        "Failed to recover (errorCount: " + countError() + ") "
+                           +  oid + " (" + fragId + ") to "
+                           + myDiskId.toStringShort(), e);
+            }
+            return -1;
+        }
+
+        /**
+         * Counts a failed recovery, unless the cycle that queued it
+         * was reset since by a disk mask change: the errors of that
+         * cycle were already thrown away.
+         */
+        private int countError() {
+            if (ReconstructionScheduler.getInstance()
+                .resets(RecoverLostFrags.this) != resets) {
+                return errorCount.get();
+            }
+            return errorCount.incrementAndGet();
+        }
+    }
+
     /**********************************************************************/
     public class readFragsTask implements Runnable {
         
@@ -91,7 +91,8 @@ public class TaskFragUtils {
      * This method returns the list of filenames contained on the given map id
      * for the given disk.
      * Returns null if the map is not accessible or in case of error
-     * The array will be empty if the directory is empty.
+     * The array will be empty if the directory is empty, and is sorted
+     * for local disks (see FragmentManifest).
      */
     static String[] readMap(DiskId diskId, int mapId) {
 
@@ -103,7 +104,8 @@ public class TaskFragUtils {
             if (!verifyDirPath(path)) {
                 LOG.warning("Directory " + path + " not found");
             } else {
-                res = new File(path).list(new FragNameFilter());
+                res = FragmentManifest.getInstance().read(path,
+                                                          new FragNameFilter());
             }
         }  else {
             // Remote call - call the corresponding DD
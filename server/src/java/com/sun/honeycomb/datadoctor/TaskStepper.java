@@ -205,6 +205,10 @@ class TaskStepper
                 absTimes[cursor] = stepStart;
                 taskScheduled = true;
                 task.step(cursor);
+                if (task instanceof CycleSteppable &&
+                    (cursor + 1) % durations.length == lastReset) {
+                    ((CycleSteppable) task).endCycle();
+                }
                 // Keep a running count of errors in this cycle
                 stepErrorCount = task.getErrorCount();
                 task.resetErrorCount();
@@ -176,12 +176,7 @@ public class EMDClient
                     LOG.log(ExtLevel.EXT_WARNING, MessageFormat.format(str, args));
 
 
-                    try {
-                        if (sockets[i] != null) {
-                            sockets[i].close();
-                        }
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
 
                     throw new EMDException("Failed to connect to node " + 
@@ -255,11 +250,8 @@ public class EMDClient
             // Close the connections
             for (int i=0; i<sockets.length; i++) {
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                        sockets[i] = null;
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
+                    sockets[i] = null;
                 }
             }
         }
@@ -374,12 +366,7 @@ public class EMDClient
                     LOG.log(ExtLevel.EXT_WARNING, MessageFormat.format(str,
                             args));
 
-                    try {
-                        if (sockets[i] != null) {
-                            sockets[i].close();
-                        }
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
 
                     throw new EMDException("Failed to connect to node " + 
@@ -449,11 +436,8 @@ public class EMDClient
             // Close the connections
             for (int i = 0; i < sockets.length; i++) {
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                        sockets[i] = null;
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
+                    sockets[i] = null;
                 }
             }
         }
@@ -591,10 +575,7 @@ public class EMDClient
             // Close the connections
             Iterator iter = sockets.iterator();
             while (iter.hasNext()) {
-                try {
-                    ((Socket)iter.next()).close();
-                } catch (IOException ignored) {
-                }
+                ConnectionFactory.release((Socket)iter.next());
             }
         }
     }
@@ -763,10 +744,7 @@ public class EMDClient
 
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -783,10 +761,7 @@ public class EMDClient
 
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -801,10 +776,7 @@ public class EMDClient
                 LOG.log(ExtLevel.EXT_SEVERE, MessageFormat.format(str, args));
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -831,10 +803,7 @@ public class EMDClient
 
             } finally {
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                 }
             }
         }
@@ -984,10 +953,7 @@ public class EMDClient
         } catch (IOException ioe) {
             // failed to connect to cache, wierd because this is local
             if (sockets[0] != null) {
-                try {
-                    sockets[0].close();
-                } catch (IOException ignored) {
-                }
+                ConnectionFactory.release(sockets[0]);
             }
             return null;
         }
@@ -1180,10 +1146,7 @@ public class EMDClient
 
             } finally {
                 if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(socket);
                     socket = null;
                 }
             }
@@ -1302,10 +1265,7 @@ public class EMDClient
                 LOG.log(ExtLevel.EXT_SEVERE, MessageFormat.format(str, args));
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -1322,10 +1282,7 @@ public class EMDClient
                 LOG.log(ExtLevel.EXT_SEVERE, MessageFormat.format(str, args));
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -1341,10 +1298,7 @@ public class EMDClient
                 LOG.log(ExtLevel.EXT_SEVERE, MessageFormat.format(str, args));
 
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                     sockets[i] = null;
                 }
                 brokers[i] = null;
@@ -1372,10 +1326,7 @@ public class EMDClient
 
             } finally {
                 if (sockets[i] != null) {
-                    try {
-                        sockets[i].close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(sockets[i]);
                 }
             }
         }
@@ -1449,10 +1400,7 @@ public class EMDClient
 
             } finally {
                 if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ignored) {
-                    }
+                    ConnectionFactory.release(socket);
                     socket = null;
                 }
             }
@@ -40,6 +40,8 @@ import java.util.logging.Logger;
 import com.sun.honeycomb.common.Cookie;
 import com.sun.honeycomb.common.StringList;
 import com.sun.honeycomb.common.CacheRecord;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
 import com.sun.honeycomb.emd.remote.ConnectionFactory;
 import com.sun.honeycomb.emd.remote.MDOutputStream;
 import com.sun.honeycomb.emd.remote.ConnectionFactory.DiskConnection;
@@ -67,6 +69,9 @@ public class MetadataClient {
     protected static final Logger LOG = 
         Logger.getLogger(MetadataClient.class.getName());
 
+    private static final LatencyHistogram insertLatency =
+        Metrics.histogram(Metrics.MD_INSERT);
+
     /****************************************
      *
      * singleton methods
@@ -584,9 +589,14 @@ public class MetadataClient {
                             NewObjectIdentifier oid,
                             Object argument)
     {
-        return getClient(cacheId).setMetadata(cacheId,
-                                       oid,
-                                       argument);
+        long start = System.nanoTime();
+        try {
+            return getClient(cacheId).setMetadata(cacheId,
+                                                  oid,
+                                                  argument);
+        } finally {
+            insertLatency.recordSince(start);
+        }
     }
 
     public boolean setMetadata(String cacheId,
@@ -74,4 +74,11 @@ public interface SystemCacheConstants {
      * Takes a legal hold string are queries for all oids which have that legal hold
      */
     String SYSTEM_QUERY_HOLD            = "queryHold";
+
+    /*
+     * Takes a hex content hash and a size and returns the live data
+     * objects with that content. Only answered when dedup is enabled,
+     * since the index behind it is not built otherwise.
+     */
+    String SYSTEM_QUERY_GETBYHASH       = "getByContentHash";
 }
@@ -38,10 +38,15 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.sun.honeycomb.disks.Disk;
@@ -49,7 +54,12 @@ import com.sun.honeycomb.emd.common.MDDiskAbstraction;
 import com.sun.honeycomb.emd.server.MDServer;
 
 /**
- * This class creates Socket objects to reach MD servers
+ * This class creates Socket objects to reach MD servers.
+ *
+ * Connections are kept open and reused: connect() hands out an idle
+ * connection to the node if there is one, and release() gives it back
+ * once the ObjectBroker using it has read the whole reply. A connection
+ * with a request still in flight is closed instead.
  */
 
 public class ConnectionFactory {
@@ -59,6 +69,29 @@ public class ConnectionFactory {
     private static final int NUMBER_CONNECT_TRIES = 5;
 
     public static final int SOCKET_BUFFER_SIZE = 0x20000;
+
+    // Idle connections are dropped well before the MD server drops them
+    private static final long IDLE_TIMEOUT = 60000; // in ms
+    private static final int MAX_IDLE_PER_NODE = 8;
+
+    // SocketAddress -> LinkedList of PooledConnection, most recent first
+    private static final HashMap idleConnections = new HashMap();
+    // Socket -> PooledConnection
+    private static final HashMap busyConnections = new HashMap();
+
+    private static class PooledConnection {
+        private final Socket socket;
+        private final SocketAddress address;
+        private ObjectBroker broker;
+        private long lastUsed;
+
+        private PooledConnection(Socket nSocket, SocketAddress nAddress) {
+            socket = nSocket;
+            address = nAddress;
+            broker = null;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
     
     /**********************************************************************
      *
@@ -188,10 +221,144 @@ public class ConnectionFactory {
     }
 
     /*
-     * Connection method
+     * Connection methods
      */
     
+    /**
+     * Returns a connection to the MD server of the node, reusing an idle
+     * one if possible. The caller has to give it back with release().
+     */
     public static Socket connect(DiskConnection address) 
+        throws IOException {
+        Socket result = checkOutIdle(address.getNodeAddress());
+
+        if (result == null) {
+            result = open(address);
+        }
+
+        synchronized (idleConnections) {
+            busyConnections.put(result,
+                                new PooledConnection(result,
+                                                     address.getNodeAddress()));
+        }
+        return(result);
+    }
+
+    /**
+     * Gives back a connection obtained with connect(). It is kept for
+     * reuse if the broker attached to it is done with its request, and
+     * closed otherwise.
+     */
+    public static void release(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        PooledConnection conn;
+        boolean kept = false;
+
+        synchronized (idleConnections) {
+            conn = (PooledConnection)busyConnections.remove(socket);
+            if ((conn != null)
+                && (!socket.isClosed())
+                && ((conn.broker == null) || (conn.broker.isReusable()))) {
+                LinkedList idle = (LinkedList)idleConnections.get(conn.address);
+                if (idle == null) {
+                    idle = new LinkedList();
+                    idleConnections.put(conn.address, idle);
+                }
+                if (idle.size() < MAX_IDLE_PER_NODE) {
+                    conn.broker = null;
+                    conn.lastUsed = System.currentTimeMillis();
+                    idle.addFirst(conn);
+                    kept = true;
+                }
+            }
+        }
+
+        if (!kept) {
+            close(socket);
+        }
+    }
+
+    /** Called by the broker created on a connection */
+    static void setBroker(Socket socket, ObjectBroker broker) {
+        synchronized (idleConnections) {
+            PooledConnection conn = (PooledConnection)busyConnections.get(socket);
+            if (conn != null) {
+                conn.broker = broker;
+            }
+        }
+    }
+
+    private static Socket checkOutIdle(SocketAddress address) {
+        long now = System.currentTimeMillis();
+        ArrayList expired = new ArrayList();
+        Socket result = null;
+
+        while (result == null) {
+            PooledConnection conn = null;
+
+            synchronized (idleConnections) {
+                LinkedList idle = (LinkedList)idleConnections.get(address);
+                if ((idle == null) || (idle.size() == 0)) {
+                    break;
+                }
+                conn = (PooledConnection)idle.removeFirst();
+                // The rest of the list has been idle even longer
+                while ((conn != null) && (now - conn.lastUsed > IDLE_TIMEOUT)) {
+                    expired.add(conn.socket);
+                    conn = (idle.size() > 0) ? (PooledConnection)idle.removeFirst() : null;
+                }
+            }
+
+            if (conn == null) {
+                break;
+            }
+            if (isAlive(conn.socket)) {
+                result = conn.socket;
+            } else {
+                expired.add(conn.socket);
+            }
+        }
+
+        for (int i=0; i<expired.size(); i++) {
+            close((Socket)expired.get(i));
+        }
+        if ((expired.size() > 0) && (LOG.isLoggable(Level.FINE))) {
+            LOG.fine("Dropped "+expired.size()+" idle connections to "+address);
+        }
+        return(result);
+    }
+
+    /*
+     * An idle connection has nothing to read. If the read does not
+     * return 0, the MD server has closed it or it is out of sync.
+     */
+    private static boolean isAlive(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        if ((channel == null) || (socket.isClosed())) {
+            return(false);
+        }
+
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return(read == 0);
+        } catch (IOException e) {
+            return(false);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static Socket open(DiskConnection address) 
         throws IOException {
         int timeout = INITIAL_CONNECT_TIMEOUT;
         int nbTries = 0;
@@ -199,7 +366,8 @@ public class ConnectionFactory {
 
         for (nbTries = 0; nbTries < NUMBER_CONNECT_TRIES; nbTries++) {
             try {
-                result = new Socket();
+                // Channel based, to check idle connections without blocking
+                result = SocketChannel.open().socket();
                 result.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
                 result.setTcpNoDelay(true);
                 result.setKeepAlive(true);
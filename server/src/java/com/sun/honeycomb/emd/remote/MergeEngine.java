@@ -36,16 +36,28 @@ package com.sun.honeycomb.emd.remote;
 import java.util.logging.Logger;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.emd.common.EMDException;
-import java.util.LinkedList;
 
+/**
+ * Merges sorted streams, dropping duplicates.
+ *
+ * The heads are kept in a binary heap ordered by their current
+ * object, so getting the next object costs O(log n) comparisons in
+ * the number of streams.
+ */
 public class MergeEngine {
     private static final Logger LOG = Logger.getLogger("MergeEngine");
 
-    private LinkedList list;
+    private StreamHead[] heap;
+    private int size;
+
+    // Failure to advance a stream, reported by the next getFirst
+    private EMDException pending;
     
     public MergeEngine(StreamHead[] inputs) 
         throws EMDException {
-        list = new LinkedList();
+        heap = new StreamHead[inputs.length];
+        size = 0;
+        pending = null;
         for (int i=0; i<inputs.length; i++) {
             if ((inputs[i] != null) 
                 && (inputs[i].current() != null)) {
@@ -55,41 +67,86 @@ public class MergeEngine {
     }
 
     private void insert(StreamHead elem) {
-        int index;
-
-        for (index=0; index<list.size(); index++) {
-            if (elem.compareTo((StreamHead)list.get(index)) <= 0) {
+        int index = size++;
+        
+        // Sift up
+        while (index > 0) {
+            int parent = (index-1) >> 1;
+            if (heap[parent].compareTo(elem) <= 0) {
                 break;
             }
+            heap[index] = heap[parent];
+            index = parent;
         }
+        heap[index] = elem;
+    }
+
+    private StreamHead removeFirst() {
+        StreamHead result = heap[0];
+        StreamHead last = heap[--size];
+        heap[size] = null;
         
-        list.add(index, elem);
+        if (size > 0) {
+            // Sift down
+            int index = 0;
+            while (true) {
+                int child = 2*index+1;
+                if (child >= size) {
+                    break;
+                }
+                if ((child+1 < size)
+                    && (heap[child+1].compareTo(heap[child]) < 0)) {
+                    child++;
+                }
+                if (last.compareTo(heap[child]) <= 0) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = last;
+        }
+        
+        return(result);
+    }
+
+    /** Moves the head to its next object, and puts it back if any */
+    private void advance(StreamHead head) {
+        try {
+            head.moveToNext();
+            if (head.current() != null) {
+                insert(head);
+            }
+        } catch (EMDException e) {
+            // The stream is dropped from the merge
+            if (pending == null) {
+                pending = e;
+            }
+        }
     }
 
     public Object getFirst() 
         throws EMDException {
-        if (list.size() == 0) {
+        if (pending != null) {
+            EMDException e = pending;
+            pending = null;
+            throw e;
+        }
+        
+        if (size == 0) {
             return(null);
         }
 
-        StreamHead firstHead = (StreamHead)list.removeFirst();
+        StreamHead firstHead = removeFirst();
         Object result = firstHead.current();
-        StreamHead head;
 
-        while ( (list.size() != 0)
-                && (((StreamHead)list.getFirst()).compareTo(firstHead) == 0) ) {
-            head = (StreamHead)list.removeFirst();
-            head.moveToNext();
-            if (head.current() != null) {
-                insert(head);
-            }
+        while ( (size != 0)
+                && (heap[0].compareTo(firstHead) == 0) ) {
+            advance(removeFirst());
         }
 
         // Reinsert the first head
-        firstHead.moveToNext();
-        if (firstHead.current() != null) {
-            insert(firstHead);
-        }
+        advance(firstHead);
 
         return(result);
     }
@@ -71,11 +71,30 @@ import com.sun.honeycomb.emd.cache.ExtendedCacheEntry;
  * deserializing objects on top of a stream.
  *
  * It also implements the communication protocol between MD clients and servers
+ *
+ * Connections to the MD servers are reused for several requests. Each
+ * request starts with an id that the server echoes at the beginning of
+ * its reply, so that a reply read on the wrong request is detected.
+ * A connection can only be reused once its reply has been read to the
+ * end (see isReusable()).
  */
 
 public class ObjectBroker extends ObjectBrokerBasic {
     private static final Logger LOG = Logger.getLogger("ObjectBroker");
 
+    private static int nextRequestId = 0;
+
+    private int requestId;
+    // A request has been sent and its reply has not been read completely
+    private volatile boolean inReply;
+    // The id of the pending reply has not been read yet
+    private boolean replyHeaderPending;
+    // The reply is a stream of objects terminated by an EndOfStream
+    private boolean streamReply;
+    private volatile boolean broken;
+    // getObject() is called recursively for compound objects
+    private int depth;
+
 
     /**********************************************************************
      *
@@ -91,6 +110,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
     public ObjectBroker(Socket socket) 
         throws IOException {
         super(socket);
+        ConnectionFactory.setBroker(socket, this);
     }
     
     public ObjectBroker() {
@@ -133,6 +153,86 @@ public class ObjectBroker extends ObjectBrokerBasic {
      * Deserialization methods
      */        
 
+    public Object getObject() 
+        throws EMDException {
+
+        if ((depth > 0) || (!inReply)) {
+            return(getNestedObject());
+        }
+
+        if (input == null) {
+            throw new EMDException("The input stream has not been defined");
+        }
+
+        Object result = null;
+        boolean done = false;
+
+        try {
+            if (replyHeaderPending) {
+                int id = input.readInt();
+                replyHeaderPending = false;
+                if (id != requestId) {
+                    throw new EMDCommException("Got the reply of request "+id+
+                                               " while waiting for request "+
+                                               requestId);
+                }
+            }
+
+            byte type = input.readByte();
+            // An exception ends the reply and leaves the server side closed
+            if (type == EXCEPTION_DETECTED) {
+                done = true;
+                broken = true;
+            }
+            result = getNestedObject(type);
+            done = (!streamReply) || (result instanceof EndOfStreamImpl);
+        } catch (EMDCommException e) {
+            broken = true;
+            throw e;
+        } catch (IOException e) {
+            broken = true;
+            EMDCommException newe = new EMDCommException
+                ("Got an IOException while reading type ["+e.getMessage()+"]");
+            newe.initCause(e);
+            throw newe;
+        } finally {
+            if (done) {
+                inReply = false;
+            }
+        }
+
+        return(result);
+    }
+
+    private Object getNestedObject() 
+        throws EMDException {
+        depth++;
+        try {
+            return(super.getObject());
+        } finally {
+            depth--;
+        }
+    }
+
+    private Object getNestedObject(byte type) 
+        throws EMDException {
+        depth++;
+        try {
+            return(getObject(type));
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Returns true if the connection under this broker can be used for
+     * another request: the reply of the last one has been read entirely
+     * and no communication error occurred.
+     */
+    public boolean isReusable() {
+        return((!broken) && (!inReply));
+    }
+
     public Object getObject(byte type) 
         throws EMDException {
 
@@ -190,7 +290,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
 
         try {
             
-            output.writeByte(methodType);
+            startRequest(methodType, false);
             for (int i=0; i<params.length; i++) {
                 sendObject(params[i]);
             }
@@ -199,6 +299,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
             result = getObject();
             
         } catch (IOException e) {
+            broken = true;
             EMDException newe = new EMDException("Got an IOException ["+e.getMessage()+"]");
             newe.initCause(e);
             throw newe;
@@ -219,7 +320,8 @@ public class ObjectBroker extends ObjectBrokerBasic {
      */
 
     private void executeClientAsStream(byte methodType,
-                                       Object[] params) 
+                                       Object[] params,
+                                       boolean isStream) 
         throws EMDException {
 
         if (output == null) {
@@ -228,19 +330,40 @@ public class ObjectBroker extends ObjectBrokerBasic {
 
         try {
             
-            output.writeByte(methodType);
+            startRequest(methodType, isStream);
             for (int i=0; i<params.length; i++) {
                 sendObject(params[i]);
             }
             flush();
 
         } catch (IOException e) {
+            broken = true;
             EMDException newe = new EMDException("Got an IOException ["+e+"]");
             newe.initCause(e);
             throw newe;
         }
     }
 
+    private void startRequest(byte methodType,
+                              boolean isStream) 
+        throws IOException, EMDException {
+        if (inReply) {
+            broken = true;
+            throw new EMDException("The reply of request "+requestId+
+                                   " has not been read");
+        }
+
+        synchronized (ObjectBroker.class) {
+            requestId = nextRequestId++;
+        }
+        streamReply = isStream;
+        replyHeaderPending = true;
+        inReply = true;
+
+        output.writeInt(requestId);
+        output.writeByte(methodType);
+    }
+
     public Object waitForCompletion()
         throws EMDException {
         
@@ -262,7 +385,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
         Object[] params = {cacheId, oid, argument, disks};
         
         executeClientAsStream(METHOD_SETMETADATA,
-                              params);
+                              params, false);
     }
 
     public void removeMetadataClient(String cacheId,
@@ -286,7 +409,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
                      "] into cache " + cacheId );
         }
 
-        executeClientAsStream(METHOD_ADDLEGALHOLD, params);
+        executeClientAsStream(METHOD_ADDLEGALHOLD, params, false);
     }
 
     public void launchRemoveLegalHold(String cacheId,
@@ -314,7 +437,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
 
         Object[] params = { cacheId, disks, query, attributes, cookie, _maxResult, _timeout, _forceResults, boundParameters };
 
-        executeClientAsStream(METHOD_QUERY, params);
+        executeClientAsStream(METHOD_QUERY, params, true);
     }
 
     public void launchSelectUniqueClient(String cacheId,
@@ -332,24 +455,39 @@ public class ObjectBroker extends ObjectBrokerBasic {
 
         Object[] params = { cacheId, query, attribute, lastAttribute, _maxResult, _timeout, _forceResults, boundParameters };
 
-        executeClientAsStream(METHOD_SELECTUNIQUE, params);
+        executeClientAsStream(METHOD_SELECTUNIQUE, params, true);
     }
     
     /**
      * The <code>serverDispatch</code> method has to be called by the
      * serving thread to dispatch the call and perform the operation
+     *
+     * @return true if the connection can be kept for the next request
+     * of the client
      */
 
-    public void serverDispatch() 
+    public boolean serverDispatch() 
         throws EMDException {
         byte methodType;
+        int id;
 
         if (input == null) {
             throw new EMDException("The input stream has not been defined");
         }
 
+        try {
+            id = input.readInt();
+        } catch (IOException e) {
+            // The client closed the connection instead of reusing it
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Connection closed by the client ["+e+"]");
+            }
+            return(false);
+        }
+
         try {
             methodType = input.readByte();
+            output.writeInt(id);
 
             switch (methodType) {
             case METHOD_SETMETADATA: {
@@ -460,12 +598,15 @@ public class ObjectBroker extends ObjectBrokerBasic {
                 sendObject(new EndOfStreamImpl());
             } break;
 
+            default:
+                throw new EMDCommException("Unknown method type ["+methodType+"]");
             }
 
             if (LOG.isLoggable(Level.FINE)) {
                 LOG.fine("The thread "+Thread.currentThread().getName()+" finished servicing the request");
             }
             flush();
+            return(true);
 
         } catch (IOException e) {
             LOG.log(Level.SEVERE,
@@ -485,6 +626,7 @@ public class ObjectBroker extends ObjectBrokerBasic {
                     e);
             try {
                 sendException(e);
+                flush();
             } catch (IOException ioe) {
                 LOG.log(Level.SEVERE,
                         "Failed to send exception",
@@ -495,6 +637,10 @@ public class ObjectBroker extends ObjectBrokerBasic {
                         ioe);
             }
         }
+
+        // The request may not have been read entirely, do not reuse the
+        // connection
+        return(false);
     }
 
 }
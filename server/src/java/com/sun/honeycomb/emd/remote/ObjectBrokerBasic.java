@@ -144,7 +144,7 @@ public class ObjectBrokerBasic
      * Global value for exceptions
      */
 
-    private static final byte EXCEPTION_DETECTED        = 0;
+    protected static final byte EXCEPTION_DETECTED      = 0;
 
     /*
      * Object types
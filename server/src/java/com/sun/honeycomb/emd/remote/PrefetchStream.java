@@ -0,0 +1,265 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.emd.remote;
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import com.sun.honeycomb.emd.common.EMDException;
+
+/**
+ * An MDInputStream that reads ahead of its consumer.
+ *
+ * A task of a shared, bounded pool pulls the objects of the underlying
+ * stream into a bounded queue, so that the round trips to the remote
+ * node overlap with the merge of the other streams. The task gives its
+ * thread back when the queue is full, and is scheduled again once the
+ * consumer has drained half of it. It ends at the end of the stream,
+ * on the first error, or when the stream is closed.
+ *
+ * When all the threads of the pool are busy and its queue is full, the
+ * consumer reads the objects itself, as if there were no prefetch.
+ *
+ * An error is handed to the consumer in order, after the objects read
+ * before it; the stream then looks finished.
+ */
+public class PrefetchStream
+    implements MDInputStream, Runnable {
+
+    private static final Logger LOG = Logger.getLogger("PrefetchStream");
+
+    private static final int POOL_THREADS = 32;
+    private static final int MAX_QUEUED = 64;
+    private static final int IDLE_THREAD_EXPIRATION = 60; // 1mn
+
+    private static ThreadPoolExecutor pool = null;
+    private static int threadCount = 0;
+
+    private static class Finished
+        implements EndOfStream {
+        private Finished() {
+        }
+    }
+
+    private static final Finished FINISHED = new Finished();
+
+    private MDInputStream input;
+    private int depth;
+    private LinkedList buffer;
+    private EMDException error;
+    private boolean eos;
+    private boolean closed;
+
+    // A task or the consumer is reading the input
+    private boolean reading;
+
+    /**
+     * @param newInput the stream to read from
+     * @param newDepth the max. number of objects read ahead
+     */
+    public PrefetchStream(MDInputStream newInput,
+                          int newDepth) {
+        input = newInput;
+        depth = Math.max(1, newDepth);
+        buffer = new LinkedList();
+        error = null;
+        eos = false;
+        closed = false;
+        reading = false;
+    }
+
+    private static synchronized ThreadPoolExecutor getPool() {
+        if (pool == null) {
+            // core size is the max, so tasks queue only when all the
+            // threads are busy; the threads are still started on demand
+            pool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS,
+                                          IDLE_THREAD_EXPIRATION,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue(MAX_QUEUED),
+                                          new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "PrefetchStream-" +
+                                              nextThread());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return pool;
+    }
+
+    private static synchronized int nextThread() {
+        return threadCount++;
+    }
+
+    /** Starts the background read */
+    public void start() {
+        synchronized (buffer) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules the read ahead task if it is not running and there is
+     * room in the queue. Called with the buffer locked.
+     *
+     * @return false if the pool is full
+     */
+    private boolean schedule() {
+        if (reading || eos || closed || (buffer.size() >= depth)) {
+            return true;
+        }
+        reading = true;
+        try {
+            getPool().execute(this);
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Prefetch pool busy, reading in the consumer");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (buffer) {
+                if (closed || eos || (buffer.size() >= depth)) {
+                    reading = false;
+                    buffer.notifyAll();
+                    return;
+                }
+            }
+            readOne();
+        }
+    }
+
+    /** Reads the next object of the input into the buffer */
+    private void readOne() {
+        Object obj = null;
+        EMDException failure = null;
+        try {
+            obj = input.getObject();
+        } catch (EMDException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new EMDException("Failed to read the stream", e);
+        }
+
+        synchronized (buffer) {
+            if (failure != null) {
+                if (!closed) {
+                    error = failure;
+                }
+                eos = true;
+            } else if ((obj == null) || (obj instanceof EndOfStream)) {
+                eos = true;
+            } else if (!closed) {
+                buffer.add(obj);
+            }
+            buffer.notifyAll();
+            if (eos && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Prefetch done [" + buffer.size() +
+                         " objects pending]");
+            }
+        }
+    }
+
+    public Object getObject()
+        throws EMDException {
+        while (true) {
+            synchronized (buffer) {
+                while ((buffer.size() == 0) && (!eos) && (!closed) &&
+                       (reading)) {
+                    try {
+                        buffer.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+
+                if (buffer.size() > 0) {
+                    Object result = buffer.removeFirst();
+                    if (buffer.size() <= depth / 2) {
+                        schedule();
+                    }
+                    return(result);
+                }
+
+                if (error != null) {
+                    EMDException e = error;
+                    error = null;
+                    throw e;
+                }
+
+                if (eos || closed) {
+                    return(FINISHED);
+                }
+
+                if (schedule()) {
+                    continue;
+                }
+                // The pool is full: read the next object ourselves
+                reading = true;
+            }
+
+            try {
+                readOne();
+            } finally {
+                synchronized (buffer) {
+                    reading = false;
+                    buffer.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops reading ahead. The task ends once its current read
+     * returns, which happens when the connection is closed.
+     */
+    public void close() {
+        synchronized (buffer) {
+            closed = true;
+            buffer.clear();
+            buffer.notifyAll();
+        }
+    }
+}
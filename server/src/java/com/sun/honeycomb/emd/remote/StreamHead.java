@@ -46,6 +46,8 @@ import java.util.ArrayList;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.emd.common.EMDCommException;
 import com.sun.honeycomb.emd.common.HexObjectIdentifier;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 
 /**
  * This class is used to get one by one the objects returned from a Stream,
@@ -60,17 +62,77 @@ public class StreamHead
 
     private static final Logger LOG = Logger.getLogger("StreamHead");
 
+    // Number of objects read ahead of the merge on each stream
+    private static final int DEFAULT_PREFETCH = 128;
+    private static int prefetchDepth = -1;
+
     private MDInputStream input;
+    private PrefetchStream prefetch;
 
     private Object currentObject;
     private boolean firstObjectRead;
 
     public StreamHead(MDInputStream newInput) {
         input = newInput;
+        prefetch = null;
         currentObject = null;
         firstObjectRead = false;
     }
     
+    private static synchronized int getPrefetchDepth() {
+        if (prefetchDepth < 0) {
+            prefetchDepth = DEFAULT_PREFETCH;
+            try {
+                prefetchDepth = ClusterProperties.getInstance().getPropertyAsInt(
+                    ConfigPropertyNames.PROP_EMD_QUERY_PREFETCH,
+                    DEFAULT_PREFETCH);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad value for " +
+                            ConfigPropertyNames.PROP_EMD_QUERY_PREFETCH +
+                            "; using default " + DEFAULT_PREFETCH);
+            }
+        }
+        return(prefetchDepth);
+    }
+
+    /**
+     * Reads the stream ahead of the merge, in the background, up to
+     * <code>depth</code> objects. Has no effect once the first object
+     * has been read.
+     */
+    public void startPrefetch(int depth) {
+        if ((depth <= 0) || (prefetch != null) || (firstObjectRead)) {
+            return;
+        }
+        prefetch = new PrefetchStream(input, depth);
+        input = prefetch;
+        prefetch.start();
+    }
+
+    /** Stops reading ahead, if the stream was prefetched */
+    public void close() {
+        if (prefetch != null) {
+            prefetch.close();
+        }
+    }
+
+    private static void startPrefetch(StreamHead[] inputs) {
+        int depth = getPrefetchDepth();
+        for (int i=0; i<inputs.length; i++) {
+            if (inputs[i] != null) {
+                inputs[i].startPrefetch(depth);
+            }
+        }
+    }
+
+    private static void close(StreamHead[] inputs) {
+        for (int i=0; i<inputs.length; i++) {
+            if (inputs[i] != null) {
+                inputs[i].close();
+            }
+        }
+    }
+    
     
     private void moveToNext(boolean force) 
         throws EMDException {
@@ -162,6 +224,19 @@ public class StreamHead
                                          int nbResults,
                                          boolean abortOnFailure)
         throws EMDException {
+        startPrefetch(inputs);
+        try {
+            return(mergeToList(inputs, toBeSkipped, nbResults, abortOnFailure));
+        } finally {
+            close(inputs);
+        }
+    }
+
+    private static ArrayList mergeToList(StreamHead[] inputs,
+                                         int toBeSkipped,
+                                         int nbResults,
+                                         boolean abortOnFailure)
+        throws EMDException {
         MergeEngine merger = new MergeEngine(inputs);
         Object obj = null;
         int nbSent = 0;
@@ -204,6 +279,19 @@ public class StreamHead
 				    int toBeSkipped,
 				    int nbResults)
         throws EMDException {
+        startPrefetch(inputs);
+        try {
+            mergeToOutput(inputs, output, toBeSkipped, nbResults);
+        } finally {
+            close(inputs);
+        }
+    }
+
+    private static void mergeToOutput(StreamHead[] inputs,
+                                      MDOutputStream output,
+                                      int toBeSkipped,
+                                      int nbResults)
+        throws EMDException {
         MergeEngine merger = new MergeEngine(inputs);
         Object obj;
         int nbSent = 0;
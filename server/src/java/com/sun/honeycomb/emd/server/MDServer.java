@@ -36,15 +36,20 @@ package com.sun.honeycomb.emd.server;
 import com.sun.honeycomb.config.ClusterProperties;
 import com.sun.honeycomb.common.ConfigPropertyNames;
 
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.net.Socket;
 import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import com.sun.honeycomb.emd.common.EMDException;
-import java.net.SocketTimeoutException;
 import com.sun.honeycomb.emd.remote.ConnectionFactory;
-import java.io.InterruptedIOException;
 
 
 
@@ -54,6 +59,12 @@ import java.io.InterruptedIOException;
  * It is reponsible for :
  * - getting connections ;
  * - managing a thread pool and associating a connection to a free thread.
+ *
+ * Clients keep their connections open between requests. The server
+ * thread watches all the idle connections with a selector and gives a
+ * connection to a servicing thread only when a request arrives on it.
+ * The servicing thread hands the connection back with
+ * returnConnection() once the reply has been sent.
  */
 
 public class MDServer 
@@ -70,6 +81,8 @@ public class MDServer
     public  static final int MD_SERVER_PORT             = 53264;
     private static final int MD_SERVER_DEFAULT_THREADS  = 10;
     public  static final int MD_SO_TIMEOUT              = 10000;
+    // Longer than the idle timeout of the clients, see ConnectionFactory
+    private static final long MD_IDLE_TIMEOUT           = 300000;
 
     /**********************************************************************
      *
@@ -78,9 +91,13 @@ public class MDServer
      **********************************************************************/
 
     private Thread thServer;
-    private ServerSocket socket;
+    private ServerSocketChannel socket;
+    private Selector selector;
     private ThreadPool threadPool;
-    private boolean running;
+    private volatile boolean running;
+    // Connections given back by the servicing threads
+    private LinkedList returnedConnections;
+    private long lastIdleCheck;
 
     /**********************************************************************
      *
@@ -96,8 +113,10 @@ public class MDServer
             props.getPropertyAsInt(ConfigPropertyNames.PROP_MDSERVER_MAXTHREADS,
                                    MD_SERVER_DEFAULT_THREADS);
         LOG.info("MDServer initialized with " + numThreads + " threads.");
-        threadPool = new ThreadPool(numThreads);
+        threadPool = new ThreadPool(this, numThreads);
         running = false;
+        returnedConnections = new LinkedList();
+        lastIdleCheck = System.currentTimeMillis();
     }
 
     public void startServer()
@@ -105,9 +124,12 @@ public class MDServer
 
         try {
             thServer = new Thread(this);
-            socket = new ServerSocket(MD_SERVER_PORT);
-            socket.setSoTimeout(MD_SO_TIMEOUT);
-            socket.setReuseAddress(true);
+            socket = ServerSocketChannel.open();
+            socket.socket().setReuseAddress(true);
+            socket.socket().bind(new InetSocketAddress(MD_SERVER_PORT));
+            socket.configureBlocking(false);
+            selector = Selector.open();
+            socket.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             EMDException newe = new EMDException("Couldn't create the server socket");
             newe.initCause(e);
@@ -148,8 +170,16 @@ public class MDServer
         // Stop the servicing threads
         threadPool.stop();
 
+        // Close the connections given back in the meantime
+        synchronized (returnedConnections) {
+            while (returnedConnections.size() > 0) {
+                close((Socket)returnedConnections.removeFirst());
+            }
+        }
+
         // Close the socket
         try {
+            selector.close();
             socket.close();
             socket = null;
         } catch (IOException e) {
@@ -166,31 +196,155 @@ public class MDServer
 
         while (running) {
             try {
-                Socket request = socket.accept();
-                request.setSendBufferSize(ConnectionFactory.SOCKET_BUFFER_SIZE);
-                request.setTcpNoDelay(true);
-                request.setKeepAlive(true);
-                threadPool.serveNewRequest(request);
-                
-            } catch (SocketTimeoutException ignored) {
-            } catch (InterruptedIOException e) {
-                // When the server is asked to stop and the node manager interrupts us, we'll get that
-                // exception. Log only if running ...
+                registerReturnedConnections();
+
+                // Keys selected by the last selectNow() are still pending
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select(MD_SO_TIMEOUT);
+                } else {
+                    selector.selectNow();
+                }
+
+                ArrayList requests = new ArrayList();
+                Iterator keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = (SelectionKey)keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        requests.add(key.channel());
+                    }
+                }
+
+                if (requests.size() > 0) {
+                    // Deregisters the cancelled keys, the channels can
+                    // then go back to blocking mode
+                    selector.selectNow();
+                    for (int i=0; i<requests.size(); i++) {
+                        SocketChannel request = (SocketChannel)requests.get(i);
+                        request.configureBlocking(true);
+                        threadPool.serveNewRequest(request.socket());
+                    }
+                }
+
+                closeIdleConnections();
+
+            } catch (IOException e) {
+                // When the server is asked to stop and the node manager
+                // interrupts us, we may get an exception. Log only if
+                // running ...
                 if (running) {
                     LOG.log(Level.SEVERE,
-                            "Got an InterruptedIOException in the MD server thread",
+                            "Got an IOException in the MD server thread",
                             e);
                 }
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE,
-                        "Got an IOException in the MD server thread",
-                        e);
+            }
+        }
+
+        // Close the idle connections
+        Iterator keys = selector.keys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = (SelectionKey)keys.next();
+            if (key.channel() instanceof SocketChannel) {
+                close(((SocketChannel)key.channel()).socket());
             }
         }
         
         LOG.info("The MD server thread is exiting");
     }
 
+    /**
+     * Called by the servicing threads to give back a connection that can
+     * receive other requests.
+     */
+    void returnConnection(Socket connection) {
+        synchronized (returnedConnections) {
+            if (!running) {
+                close(connection);
+                return;
+            }
+            returnedConnections.add(connection);
+        }
+        selector.wakeup();
+    }
+
+    private void accept()
+        throws IOException {
+        SocketChannel request = socket.accept();
+        if (request == null) {
+            return;
+        }
+        try {
+            request.socket().setSendBufferSize(ConnectionFactory.SOCKET_BUFFER_SIZE);
+            request.socket().setTcpNoDelay(true);
+            request.socket().setKeepAlive(true);
+            request.configureBlocking(false);
+            request.register(selector, SelectionKey.OP_READ,
+                             new Long(System.currentTimeMillis()));
+        } catch (IOException e) {
+            close(request.socket());
+            throw e;
+        }
+    }
+
+    private void registerReturnedConnections() {
+        Long now = new Long(System.currentTimeMillis());
+
+        synchronized (returnedConnections) {
+            while (returnedConnections.size() > 0) {
+                Socket connection = (Socket)returnedConnections.removeFirst();
+                try {
+                    SocketChannel channel = connection.getChannel();
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, now);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING,
+                            "Failed to wait for the next request on "+connection,
+                            e);
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < MD_SO_TIMEOUT) {
+            return;
+        }
+        lastIdleCheck = now;
+
+        int nbClosed = 0;
+        Iterator keys = selector.keys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = (SelectionKey)keys.next();
+            Long lastUsed = (Long)key.attachment();
+            if ((key.isValid())
+                && (lastUsed != null)
+                && (now - lastUsed.longValue() > MD_IDLE_TIMEOUT)) {
+                key.cancel();
+                close(((SocketChannel)key.channel()).socket());
+                nbClosed++;
+            }
+        }
+
+        if ((nbClosed > 0) && (LOG.isLoggable(Level.FINE))) {
+            LOG.fine("Closed "+nbClosed+" idle connections");
+        }
+    }
+
+    private static void close(Socket connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     public double getLoad() {
         return(threadPool.getLoad());
     }
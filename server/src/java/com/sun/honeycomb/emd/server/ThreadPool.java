@@ -133,10 +133,11 @@ public class ThreadPool {
                                  " is servicing a request");
                     }
                     
+                    boolean reuse = false;
                     try {
 
                         ObjectBroker broker = new ObjectBroker(requestPending);
-                        broker.serverDispatch();
+                        reuse = broker.serverDispatch();
 
                     } catch (EMDException e) {
                         LOG.log(Level.SEVERE,
@@ -152,7 +153,10 @@ public class ThreadPool {
                                 e);
                     } finally {
                         if (requestPending != null) {
-                            if (!requestPending.isClosed()) {
+                            if ((reuse) && (!requestPending.isClosed())) {
+                                // Wait for the next request of the client
+                                server.returnConnection(requestPending);
+                            } else if (!requestPending.isClosed()) {
                                 try {
                                     requestPending.close();
                                 } catch (IOException ignored) {
@@ -187,8 +191,11 @@ public class ThreadPool {
     private ServerThread[] threads;
     private LinkedList freeThreads;
     private final int nbThreads;
+    private final MDServer server;
 
-    public ThreadPool(int newNbThreads) {
+    public ThreadPool(MDServer newServer,
+                      int newNbThreads) {
+        server = newServer;
         nbThreads = newNbThreads;
         freeThreads = new LinkedList();
         threads = new ServerThread[nbThreads];
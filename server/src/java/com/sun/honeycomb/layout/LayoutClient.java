@@ -182,6 +182,15 @@ public class LayoutClient {
         return (DiskId) layout.get(fragmentId);
     }
 
+    /**
+     * Describe what the layouts depend on. Cells with the same signature
+     * place the fragments of a map id on the same disks.
+     */
+    public String getLayoutSignature() {
+        return mapGen.getClass().getName() + " " + NODES + "x" + DISKS +
+            " " + FRAGS;
+    }
+
     /** Return a randomly chosen layout map id. */
     public static int getLayoutMapId() {
         return randomMapId();
@@ -60,7 +60,9 @@ public class FooterExtension {
 
     public static final short EMPTY_SLOT = 0;
     public static final short LEGAL_HOLD = 1;
-    public static final String TYPE_STRINGS[] = { "EMPTY_SLOT", "LEGAL_HOLD" };
+    public static final short ARCHIVE_INDEX = 2;
+    public static final String TYPE_STRINGS[] = { "EMPTY_SLOT", "LEGAL_HOLD",
+                                                   "ARCHIVE_INDEX" };
 
     public static final String SUFFIX = ".fef";
 
@@ -156,6 +158,8 @@ public class FooterExtension {
                 uee.printStackTrace();
                 output = "[UNKNOWN]";
             }
+        } else if (type == ARCHIVE_INDEX) {
+            output = "[" + data.length + " bytes]";
         }
 
         return output;
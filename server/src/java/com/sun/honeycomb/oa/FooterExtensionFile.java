@@ -133,7 +133,8 @@ public class FooterExtensionFile {
         }
         
         // Check the type
-        if (type != FooterExtension.LEGAL_HOLD) {    
+        if (type != FooterExtension.LEGAL_HOLD &&
+            type != FooterExtension.ARCHIVE_INDEX) {
             throw new OAException("Invalid data type: " + type);
         }
 
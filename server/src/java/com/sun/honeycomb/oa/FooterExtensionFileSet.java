@@ -50,6 +50,7 @@ public class FooterExtensionFileSet {
  
     public static short EMPTY_SLOT = 0;
     public static short LEGAL_HOLD = 1;
+    public static short ARCHIVE_INDEX = 2;
 
     int minFiles;
     int numFiles;
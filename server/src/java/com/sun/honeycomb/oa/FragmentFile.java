@@ -265,6 +265,11 @@ public class FragmentFile implements Codable, Disposable {
         getFragmentFooter().objectContentHash = objectHash;
     }
 
+    public void updateFooterWithLink(NewObjectIdentifier link) throws OAException
+    {
+        getFragmentFooter().linkoid = link;
+    }
+
     /**
      * Method to finalize a fragment file. This will do the following:
      * 1. Write any remaining checksums to the end of the fragment.
@@ -498,6 +503,97 @@ public class FragmentFile implements Codable, Disposable {
         }
     }
 
+    /**
+     * Open the fragment file for a raw copy of its content, footer
+     * included, and return its length. Only the footer is checked, so
+     * deleted stubs can be copied too. Used by the fragment backup.
+     */
+    public long openRaw() throws
+        FragmentNotFoundException,
+        ObjectCorruptedException,
+        OAException
+    {
+        long length;
+        try {
+            daal.open();
+            length = daal.length();
+        } catch (DAALException de) {
+            close();
+            throw new OAException(de);
+        }
+        if (length < FragmentFooter.SIZE) {
+            close();
+            throw new FragmentNotFoundException("File too small - no footer: "
+                                                + daal + ": " + length);
+        }
+
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ByteBuffer readBuffer = pool.checkOutBuffer(FragmentFooter.SIZE);
+        try {
+            readBuffer.clear();
+            readBuffer.limit(FragmentFooter.SIZE);
+            daal.read(readBuffer, length - FragmentFooter.SIZE);
+            readBuffer.flip();
+            FragmentFooter footer = new FragmentFooter();
+            new ByteBufferCoder(readBuffer).decodeKnownClassCodable(footer);
+            if (!footer.isConsistent()) {
+                close();
+                throw new ObjectCorruptedException("Fragment footer is corrupted");
+            }
+            fragmentFooter = footer;
+        } catch (DAALException de) {
+            close();
+            throw new OAException(de);
+        } finally {
+            pool.checkInBuffer(readBuffer);
+        }
+        return length;
+    }
+
+    /** Read the fragment file as it is on disk, see openRaw */
+    public long readRaw(ByteBuffer buf, long offset) throws OAException
+    {
+        try {
+            return daal.read(buf, offset);
+        } catch (DAALException de) {
+            throw new OAException(de);
+        }
+    }
+
+    /**
+     * Create the fragment from a raw copy of its file: createRaw, then
+     * writeRaw for the whole content, close and completeCreate. Nothing
+     * is recomputed, the copy must come from a cell with the same layouts.
+     */
+    public void createRaw() throws OAException
+    {
+        setOp(OP_STORE);
+        try {
+            daal.create();
+        } catch (DAALException de) {
+            close();
+            bad = true;
+            throw new OAException(de);
+        }
+    }
+
+    public void writeRaw(ByteBuffer buf, long offset) throws OAException
+    {
+        try {
+            while (buf.hasRemaining()) {
+                long n = daal.write(buf, offset);
+                if (n <= 0) {
+                    throw new DAALException("short write at " + offset +
+                                            " frag " + daal);
+                }
+                offset += n;
+            }
+        } catch (DAALException de) {
+            bad = true;
+            throw new OAException(de);
+        }
+    }
+
     public void close()
     {
         boolean success = false;
@@ -1753,6 +1849,60 @@ public class FragmentFile implements Codable, Disposable {
         }
     }
 
+    /**
+     * Takes back one reference added by incRefCount; used when the
+     * caller ends up not linking to this object after all. maxRefCount
+     * is left alone since it counts increments, which keeps the
+     * missed-increment correction of incRefCount right for fragments
+     * that missed the one being undone.
+     *
+     * The fragment is assumed to already be locked by this thread.
+     */
+    void decRefCount() throws
+        NotRefereeObjectException,
+        OAException
+    {
+        setOp(OP_REFDEC);
+
+        if(fragmentFooter.refCount == -1 || fragmentFooter.maxRefCount == -1) {
+            throw new NotRefereeObjectException("Can't dec a referrer in 1.0");
+        }
+        if(fragmentFooter.refCount <= 0) {
+            throw new OAException("No reference left to undo on " +
+                                  getOID().toExternalHexString() + " frag " +
+                                  fragmentFooter.fragNum);
+        }
+
+        ByteBuffer newFieldsBuffer = null;
+        try {
+            int oldCount = fragmentFooter.refCount;
+            fragmentFooter.refCount--;
+
+            newFieldsBuffer = serializeFooter();
+            daal.write(newFieldsBuffer, daal.length() - fragmentFooter.SIZE);
+
+            if (LOG.isLoggable(Level.INFO)) {
+                LOG.info("Refcount " + getOID().toExternalHexString() + " " +
+                         fragmentFooter.fragNum + ":" +
+                         oldCount + "->" + fragmentFooter.refCount + "," +
+                         fragmentFooter.maxRefCount + " undo");
+            }
+
+        } catch (DAALException de) {
+            throw new OAException("Failed to decrement footer fields: " + de);
+
+        } finally {
+            if(newFieldsBuffer != null) {
+                ByteBufferPool.getInstance().checkInBuffer(newFieldsBuffer);
+            }
+        }
+    }
+
+    /** True when the last reference to this fragment has been dropped */
+    boolean isUnreferenced() {
+        return(fragmentFooter != null && fragmentFooter.refCount == 0);
+    }
+
     public void openAndLock() throws FragmentNotFoundException, OAException {
         try {
             openReadWriteLocked();
@@ -45,6 +45,7 @@ import java.util.Locale;
 import com.sun.honeycomb.coding.Codable;
 import com.sun.honeycomb.coding.Decoder;
 import com.sun.honeycomb.coding.Encoder;
+import com.sun.honeycomb.common.ConfigPropertyNames;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.common.NoSuchObjectException;
 import com.sun.honeycomb.common.DeletedObjectException;
@@ -52,6 +53,7 @@ import com.sun.honeycomb.common.ObjectCorruptedException;
 import com.sun.honeycomb.common.IncompleteObjectException;
 import com.sun.honeycomb.common.ObjectReliability;
 import com.sun.honeycomb.common.SystemMetadata;
+import com.sun.honeycomb.config.ClusterProperties;
 import com.sun.honeycomb.coordinator.Disposable;
 import com.sun.honeycomb.oa.checksum.ChecksumContext;
 import com.sun.honeycomb.oa.hash.ContentHashContext;
@@ -271,6 +273,19 @@ public class FragmentFileSet implements Codable, Disposable {
             }
         }
     }
+
+    public void updateFooterWithLink(NewObjectIdentifier link) throws OAException {
+        for(int f=0;f<fragFiles.length;f++) {
+            // If recovering, skip non-recovery fragments
+            if(recovery && f != recoverFrag) {
+                threads[f] = null;
+                continue;
+            }
+            if(fragFiles[f] != null && !fragFiles[f].bad()) {
+                fragFiles[f].updateFooterWithLink(link);
+            }
+        }
+    }
     
     /** writes footer to and closes tmp files  */
     public void writeFooterAndCloseSequentially(long actualSize)
@@ -401,21 +416,69 @@ public class FragmentFileSet implements Codable, Disposable {
     }
     
     /**
-     * appends some data to the tmp files - this is done
+     * appends some data to the tmp files. Historically this was done
      * one-by-one due to testing that showed that parallel
      * was slower, presumably because of network congestion
-     * for nfs. the close is parallel however.
+     * for nfs. On local disks and hcnfs the parallel version
+     * makes the append latency the one of the slowest fragment
+     * instead of the sum of all of them, so it is used when
+     * honeycomb.oa.append.parallel is set.
      */
     public void append(ByteBufferList[] buf) throws OAException {
-        errors = 0; // Reset errors for this call
-        
         if(buf.length != reliability.getTotalFragCount()) {
             throw new IllegalArgumentException("OID [" + oid + "] Expected " +  
                                                reliability.getTotalFragCount() +
                                                " fragments, got " + buf.length
                                                );
         }
-        
+
+        if (isParallelAppend()) {
+            appendParallel(buf);
+        } else {
+            appendSequentially(buf);
+        }
+    }
+
+    /**
+     * Parallel method to append data to the tmp files. Each fragment is
+     * written by its own thread of an OA thread pool. The error accounting
+     * is the same as the sequential version.
+     */
+    private void appendParallel(ByteBufferList[] buf) throws OAException {
+        errors = 0; // Reset errors for this call
+
+        int maxTolerableFailures = (reliability.getTotalFragCount() - minGoodFragsRequired);
+
+        OAThreadPool pool = appenderThreads.getPool();
+
+        try {
+            appenderThreads.init(pool,
+                                 oid,
+                                 recovery,
+                                 recoverFrag,
+                                 fragFiles,
+                                 buf);
+
+            int nbStarted = pool.countValidThreads();
+            pool.execute();
+
+            int nbAppended = pool.waitForCompletion();
+            errors = nbStarted - nbAppended;
+        } finally {
+            appenderThreads.checkInPool(pool);
+        }
+
+        if(errors > maxTolerableFailures) {
+            throw new OAException("OID [" + oid + "] Too many append errors - aborting");
+        }
+    }
+
+    /**
+     * appends some data to the tmp files one-by-one.
+     */
+    private void appendSequentially(ByteBufferList[] buf) throws OAException {
+        errors = 0; // Reset errors for this call
+
         int maxTolerableFailures = (reliability.getTotalFragCount() - minGoodFragsRequired);
         
         // Write out the data
@@ -1068,6 +1131,22 @@ public class FragmentFileSet implements Codable, Disposable {
                 LOG.fine("Got lock; no. of increments for " +
                          oid.toExternalHexString() + " = " + maxNumIncs);
 
+            // A fragment whose refCount already dropped to 0 is about
+            // to be deleted by the referrer that dropped it (see
+            // FragmentFile.deleteRefFromRefereeChunk); a new reference
+            // would point at data that is going away. Check all of
+            // them before touching any.
+            for (int f = 0; f < fragFiles.length; f++) {
+                if (fragFiles[f] != null && !fragFiles[f].bad()
+                    && (fragFiles[f].isDeleted()
+                        || fragFiles[f].isUnreferenced())) {
+                    throw new DeletedFragmentException(
+                        "Can't add a reference to " +
+                        oid.toExternalHexString() + ": frag " + f +
+                        " has no reference left");
+                }
+            }
+
             int incs = 0;
             for (int f = 0; f < fragFiles.length; f++) {
                 try {
@@ -1108,6 +1187,44 @@ public class FragmentFileSet implements Codable, Disposable {
         }
     }
     
+    /**
+     * Undo an incRefCount: decrement the ref count of all fragments
+     * under the set lock.
+     */
+    public void decRefCount()
+            throws OAException, FragmentFileSetLockFailedException {
+
+        errors = 0; // Reset errors for this call
+
+        try {
+            openAndLock();
+
+            int decs = 0;
+            for (int f = 0; f < fragFiles.length; f++) {
+                try {
+                    if(fragFiles[f] != null && !fragFiles[f].bad()) {
+                        fragFiles[f].decRefCount();
+                        decs++;
+                    }
+                } catch (OAException ie) {
+                    errors++;
+                    LOG.log(Level.WARNING, "Failed to decrement frag " + f +
+                            " of " + oid.toExternalHexString(), ie);
+                }
+            }
+
+            // Fragments that missed the decrement keep a ref count
+            // that is too high, which only delays the delete
+            if (decs == 0) {
+                throw new OAException("Failed to decrement any fragment of " +
+                                      oid.toExternalHexString());
+            }
+        }
+        finally {
+            unlockAndClose();
+        }
+    }
+    
     public void setRetentionTime(long date) throws OAException {
         errors = 0; // Reset errors for this call
 
@@ -1674,6 +1791,62 @@ public class FragmentFileSet implements Codable, Disposable {
         }
     }
 
+    /**
+     * Class to append a block of data to a temporary fragment.
+     */
+    public static class FragmentAppender
+        implements OAThreads.RunnableCode {
+
+        FragmentFile fragmentFile;
+        int fragmentNumber;
+        ByteBufferList buffers;
+        Exception exception = null;
+
+        public FragmentAppender() {
+        }
+
+        public void initializeArgs(FragmentFile fragmentFile,
+                                   int fragmentNumber,
+                                   ByteBufferList buffers) {
+            // Arguments
+            this.fragmentFile = fragmentFile;
+            this.fragmentNumber = fragmentNumber;
+            this.buffers = buffers;
+
+            // Internal variables
+            exception = null;
+        }
+
+        /**
+         * Get the status of the operation.
+         *
+         * @return boolean true on success
+         * @throws Exception
+         */
+        public void checkStatus() throws Exception {
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        /**
+         * The run method that appends to the fragment
+         */
+        public void run() {
+            exception = null;
+            try {
+                fragmentFile.append(buffers);
+            } catch(Exception e) {
+                exception = e;
+                LOG.warning("append failed to frag [" + fragmentNumber +
+                            "]: " + e);
+            } finally {
+                // Do not hold on to the caller's buffers
+                buffers = null;
+            }
+        }
+    }
+
     /**
      * Class to rename a temporary fragment to its permanent name.
      */
@@ -2123,4 +2296,23 @@ public class FragmentFileSet implements Codable, Disposable {
     private static WriteAndCloseThreads closeThreads = new WriteAndCloseThreads();
     private static final RenamerThreads renamerThreads = new RenamerThreads();
     private static final DeleteThreads deleteThreads = new DeleteThreads();
+    private static final AppenderThreads appenderThreads = new AppenderThreads();
+
+    private static Boolean parallelAppend = null;
+
+    /**
+     * Returns true if the fragments of a block are to be appended in
+     * parallel. The property is read on first use.
+     */
+    private static synchronized boolean isParallelAppend() {
+        if (parallelAppend == null) {
+            ClusterProperties props = ClusterProperties.getInstance();
+            parallelAppend = Boolean.valueOf
+                (props.getPropertyAsBoolean(ConfigPropertyNames.PROP_OA_PARALLEL_APPEND,
+                                            false));
+            LOG.info("Parallel fragment append is " +
+                     (parallelAppend.booleanValue() ? "on" : "off"));
+        }
+        return parallelAppend.booleanValue();
+    }
 }
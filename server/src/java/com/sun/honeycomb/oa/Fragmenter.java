@@ -42,7 +42,11 @@ import com.sun.honeycomb.oa.hash.ContentHashContext;
 import com.sun.honeycomb.oa.erasure.ErasureAlgorithm;
 import com.sun.honeycomb.oa.checksum.ChecksumAlgorithm;
 import com.sun.honeycomb.oa.checksum.ChecksumContext;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
 import com.sun.honeycomb.common.ObjectReliability;
+import com.sun.honeycomb.config.ClusterProperties;
 import com.sun.honeycomb.resources.ByteBufferList;
 import com.sun.honeycomb.resources.ByteBufferPool;
 
@@ -122,6 +126,16 @@ public class Fragmenter {
             fragSize = OAClient.OA_FRAGMENT_SIZE;
         }
         
+        if (!firstFragFull && isFused()) {
+            ByteBufferList[] frags =
+                fragmentFused(buf, fset, fragSize, n, m, size - pad, oactx);
+            fset.append(frags);
+            for(int f=0; f<frags.length; f++) {
+                ByteBufferPool.getInstance().checkInBufferList(frags[f]);
+            }
+            return;
+        }
+
         // Compute the running content hash and update the context
         ContentHashContext hashContext = oactx.getContentHashContext();
         ContentHashAlgorithm hashAlgorithm =
@@ -139,8 +153,10 @@ public class Fragmenter {
             fullFrag = buf.slice(0, buf.remaining());
         }
         
+        long start = System.nanoTime();
         ByteBufferList[] frags =
             erasureAlgorithm.getDataAndParityBuffers(buf, fragSize, n, m);
+        codingLatency.recordSince(start);
         
         if(firstFragFull) {
             ByteBufferPool.getInstance().
@@ -184,6 +200,134 @@ public class Fragmenter {
         }
     }
     
+    /**
+     * Single pass version of the content hash, erasure coding and
+     * checksum steps of fragmentAndAppend. The data fragments are walked
+     * in the order of the object, one stripe at a time, and each stripe
+     * is hashed, added to the parities and checksummed while it is in
+     * the cache, instead of going over the whole block once for every
+     * step. The parities, which are small enough to stay in the cache
+     * for the whole block, are checksummed at the end. The result is the
+     * same as the one of the separate steps.
+     *
+     * @param buf the data of the block, a multiple of fragSize*n bytes
+     * @param hashLength the number of bytes of buf that are object data,
+     *        the remaining ones being padding
+     * @return ByteBufferList[] the n data and m parity fragments, to be
+     *         returned to the pool by the caller
+     */
+    private ByteBufferList[] fragmentFused(ByteBufferList buf,
+                                           FragmentFileSet fset,
+                                           int fragSize,
+                                           int n,
+                                           int m,
+                                           long hashLength,
+                                           OAContext oactx) {
+        ByteBufferPool pool = ByteBufferPool.getInstance();
+        ContentHashContext hashContext = oactx.getContentHashContext();
+        ContentHashAlgorithm hashAlgorithm =
+            ContentHashAlgorithm.getInstance(hashContext);
+        ErasureAlgorithm erasureAlgorithm =
+            ErasureAlgorithm.getInstance(ErasureAlgorithm.REED_SOLOMON);
+
+        ByteBuffer[] parity = new ByteBuffer[m];
+        for (int p = 0; p < m; p++) {
+            parity[p] = pool.checkOutBuffer(fragSize);
+            parity[p].clear();
+            parity[p].limit(fragSize);
+        }
+
+        // Only the parity updates are timed, hashing and checksums are not
+        // erasure coding
+        long codingNanos = 0;
+
+        for (int d = 0; d < n; d++) {
+            ChecksumContext checksumContext =
+                fset.getFragmentChecksumContext(d);
+            ChecksumAlgorithm checksumAlgorithm = (checksumContext == null)
+                ? null : ChecksumAlgorithm.getInstance(checksumContext);
+
+            // Both are powers of two, so the larger is a multiple of
+            // the data size covered by a checksum
+            int stripeSize = FUSED_STRIPE_SIZE;
+            if (checksumAlgorithm != null) {
+                stripeSize = Math.max(stripeSize,
+                                      checksumAlgorithm.getDataBlockSize());
+            }
+
+            for (int off = 0; off < fragSize; off += stripeSize) {
+                int len = Math.min(stripeSize, fragSize - off);
+                long logical = (long) d * fragSize + off;
+                ByteBufferList stripe = buf.slice((int) logical, len);
+
+                // 1. Content hash, up to the padding
+                long toHash = Math.min(len, hashLength - logical);
+                if (toHash > 0) {
+                    hashAlgorithm.update(stripe, 0, toHash, hashContext);
+                }
+
+                // 2. Parities
+                ByteBuffer[] regions = stripe.getBuffers();
+                int regionOffset = off;
+                long start = System.nanoTime();
+                for (int r = 0; r < regions.length; r++) {
+                    erasureAlgorithm.updateParityBuffers(regions[r], d,
+                                                         parity,
+                                                         regionOffset,
+                                                         n, m);
+                    regionOffset += regions[r].remaining();
+                }
+                codingNanos += System.nanoTime() - start;
+
+                // 3. Checksums, the stripe is a multiple of the data
+                //    size covered by a checksum
+                if (checksumAlgorithm != null) {
+                    checksumAlgorithm.update(stripe, checksumContext);
+                }
+
+                stripe.clear();
+            }
+        }
+        codingLatency.record(codingNanos / 1000);
+
+        ByteBufferList[] frags = new ByteBufferList[n + m];
+        ByteBufferList[] dataFrags = buf.slice(fragSize);
+        for (int d = 0; d < n; d++) {
+            frags[d] = dataFrags[d];
+            frags[d].rewind();
+        }
+        for (int p = 0; p < m; p++) {
+            frags[n + p] = new ByteBufferList();
+            frags[n + p].appendBuffer(parity[p]);
+            pool.checkInBuffer(parity[p]);
+
+            ChecksumContext checksumContext =
+                fset.getFragmentChecksumContext(n + p);
+            if (checksumContext != null) {
+                ChecksumAlgorithm.getInstance(checksumContext).
+                    update(frags[n + p], checksumContext);
+                frags[n + p].rewind();
+            }
+        }
+        return frags;
+    }
+
+    /**
+     * Returns true if the block is hashed, encoded and checksummed in
+     * a single pass. The property is read on first use.
+     */
+    private static synchronized boolean isFused() {
+        if (fused == null) {
+            ClusterProperties props = ClusterProperties.getInstance();
+            fused = Boolean.valueOf
+                (props.getPropertyAsBoolean(ConfigPropertyNames.PROP_OA_FRAGMENTER_FUSED,
+                                            false));
+            LOG.info("Single pass fragmenting is " +
+                     (fused.booleanValue() ? "on" : "off"));
+        }
+        return fused.booleanValue();
+    }
+
     /* Contract:
      *   - offset is block aligned
      *   - lenght is n-byte aligned
@@ -351,9 +495,11 @@ public class Fragmenter {
         
             ErasureAlgorithm erasureAlgorithm =
                 ErasureAlgorithm.getInstance(ErasureAlgorithm.REED_SOLOMON);
+            long start = System.nanoTime();
             erasureAlgorithm.reconstructDataFragments(dataFrags, parityFrags,
                                                       validData, validParity,
                                                       fragSize);   
+            codingLatency.recordSince(start);
 
             // It would be nice to cue the DataDoctor to repair this block, 
             // since we have the bits on hand...
@@ -375,8 +521,16 @@ public class Fragmenter {
     protected static final Logger LOG = 
         Logger.getLogger(Fragmenter.class.getName());
     private static Fragmenter fragmenter = null;
+
+    private static final LatencyHistogram codingLatency =
+        Metrics.histogram(Metrics.ERASURE_CODING);
     
     // A Botros block is a block w/ first frag full
     public static final int MAX_BOTROS_BLOCK_SIZE = 24*1024;
     private static final boolean SMALL_FIRST_FRAG_FULL = true;
+
+    // Bytes of a data fragment processed per step of the fused pass
+    private static final int FUSED_STRIPE_SIZE =
+        4 * ChecksumAlgorithm.DATA_BLOCK_SIZE;
+    private static Boolean fused = null;
 }
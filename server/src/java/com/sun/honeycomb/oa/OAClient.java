@@ -427,10 +427,12 @@ public class OAClient implements ContextConsumer {
 
         FooterExtensionFileSet fefSet = new FooterExtensionFileSet(oid,
                                             layout, reliability);
-        try {
-            fefSet.setLastModified(mtime);
-        } catch (OAException oae) {
-            throw new ArchiveException(oae);
+        synchronized (extensionLock(oid)) {
+            try {
+                fefSet.setLastModified(mtime);
+            } catch (OAException oae) {
+                throw new ArchiveException(oae);
+            }
         }
     }
 
@@ -514,17 +516,89 @@ public class OAClient implements ContextConsumer {
                                             layout, reliability);
 
         // Get the UTF-8 bytes for the data
+        synchronized (extensionLock(oid)) {
+            try {
+                byte[] data = legalHold.getBytes("UTF8");
+                fefSet.add(fefSet.LEGAL_HOLD, data);
+            } catch (UnsupportedEncodingException uee) {
+                throw new RuntimeException(uee);
+            } catch (OAException e) {
+                throw new ArchiveException(e);
+            }
+        }
+
+        // Debug
+        LOG.info("Added legal hold [" + legalHold + "] to " + oid);
+    }
+
+    // Get the member index of an archive object, null if there is none
+    public byte[] getArchiveIndex(NewObjectIdentifier oid)
+        throws ArchiveException {
+
+        // Build a disk array from the layout
+        Layout layout = null;
+        if ((isTestInstance) && (testLayout != null)) {
+            layout = testLayout;
+        } else {
+            layout = layoutClient.getLayoutForRetrieve(oid.getLayoutMapId());
+        }
+
+        FooterExtensionFileSet fefSet = new FooterExtensionFileSet(oid,
+                                            layout, reliability);
+        ArrayList data = null;
         try {
-            byte[] data = legalHold.getBytes("UTF8");
-            fefSet.add(fefSet.LEGAL_HOLD, data);
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException(uee);
+            data = fefSet.getType(fefSet.ARCHIVE_INDEX);
         } catch (OAException e) {
             throw new ArchiveException(e);
         }
+        if (data == null) {
+            return null;
+        }
+        return (byte[]) data.get(data.size() - 1);
+    }
 
-        // Debug
-        LOG.info("Added legal hold [" + legalHold + "] to " + oid);
+    // Store the member index of an archive object, replacing any
+    // previous one. The index is derived from the (immutable) data so
+    // it is only written once, by the first reader that builds it.
+    // The index is written by the local node; nodes running an older
+    // release read ARCHIVE_INDEX slots as opaque data but cannot add
+    // them.
+    public void putArchiveIndex(NewObjectIdentifier oid, byte[] index)
+        throws ArchiveException {
+
+        // Build a disk array from the layout
+        Layout layout = null;
+        if ((isTestInstance) && (testLayout != null)) {
+            layout = testLayout;
+        } else {
+            layout = layoutClient.getLayoutForRetrieve(oid.getLayoutMapId());
+        }
+
+        FooterExtensionFileSet fefSet = new FooterExtensionFileSet(oid,
+                                            layout, reliability);
+        synchronized (extensionLock(oid)) {
+            try {
+                ArrayList old = fefSet.getType(fefSet.ARCHIVE_INDEX);
+                for (int i = 0; old != null && i < old.size(); i++) {
+                    fefSet.remove(fefSet.ARCHIVE_INDEX, (byte[]) old.get(i));
+                }
+                fefSet.add(fefSet.ARCHIVE_INDEX, index);
+            } catch (OAException e) {
+                throw new ArchiveException(e);
+            }
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Stored " + index.length + " byte archive index for " + oid);
+        }
+    }
+
+    // The footer extension files are updated by read-modify-write of
+    // each file; updates of the same object are serialized on one of
+    // these locks so they do not overwrite each other.
+    private static Object extensionLock(NewObjectIdentifier oid) {
+        return extensionLocks[(oid.hashCode() & 0x7fffffff) %
+                              extensionLocks.length];
     }
 
     // Remove a legal hold tag
@@ -555,13 +629,15 @@ public class OAClient implements ContextConsumer {
                                             layout, reliability);
 
         // Get the UTF-8 bytes for the data
-        try {
-            byte[] data = legalHold.getBytes("UTF8");
-            fefSet.remove(fefSet.LEGAL_HOLD, data);
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException(uee);
-        } catch (OAException e) {
-            throw new ArchiveException(e);
+        synchronized (extensionLock(oid)) {
+            try {
+                byte[] data = legalHold.getBytes("UTF8");
+                fefSet.remove(fefSet.LEGAL_HOLD, data);
+            } catch (UnsupportedEncodingException uee) {
+                throw new RuntimeException(uee);
+            } catch (OAException e) {
+                throw new ArchiveException(e);
+            }
         }
 
         // Debug
@@ -590,6 +666,53 @@ public class OAClient implements ContextConsumer {
     }
 
 
+    /**
+     * Gives back a reference taken by incRefCount that the caller
+     * ended up not using. If this fails the reference is leaked: the
+     * object is kept around longer, never deleted too early.
+     */
+    public void decRefCount(NewObjectIdentifier initialoid)
+        throws ArchiveException {
+        NewObjectIdentifier oid =
+            new NewObjectIdentifier(initialoid.toString());
+
+        boolean moreChunks = true;
+        int chunkIndex = 0;
+        long numChunks = 0;
+        long objectSize = -1;
+        while(moreChunks) {
+            objectSize = decChunkRefCount(oid);
+            numChunks = calcNumChunks(objectSize);
+            if (++chunkIndex == numChunks) {
+                moreChunks = false;
+            } else {
+                setChunkAndLayout(oid, chunkIndex);
+            }
+        }
+    }
+
+    /**
+     * Points an object that is still being stored at a different
+     * referee. The new link goes into the footers written by close;
+     * the caller owns the refCount of both the old and the new referee.
+     */
+    public void relink(Context ctx, NewObjectIdentifier link)
+        throws ArchiveException {
+        OAContext oactx =
+            (OAContext) ctx.getPersistentObject(OAContext.CTXTAG);
+
+        if(oactx == null) {
+            throw new IllegalArgumentException("Context is missing OA state");
+        }
+
+        try {
+            oactx.getFragmentFileSet().updateFooterWithLink(link);
+        } catch (OAException e) {
+            throw new ArchiveException("Cannot update footer with link: "
+                                       + e.getMessage());
+        }
+    }
+
     public void decRefFromReferee(NewObjectIdentifier initialoid)
         throws ArchiveException {
 
@@ -656,6 +779,10 @@ public class OAClient implements ContextConsumer {
                 fset.incRefCount();
                 return getObjectSize(fset);
             }
+            catch (DeletedFragmentException e) {
+                // Retrying won't bring it back
+                throw new DeletedObjectException(e.getMessage());
+            }
             catch (FragmentFileSetLockFailedException e) {
                 LOG.info("FragmentFileSet incRefCount failed (try " + i +
                          "), OID " + oid.toExternalHexString());
@@ -677,6 +804,52 @@ public class OAClient implements ContextConsumer {
                                    + oid + "]");
     }
 
+    /** Undo an incRefCount on a single chunk */
+    private long decChunkRefCount(NewObjectIdentifier oid)
+        throws ArchiveException {
+        Layout layout = null;
+        if ((isTestInstance) && (testLayout != null)) {
+            layout = testLayout;
+        } else {
+            layout = layoutClient.getLayoutForRetrieve(oid.getLayoutMapId());
+        }
+
+        FragmentFileSet fset;
+        try {
+            fset = new FragmentFileSet(oid,
+                                       layout,
+                                       reliability,
+                                       NOT_RECOVERY);
+        } catch (OAException oae) {
+            throw new ArchiveException("Failed to create fragment set " +
+                                       "object for oid [" + oid + "]", oae);
+        }
+
+        for (int i = 0; i < NUM_LOCK_RETRIES; i++) {
+            try {
+                fset.decRefCount();
+                return getObjectSize(fset);
+            }
+            catch (FragmentFileSetLockFailedException e) {
+                LOG.info("FragmentFileSet decRefCount failed (try " + i +
+                         "), OID " + oid.toExternalHexString());
+            }
+            catch (OAException oae) {
+                LOG.log(Level.WARNING,
+                        "FragmentFileSet decRefCount failed (try " + i +
+                        "), OID " + oid.toExternalHexString(),
+                        oae);
+            }
+
+            try {
+                Thread.sleep(prng.nextInt(LOCK_RETRY_DELAY));
+            } catch (InterruptedException e) {}
+        }
+
+        throw new ArchiveException("Failed to dec refCount for oid [ "
+                                   + oid + "]");
+    }
+
     // RETRIEVE METHODS //
     public SystemMetadata open(NewObjectIdentifier oid, Context ctx)
         throws ArchiveException {
@@ -1361,6 +1534,7 @@ public class OAClient implements ContextConsumer {
         sm.setSize(sms[sms.length-1].getSize());
         sm.setContentHash(sms[sms.length-1].getContentHash());
         sm.setHashAlgorithm(sms[sms.length-1].getHashAlgorithm());
+        sm.setMetadataField(sms[sms.length-1].getMetadataField());
         return sm;
     }
 
@@ -2233,6 +2407,9 @@ public class OAClient implements ContextConsumer {
 
         sm.setSize(oactx.getObjectSize());
         sm.setContentHash(oactx.getContentHash());
+        if (oactx.getMetadataField() != null) {
+            sm.setMetadataField(oactx.getMetadataField());
+        }
 
         String link = "";
         if(sm.getLink().compareTo(NewObjectIdentifier.NULL) != 0) {
@@ -2489,6 +2666,7 @@ public class OAClient implements ContextConsumer {
                     SystemMetadata sm = getLastSystemMetadata(oid);
                     size = sm.getSize();
                     contentHash = sm.getContentHash();
+                    oactx.setMetadataField(sm.getMetadataField());
                 }
             }
             oactx.setObjectSize(size);
@@ -3054,6 +3232,16 @@ public class OAClient implements ContextConsumer {
     // Max time (ms) to wait before re-trying to acquire the lock
     private static final int LOCK_RETRY_DELAY = 100; // ms
 
+    // Locking for the footer extension updates, striped by oid
+    private static final int NUM_EXTENSION_LOCKS = 64;
+    private static final Object[] extensionLocks =
+        new Object[NUM_EXTENSION_LOCKS];
+    static {
+        for (int i = 0; i < extensionLocks.length; i++) {
+            extensionLocks[i] = new Object();
+        }
+    }
+
     //
     // TEST MEMBERS
     //
@@ -90,6 +90,10 @@ public class OAContext implements Codable, Disposable {
     void setContentHash(byte[] contentHash) {this.contentHash = contentHash;}
     byte[] getContentHash() {return contentHash;}
 
+    // Only the last chunk of an object has the metadata field
+    void setMetadataField(byte[] metadataField) {this.metadataField = metadataField;}
+    byte[] getMetadataField() {return metadataField;}
+
     void setFragmentSize(int fragmentSize) {this.fragmentSize = fragmentSize;}
     int getFragmentSize() {return fragmentSize;}
 
@@ -171,4 +175,5 @@ public class OAContext implements Codable, Disposable {
     private int blockSize = -1; // read only
     private long chunkSize = -1; // read and write
     private byte[] contentHash = null;
+    private byte[] metadataField = null; // read only, multi chunk
 }
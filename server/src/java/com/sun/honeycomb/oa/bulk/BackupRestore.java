@@ -38,6 +38,8 @@ import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 
 import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 
 public class BackupRestore {
 
@@ -86,7 +88,7 @@ public class BackupRestore {
         BackupSession session = new BackupSession(start, 
                                                   end,
                                                   channel,
-                                                  STREAM_OA_OBJ,
+                                                  getBackupFormat(),
                                                   callback,
                                                   options);
         
@@ -100,6 +102,18 @@ public class BackupRestore {
         return session;
     }
 
+    /**
+     * The fragment format copies the fragment files as they are. It is
+     * faster but the stream can only be restored on a cell with the same
+     * layouts.
+     */
+    private static String getBackupFormat() {
+        String format = ClusterProperties.getInstance().getProperty(
+                            ConfigPropertyNames.PROP_OA_BACKUP_FORMAT,
+                            "object");
+        return format.equals("fragment") ? STREAM_7_FRAGS : STREAM_OA_OBJ;
+    }
+
     private static final int TAPE_RESTORE_OPTIONS = 
         Session.SYSCACHE_RESTORE_OPTION;
 
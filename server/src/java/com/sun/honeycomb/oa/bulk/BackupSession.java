@@ -45,13 +45,19 @@ import com.sun.honeycomb.cm.cluster_membership.CMMApi;
 import com.sun.honeycomb.cm.cluster_membership.messages.api.ConfigChangeNotif;
 import com.sun.honeycomb.cm.jvm_agent.CMAException;
 import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 import com.sun.honeycomb.emd.common.SysCacheException;
 import com.sun.honeycomb.emd.server.SysCache;
 import com.sun.honeycomb.oa.OAException;
 import com.sun.honeycomb.oa.bulk.stream.ContentBlockParser;
+import com.sun.honeycomb.oa.bulk.stream.ObjectPrefetcher;
 
 public class BackupSession extends BaseBackupSession implements Observer {
 
+    private static final int DEFAULT_PREFETCH_THREADS = 4;
+    private static final long DEFAULT_PREFETCH_BYTES = 32 * 1024 * 1024;
+
     private boolean _changes = true;
     private ArrayList _pendingChanges;
 
@@ -125,6 +131,40 @@ public class BackupSession extends BaseBackupSession implements Observer {
     }
 
 
+    ObjectPrefetcher createPrefetcher(OIDIterator oids) {
+        ClusterProperties props = ClusterProperties.getInstance();
+        int threads = props.getPropertyAsInt(
+                          ConfigPropertyNames.PROP_OA_BACKUP_THREADS,
+                          DEFAULT_PREFETCH_THREADS);
+        long budget = props.getPropertyAsLong(
+                          ConfigPropertyNames.PROP_OA_BACKUP_PREFETCH_BYTES,
+                          DEFAULT_PREFETCH_BYTES);
+        if (threads <= 1)
+            return null;
+        return new ObjectPrefetcher(oids, threads, budget);
+    }
+
+    /**
+     * Read the change journals of the nodes when they cover the whole
+     * window, query the system cache otherwise.
+     */
+    OIDIterator createOIDIterator(long start, long end, boolean force)
+        throws ArchiveException {
+        ClusterProperties props = ClusterProperties.getInstance();
+        if (props.getPropertyAsBoolean(ConfigPropertyNames.PROP_OA_BACKUP_JOURNAL,
+                                       false)) {
+            OIDIterator oids = JournalOIDIterator.open(start, end);
+            if (oids != null) {
+                LOG.info("backup from " + new Date(start) + " to "
+                         + new Date(end) + " reads the change journals");
+                return oids;
+            }
+            LOG.info("backup from " + new Date(start) + " to "
+                     + new Date(end) + " falls back to the system cache");
+        }
+        return super.createOIDIterator(start, end, force);
+    }
+
     public void checkPendingChanges() 
         throws SerializationException, ArchiveException, OAException, IOException {
         // check for configuration updates and stream them out if they exist.
@@ -42,6 +42,7 @@ import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.oa.OAException;
 import com.sun.honeycomb.common.ArchiveException;
 import com.sun.honeycomb.oa.bulk.stream.Constants;
+import com.sun.honeycomb.oa.bulk.stream.ObjectPrefetcher;
 import com.sun.honeycomb.oa.bulk.stream.StreamWriter;
 import com.sun.honeycomb.oa.bulk.stream.ContentBlockParser;
  
@@ -73,7 +74,7 @@ public abstract class BaseBackupSession extends Session {
         // perform check, instantiate Iterator
         boolean force = ((options & Session.FORCE_BACKUP) != 0);
         try {
-            _oids = new SysCacheOIDIterator (start, end, force);
+            _oids = createOIDIterator(start, end, force);
         } catch(ArchiveException ae){
             throw new ReportableException("Unable to query from " + new Date(start) + " to " + new Date(end), ae);
         }
@@ -122,12 +123,30 @@ public abstract class BaseBackupSession extends Session {
             long start = System.currentTimeMillis();
             long offset = _writer.getOffset();
 
-            while (_oids.hasNext()) {
-                NewObjectIdentifier oid = _oids.next();
-                _streamParser.writeBlock(ContentBlockParser.OBJECT_BLOCK_PARSER,
-                                         _writer, oid);
-                checkAbort();
-                checkPendingChanges();
+            ObjectPrefetcher prefetcher = null;
+            if (_streamFormat.equals(BackupRestore.STREAM_OA_OBJ))
+                prefetcher = createPrefetcher(_oids);
+
+            if (prefetcher == null) {
+                while (_oids.hasNext()) {
+                    NewObjectIdentifier oid = _oids.next();
+                    _streamParser.writeBlock(ContentBlockParser.OBJECT_BLOCK_PARSER,
+                                             _writer, oid);
+                    checkAbort();
+                    checkPendingChanges();
+                }
+            } else {
+                // same stream, objects read ahead in iterator order
+                try {
+                    while (prefetcher.hasNext()) {
+                        _streamParser.writeBlock(ContentBlockParser.OBJECT_BLOCK_PARSER,
+                                                 _writer, prefetcher.next());
+                        checkAbort();
+                        checkPendingChanges();
+                    }
+                } finally {
+                    prefetcher.close();
+                }
             }
 
             float delta = (float) ((System.currentTimeMillis() - start) / 1000.0);
@@ -149,6 +168,22 @@ public abstract class BaseBackupSession extends Session {
         return _writer.getOffset();
     }
 
+    /**
+     * @return the prefetcher to read the objects of the session ahead of
+     *         the stream, or null to read them one at a time
+     */
+    ObjectPrefetcher createPrefetcher(OIDIterator oids) {
+        return null;
+    }
+
+    /**
+     * @return the iterator over the objects changed in [start, end]
+     */
+    OIDIterator createOIDIterator(long start, long end, boolean force)
+        throws ArchiveException {
+        return new SysCacheOIDIterator(start, end, force);
+    }
+
     abstract void checkPendingChanges()  throws SerializationException, OAException, ArchiveException, IOException;
     abstract boolean checkSysCacheState(long timestamp)  throws SerializationException;
 }
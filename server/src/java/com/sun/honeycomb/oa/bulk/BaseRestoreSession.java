@@ -61,7 +61,10 @@ abstract class BaseRestoreSession extends Session {
         String streamFormat = getHeader(Constants.CONTENT_DESCRIPTION_HEADER);
         if (streamFormat == null)
             throw new SerializationException(Constants.CONTENT_DESCRIPTION_HEADER + " header not found in backup stream.");
-        if (!streamFormat.equals(getStreamFormat()))
+        if (streamFormat.equals(BackupRestore.STREAM_7_FRAGS))
+            // the layout is checked by the fragment serializer
+            _streamFormat = streamFormat;
+        else if (!streamFormat.equals(getStreamFormat()))
             throw new SerializationException("Unexpected stream format, expected '" + 
                                              getStreamFormat() + 
                                              "' got: '" +  streamFormat + "'");
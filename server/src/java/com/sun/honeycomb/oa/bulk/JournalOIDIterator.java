@@ -0,0 +1,168 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bulk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.config.ClusterProperties;
+import com.sun.honeycomb.coordinator.ChangeJournal;
+import com.sun.honeycomb.protocol.server.ProtocolProxy;
+
+/**
+ * Iterates over the objects changed in a time window by reading the
+ * change journal of every node, see coordinator.ChangeJournal. An
+ * object changed several times in the window is returned once, as long
+ * as it is among the MAX_SEEN objects returned or met again last; past
+ * that, an object changed long after its previous change can come
+ * again.
+ *
+ * The journals are only used if every node is up and its journal holds
+ * all the changes since the start of the window; open() returns null
+ * otherwise and the session queries the system cache instead.
+ */
+public class JournalOIDIterator implements OIDIterator {
+
+    private static final Logger LOG =
+        Logger.getLogger(JournalOIDIterator.class.getName());
+
+    private static final int BATCH_SIZE = 5*1024;
+    private static final int MAX_SEEN = 256*1024;
+
+    private final long _start;
+    private final long _end;
+    private final ProtocolProxy[] _proxies;
+    // oids returned, least recently met first
+    private final Map _seen = new LinkedHashMap(16, .75F, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() <= MAX_SEEN) {
+                    return false;
+                }
+                if (!_evicting) {
+                    _evicting = true;
+                    LOG.warning("more than " + MAX_SEEN + " objects changed"
+                                + ", some may be returned twice");
+                }
+                return true;
+            }
+        };
+    private boolean _evicting = false;
+
+    private int _node = 0;
+    private ChangeJournal.Batch _batch;
+    private int _index = 0;
+    private NewObjectIdentifier _next = null;
+
+    private JournalOIDIterator(long start, long end, ProtocolProxy[] proxies,
+                               ChangeJournal.Batch first) {
+        _start = start;
+        _end = end;
+        _proxies = proxies;
+        _batch = first;
+    }
+
+    /**
+     * @return an iterator over the journals of all the nodes, or null if
+     *         they do not cover the window [start, end]
+     */
+    public static JournalOIDIterator open(long start, long end) {
+        int numNodes = ClusterProperties.getInstance().getPropertyAsInt
+            (ConfigPropertyNames.PROP_NUM_NODES, 0);
+        ProtocolProxy[] proxies = ProtocolProxy.getProxies();
+        if (proxies == null || numNodes <= 0 || proxies.length < numNodes) {
+            LOG.info("not all the nodes are up, cannot use the journals");
+            return null;
+        }
+
+        // check every journal before reading the first one in full
+        ChangeJournal.Batch first = null;
+        for (int i = 0; i < proxies.length; i++) {
+            ChangeJournal.Batch batch =
+                proxies[i].readJournal(start, end, -1, 0,
+                                       (i == 0) ? BATCH_SIZE : 0);
+            if (batch == null || !batch.covered) {
+                LOG.info("journal " + i + " does not cover "
+                         + start + " - " + end);
+                return null;
+            }
+            if (i == 0) {
+                first = batch;
+            }
+        }
+        return new JournalOIDIterator(start, end, proxies, first);
+    }
+
+    public boolean hasNext() throws ArchiveException {
+        while (_next == null) {
+            if (_index < _batch.oids.length) {
+                String hex = _batch.oids[_index++];
+                if (_seen.put(hex, Boolean.TRUE) == null) {
+                    _next = NewObjectIdentifier.fromHexString(hex);
+                }
+                continue;
+            }
+            long segment;
+            long offset;
+            if (!_batch.done) {
+                segment = _batch.segment;
+                offset = _batch.offset;
+            } else if (_node + 1 < _proxies.length) {
+                _node++;
+                segment = -1;
+                offset = 0;
+            } else {
+                return false;
+            }
+            _batch = _proxies[_node].readJournal(_start, _end, segment,
+                                                 offset, BATCH_SIZE);
+            _index = 0;
+            if (_batch == null || !_batch.covered) {
+                throw new ArchiveException("journal " + _node
+                                           + " no longer covers "
+                                           + _start + " - " + _end);
+            }
+        }
+        return true;
+    }
+
+    public NewObjectIdentifier next() {
+        NewObjectIdentifier oid = _next;
+        _next = null;
+        return oid;
+    }
+}
@@ -188,7 +188,7 @@ public abstract class Session {
      * @param key
      * @return
      */
-    String getHeader(String key) {
+    public String getHeader(String key) {
         return (String)_headers.get(key);
     }
 
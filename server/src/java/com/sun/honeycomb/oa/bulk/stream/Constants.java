@@ -50,6 +50,8 @@ public class Constants {
     public static final String CREATION_TIME = "Creation-Time";
     public static final String START_TIME = "Start-Time";
     public static final String END_TIME = "End-Time";
+    // fragment streams only, see LayoutClient.getLayoutSignature
+    public static final String LAYOUT_HEADER = "Layout";
    
     // Default Block Headers
     public static final String CONTENT_TYPE_HEADER = "Content-Type";
@@ -33,52 +33,422 @@
 
 package com.sun.honeycomb.oa.bulk.stream;
 
-import java.util.logging.Logger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.common.ObjectCorruptedException;
+import com.sun.honeycomb.common.SystemMetadata;
+import com.sun.honeycomb.disks.Disk;
+import com.sun.honeycomb.emd.SysCacheUtils;
+import com.sun.honeycomb.emd.common.EMDException;
+import com.sun.honeycomb.layout.Layout;
+import com.sun.honeycomb.layout.LayoutClient;
+import com.sun.honeycomb.oa.FooterExtension;
+import com.sun.honeycomb.oa.FragmentFile;
+import com.sun.honeycomb.oa.FragmentNotFoundException;
+import com.sun.honeycomb.oa.OAClient;
+import com.sun.honeycomb.oa.OAException;
 import com.sun.honeycomb.oa.bulk.CallbackObject;
 import com.sun.honeycomb.oa.bulk.SerializationException;
 import com.sun.honeycomb.oa.bulk.Session;
+import com.sun.honeycomb.resources.ByteBufferPool;
 
+/**
+ * Fragment level object serializer: the fragment files of each chunk
+ * (data, checksums and footer) and the chunk footer extensions are
+ * streamed as they are on disk, so neither backup nor restore decodes,
+ * encodes or checksums the data. The stream can only be restored on a
+ * cell with the same layouts, see Constants.LAYOUT_HEADER.
+ *
+ * An object block is the system record followed by N-DataBlocks blocks:
+ *
+ *   chunk (hex)
+ *   fragment number (hex), FOOTER_EXTENSION for the footer extension
+ *   length (hex)
+ *
+ *   raw bytes
+ *
+ * Fragments that cannot be read at backup time are left out and healed
+ * by the data doctor after the restore.
+ */
 public class Frag7Serializer extends ObjectSerializer {
         
     protected static Logger LOG = Logger.getLogger(Frag7Serializer.class.getName());
+
+    public static final int FOOTER_EXTENSION = 0xffff;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private ByteBufferPool _bufferPool = null;
+    private LayoutClient _layoutClient = null;
+    private NewObjectIdentifier _oid = null;
+    private SystemMetadata _sm = null;
+    private List _blocks = null;
    
     public Frag7Serializer(Session session) {
         super(session);
+        _bufferPool = ByteBufferPool.getInstance();
+        _layoutClient = LayoutClient.getInstance();
     }
-    
-    public CallbackObject deserialize(StreamReader reader, Map headers) throws SerializationException {
-        // TODO Auto-generated method stub
-        return null;
+
+    /** One fragment file or footer extension of the object */
+    private static class Block {
+        final NewObjectIdentifier chunkOid;
+        final int chunk;
+        final int fragNum;
+        final long length;
+        final Disk disk;
+        final ByteBuffer extension;
+
+        Block(NewObjectIdentifier chunkOid, int fragNum, long length,
+              Disk disk, ByteBuffer extension) {
+            this.chunkOid = chunkOid;
+            this.chunk = chunkOid.getChunkNumber();
+            this.fragNum = fragNum;
+            this.length = length;
+            this.disk = disk;
+            this.extension = extension;
+        }
+
+        long headerLength() {
+            return Integer.toHexString(chunk).length() + 
+                Integer.toHexString(fragNum).length() + 
+                Long.toHexString(length).length() +
+                4 * Constants.HEADER_TERMINATOR_LENGTH;
+        }
+    }
+
+    public void init(Object obj) throws SerializationException {
+        _oid = (NewObjectIdentifier) obj;
+        if (readSystemMetadata(_oid) == null)
+            return;
+
+        // the system record, from the system cache as OAObjectSerializer
+        try {
+            _sm = SysCacheUtils.retrieveRecord(_oid);
+        } catch(EMDException e) {
+            throw new SerializationException(
+                         "Error retrievieving system record for " + _oid,e);
+        }
+
+        int total = _oaclient.getReliability().getTotalFragCount();
+        int needed = _oaclient.getReliability().getDataFragCount();
+        _blocks = new ArrayList();
+
+        NewObjectIdentifier chunkOid = _oid;
+        boolean moreChunks = true;
+        while (moreChunks) {
+            moreChunks = false;
+            int found = 0;
+            Layout layout = 
+                _layoutClient.getLayoutForRetrieve(chunkOid.getLayoutMapId());
+            for (int f = 0; f < total; f++) {
+                Disk disk = layout.getDisk(f);
+                if (disk == null || disk.isNullDisk())
+                    continue;
+                FragmentFile frag = new FragmentFile(chunkOid, f, disk);
+                try {
+                    long length = frag.openRaw();
+                    if (frag.getFooter().size == OAClient.MORE_CHUNKS)
+                        moreChunks = true;
+                    _blocks.add(new Block(chunkOid, f, length, disk, null));
+                    found++;
+                } catch (FragmentNotFoundException e) {
+                    logMissing(chunkOid, f, e);
+                } catch (ObjectCorruptedException e) {
+                    logMissing(chunkOid, f, e);
+                } catch (OAException e) {
+                    logMissing(chunkOid, f, e);
+                } finally {
+                    frag.close();
+                }
+            }
+            if (found < needed)
+                throw new SerializationException("Only " + found + 
+                                                 " fragments of " + chunkOid +
+                                                 " found");
+
+            try {
+                FooterExtension fe = _oaclient.getFooterExtension(chunkOid);
+                if (fe.getLastModified() > 0) {
+                    ByteBuffer buf = fe.asByteBuffer();
+                    _blocks.add(new Block(chunkOid, FOOTER_EXTENSION,
+                                          buf.remaining(), null, buf));
+                }
+            } catch (ArchiveException e) {
+                throw new SerializationException(
+                    "Failed to read the footer extension of " + chunkOid, e);
+            }
+
+            chunkOid = nextChunk(chunkOid);
+        }
+    }
+
+    private void logMissing(NewObjectIdentifier oid, int f, Exception e) {
+        LOG.warning("Fragment " + f + " of " + oid + 
+                    " not backed up: " + e.getMessage());
+    }
+
+    /** Same as OAClient.getSystemMetadata walks the chunks */
+    private static NewObjectIdentifier nextChunk(NewObjectIdentifier oid) {
+        return new NewObjectIdentifier(oid.getUID(),
+                      LayoutClient.getConsecutiveLayoutMapId(oid.getLayoutMapId()),
+                      oid.getObjectType(),
+                      oid.getChunkNumber() + 1,
+                      oid.getRuleId(),
+                      oid.getSilolocation());
+    }
+
+    private static NewObjectIdentifier chunkOID(NewObjectIdentifier oid,
+                                                int chunk) {
+        NewObjectIdentifier result = oid;
+        for (int c = 0; c < chunk; c++)
+            result = nextChunk(result);
+        return result;
+    }
+
+    public CallbackObject serialize(StreamWriter writer) 
+        throws SerializationException {
+        ByteBuffer buffer = _bufferPool.checkOutBuffer(COPY_BUFFER_SIZE);
+        try {
+            if (LOG.isLoggable(Level.FINEST))
+                LOG.finest("OID being serialized: " + _oid + " " + 
+                           _blocks.size() + " blocks");
+
+            writeSystemMetadata(_sm, writer);
+
+            for (int i = 0; i < _blocks.size(); i++) {
+                Block block = (Block) _blocks.get(i);
+                writer.writeIntAsHex(block.chunk);
+                writer.writeIntAsHex(block.fragNum);
+                writer.writeLongAsHex(block.length);
+                writer.writeSeparator();
+                if (block.extension != null)
+                    writer.write(block.extension, (int) block.length);
+                else
+                    copyFragment(block, writer, buffer);
+                writer.writeSeparator();
+            }
+
+            return new CallbackObject(_sm, CallbackObject.OBJECT_CALLBACK);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        } catch (ArchiveException e) {
+            throw new SerializationException(e);
+        } finally {
+            _bufferPool.checkInBuffer(buffer);
+        }
+    }
+
+    private void copyFragment(Block block, StreamWriter writer, 
+                              ByteBuffer buffer) 
+        throws SerializationException, ArchiveException, IOException {
+        FragmentFile frag = new FragmentFile(block.chunkOid, block.fragNum,
+                                             block.disk);
+        try {
+            // the content length is already out, the fragment must not
+            // have changed since init
+            if (frag.openRaw() != block.length)
+                throw new SerializationException("Fragment " + block.fragNum +
+                                                 " of " + block.chunkOid + 
+                                                 " changed during backup");
+            long offset = 0;
+            while (offset < block.length) {
+                buffer.clear();
+                if (block.length - offset < buffer.capacity())
+                    buffer.limit((int) (block.length - offset));
+                long n = frag.readRaw(buffer, offset);
+                if (n <= 0)
+                    throw new SerializationException("Short read of fragment " +
+                                                     block.fragNum + " of " +
+                                                     block.chunkOid + " at " +
+                                                     offset);
+                buffer.flip();
+                writer.write(buffer, (int) n);
+                offset += n;
+            }
+        } catch (FragmentNotFoundException e) {
+            throw new SerializationException(e);
+        } finally {
+            frag.close();
+        }
+    }
+
+    public CallbackObject deserialize(StreamReader reader, Map headers) 
+        throws SerializationException {
+        checkLayout();
+
+        ByteBuffer buffer = _bufferPool.checkOutBuffer(COPY_BUFFER_SIZE);
+        try {
+            String oidStr = (String) headers.get(Constants.OID_HEADER);
+            _oid = NewObjectIdentifier.fromHexString(oidStr);
+            long nBlocks = 
+                Long.parseLong((String) headers.get(Constants.N_DATA_BLOCKS_HEADER));
+
+            _sm = readSystemMetadata(reader);
+
+            for (long i = 0; i < nBlocks; i++) {
+                int chunk = reader.readLineAsIntHex();
+                int fragNum = reader.readLineAsIntHex();
+                long length = reader.readLineAsLongHex();
+                reader.readSeparator();
+                NewObjectIdentifier chunkOid = chunkOID(_oid, chunk);
+                if (fragNum == FOOTER_EXTENSION)
+                    restoreExtension(reader, chunkOid, (int) length);
+                else
+                    restoreFragment(reader, chunkOid, fragNum, length, buffer);
+                reader.readSeparator();
+            }
+
+            updateSystemCache();
+
+            return new CallbackObject(_sm, CallbackObject.OBJECT_CALLBACK);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        } catch (ArchiveException e) {
+            throw new SerializationException(e);
+        } finally {
+            _bufferPool.checkInBuffer(buffer);
+        }
+    }
+
+    private void checkLayout() throws SerializationException {
+        String expected = _session.getHeader(Constants.LAYOUT_HEADER);
+        String layout = _layoutClient.getLayoutSignature();
+        if (!layout.equals(expected))
+            throw new SerializationException("Fragment stream of layout '" +
+                                             expected + "' cannot be " +
+                                             "restored on layout '" + 
+                                             layout + "'");
+    }
+
+    /**
+     * Write the fragment where the layout of this cell puts it. A
+     * fragment already on disk, from a previous pass, or whose disk is
+     * not available is skipped; the data doctor heals the latter.
+     */
+    private void restoreFragment(StreamReader reader,
+                                 NewObjectIdentifier chunkOid,
+                                 int fragNum, 
+                                 long length,
+                                 ByteBuffer buffer) 
+        throws ArchiveException, IOException {
+        Layout layout = 
+            _layoutClient.getLayoutForStore(chunkOid.getLayoutMapId());
+        Disk disk = layout.getDisk(fragNum);
+        FragmentFile frag = null;
+        if (disk != null && !disk.isNullDisk()) {
+            frag = new FragmentFile(chunkOid, fragNum, disk);
+            if (frag.exists()) {
+                frag = null;
+            } else {
+                frag.createRaw();
+            }
+        }
+        if (frag == null && LOG.isLoggable(Level.FINE))
+            LOG.fine("Skipping fragment " + fragNum + " of " + chunkOid);
+
+        boolean done = false;
+        try {
+            long offset = 0;
+            while (offset < length) {
+                int n = (int) Math.min(buffer.capacity(), length - offset);
+                buffer.clear();
+                reader.read(buffer, n);
+                buffer.flip();
+                if (frag != null)
+                    frag.writeRaw(buffer, offset);
+                offset += n;
+            }
+            if (frag != null) {
+                frag.close();
+                frag.completeCreate();
+            }
+            done = true;
+        } finally {
+            if (frag != null && !done)
+                frag.abortCreate();
+        }
+    }
+
+    private void restoreExtension(StreamReader reader,
+                                  NewObjectIdentifier chunkOid,
+                                  int length) 
+        throws ArchiveException, IOException {
+        ByteBuffer feBuffer = _bufferPool.checkOutBuffer(length);
+        try {
+            feBuffer.clear();
+            reader.read(feBuffer, length);
+            feBuffer.rewind();
+            FooterExtension fe = new FooterExtension();
+            fe.read(feBuffer);
+            _oaclient.putFooterExtension(chunkOid, fe);
+        } finally {
+            _bufferPool.checkInBuffer(feBuffer);
+        }
+    }
+
+    /**
+     * The fragments keep the reference counts they had at backup time,
+     * only the system cache needs the restored flag, as in
+     * OAObjectSerializer.
+     */
+    private void updateSystemCache() 
+        throws SerializationException, ArchiveException {
+        SystemMetadata sysMD = null;
+        try {
+            sysMD = SysCacheUtils.retrieveRecord(_oid);
+        } catch(EMDException ignore) {
+            LOG.info("failed to retrieve oid " + _oid +
+                     " from systeme cache");
+        }
+
+        if (sysMD == null) {
+            if (!_session.optionChosen(Session.REPLAY_BACKUP_OPTION)) {
+                LOG.severe("OID  " + _oid +
+                           "  does not exists in system cache, can't be restored");
+                throw new SerializationException("OID " + _oid +
+                                                 " is missing from system cache, aborting");
+            }
+            sysMD = _sm;
+        }
+        sysMD.setRestored(true);
+        SysCacheUtils.insertRecord(sysMD);
     }
 
     public long getMetadataLength() {
-        // TODO Auto-generated method stub
+        // the system record comes first in the data section
         return 0;
     }
 
     public long getNDataBlocks() {
-        // TODO Auto-generated method stub
-        return 0;
+        return (_blocks == null) ? 0 : _blocks.size();
     }
     
     public String getOID() {
-        return null;
+        return _oid.toHexString();
     }
 
-    public CallbackObject serialize(StreamWriter writer) throws SerializationException {
-        // TODO Auto-generated method stub
-        return null;
-    }
+    public long getContentLength() throws SerializationException, EMDException {
+        if (_sm == null) {
+            LOG.warning("Skipping object " + _oid.toHexString() + 
+                        ", no system metadata found");
+            return SKIP_BLOCK;
+        }
 
-    public long getContentLength() {
-        // TODO Auto-generated method stub
-        return 0;
-    }
-
-    public void init(Object obj) throws SerializationException {
-        // TODO Auto-generated method stub
-        
+        long result = smToString(_sm).length() + Constants.HEADER_TERMINATOR_LENGTH;
+        for (int i = 0; i < _blocks.size(); i++) {
+            Block block = (Block) _blocks.get(i);
+            result += block.headerLength() + block.length + 
+                Constants.HEADER_TERMINATOR_LENGTH;
+        }
+        return result;
     }
 }
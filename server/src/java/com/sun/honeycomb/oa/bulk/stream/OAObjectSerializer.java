@@ -72,6 +72,7 @@ public class OAObjectSerializer extends ObjectSerializer {
     private ByteBufferPool _bufferPool = null;
     private NewObjectIdentifier _oid = null;
     private SystemMetadata _sm = null; 
+    private ObjectPrefetcher.Entry _prefetched = null;
 
     public OAObjectSerializer(Session session) {
         super(session);
@@ -79,6 +80,13 @@ public class OAObjectSerializer extends ObjectSerializer {
     }
 
     public void init(Object obj) throws SerializationException {
+        if (obj instanceof ObjectPrefetcher.Entry) {
+            // already read by the backup session's ObjectPrefetcher
+            _prefetched = (ObjectPrefetcher.Entry) obj;
+            _oid = _prefetched.oid;
+            _sm = _prefetched.oaMD;
+            return;
+        }
         // read the system metadata record
         _oid = (NewObjectIdentifier) obj;
         _sm = readSystemMetadata(_oid);
@@ -86,7 +94,11 @@ public class OAObjectSerializer extends ObjectSerializer {
    
     public CallbackObject serialize(StreamWriter writer) 
            throws SerializationException { 
-        
+
+        if (_prefetched != null && 
+            (_prefetched.data != null || _prefetched.error != null))
+            return serializePrefetched(writer);
+
         Context readCtx = null;
         ByteBuffer buffer = null;
         
@@ -206,6 +218,42 @@ public class OAObjectSerializer extends ObjectSerializer {
         }
     }
 
+    /**
+     * Write an object read ahead, in the same format as serialize
+     */
+    private CallbackObject serializePrefetched(StreamWriter writer)
+        throws SerializationException {
+        try {
+            if (_prefetched.error instanceof SerializationException)
+                throw (SerializationException) _prefetched.error;
+            if (_prefetched.error != null)
+                throw new SerializationException(_prefetched.error);
+
+            if (LOG.isLoggable(Level.FINEST))
+                LOG.finest("OID being serialized: " + _oid + " (prefetched)");
+
+            _sm = _prefetched.recordMD;
+            writeSystemMetadata(_sm, writer);
+            writer.writeIntAsHex(0);
+            writer.writeSeparator();
+
+            writer.writeLongAsHex(_prefetched.length);
+            writer.writeSeparator();
+            for (int i = 0; i < _prefetched.data.size(); i++) {
+                ByteBuffer buffer = (ByteBuffer) _prefetched.data.get(i);
+                writer.write(buffer, buffer.remaining());
+            }
+
+            return new CallbackObject(_sm,CallbackObject.OBJECT_CALLBACK);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        } catch (ArchiveException e) {
+            throw new SerializationException(e);
+        } finally {
+            _prefetched.release();
+        }
+    }
+
     public CallbackObject deserialize(StreamReader reader, Map headers)
         throws SerializationException {
         Context writeCtx = new Context();
@@ -0,0 +1,278 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bulk.stream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.DeletedObjectException;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.common.SystemMetadata;
+import com.sun.honeycomb.coordinator.Context;
+import com.sun.honeycomb.emd.SysCacheUtils;
+import com.sun.honeycomb.emd.common.EMDException;
+import com.sun.honeycomb.oa.OAClient;
+import com.sun.honeycomb.oa.OAException;
+import com.sun.honeycomb.oa.bulk.OIDIterator;
+import com.sun.honeycomb.oa.bulk.SerializationException;
+import com.sun.honeycomb.resources.ByteBufferPool;
+
+/**
+ * Reads the objects of a backup session ahead of the stream, several at
+ * a time, and hands them back in the order of the OIDIterator so the
+ * stream is the same as the one written one object after the other.
+ *
+ * At most <code>threads</code> objects are read concurrently and at most
+ * 2 * <code>threads</code> are held ahead of the one being written. The
+ * data of an object is kept in pool buffers only if it fits in its share
+ * of the prefetch budget; for a larger object only the system metadata
+ * is read ahead and OAObjectSerializer streams the data when its turn
+ * comes.
+ */
+public class ObjectPrefetcher {
+
+    protected static Logger LOG = 
+        Logger.getLogger(ObjectPrefetcher.class.getName());
+
+    private static int threadCount = 0;
+
+    private final OIDIterator _oids;
+    private final ExecutorService _readers;
+    private final LinkedList _window;
+    private final int _depth;
+    private final long _maxObjectSize;
+    private final OAClient _oaclient;
+    private final ByteBufferPool _bufferPool;
+    private volatile boolean _closed = false;
+
+    // the entry handed out by next(), released at the next call
+    private Entry _current = null;
+
+    /**
+     * @param oids objects to read, in stream order
+     * @param threads number of objects read concurrently
+     * @param budget max. bytes of object data held in memory
+     */
+    public ObjectPrefetcher(OIDIterator oids, int threads, long budget) {
+        _oids = oids;
+        _depth = 2 * threads;
+        // the window plus the entry being written
+        _maxObjectSize = budget / (_depth + 1);
+        _window = new LinkedList();
+        _oaclient = OAClient.getInstance();
+        _bufferPool = ByteBufferPool.getInstance();
+        _readers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BackupPrefetch-" + nextThread());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        LOG.info("Reading " + threads + " objects in parallel, up to " +
+                 _maxObjectSize + " bytes each");
+    }
+
+    private static synchronized int nextThread() {
+        return threadCount++;
+    }
+
+    public boolean hasNext() throws ArchiveException {
+        fill();
+        return !_window.isEmpty();
+    }
+
+    /**
+     * @return the next object of the iterator, to pass to the
+     *         OBJECT_BLOCK_PARSER. Its buffers are checked back in by
+     *         the serializer, or at the latest by the next call to
+     *         next() or by close() if the block was not written out.
+     */
+    public Entry next() throws SerializationException, ArchiveException {
+        releaseCurrent();
+        fill();
+        Future f = (Future) _window.removeFirst();
+        // keep the readers busy while this one is written out
+        fill();
+        try {
+            _current = (Entry) f.get();
+            return _current;
+        } catch (InterruptedException e) {
+            throw new SerializationException("Interrupted reading ahead", e);
+        } catch (ExecutionException e) {
+            throw new SerializationException("Failed to read ahead",
+                                             e.getCause());
+        }
+    }
+
+    /**
+     * Stop the readers and release the objects read but not written
+     */
+    public void close() {
+        _closed = true;
+        releaseCurrent();
+        for (Iterator it = _window.iterator(); it.hasNext(); ) {
+            Future f = (Future) it.next();
+            // a read in progress releases its entry when it sees _closed
+            if (!f.cancel(false)) {
+                try {
+                    ((Entry) f.get()).release();
+                } catch (Exception e) {
+                    // failed, nothing held
+                }
+            }
+        }
+        _window.clear();
+        _readers.shutdown();
+    }
+
+    private void releaseCurrent() {
+        if (_current != null) {
+            _current.release();
+            _current = null;
+        }
+    }
+
+    private void fill() throws ArchiveException {
+        while (_window.size() < _depth && _oids.hasNext()) {
+            final NewObjectIdentifier oid = _oids.next();
+            _window.addLast(_readers.submit(new Callable() {
+                    public Object call() {
+                        return read(oid);
+                    }
+                }));
+        }
+    }
+
+    private Entry read(NewObjectIdentifier oid) {
+        Entry entry = new Entry(oid);
+        try {
+            entry.oaMD = _oaclient.getSystemMetadata(oid, true, false);
+        } catch (ArchiveException e) {
+            return entry;
+        } catch (OAException e) {
+            return entry;
+        }
+        if (entry.oaMD.getSize() > _maxObjectSize)
+            return entry;
+
+        Context readCtx = new Context();
+        try {
+            boolean deleted = false;
+            try {
+                _oaclient.open(oid, readCtx);
+            } catch (DeletedObjectException e) {
+                deleted = true;
+            }
+            // same record as OAObjectSerializer.serialize writes
+            try {
+                entry.recordMD = SysCacheUtils.retrieveRecord(oid);
+            } catch (EMDException e) {
+                throw new SerializationException(
+                             "Error retrievieving system record for " + oid,e);
+            }
+
+            long lengthToRead = (deleted ? 0 : entry.recordMD.getSize());
+            List buffers = new ArrayList();
+            entry.data = buffers;
+            long totalRead = 0;
+            if (lengthToRead != 0) {
+                int readSize = _oaclient.getReadBufferSize(readCtx);
+                while (totalRead < lengthToRead) {
+                    if ((lengthToRead - totalRead) < readSize) {
+                        readSize = _oaclient.getLastReadBufferSize(
+                                       (int)(lengthToRead - totalRead));
+                    }
+                    ByteBuffer buffer = _bufferPool.checkOutBuffer(readSize);
+                    buffers.add(buffer);
+                    buffer.clear();
+                    buffer.limit(readSize);
+                    long read = _oaclient.read(buffer, totalRead, readSize,
+                                               readCtx);
+                    buffer.flip();
+                    totalRead += read;
+                }
+            }
+            entry.length = totalRead;
+            if (totalRead != lengthToRead)
+                throw new SerializationException("Coulnd't read back the right amounts of bytes from disk for object " + oid);
+        } catch (Exception e) {
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine("Failed to read ahead " + oid + ": " + e);
+            entry.release();
+            entry.error = e;
+        } finally {
+            readCtx.dispose();
+        }
+        if (_closed)
+            entry.release();
+        return entry;
+    }
+
+    /**
+     * An object read ahead. oaMD is null if the object could not be
+     * found, data is null if it was too large to be read ahead.
+     */
+    public class Entry {
+        final NewObjectIdentifier oid;
+        SystemMetadata oaMD = null;
+        SystemMetadata recordMD = null;
+        List data = null;
+        long length = 0;
+        Exception error = null;
+
+        Entry(NewObjectIdentifier oid) {
+            this.oid = oid;
+        }
+
+        synchronized void release() {
+            if (data != null) {
+                for (int i = 0; i < data.size(); i++)
+                    _bufferPool.checkInBuffer((ByteBuffer) data.get(i));
+                data = null;
+            }
+        }
+    }
+}
@@ -39,10 +39,12 @@ import java.util.Map;
 
 import com.sun.honeycomb.oa.OAException;
 import com.sun.honeycomb.oa.bulk.Session;
+import com.sun.honeycomb.oa.bulk.BackupRestore;
 import com.sun.honeycomb.oa.bulk.BackupSession;
 import com.sun.honeycomb.oa.bulk.CallbackObject;
 import com.sun.honeycomb.oa.bulk.SerializationException;
 import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.layout.LayoutClient;
 
 public class StreamParser {
     protected Session _session = null;
@@ -77,6 +79,10 @@ public class StreamParser {
 
         date = Constants.DATE_FORMAT.format(((BackupSession)_session)._end);
         writer.writeHeader(Constants.END_TIME, date);
+
+        if (_session.getStreamFormat().equals(BackupRestore.STREAM_7_FRAGS))
+            writer.writeHeader(Constants.LAYOUT_HEADER,
+                               LayoutClient.getInstance().getLayoutSignature());
        
         // write termination line
         writer.writeSeparator();
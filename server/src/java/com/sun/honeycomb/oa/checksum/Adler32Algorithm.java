@@ -36,6 +36,7 @@ package com.sun.honeycomb.oa.checksum;
 import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Adler32;
 
 public final class Adler32Algorithm extends ChecksumAlgorithm {
     private static final Logger logger = 
@@ -43,35 +44,38 @@ public final class Adler32Algorithm extends ChecksumAlgorithm {
 
     private static final String nativeLibrary = "nativeadler32";
 
+    /**
+     * The native library is zlib's adler32(); without it we use the same
+     * function from java.util.zip, so the checksums are the same.
+     */
+    private static boolean haveNative = false;
+
     static {
         try {
             System.loadLibrary(nativeLibrary);
+            haveNative = true;
         } catch(UnsatisfiedLinkError ule) {
-            logger.log(Level.SEVERE, "Check LD_LIBRARY_PATH. Can't find " +
+            logger.log(Level.WARNING, "Check LD_LIBRARY_PATH. Can't find " +
                        System.mapLibraryName(nativeLibrary) + " in " +
-                       System.getProperty("java.library.path"));
+                       System.getProperty("java.library.path") +
+                       "; using java.util.zip.Adler32");
         }
     }
 
     /** Size of the checksum in bytes */
     private static final int CHECKSUM_SIZE = 4;
 
-    /** Instance of the checksum algorithm */
-    private static ChecksumAlgorithm algorithmInstance = null;
-
     /**
      * Factory method to create an instance of the Adler32 algorithm.
      *
      * @return ChecksumAlgorithm the Adler32 algorithm instance
      */
     public static ChecksumAlgorithm getInstance() {
-        synchronized(logger) {
-            if (algorithmInstance == null) {
-                // This is the first time getInstance has been called
-                algorithmInstance = new Adler32Algorithm();
-            }
-        }
-        return algorithmInstance;
+        return ChecksumAlgorithm.getInstance(ChecksumAlgorithm.ADLER32);
+    }
+
+    /** Instances are created by ChecksumAlgorithm.getInstance */
+    Adler32Algorithm() {
     }
 
     /**
@@ -81,16 +85,30 @@ public final class Adler32Algorithm extends ChecksumAlgorithm {
      * @return ChecksumContext the codable internal state
      */
     public ChecksumContext createContext() {
-        return new ChecksumContext(ChecksumAlgorithm.ADLER32);
+        return new ChecksumContext(getAlgorithmNumber());
     }
 
     public void initialize(AlgorithmState internalState) {
-        internalState.state = nativeInitialize();
+        if (haveNative) {
+            internalState.state = nativeInitialize();
+            return;
+        }
+        if (internalState.checksum == null) {
+            internalState.checksum = new Adler32();
+        } else {
+            internalState.checksum.reset();
+        }
+        internalState.state = internalState.checksum.getValue();
     }
 
     public void update(ByteBuffer buffer,
                        int length,
                        AlgorithmState internalState) {
+        if (!haveNative) {
+            update(internalState.checksum, buffer, length, internalState);
+            internalState.state = internalState.checksum.getValue();
+            return;
+        }
         internalState.state = nativeUpdate(buffer,
                                            buffer.position(),
                                            length,
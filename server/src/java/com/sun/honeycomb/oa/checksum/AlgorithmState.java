@@ -33,6 +33,12 @@
 
 package com.sun.honeycomb.oa.checksum;
 
+import java.util.zip.Checksum;
+
 public final class AlgorithmState {
     public long state;
+
+    /** For algorithms implemented by a java.util.zip.Checksum */
+    public Checksum checksum;
+    byte[] copyBuffer;
 }
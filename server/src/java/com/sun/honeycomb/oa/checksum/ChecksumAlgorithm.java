@@ -33,9 +33,13 @@
 
 package com.sun.honeycomb.oa.checksum;
 
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Checksum;
 
 import com.sun.honeycomb.common.ObjectCorruptedException;
 import com.sun.honeycomb.resources.ByteBufferList;
@@ -46,25 +50,67 @@ import com.sun.honeycomb.resources.ByteBufferList;
  * calculate checksums for data blocks.
  */
 public abstract class ChecksumAlgorithm {
-    /** The data block size of which the checksum will be calculated */
+    /**
+     * The data block size of which the checksum will be calculated,
+     * unless the algorithm number says otherwise
+     */
     public static final int DATA_BLOCK_SIZE = 4*1024;
 
+    /**
+     * Limits on the data block size. A block size must be a power of
+     * two that divides the data block factor of a checksum block.
+     */
+    public static final int MIN_DATA_BLOCK_SIZE = 512;
+    public static final int MAX_DATA_BLOCK_SIZE = ChecksumBlock.dataBlockFactor;
+
     /** Predefined algorithms */
     public static final short NONE = 0;
     public static final short ADLER32 = 1;
-    private static final short MAX_ALGORITHM_INDEX = 1; // Increment this 
+    public static final short CRC32C = 2;
+    private static final short MAX_ALGORITHM_INDEX = 2; // Increment this 
+
+    /**
+     * An algorithm number (as stored in FragmentFooter.checksumAlg
+     * and the checksum context) has the algorithm in its low byte
+     * and log2 of the data block size in its high byte. A high byte
+     * of zero means DATA_BLOCK_SIZE, so fragments written before the
+     * block size could be chosen read as they always did.
+     */
+    private static final int ALGORITHM_MASK = 0xff;
+    private static final int BLOCK_SIZE_SHIFT = 8;
 
     /** String names of the algorithms */
     private static String[] algorithmNames = {
         "NONE",
-        "ADLER32"
+        "ADLER32",
+        "CRC32C"
     };
     private static String unknownAlgorithmString = "UNKNOWN ALGORITHM";
 
+    /** Data block size used for each algorithm if none is configured */
+    private static int[] defaultDataBlockSizes = {
+        DATA_BLOCK_SIZE,
+        DATA_BLOCK_SIZE,
+        64*1024
+    };
+
+    /** Instances of the algorithms, by algorithm number */
+    private static Map instances = new HashMap();
+
+    /** Checksum.update(ByteBuffer), if the JDK has it (1.9 and later) */
+    private static Method bufferUpdate = findBufferUpdate();
+
+    /** Size of the copy buffer used if a Checksum has to take a byte[] */
+    private static final int COPY_SIZE = 8*1024;
+
     /** Logger */
     private static final Logger logger = 
         Logger.getLogger(ChecksumAlgorithm.class.getName());
 
+    /** The algorithm number and block size of this instance */
+    private short algorithmNumber = NONE;
+    private int dataBlockSize = DATA_BLOCK_SIZE;
+
     /**
      * Method to get the name for an algorithm.
      *
@@ -72,28 +118,94 @@ public abstract class ChecksumAlgorithm {
      * @return String the name of the algorithm
      */
     public static String getName(short algorithm) {
-        if (algorithm >= algorithmNames.length) {
+        int index = algorithm & ALGORITHM_MASK;
+        if (index >= algorithmNames.length) {
             return unknownAlgorithmString;
         }
-        return algorithmNames[algorithm];
+        if ((algorithm >> BLOCK_SIZE_SHIFT) == 0) {
+            return algorithmNames[index];
+        }
+        return algorithmNames[index] + "/" + getDataBlockSize(algorithm);
     }
 
     /**
      * Method to get the algorithm index from a string name. The string
-     * comaprison ignores the case.
+     * comaprison ignores the case. The name may be followed by a "/"
+     * and the data block size, e.g. "CRC32C/16384"; if it isn't, the
+     * algorithm's default block size is used.
      *
      * @param algorithmName the string name of the algorithm
-     * @return short the algorithm index
+     * @return short the algorithm number
      */
     public static short getAlgorithm(String algorithmName) {
-        if (algorithmName.equalsIgnoreCase(algorithmNames[NONE])) {
-            return NONE;
-        } else if (algorithmName.equalsIgnoreCase(algorithmNames[ADLER32])) {
-            return ADLER32;
-        } else {
-            throw new IllegalArgumentException("Unknown algorithm type " +
-                                               algorithmName);
+        String name = algorithmName.trim();
+        int blockSize = -1;
+
+        int pos = name.indexOf('/');
+        if (pos >= 0) {
+            try {
+                blockSize = Integer.parseInt(name.substring(pos + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad block size in " +
+                                                   algorithmName);
+            }
+            name = name.substring(0, pos).trim();
+        }
+
+        for (short i=0; i<=MAX_ALGORITHM_INDEX; i++) {
+            if (name.equalsIgnoreCase(algorithmNames[i])) {
+                if (i == NONE) {
+                    return NONE;
+                }
+                if (blockSize < 0) {
+                    blockSize = defaultDataBlockSizes[i];
+                }
+                return getAlgorithm(i, blockSize);
+            }
+        }
+        throw new IllegalArgumentException("Unknown algorithm type " +
+                                           algorithmName);
+    }
+
+    /**
+     * Method to get the algorithm number for an algorithm with a given
+     * data block size.
+     *
+     * @param algorithm the algorithm index
+     * @param dataBlockSize the number of data bytes covered by each
+     *                      checksum
+     * @return short the algorithm number
+     */
+    public static short getAlgorithm(short algorithm, int dataBlockSize) {
+        if ((dataBlockSize < MIN_DATA_BLOCK_SIZE) ||
+            (dataBlockSize > MAX_DATA_BLOCK_SIZE) ||
+            (Integer.bitCount(dataBlockSize) != 1)) {
+            throw new IllegalArgumentException
+                ("Data block size [" + dataBlockSize + "] must be a power " +
+                 "of two from " + MIN_DATA_BLOCK_SIZE + " to " +
+                 MAX_DATA_BLOCK_SIZE);
+        }
+        if (dataBlockSize == DATA_BLOCK_SIZE) {
+            return algorithm;
+        }
+        int shift = Integer.numberOfTrailingZeros(dataBlockSize);
+        return (short)((shift << BLOCK_SIZE_SHIFT) |
+                       (algorithm & ALGORITHM_MASK));
+    }
+
+    /**
+     * Method to find out the number of data bytes covered by each
+     * checksum of an algorithm.
+     *
+     * @param algorithm the algorithm number
+     * @return int the data block size
+     */
+    public static int getDataBlockSize(short algorithm) {
+        int shift = (algorithm >> BLOCK_SIZE_SHIFT) & ALGORITHM_MASK;
+        if (shift == 0) {
+            return DATA_BLOCK_SIZE;
         }
+        return 1 << shift;
     }
 
     /**
@@ -104,11 +216,37 @@ public abstract class ChecksumAlgorithm {
      */
     public static ChecksumAlgorithm getInstance(int algorithm)
         throws IllegalArgumentException {
-        if (algorithm == ChecksumAlgorithm.ADLER32) {
-            return Adler32Algorithm.getInstance();
-        } else {
-            throw new IllegalArgumentException("Unknown algorithm type " +
-                                               algorithm);
+        Short key = new Short((short)algorithm);
+        synchronized (instances) {
+            ChecksumAlgorithm instance = (ChecksumAlgorithm)instances.get(key);
+            if (instance != null) {
+                return instance;
+            }
+
+            short number = (short)algorithm;
+            int blockSize = getDataBlockSize(number);
+            if ((algorithm != number) ||
+                (getAlgorithm(number, blockSize) != number)) {
+                throw new IllegalArgumentException("Bad algorithm number " +
+                                                   algorithm);
+            }
+
+            switch (number & ALGORITHM_MASK) {
+            case ADLER32:
+                instance = new Adler32Algorithm();
+                break;
+            case CRC32C:
+                instance = new Crc32cAlgorithm();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown algorithm type " +
+                                                   algorithm);
+            }
+            instance.algorithmNumber = number;
+            instance.dataBlockSize = blockSize;
+
+            instances.put(key, instance);
+            return instance;
         }
     }
 
@@ -120,12 +258,7 @@ public abstract class ChecksumAlgorithm {
      */
     public static ChecksumAlgorithm getInstance(ChecksumContext context)
         throws IllegalArgumentException {
-        if (context.algorithm == ChecksumAlgorithm.ADLER32) {
-            return Adler32Algorithm.getInstance();
-        } else {
-            throw new IllegalArgumentException("Unknown algorithm type " +
-                                               context.algorithm);
-        }
+        return getInstance(context.algorithm);
     }
 
     /**
@@ -133,14 +266,13 @@ public abstract class ChecksumAlgorithm {
      * a given algorithm.
      *
      * @param algorithm the checksum algorithm to use
-     * @param dataBytesPerChecksum the number of data bytes covered by each
-     *                             checksum entry
      * @return int the size in bytes of the data covered by one checksum block
      */
     public static int getDataSizeCovered(short algorithm) {
         int checksumSize = getInstance(algorithm).getChecksumSize();
-        return (DATA_BLOCK_SIZE *
-                ChecksumBlock.getMaxChecksums(checksumSize, DATA_BLOCK_SIZE));
+        int blockSize = getDataBlockSize(algorithm);
+        return (blockSize *
+                ChecksumBlock.getMaxChecksums(checksumSize, blockSize));
     }
 
     /**
@@ -160,9 +292,27 @@ public abstract class ChecksumAlgorithm {
                  getName(algorithm));
         }
         int checksumSize = getInstance(algorithm).getChecksumSize();
-        return ChecksumBlock.getChecksumBlockLengthForData(checksumSize,
-                                                           dataSize,
-                                                           DATA_BLOCK_SIZE);
+        return ChecksumBlock.getChecksumBlockLengthForData
+            (checksumSize, dataSize, getDataBlockSize(algorithm));
+    }
+
+    /**
+     * Method to get the algorithm number of this instance, i.e. the value
+     * to record in the fragment footer.
+     *
+     * @return short the algorithm number
+     */
+    public short getAlgorithmNumber() {
+        return algorithmNumber;
+    }
+
+    /**
+     * Method to get the number of data bytes covered by each checksum.
+     *
+     * @return int the data block size
+     */
+    public int getDataBlockSize() {
+        return dataBlockSize;
     }
 
     /**
@@ -184,7 +334,7 @@ public abstract class ChecksumAlgorithm {
      */
     public ChecksumBlock createChecksumBlock() {
         return ChecksumBlock.createInstance(getChecksumSize(),
-                                            DATA_BLOCK_SIZE);
+                                            dataBlockSize);
     }
 
     /**
@@ -197,7 +347,7 @@ public abstract class ChecksumAlgorithm {
     public ChecksumBlock createChecksumBlock(ByteBuffer blockBuffer) {
         return ChecksumBlock.createInstance(getChecksumSize(),
                                             blockBuffer,
-                                            DATA_BLOCK_SIZE);
+                                            dataBlockSize);
     }
 
     /**
@@ -240,11 +390,11 @@ public abstract class ChecksumAlgorithm {
         for (int i=0; i<array.length; i++) {
             while (array[i].hasRemaining()) {
                 // Calculate the amount of data to process. This the lesser
-                // of the DATA_BLOCK_SIZE or the number of remaining bytes
+                // of the data block size or the number of remaining bytes
                 // in the current buffer.
                 if ((bytesProcessed + array[i].remaining()) >
-                    DATA_BLOCK_SIZE) {
-                    toProcess = DATA_BLOCK_SIZE - bytesProcessed;
+                    dataBlockSize) {
+                    toProcess = dataBlockSize - bytesProcessed;
                 } else {
                     toProcess = array[i].remaining();
                 }
@@ -258,7 +408,7 @@ public abstract class ChecksumAlgorithm {
                 // 1. If the checksum block is full, create a new block and
                 //    store it in the context.
                 // 2. Store the checksum in the checksum block
-                if (bytesProcessed == DATA_BLOCK_SIZE) {
+                if (bytesProcessed == dataBlockSize) {
                     // Get the checksum block if it is null
                     if (checksumBlock == null) {
                         if (context.checksumBlocks.size() != 0) {
@@ -291,7 +441,7 @@ public abstract class ChecksumAlgorithm {
         }
 
         // Insert the last checksum if the bytes processed is not zero. This is
-        // if the buffer is not a multiple of DATA_BLOCK_SIZE bytes.
+        // if the buffer is not a multiple of dataBlockSize bytes.
         if (bytesProcessed != 0) {
             // Get the checksum block if it is null
             if (checksumBlock == null) {
@@ -343,12 +493,12 @@ public abstract class ChecksumAlgorithm {
         throws ObjectCorruptedException {
         boolean consistent = true;
         AlgorithmState internalState = createAlgorithmState();
-        int toProcess = DATA_BLOCK_SIZE;
+        int toProcess = dataBlockSize;
         while(buffer.hasRemaining()) {
             // Calculate the amount of data to process. This the lesser
-            // of the DATA_BLOCK_SIZE or the number of remaining bytes
+            // of the data block size or the number of remaining bytes
             // in the current buffer.
-            if (buffer.remaining() < DATA_BLOCK_SIZE) {
+            if (buffer.remaining() < dataBlockSize) {
                 toProcess = buffer.remaining();
             }
 
@@ -378,12 +528,12 @@ public abstract class ChecksumAlgorithm {
                        int startIndex,
                        ChecksumBlock checksumBlock) {
         AlgorithmState internalState = createAlgorithmState();
-        int toProcess = DATA_BLOCK_SIZE;
+        int toProcess = dataBlockSize;
         while(buffer.hasRemaining()) {
             // Calculate the amount of data to process. This the lesser
-            // of the DATA_BLOCK_SIZE or the number of remaining bytes
+            // of the data block size or the number of remaining bytes
             // in the current buffer.
-            if (buffer.remaining() < DATA_BLOCK_SIZE) {
+            if (buffer.remaining() < dataBlockSize) {
                 toProcess = buffer.remaining();
             }
 
@@ -421,4 +571,63 @@ public abstract class ChecksumAlgorithm {
     public abstract void update(ByteBuffer buffer,
                                 int length,
                                 AlgorithmState internalState);
+
+    /**
+     * Method for algorithms implemented by a java.util.zip.Checksum to
+     * process length bytes of a buffer from its position. The position
+     * is advanced past them.
+     *
+     * @param checksum the checksum to update
+     * @param buffer the data buffer to process
+     * @param length the number of bytes to process
+     * @param internalState the algorithm's internal state
+     */
+    protected static void update(Checksum checksum,
+                                 ByteBuffer buffer,
+                                 int length,
+                                 AlgorithmState internalState) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(),
+                            length);
+            buffer.position(buffer.position() + length);
+            return;
+        }
+
+        // A direct buffer: newer JDKs can checksum it where it is
+        if (bufferUpdate != null) {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            try {
+                bufferUpdate.invoke(checksum, new Object[] {buffer});
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Checksum.update(ByteBuffer) " +
+                           "failed, copying buffers from now on", e);
+                bufferUpdate = null;
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        if (internalState.copyBuffer == null) {
+            internalState.copyBuffer = new byte[COPY_SIZE];
+        }
+        byte[] copy = internalState.copyBuffer;
+        while (length > 0) {
+            int n = Math.min(length, copy.length);
+            buffer.get(copy, 0, n);
+            checksum.update(copy, 0, n);
+            length -= n;
+        }
+    }
+
+    private static Method findBufferUpdate() {
+        try {
+            return Checksum.class.getMethod("update",
+                                            new Class[] {ByteBuffer.class});
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
 }
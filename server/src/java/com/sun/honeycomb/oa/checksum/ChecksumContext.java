@@ -183,8 +183,8 @@ public class ChecksumContext implements Codable, Disposable {
      * @return int the start offset of the first checksum in the block
      */
     public int getOffsetInChecksumBlock(long remappedOffset) {
-        return (int)
-            (remappedOffset-dataStartOffset)/ChecksumAlgorithm.DATA_BLOCK_SIZE;
+        return (int)((remappedOffset-dataStartOffset) /
+                     ChecksumAlgorithm.getDataBlockSize(algorithm));
     }
 
     /**
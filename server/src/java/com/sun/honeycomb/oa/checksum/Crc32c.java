@@ -0,0 +1,108 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+
+package com.sun.honeycomb.oa.checksum;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli, as in iSCSI and SCTP) in Java, for JDKs that
+ * don't have java.util.zip.CRC32C. This is the "slicing by 8"
+ * method: eight table lookups for each eight bytes of input.
+ */
+final class Crc32c implements Checksum {
+    /** The reflected polynomial */
+    private static final int POLY = 0x82f63b78;
+
+    private static final int[][] table = createTable();
+
+    private int crc = 0xffffffff;
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ table[0][(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int[] t0 = table[0], t1 = table[1], t2 = table[2], t3 = table[3];
+        int[] t4 = table[4], t5 = table[5], t6 = table[6], t7 = table[7];
+
+        while (len >= 8) {
+            int lo = c ^ ((b[off] & 0xff) |
+                          (b[off+1] & 0xff) << 8 |
+                          (b[off+2] & 0xff) << 16 |
+                          (b[off+3] & 0xff) << 24);
+            c = t7[lo & 0xff] ^
+                t6[(lo >>> 8) & 0xff] ^
+                t5[(lo >>> 16) & 0xff] ^
+                t4[lo >>> 24] ^
+                t3[b[off+4] & 0xff] ^
+                t2[b[off+5] & 0xff] ^
+                t1[b[off+6] & 0xff] ^
+                t0[b[off+7] & 0xff];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+        }
+
+        crc = c;
+    }
+
+    public long getValue() {
+        return (~crc) & 0xffffffffL;
+    }
+
+    public void reset() {
+        crc = 0xffffffff;
+    }
+
+    private static int[][] createTable() {
+        int[][] t = new int[8][256];
+        for (int i=0; i<256; i++) {
+            int c = i;
+            for (int k=0; k<8; k++) {
+                c = ((c & 1) != 0) ? ((c >>> 1) ^ POLY) : (c >>> 1);
+            }
+            t[0][i] = c;
+        }
+        for (int i=0; i<256; i++) {
+            for (int k=1; k<8; k++) {
+                t[k][i] = (t[k-1][i] >>> 8) ^ t[0][t[k-1][i] & 0xff];
+            }
+        }
+        return t;
+    }
+}
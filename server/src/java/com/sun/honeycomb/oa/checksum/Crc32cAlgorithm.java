@@ -0,0 +1,127 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+
+package com.sun.honeycomb.oa.checksum;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C checksums. No native library is needed: JDK 1.9 and later
+ * have java.util.zip.CRC32C, which the VM implements with the CPU's
+ * CRC instructions where there are any; on older JDKs Crc32c is used.
+ */
+public final class Crc32cAlgorithm extends ChecksumAlgorithm {
+    private static final Logger logger = 
+        Logger.getLogger(Crc32cAlgorithm.class.getName());
+
+    private static final String jdkClassName = "java.util.zip.CRC32C";
+
+    /** Size of the checksum in bytes */
+    private static final int CHECKSUM_SIZE = 4;
+
+    /** The JDK's implementation, or null if it doesn't have one */
+    private static Class jdkClass = findJdkClass();
+
+    /** Instances are created by ChecksumAlgorithm.getInstance */
+    Crc32cAlgorithm() {
+    }
+
+    /**
+     * Interface to create a context for the checksum algorithm which
+     * represents its internal state.
+     *
+     * @return ChecksumContext the codable internal state
+     */
+    public ChecksumContext createContext() {
+        return new ChecksumContext(getAlgorithmNumber());
+    }
+
+    public void initialize(AlgorithmState internalState) {
+        if (internalState.checksum == null) {
+            internalState.checksum = newChecksum();
+        } else {
+            internalState.checksum.reset();
+        }
+    }
+
+    public void update(ByteBuffer buffer,
+                       int length,
+                       AlgorithmState internalState) {
+        update(internalState.checksum, buffer, length, internalState);
+    }
+
+    public long getLongValue(AlgorithmState internalState) {
+        return internalState.checksum.getValue();
+    }
+
+    public int getIntValue(AlgorithmState internalState) {
+        return (int)internalState.checksum.getValue();
+    }
+
+    public short getShortValue(AlgorithmState internalState) {
+        return (short)internalState.checksum.getValue();
+    }
+
+    public byte getByteValue(AlgorithmState internalState) {
+        return (byte)internalState.checksum.getValue();
+    }
+
+    public int getChecksumSize() {
+        return CHECKSUM_SIZE;
+    }
+
+    private static Checksum newChecksum() {
+        if (jdkClass != null) {
+            try {
+                return (Checksum)jdkClass.newInstance();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Can't create " + jdkClassName, e);
+                jdkClass = null;
+            }
+        }
+        return new Crc32c();
+    }
+
+    private static Class findJdkClass() {
+        try {
+            return Class.forName(jdkClassName);
+        } catch (ClassNotFoundException e) {
+            logger.info(jdkClassName + " not available; using Crc32c");
+            return null;
+        }
+    }
+}
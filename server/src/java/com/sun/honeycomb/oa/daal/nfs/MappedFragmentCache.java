@@ -0,0 +1,247 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.daal.nfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
+
+/**
+ * Cache of read-only memory mappings of committed fragment files, used
+ * by {@link NfsDAAL} to serve reads of hot objects from the page cache
+ * without a read system call per request.
+ *
+ * <p>
+ *
+ * The mappings are kept in LRU order and the total number of mapped
+ * bytes is bounded by <CODE>honeycomb.oa.mmap.read.maxbytes</CODE>; 0
+ * (the default) disables the cache. A single fragment is only mapped if
+ * it is smaller than 1/{@link #MAX_FILE_FRACTION} of the budget, so that
+ * one large object cannot flush everything else.
+ *
+ * <p>
+ *
+ * Committed fragments are not immutable: deletes replace them, footer
+ * updates write them in place and failed stores truncate them. NfsDAAL
+ * invalidates the mapping of a fragment whenever it changes it, and a
+ * mapping is also discarded when the length or modification time of
+ * the file differs from the ones it was created with, which catches
+ * changes made from other nodes over NFS.
+ *
+ * <p>
+ *
+ * Java has no way to unmap a buffer; an evicted mapping goes away once
+ * the last reader drops it and it is garbage collected.
+ */
+public final class MappedFragmentCache {
+
+    private static final Logger LOG =
+        Logger.getLogger(MappedFragmentCache.class.getName());
+
+    /** A file is not mapped if larger than this fraction of the budget */
+    private static final int MAX_FILE_FRACTION = 8;
+
+    private static MappedFragmentCache instance = null;
+
+    private final long maxBytes;
+    private long mappedBytes = 0;
+
+    /** Path to Mapping, in access order */
+    private final LinkedHashMap mappings =
+        new LinkedHashMap(64, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public static synchronized MappedFragmentCache getInstance() {
+        if (instance == null) {
+            long maxBytes = 0;
+            String value = ClusterProperties.getInstance().getProperty
+                (ConfigPropertyNames.PROP_OA_MMAP_READ_MAXBYTES);
+            if (value != null) {
+                try {
+                    maxBytes = Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    LOG.warning("Invalid value [" + value + "] for " +
+                                ConfigPropertyNames.PROP_OA_MMAP_READ_MAXBYTES);
+                }
+            }
+            instance = new MappedFragmentCache(maxBytes);
+            LOG.info("Memory-mapped fragment reads are " +
+                     (instance.isEnabled() ? ("on, up to " + maxBytes +
+                                              " bytes") : "off"));
+        }
+        return instance;
+    }
+
+    MappedFragmentCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    private static final class Mapping {
+        final ByteBuffer buffer;
+        final long length;
+        final long modified;
+
+        Mapping(ByteBuffer buffer, long length, long modified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Returns a read-only view of the whole fragment file, positioned at
+     * 0, mapping it if it is not cached yet.
+     *
+     * @param path the path of the committed fragment file
+     * @param channel an open channel on that file
+     * @return ByteBuffer the view, or null if the file is not to be
+     *         mapped or could not be mapped
+     */
+    public ByteBuffer get(String path, FileChannel channel) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        long length;
+        long modified;
+        try {
+            length = channel.size();
+        } catch (IOException ioe) {
+            return null;
+        }
+        modified = new File(path).lastModified();
+        if ((length == 0) || (length > maxBytes / MAX_FILE_FRACTION) ||
+            (length > Integer.MAX_VALUE)) {
+            return null;
+        }
+
+        synchronized (this) {
+            Mapping mapping = (Mapping) mappings.get(path);
+            if (mapping != null) {
+                if ((mapping.length == length) &&
+                    (mapping.modified == modified)) {
+                    hits++;
+                    return mapping.buffer.duplicate();
+                }
+                remove(path);
+                invalidations++;
+            }
+            misses++;
+        }
+
+        // Map outside of the lock, the mmap may have to go over NFS
+        ByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length).
+                asReadOnlyBuffer();
+        } catch (IOException ioe) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Failed to map " + path + ": " + ioe);
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            // Another reader may have mapped it in the meantime
+            if (mappings.get(path) == null) {
+                mappings.put(path, new Mapping(buffer, length, modified));
+                mappedBytes += length;
+                evict();
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Drops the mapping of a fragment file that is about to change or
+     * has changed. Readers holding a view keep the old content.
+     */
+    public void invalidate(String path) {
+        if (!isEnabled() || (path == null)) {
+            return;
+        }
+        synchronized (this) {
+            if (remove(path)) {
+                invalidations++;
+            }
+        }
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public synchronized String getStats() {
+        return "mapped fragments " + mappings.size() +
+            " bytes " + mappedBytes + "/" + maxBytes +
+            " hits " + hits + " misses " + misses +
+            " evictions " + evictions + " invalidations " + invalidations;
+    }
+
+    private boolean remove(String path) {
+        Mapping mapping = (Mapping) mappings.remove(path);
+        if (mapping == null) {
+            return false;
+        }
+        mappedBytes -= mapping.length;
+        return true;
+    }
+
+    private void evict() {
+        Iterator it = mappings.entrySet().iterator();
+        while ((mappedBytes > maxBytes) && it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            mappedBytes -= ((Mapping) entry.getValue()).length;
+            it.remove();
+            evictions++;
+        }
+    }
+}
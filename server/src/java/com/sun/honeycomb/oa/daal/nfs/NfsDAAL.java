@@ -53,6 +53,8 @@ import java.nio.channels.FileLock;
 import com.sun.honeycomb.resources.ByteBufferList;
 import com.sun.honeycomb.resources.ByteBufferPool;
 import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
 import com.sun.honeycomb.disks.Disk;
 import com.sun.honeycomb.diskmonitor.DiskProxy;
 import com.sun.honeycomb.config.ClusterProperties;
@@ -129,6 +131,13 @@ public class NfsDAAL extends DAAL {
         }
 
         channel = file.getChannel();
+
+        // Serve the reads from a mapping if the fragment is committed
+        MappedFragmentCache cache = MappedFragmentCache.getInstance();
+        if (cache.isEnabled() &&
+            name.equals(makeNfsPath(Common.makeFilename(oid, disk, fragNum)))) {
+            mapped = cache.get(name, channel);
+        }
     }
 
     public void rwopen() throws DAALException, FragmentNotFoundException
@@ -161,6 +170,7 @@ public class NfsDAAL extends DAAL {
             String to = finalnamef.getAbsolutePath();
             throw new DAALException("Rename failed [" + from + " -> " + to +"]");
         }
+        MappedFragmentCache.getInstance().invalidate(finalname);
     }
 
     public void rollback() throws DAALException
@@ -172,6 +182,7 @@ public class NfsDAAL extends DAAL {
         name =  makeNfsPath(Common.makeTmpFilename(oid, disk, fragNum));
         namef = new File(name);
 
+        MappedFragmentCache.getInstance().invalidate(finalname);
         if (!finalnamef.renameTo(namef)) {
             throw new DAALException("Rename failed ["+
                                   namef.getAbsolutePath()+" -> "+
@@ -185,6 +196,7 @@ public class NfsDAAL extends DAAL {
         boolean succeed = true;
 
         File f = new File(makeNfsPath(Common.makeFilename(oid, disk, fragNum)));
+        MappedFragmentCache.getInstance().invalidate(f.getPath());
         if (f.exists()) {
             succeed &= f.delete();
         }
@@ -200,6 +212,7 @@ public class NfsDAAL extends DAAL {
 
     public void close() throws DAALException
     {
+        mapped = null;
         try {
             if (channel != null) {
                 channel.close();
@@ -266,6 +279,7 @@ public class NfsDAAL extends DAAL {
                 }
                 throw new DAALException("Delete failed because of rename");
             }
+            MappedFragmentCache.getInstance().invalidate(namef.getPath());
 
         } catch (FileNotFoundException fnfe) {
             throw new DAALException(fnfe);
@@ -284,44 +298,78 @@ public class NfsDAAL extends DAAL {
     }
 
     public long read(ByteBuffer buf, long offset) throws DAALException {
-        seek(file, offset);
-        return read(channel, buf);
+        long start = System.nanoTime();
+        try {
+            if (mapped != null) {
+                try {
+                    return readMapped(buf, offset);
+                } catch (InternalError ie) {
+                    // The file was truncated under the mapping by another
+                    // node. Drop it and go through the channel.
+                    LOG.warning("Fault reading the mapping of " + name +
+                                ", falling back to read()" + this + ie);
+                    MappedFragmentCache.getInstance().invalidate(name);
+                    mapped = null;
+                }
+            }
+            seek(file, offset);
+            return read(channel, buf);
+        } finally {
+            ioLatency.recordSince(start);
+        }
     }
 
     public long write(ByteBuffer buf, long offset) throws DAALException {
-        return write(channel, buf, offset);
+        long start = System.nanoTime();
+        MappedFragmentCache.getInstance().invalidate(name);
+        mapped = null;
+        try {
+            return write(channel, buf, offset);
+        } finally {
+            ioLatency.recordSince(start);
+        }
     }
 
     public long append(ByteBufferList buflist) throws DAALException {
-        return write(channel, buflist);
+        long start = System.nanoTime();
+        try {
+            return write(channel, buflist);
+        } finally {
+            ioLatency.recordSince(start);
+        }
     }
 
     public long append(ByteBuffer buf) throws DAALException
     {
+        long start = System.nanoTime();
         long res = 0;
         long n = 0;
         long tries = 0;
         IOException e = null;
 
-        while(++tries <= maxRetries) {
-            try {
-                while(buf.hasRemaining() && ((n = channel.write(buf)) >= 0)) {
-                    res += n;
-                }
-                return res;
-            } catch (IOException ioe) {
-                LOG.warning("write failed on try " + tries + this + ioe);
-                e = ioe;
-                if(!diskStillGood()) {
-                    LOG.info("Disk not good anymore - aborting op" + this);
-                    break;
-                }
+        try {
+            while(++tries <= maxRetries) {
                 try {
-                    Thread.currentThread().sleep(retrySleep);
-                } catch (InterruptedException ie) {
-                    LOG.warning("write retry interrupted" + this + ie);
+                    while(buf.hasRemaining() && ((n = channel.write(buf)) >= 0)) {
+                        res += n;
+                    }
+                    return res;
+                } catch (IOException ioe) {
+                    LOG.warning("write failed on try " + tries + this + ioe);
+                    e = ioe;
+                    if(!diskStillGood()) {
+                        LOG.info("Disk not good anymore - aborting op" + this);
+                        break;
+                    }
+                    try {
+                        Thread.currentThread().sleep(retrySleep);
+                    } catch (InterruptedException ie) {
+                        LOG.warning("write retry interrupted" + this + ie);
+                    }
                 }
             }
+        } finally {
+            ioLatency.recordSince(start);
         }
         throw new DAALException("Failed to write: " + e, e);
     }
@@ -461,6 +509,8 @@ public class NfsDAAL extends DAAL {
 
         while (++tries <= maxRetries) {
             try {
+                MappedFragmentCache.getInstance().invalidate(name);
+                mapped = null;
                 channel.truncate(offset);
                 file.seek(length());
                 return;
@@ -641,6 +691,25 @@ public class NfsDAAL extends DAAL {
         throw new DAALException("Failed to write: " + e, e);
     }
 
+    /*
+     * Copy from the mapping of the fragment, with the semantics of
+     * read(FileChannel, ByteBuffer): fill buf up to the end of the file.
+     */
+    private long readMapped(ByteBuffer buf, long offset)
+    {
+        if (offset >= mapped.capacity()) {
+            return 0;
+        }
+        ByteBuffer src = mapped.duplicate();
+        src.position((int) offset);
+        if (src.remaining() > buf.remaining()) {
+            src.limit(src.position() + buf.remaining());
+        }
+        int n = src.remaining();
+        buf.put(src);
+        return n;
+    }
+
     private long read(FileChannel ch, ByteBuffer buf) throws DAALException
     {
         long res = 0;
@@ -1137,6 +1206,9 @@ public class NfsDAAL extends DAAL {
     private static final int maxLockRetries = 5;
     private static final int retrySleep = 500;
 
+    private static final LatencyHistogram ioLatency =
+        Metrics.histogram(Metrics.FRAGMENT_IO);
+
     private static final String ctxFileSuffix = ".ctx";
     private static final String tmpCtxFileSuffix = ".tmpctx";
     private static final String delSuffix = ".tmpdel";
@@ -1153,5 +1225,8 @@ public class NfsDAAL extends DAAL {
     protected FileChannel channel;
     protected FileLock lock;
 
+    /* Read-only view of the committed fragment, when memory mapped */
+    private ByteBuffer mapped;
+
     protected static int READ_TIMEOUT = -1; // 1 sec
 }
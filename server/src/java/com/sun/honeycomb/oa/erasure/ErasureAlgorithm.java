@@ -90,6 +90,30 @@ public abstract class ErasureAlgorithm {
                                                 int numData,
                                                 int numParities);
 
+    /**
+     * Method to add the contribution of a region of one data fragment to
+     * the parity buffers. Calling it for every region of every data
+     * fragment, in any order as long as the fragment 0 region of an offset
+     * comes first, produces the same parities as
+     * {@link #calculateParityBuffers}. This lets a caller compute the
+     * parities while the data is in cache for other processing.
+     *
+     * @param region the data to process, from its position to its limit
+     * @param dataIndex the index of the data fragment the region is from
+     * @param parityBuffers the parity buffers to update
+     * @param offset the offset of the region in the fragment, which is
+     *        also where the parities are updated, relative to the
+     *        position of the parity buffers
+     * @param numData the number of data fragments
+     * @param numParities the number of parity fragments
+     */
+    public abstract void updateParityBuffers(ByteBuffer region,
+                                             int dataIndex,
+                                             ByteBuffer[] parityBuffers,
+                                             int offset,
+                                             int numData,
+                                             int numParities);
+
     /**
      * Interface to reconstruct data from its parity.
      *
@@ -34,6 +34,8 @@
 package com.sun.honeycomb.oa.erasure;
 
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.sun.honeycomb.resources.ByteBufferPool;
 
@@ -55,16 +57,29 @@ final class GFLinearAlgebra {
     /** Native library name */    
     private static final String nativeLibrary = "oamath";
 
+    /**
+     * Property to force the pure Java erasure code even when the native
+     * library is available.
+     */
+    public static final String JAVA_CODEC_PROPERTY =
+        "honeycomb.oa.erasure.java";
+
+    /** true if parities are computed by the native library */
+    private static boolean useNative;
+
     /**
      * Static section to load the native library.
      */
     static {
         try {
             System.loadLibrary(nativeLibrary);
+            useNative = !Boolean.getBoolean(JAVA_CODEC_PROPERTY);
         } catch(UnsatisfiedLinkError ule) {
             System.out.println("Check LD_LIBRARY_PATH. Can't find " +
                        System.mapLibraryName(nativeLibrary) + " in " +
-                       System.getProperty("java.library.path"));
+                       System.getProperty("java.library.path") +
+                       ". Using the Java erasure code.");
+            useNative = false;
         }
     }
 
@@ -75,8 +90,21 @@ final class GFLinearAlgebra {
     private int nData; /* The number of data fragments only */
     private int matrixType = VANDERMONDE;  /* Default type is Vandermonde */
     private byte forwardMatrix[][];
+    private int forwardColumns[][];
     private byte linearForward[];
     
+    /* Max. number of inverse matrices kept in the cache */
+    private static final int MAX_CACHED_INVERSES = 64;
+
+    /* Inverse matrices already computed, keyed by the erasure pattern
+       bitmask, least recently used first */
+    private Map inverseCache =
+        new LinkedHashMap(16, .75F, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > MAX_CACHED_INVERSES;
+            }
+        };
+
     /** 
      * Constructs a GFLinearAlgebra class with the specified
      * <CODE>nChecks</CODE>, <CODE>nData</CODE>, and
@@ -234,6 +262,82 @@ final class GFLinearAlgebra {
         }
         return result;
     }
+
+    /**
+     * Same as {@link #getInverse(int[], int[])}, but the inverse is
+     * only computed the first time a given erasure pattern is seen and
+     * is then served from a cache. The returned matrix is shared and
+     * must not be modified by the caller.
+     *
+     * <p>
+     *
+     * The pattern is keyed by a bitmask of the missing data rows and
+     * of the parity rows replacing them, so both arrays must be in
+     * ascending order. Patterns that do not fit the bitmask are not
+     * cached.
+     *
+     * @param missing_frag Indices of the missing rows in the first n
+     * rows.
+     * @param replaced_by_frag Indices of the parity rows that are
+     * available.
+     * @return The inverse matrix of the modified Vandermonde matrix
+     */
+    public byte[][] getCachedInverse(int missing_frag[],
+                                     int replaced_by_frag[])
+        throws IllegalArgumentException {
+        int key = erasureKey(missing_frag, replaced_by_frag);
+        if (key == -1) {
+            return getInverse(missing_frag, replaced_by_frag);
+        }
+
+        Integer cacheKey = new Integer(key);
+        byte[][] inverse;
+        synchronized (inverseCache) {
+            inverse = (byte[][])inverseCache.get(cacheKey);
+        }
+        if (inverse == null) {
+            inverse = getInverse(missing_frag, replaced_by_frag);
+            synchronized (inverseCache) {
+                inverseCache.put(cacheKey, inverse);
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Returns the bitmask of an erasure pattern: bit i is set if data
+     * row i is missing, bit nData+j if parity row j replaces one. Only
+     * the first missing_frag.length replacement rows are used by
+     * getInverse. Returns -1 if the pattern cannot be keyed this way.
+     */
+    private int erasureKey(int missing_frag[], int replaced_by_frag[]) {
+        if ((missing_frag == null) || (replaced_by_frag == null) ||
+            (missing_frag.length > replaced_by_frag.length) ||
+            (nData + nChecks > 31)) {
+            return -1;
+        }
+
+        int key = 0;
+        int previous = -1;
+        for (int i = 0; i < missing_frag.length; i++) {
+            int row = missing_frag[i];
+            if ((row <= previous) || (row >= nData)) {
+                return -1;
+            }
+            key |= 1 << row;
+            previous = row;
+        }
+        previous = -1;
+        for (int i = 0; i < missing_frag.length; i++) {
+            int row = replaced_by_frag[i];
+            if ((row <= previous) || (row >= nChecks)) {
+                return -1;
+            }
+            key |= 1 << (nData + row);
+            previous = row;
+        }
+        return key;
+    }
     
     /** 
      * Multiplies two matrices using Galois Field     
@@ -320,6 +424,8 @@ final class GFLinearAlgebra {
 
     /**
      * Method to calculate parity fragments using the reed solomon algorithm.
+     * The native library is used when it is loaded, otherwise the parities
+     * are computed by {@link GFRegionCodec}.
      *
      * @param dataFragments the array of fixed size data fragments
      * @param parityFragments the array to store the parity fragments
@@ -328,6 +434,13 @@ final class GFLinearAlgebra {
                                          ByteBuffer[] parityFragments,
                                          int fragSize)
         throws ArithmeticException {
+        if (!useNative) {
+            GFRegionCodec.encode(forwardMatrix,
+                                 dataFragments,
+                                 parityFragments,
+                                 fragSize);
+            return;
+        }
         nativeCalculateParity(dataFragments,
                               parityFragments,
                               nData,
@@ -338,6 +451,27 @@ final class GFLinearAlgebra {
                               (short)(GaloisField256.MAX_SIZE+1));
     }
 
+    /**
+     * Method to add the contribution of a region of one data fragment to
+     * the parity fragments. There is no native equivalent, the region is
+     * always processed by {@link GFRegionCodec}.
+     *
+     * @param region the data, from its position to its limit
+     * @param dataIndex the index of the data fragment of the region
+     * @param parityFragments the parity fragments to update
+     * @param offset the offset of the region in the fragment
+     */
+    public void updateParityFragments(ByteBuffer region,
+                                      int dataIndex,
+                                      ByteBuffer[] parityFragments,
+                                      int offset) {
+        GFRegionCodec.encodeRegion(forwardColumns[dataIndex],
+                                   region,
+                                   parityFragments,
+                                   offset,
+                                   dataIndex != 0);
+    }
+
     /* Native implementation, that is faster due to ptr arith., etc. */
     private native void nativeCalculateParity(ByteBuffer[] dataFragments,
                                               ByteBuffer[] parityFragments,
@@ -436,6 +570,8 @@ final class GFLinearAlgebra {
                 linearForward[l++] = forwardMatrix[i][j];
             }
         }
+
+        forwardColumns = GFRegionCodec.columnOffsets(forwardMatrix);
     }
     
     // I made the following methods private because they are not
@@ -0,0 +1,338 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.erasure;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java Galois Field region arithmetic for the Reed-Solomon code.
+ * It works directly on (direct or heap) ByteBuffers and does not need
+ * the <CODE>oamath</CODE> native library.
+ *
+ * <p>
+ *
+ * Data is processed 8 bytes at a time: a long word is read from a
+ * source fragment and split into its byte lanes once, every lane is
+ * multiplied by the coefficient of each target through the rows of
+ * {@link GaloisField256#linearMulTable}, and the packed product is
+ * XORed into the target with a single long store. Fragments are
+ * walked in stripes of {@link #STRIPE} bytes so that the stripe of
+ * every target stays in cache while all the sources are applied.
+ */
+final class GFRegionCodec {
+
+    /** Number of bytes processed per step of the word loop */
+    private static final int WORD = 8;
+
+    /** Number of fragment bytes processed per pass over the sources */
+    private static final int STRIPE = 16 * 1024;
+
+    /** Mask to treat a byte as unsigned */
+    private static final int MASK = 0xff;
+
+    /** Width of a row of the multiplication table */
+    private static final int ROW = GaloisField256.MAX_SIZE + 1;
+
+    private static final byte[] mulTable = GaloisField256.linearMulTable;
+
+    private GFRegionCodec() {
+    }
+
+    /**
+     * Computes the parity fragments of a block. This is the Java
+     * equivalent of <CODE>GFLinearAlgebra.nativeCalculateParity</CODE>:
+     * the data is the concatenation of the remaining bytes of
+     * <CODE>dataBuffers</CODE>, which do not need to be aligned on
+     * fragment boundaries. Neither the data nor the parity buffer
+     * positions are modified.
+     *
+     * @param matrix the nChecks x nData parity rows of the code
+     * @param dataBuffers the buffers holding nData*fragSize data bytes
+     * @param parityBuffers the buffers to fill, fragSize bytes each
+     * @param fragSize the fragment size in bytes
+     * @throws IllegalArgumentException if the buffers are too short
+     */
+    static void encode(byte[][] matrix,
+                       ByteBuffer[] dataBuffers,
+                       ByteBuffer[] parityBuffers,
+                       int fragSize)
+        throws IllegalArgumentException {
+        int nChecks = matrix.length;
+        int nData = matrix[0].length;
+
+        // Resolve the data buffers in the logical data range
+        ByteBuffer[] sources = new ByteBuffer[dataBuffers.length];
+        int[] sourceBase = new int[dataBuffers.length];
+        int[] sourceStart = new int[dataBuffers.length];
+        int[] sourceLength = new int[dataBuffers.length];
+        int total = 0;
+        for (int i = 0; i < dataBuffers.length; i++) {
+            sources[i] = nativeOrder(dataBuffers[i]);
+            sourceBase[i] = dataBuffers[i].position();
+            sourceStart[i] = total;
+            sourceLength[i] = dataBuffers[i].remaining();
+            total += sourceLength[i];
+        }
+        if (total < nData * fragSize) {
+            throw new IllegalArgumentException("Not enough bytes in the " +
+                                               "data buffers");
+        }
+
+        ByteBuffer[] targets = new ByteBuffer[nChecks];
+        int[] targetOffset = new int[nChecks];
+        int[] targetBase = new int[nChecks];
+        for (int p = 0; p < nChecks; p++) {
+            if (parityBuffers[p].remaining() < fragSize) {
+                throw new IllegalArgumentException("Not enough bytes in " +
+                                                   "the parity buffer");
+            }
+            targets[p] = nativeOrder(parityBuffers[p]);
+            targetBase[p] = parityBuffers[p].position();
+        }
+
+        int[][] rows = rowOffsets(transpose(matrix));
+
+        for (int off = 0; off < fragSize; off += STRIPE) {
+            int len = Math.min(STRIPE, fragSize - off);
+            for (int d = 0; d < nData; d++) {
+                int logical = d * fragSize + off;
+                int fragOffset = off;
+                int left = len;
+                int b = 0;
+                while (left > 0) {
+                    // Skip to the buffer holding the logical offset
+                    while (sourceStart[b] + sourceLength[b] <= logical) {
+                        b++;
+                    }
+                    int inBuffer = logical - sourceStart[b];
+                    int count = Math.min(left, sourceLength[b] - inBuffer);
+                    for (int p = 0; p < nChecks; p++) {
+                        targetOffset[p] = targetBase[p] + fragOffset;
+                    }
+                    multiplyRegion(rows[d],
+                                   sources[b], sourceBase[b] + inBuffer,
+                                   targets, targetOffset,
+                                   count, d != 0);
+                    logical += count;
+                    fragOffset += count;
+                    left -= count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the contribution of a region of one data fragment to the
+     * parity fragments, for an incremental encode. The region is read
+     * from its position to its limit; the parities are updated at
+     * <CODE>offset</CODE> from their position. No position is modified.
+     *
+     * @param column the multiplication rows of the parity coefficients
+     *        of the data fragment, from {@link #columnOffsets}
+     * @param region the data of the fragment to apply
+     * @param parityBuffers the parity fragments to update
+     * @param offset the offset of the region in the fragment
+     * @param accumulate false to set the parities, true to add to them
+     * @throws IllegalArgumentException if a parity buffer is too short
+     */
+    static void encodeRegion(int[] column,
+                             ByteBuffer region,
+                             ByteBuffer[] parityBuffers,
+                             int offset,
+                             boolean accumulate)
+        throws IllegalArgumentException {
+        int len = region.remaining();
+        ByteBuffer[] targets = new ByteBuffer[parityBuffers.length];
+        int[] targetOffset = new int[parityBuffers.length];
+        for (int p = 0; p < parityBuffers.length; p++) {
+            if (parityBuffers[p].remaining() < offset + len) {
+                throw new IllegalArgumentException("Not enough bytes in " +
+                                                   "the parity buffer");
+            }
+            targets[p] = nativeOrder(parityBuffers[p]);
+            targetOffset[p] = parityBuffers[p].position() + offset;
+        }
+        multiplyRegion(column,
+                       nativeOrder(region), region.position(),
+                       targets, targetOffset,
+                       len, accumulate);
+    }
+
+    /**
+     * Returns, for each data fragment, the multiplication rows of its
+     * coefficient in every parity row of <CODE>matrix</CODE>.
+     */
+    static int[][] columnOffsets(byte[][] matrix) {
+        return rowOffsets(transpose(matrix));
+    }
+
+    /**
+     * Multiplies a matrix of coefficients by a set of source fragments:
+     * <CODE>targets[t] = sum(rows[t][s] * sources[s])</CODE>. Sources
+     * are read and targets are written from their current position;
+     * the positions are not modified.
+     *
+     * @param rows one row of sources.length coefficients per target
+     * @param sources the source fragments, size bytes each
+     * @param targets the fragments to compute, size bytes each
+     * @param size the fragment size in bytes
+     */
+    static void multiply(byte[][] rows,
+                         ByteBuffer[] sources,
+                         ByteBuffer[] targets,
+                         int size) {
+        ByteBuffer[] src = new ByteBuffer[sources.length];
+        int[] srcBase = new int[sources.length];
+        for (int s = 0; s < sources.length; s++) {
+            src[s] = nativeOrder(sources[s]);
+            srcBase[s] = sources[s].position();
+        }
+        ByteBuffer[] dst = new ByteBuffer[targets.length];
+        int[] dstBase = new int[targets.length];
+        int[] dstOffset = new int[targets.length];
+        for (int t = 0; t < targets.length; t++) {
+            dst[t] = nativeOrder(targets[t]);
+            dstBase[t] = targets[t].position();
+        }
+
+        int[][] columns = rowOffsets(transpose(rows));
+
+        for (int off = 0; off < size; off += STRIPE) {
+            int len = Math.min(STRIPE, size - off);
+            for (int t = 0; t < dst.length; t++) {
+                dstOffset[t] = dstBase[t] + off;
+            }
+            for (int s = 0; s < src.length; s++) {
+                multiplyRegion(columns[s],
+                               src[s], srcBase[s] + off,
+                               dst, dstOffset,
+                               len, s != 0);
+            }
+        }
+    }
+
+    /**
+     * Computes <CODE>dst[t] = coef[t]*src</CODE>, or
+     * <CODE>dst[t] ^= coef[t]*src</CODE> when accumulating, over
+     * <CODE>len</CODE> bytes for every target. The coefficients are
+     * given as offsets of their row in the multiplication table. All
+     * the buffers must use the same byte order so that the byte lanes
+     * of the words line up.
+     */
+    private static void multiplyRegion(int[] coefRows,
+                                       ByteBuffer src, int srcOffset,
+                                       ByteBuffer[] dst, int[] dstOffset,
+                                       int len,
+                                       boolean accumulate) {
+        int nTargets = dst.length;
+        int i = 0;
+
+        for (; i + WORD <= len; i += WORD) {
+            long word = src.getLong(srcOffset + i);
+            int x0 = (int) word & MASK;
+            int x1 = (int) (word >>> 8) & MASK;
+            int x2 = (int) (word >>> 16) & MASK;
+            int x3 = (int) (word >>> 24) & MASK;
+            int x4 = (int) (word >>> 32) & MASK;
+            int x5 = (int) (word >>> 40) & MASK;
+            int x6 = (int) (word >>> 48) & MASK;
+            int x7 = (int) (word >>> 56) & MASK;
+            for (int t = 0; t < nTargets; t++) {
+                int row = coefRows[t];
+                long product =
+                    (mulTable[row + x0] & 0xffL)
+                    | ((mulTable[row + x1] & 0xffL) << 8)
+                    | ((mulTable[row + x2] & 0xffL) << 16)
+                    | ((mulTable[row + x3] & 0xffL) << 24)
+                    | ((mulTable[row + x4] & 0xffL) << 32)
+                    | ((mulTable[row + x5] & 0xffL) << 40)
+                    | ((mulTable[row + x6] & 0xffL) << 48)
+                    | ((mulTable[row + x7] & 0xffL) << 56);
+                int index = dstOffset[t] + i;
+                if (accumulate) {
+                    product ^= dst[t].getLong(index);
+                }
+                dst[t].putLong(index, product);
+            }
+        }
+
+        // Tail of the region that does not fill a word
+        for (; i < len; i++) {
+            int x = src.get(srcOffset + i) & MASK;
+            for (int t = 0; t < nTargets; t++) {
+                byte product = mulTable[coefRows[t] + x];
+                int index = dstOffset[t] + i;
+                if (accumulate) {
+                    product ^= dst[t].get(index);
+                }
+                dst[t].put(index, product);
+            }
+        }
+    }
+
+    /** Returns the transpose of a coefficient matrix */
+    private static byte[][] transpose(byte[][] matrix) {
+        byte[][] result = new byte[matrix[0].length][matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                result[j][i] = matrix[i][j];
+            }
+        }
+        return result;
+    }
+
+    /** Maps each coefficient to the offset of its multiplication row */
+    private static int[][] rowOffsets(byte[][] matrix) {
+        int[][] result = new int[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            result[i] = new int[matrix[i].length];
+            for (int j = 0; j < matrix[i].length; j++) {
+                result[i][j] = (matrix[i][j] & MASK) * ROW;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a view of the buffer in native byte order, so that all the
+     * buffers involved in a computation agree on the lane layout and the
+     * long accesses map onto plain machine loads and stores.
+     */
+    private static ByteBuffer nativeOrder(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        view.order(ByteOrder.nativeOrder());
+        return view;
+    }
+}
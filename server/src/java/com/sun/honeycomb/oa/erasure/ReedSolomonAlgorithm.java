@@ -149,12 +149,36 @@ public class ReedSolomonAlgorithm extends ErasureAlgorithm {
     }
 
     /**
-     * Interface to reconstruct data from its parity.
-     * TODO:
-     * The current implementation of the reconstruction makes a copy of the
-     * data buffers. This is done because the current implementation of the
-     * matrix inverstion and multiplication takes a byte array. These methods
-     * need to operate on byte buffers instead.
+     * Method to add the contribution of a region of one data fragment to
+     * the parity buffers. The parities of an offset are set by the
+     * fragment 0 region and accumulated by the others.
+     *
+     * @param region the data to process, from its position to its limit
+     * @param dataIndex the index of the data fragment the region is from
+     * @param parityBuffers the parity buffers to update
+     * @param offset the offset of the region in the fragment
+     * @param numData the number of data fragments
+     * @param numParities the number of parity fragments
+     */
+    public void updateParityBuffers(ByteBuffer region,
+                                    int dataIndex,
+                                    ByteBuffer[] parityBuffers,
+                                    int offset,
+                                    int numData,
+                                    int numParities) {
+        if ((dataIndex < 0) || (dataIndex >= numData)) {
+            throw new IllegalArgumentException("Invalid data fragment [" +
+                                               dataIndex + "]");
+        }
+        GFLinearAlgebra gfla = getGFLA(numData, numParities);
+        gfla.updateParityFragments(region, dataIndex, parityBuffers, offset);
+    }
+
+    /**
+     * Interface to reconstruct data from its parity. The available
+     * fragments are used in place, without copying them to byte arrays,
+     * and the decode matrix of each erasure pattern is only inverted
+     * once.
      *
      * @param dataFragments the data fragment array.The length of the array
      *        denotes the number of possible data fragments.
@@ -218,23 +242,18 @@ public class ReedSolomonAlgorithm extends ErasureAlgorithm {
                                                "to reconstruct data");
         }
 
-        int nFragsAvailable = nDataFragsAvailable + nCheckFragsAvailable;
-
         int missingFrags[] = new int[nMissing];
         int replacedBy[] = new int[nMissing];
-        byte[][] fragMatrix = new byte[dataFragments.length][];
+        ByteBuffer[] fragMatrix = new ByteBuffer[dataFragments.length];
         int fragMatrixIndex = 0;
         int tempIndex = 0;
 
         // Construct the fragment matrix and fill it with data fragments
         for(int i=0; i<dataFragments.length; i++) {
             if(validData[i]) {
-                fragMatrix[fragMatrixIndex] = new byte[fragSize];
-                int bufferPosition = dataFragments[i].position();
-                dataFragments[i].rewind();
-                dataFragments[i].get(fragMatrix[fragMatrixIndex]);
+                fragMatrix[fragMatrixIndex] = dataFragments[i].duplicate();
+                fragMatrix[fragMatrixIndex].rewind();
                 fragMatrixIndex++;
-                dataFragments[i].position(bufferPosition);
             } else  {
                 missingFrags[tempIndex++] = i;
             }
@@ -245,12 +264,9 @@ public class ReedSolomonAlgorithm extends ErasureAlgorithm {
         tempIndex = 0;
         for(int i=0; i<parityFragments.length; i++) {
             if(validParity[i]) {
-                fragMatrix[fragMatrixIndex] = new byte[fragSize];
-                int bufferPosition = parityFragments[i].position();
-                parityFragments[i].rewind();
-                parityFragments[i].get(fragMatrix[fragMatrixIndex]);
+                fragMatrix[fragMatrixIndex] = parityFragments[i].duplicate();
+                fragMatrix[fragMatrixIndex].rewind();
                 fragMatrixIndex++;
-                parityFragments[i].position(bufferPosition);
                 replacedBy[tempIndex++] = i;
 
                 // Break if the fragment matrix is full
@@ -267,19 +283,27 @@ public class ReedSolomonAlgorithm extends ErasureAlgorithm {
         }
         */
 
-        // Get the GF and reconstruct all the missing fragments
+        // Get the GF and reconstruct all the missing fragments in one
+        // pass over the available ones
         GFLinearAlgebra gfla = getGFLA(dataFragments.length,
                                        parityFragments.length);
-        byte[][] inverse = gfla.getInverse(missingFrags, replacedBy);
+        byte[][] inverse = gfla.getCachedInverse(missingFrags, replacedBy);
+        byte[][] inverseRows = new byte[nMissing][];
+        ByteBuffer[] missing = new ByteBuffer[nMissing];
+        for(int i=0; i<nMissing; i++) {
+            inverseRows[i] = inverse[missingFrags[i]];
+            missing[i] = dataFragments[missingFrags[i]];
+            if (missing[i].remaining() < fragSize) {
+                throw new IllegalArgumentException("Not enough room in " +
+                                                   "fragment " +
+                                                   missingFrags[i] +
+                                                   " to reconstruct it");
+            }
+        }
+        GFRegionCodec.multiply(inverseRows, fragMatrix, missing, fragSize);
         for(int i=0; i<nMissing; i++) {
-            byte[][] inverseRow = new byte[1][];
-            inverseRow[0] = inverse[missingFrags[i]];
-            byte[][] temp = gfla.matmul(inverseRow, fragMatrix);
-//             System.err.println("Puting " + temp[0].length + " bytes into " + missingFrags[i] + 
-//                                " at position " + dataFragments[missingFrags[i]].position() +
-//                                " with remaining " + dataFragments[missingFrags[i]].remaining());
-            dataFragments[missingFrags[i]].put(temp[0]);
-            dataFragments[missingFrags[i]].flip();
+            missing[i].position(missing[i].position() + fragSize);
+            missing[i].flip();
         }
     }
 
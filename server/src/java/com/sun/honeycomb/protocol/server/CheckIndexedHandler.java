@@ -149,8 +149,8 @@ public class CheckIndexedHandler extends ProtocolHandler {
         int wasIndexed = Coordinator.getInstance().checkIndexed(cacheId,oid);
 
         long check_indexed_time = System.currentTimeMillis() - t1;
-        if (LOGGER.isLoggable(Level.INFO)) {
-            LOGGER.info("MEAS checkIndexed ("+wasIndexed+") __ time " + t1);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MEAS checkIndexed ("+wasIndexed+") __ time " + t1);
         }
         if (wasIndexed > 0) {
             //checkIndexed and added
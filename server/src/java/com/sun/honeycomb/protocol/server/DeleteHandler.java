@@ -40,6 +40,8 @@ import com.sun.honeycomb.common.NoSuchObjectException;
 import com.sun.honeycomb.common.ObjectLostException;
 import com.sun.honeycomb.coordinator.Coordinator;
 import com.sun.honeycomb.common.StatsAccumulator;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
 
 import java.io.IOException;
 import java.util.logging.Level;
@@ -55,6 +57,9 @@ public class DeleteHandler extends ProtocolHandler {
 
     public static StatsAccumulator deleteStats = new StatsAccumulator();
 
+    private static final LatencyHistogram deleteLatency =
+        Metrics.histogram(Metrics.DELETE);
+
     public DeleteHandler(final ProtocolBase newService) {
         super(newService);
     }
@@ -147,8 +152,9 @@ public class DeleteHandler extends ProtocolHandler {
 
         t1 = System.currentTimeMillis() - t1;
         deleteStats.add(t1);
-        if (LOGGER.isLoggable(Level.INFO)) {
-            LOGGER.info("MEAS delete __ time " + t1);
+        deleteLatency.record(t1 * 1000);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MEAS delete __ time " + t1);
         }
         HttpOutputStream out = (HttpOutputStream)response.getOutputStream();
         writeMulticellConfig(out);
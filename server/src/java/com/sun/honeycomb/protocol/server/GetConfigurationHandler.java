@@ -141,8 +141,8 @@ public class GetConfigurationHandler extends ProtocolHandler {
 
         t1 = System.currentTimeMillis() - t1;
         getschemaStats.add(t1);
-        if (LOGGER.isLoggable(Level.INFO)) {
-            LOGGER.info("MEAS getschema __ time " + t1);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MEAS getschema __ time " + t1);
         }
 
         response.setContentType(ProtocolConstants.PLAIN_TEXT_TYPE);
@@ -196,8 +196,8 @@ public class GetValuesHandler extends ProtocolHandler {
 
         t1 = System.currentTimeMillis() - t1;
         seluniqStats.add(t1);
-        if (LOGGER.isLoggable(Level.INFO)) {
-            LOGGER.info("MEAS seluniq __ time " + t1);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MEAS seluniq __ time " + t1);
         }
 
         if (result.results == null || result.results.size() == 0) {
@@ -40,6 +40,7 @@ import com.sun.honeycomb.common.ConfigPropertyNames;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.common.ArchiveException;
 import com.sun.honeycomb.coordinator.Coordinator;
+import com.sun.honeycomb.coordinator.ChangeJournal;
 import com.sun.honeycomb.config.ClusterProperties;
 
 import org.mortbay.http.HttpContext;
@@ -472,4 +473,18 @@ public abstract class ProtocolBase implements ServiceRegistration {
         }
         return success;
     }
+
+    /*
+     * Remote invocation from ProtocolProxy: read the change journal of
+     * this node, null if journaling is disabled.
+     */
+    public ChangeJournal.Batch readJournal(long start, long end,
+                                           long segment, long offset,
+                                           int max) {
+        ChangeJournal journal = ChangeJournal.getInstance();
+        if (journal == null) {
+            return null;
+        }
+        return journal.read(start, end, segment, offset, max);
+    }
 }
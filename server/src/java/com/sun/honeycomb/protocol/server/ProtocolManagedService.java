@@ -36,6 +36,7 @@ package com.sun.honeycomb.protocol.server;
 import com.sun.honeycomb.cm.ManagedService;
 import com.sun.honeycomb.cm.ManagedServiceException;
 import com.sun.honeycomb.coordinator.Coordinator;
+import com.sun.honeycomb.coordinator.ChangeJournal;
 
 import com.sun.honeycomb.common.NewObjectIdentifier;
 
@@ -49,4 +50,9 @@ public interface ProtocolManagedService extends
     public boolean apiCallback(int event, NewObjectIdentifier oid, NewObjectIdentifier doid)
 	throws ManagedServiceException;
 
+    public ChangeJournal.Batch readJournal(long start, long end,
+                                           long segment, long offset,
+                                           int max)
+	throws ManagedServiceException;
+
 }
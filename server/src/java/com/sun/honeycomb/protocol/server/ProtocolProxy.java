@@ -56,7 +56,9 @@ import com.sun.honeycomb.layout.LayoutProxy;
 import com.sun.honeycomb.layout.DiskMask;
 import com.sun.honeycomb.cm.cluster_membership.CMM;
 import com.sun.honeycomb.coordinator.Coordinator;
+import com.sun.honeycomb.coordinator.ChangeJournal;
 import com.sun.honeycomb.oa.OAStats;
+import com.sun.honeycomb.common.Metrics;
 
 
 /**
@@ -81,6 +83,7 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
     static public final String OA_STATS = "OAStats";
     static public final String WEBDAV_PUT_BW = "WebDAVPutBandwidth";
     static public final String WEBDAV_GET_BW = "WebDAVGetBandwidth";
+    static public final String METRICS = "metrics";
 
     private OAStats oaStats = null;
     private String storePerf = null;
@@ -93,6 +96,7 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
     private String deletePerf = null;
     private String getschemaPerf = null;
     private String seluniqPerf = null;
+    private String metrics = null;
     private String storeOpsStr = null;
     private String storeBothOpsStr = null;
     private String storeMDOpsStr = null;
@@ -230,6 +234,7 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
         deletePerf = DeleteHandler.deleteStats.getStatsStr();	    // StatsAccumulator
         getschemaPerf = GetConfigurationHandler.getschemaStats.getStatsStr();  // StatsAccumulator
         seluniqPerf = SelectUniqueHandler.selUniqStats.getStatsStr();  // StatsAccumulator
+        metrics = Metrics.snapshot().toString();                      // Metrics.Snapshot
         oaStats = new OAStats();
 
         /*
@@ -279,11 +284,31 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
         }
     }
 
+    /**
+     * Read the change journal of this node, null if it is disabled or
+     * the node cannot be reached.
+     */
+    public ChangeJournal.Batch readJournal(long start, long end,
+                                           long segment, long offset,
+                                           int max) {
+        if (!(getAPI() instanceof ProtocolManagedService)) {
+            logger.warning("API is not of type ProtocolManagedService");
+            return null;
+        }
+        ProtocolManagedService api = (ProtocolManagedService) getAPI();
+        try {
+            return api.readJournal(start, end, segment, offset, max);
+        } catch (ManagedServiceException mse) {
+            logger.warning("proxy failed to rpc: " + mse);
+            return null;
+        }
+    }
+
     /*
      * Alert API
      */
     public int getNbChildren() {
-        return 11;
+        return 12;
     }
 
     public AlertProperty getPropertyChild(int index) 
@@ -324,6 +349,9 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
         case 10:
             prop = new AlertProperty(OA_STATS, AlertType.COMPOSITE);
             break;
+        case 11:
+            prop = new AlertProperty(METRICS, AlertType.STRING);
+            break;
         default:
             throw new AlertException("index " + index + " out of bound");
         }
@@ -352,6 +380,8 @@ public class ProtocolProxy extends ManagedService.ProxyObject {
             return retrieveMDPerf;
         } else if (property.equals(STORE_MD_BW)) {
             return storeMDPerf;
+        } else if (property.equals(METRICS)) {
+            return metrics;
         } else {
             throw new AlertException("property " + property +
               " does not exist");                
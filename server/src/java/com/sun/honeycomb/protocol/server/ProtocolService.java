@@ -48,6 +48,7 @@ import com.sun.honeycomb.cm.ManagedServiceException;
 import com.sun.honeycomb.cm.ServiceManager;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.common.InternalException;
+import com.sun.honeycomb.coordinator.ChangeJournal;
 
 public class ProtocolService extends ProtocolBase 
 implements ProtocolManagedService {
@@ -174,6 +175,7 @@ implements ProtocolManagedService {
             server.stop(true);
             server.join();
             server.destroy();
+            ChangeJournal.shutdown();
         } catch (InterruptedException e) {
             logger.severe("Failed to shutdown: " + e.getMessage());
         }
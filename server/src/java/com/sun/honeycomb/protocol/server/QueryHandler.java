@@ -41,6 +41,8 @@ import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.common.ObjectIdentifierList;
 import com.sun.honeycomb.common.ProtocolConstants;
 import com.sun.honeycomb.common.StatsAccumulator;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
 import com.sun.honeycomb.common.CanonicalEncoding;
 import com.sun.honeycomb.emd.MetadataClient;
 
@@ -66,6 +68,9 @@ public class QueryHandler extends ProtocolHandler {
 
     public static StatsAccumulator queryStats = new StatsAccumulator();
 
+    private static final LatencyHistogram queryLatency =
+        Metrics.histogram(Metrics.QUERY);
+
     public QueryHandler(final ProtocolBase newService) {
         super(newService);
     }
@@ -189,8 +194,9 @@ public class QueryHandler extends ProtocolHandler {
 
         t1 = System.currentTimeMillis() - t1;
         queryStats.add(t1);
-        if (LOGGER.isLoggable(Level.INFO)) {
-            LOGGER.info("MEAS query __ time " + t1);
+        queryLatency.record(t1 * 1000);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("MEAS query __ time " + t1);
         }
 
         if (result.results == null || result.results.size() == 0 || maxResults <= 0) {
@@ -0,0 +1,277 @@
+
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.honeycomb.protocol.server;
+
+import com.sun.honeycomb.common.ArchiveException;
+import com.sun.honeycomb.common.InternalException;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.coordinator.Coordinator;
+import com.sun.honeycomb.resources.ByteBufferList;
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the blocks of an object ahead of the thread writing them to the
+ * client, so that the fragment reads and decode of the next blocks
+ * overlap with the socket write of the current one.
+ *
+ * At most <code>depth</code> blocks are kept ready. The blocks are read
+ * one after the other by a task of a pool dedicated to the retrieves,
+ * so that read ahead cannot starve the other users of the resources
+ * ThreadPool. The task returns its thread to the pool when enough
+ * blocks are ready instead of waiting for a slow client, and is
+ * rescheduled by {@link #take}. When the pool and its queue are full,
+ * the writer reads the blocks itself.
+ */
+class ReadAhead implements Runnable {
+
+    private static final Logger LOGGER =
+        Logger.getLogger(ReadAhead.class.getName());
+
+    private static final int POOL_THREADS = 16;
+    private static final int MAX_QUEUED = 32;
+    private static final int IDLE_THREAD_EXPIRATION = 60; // 1mn
+
+    private static ThreadPoolExecutor pool = null;
+    private static int threadCount = 0;
+
+    private final RetrieveHandler handler;
+    private final Coordinator coordinator;
+    private final NewObjectIdentifier oid;
+    private final int bufferSize;
+    private final int depth;
+    private final long lengthToRead;
+
+    private long offsetToRead;
+    private long totalRead = 0;
+
+    // ByteBufferLists read and not yet taken by the writer
+    private final LinkedList ready = new LinkedList();
+
+    private boolean running = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    private Exception error = null;
+
+    ReadAhead(RetrieveHandler handler,
+              Coordinator coordinator,
+              NewObjectIdentifier oid,
+              long offset,
+              long length,
+              int bufferSize,
+              int depth) {
+        this.handler = handler;
+        this.coordinator = coordinator;
+        this.oid = oid;
+        this.offsetToRead = offset;
+        this.lengthToRead = length;
+        this.bufferSize = bufferSize;
+        this.depth = depth;
+    }
+
+    private static synchronized ThreadPoolExecutor getPool() {
+        if (pool == null) {
+            // core size is the max, so tasks queue only when all the
+            // threads are busy; the threads are still started on demand
+            pool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS,
+                                          IDLE_THREAD_EXPIRATION,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue(MAX_QUEUED),
+                                          new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ReadAhead-" +
+                                              nextThread());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return pool;
+    }
+
+    private static synchronized int nextThread() {
+        return threadCount++;
+    }
+
+    /**
+     * Schedules the read task if it is not running and more blocks can
+     * be read ahead.
+     *
+     * @return false if the task could not be handed to the thread pool
+     */
+    synchronized boolean start() {
+        if (running || finished || closed || ready.size() >= depth) {
+            return true;
+        }
+
+        running = true;
+        try {
+            getPool().execute(this);
+        } catch (RejectedExecutionException e) {
+            running = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next block, waiting for it to be read if needed.
+     *
+     * @return the buffers of the block, or null past the end of the
+     *         object. The caller owns the returned buffers.
+     * @throws ArchiveException if the read of the block failed
+     */
+    ByteBufferList take() throws ArchiveException {
+        while (true) {
+            synchronized (this) {
+                if (!ready.isEmpty()) {
+                    ByteBufferList result = (ByteBufferList)ready.removeFirst();
+                    start();
+                    return result;
+                }
+                if (error != null) {
+                    rethrow(error);
+                }
+                if (finished) {
+                    return null;
+                }
+                if (running || start()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InternalException("interrupted waiting " +
+                                                    "for block of " + oid);
+                    }
+                    continue;
+                }
+
+                // The pool refused the task, read on the caller thread
+                running = true;
+            }
+            run();
+        }
+    }
+
+    /**
+     * Stops reading ahead and releases the blocks not taken. A read in
+     * progress releases its block when it completes.
+     */
+    synchronized void close() {
+        closed = true;
+        while (!ready.isEmpty()) {
+            ((ByteBufferList)ready.removeFirst()).clear();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            long offset;
+            int length;
+
+            synchronized (this) {
+                if (closed || finished || ready.size() >= depth) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                offset = offsetToRead;
+                length = (int)Math.min((long)bufferSize,
+                                       lengthToRead - totalRead);
+            }
+
+            ByteBufferList bufferList = new ByteBufferList();
+            int read;
+            try {
+                read = handler.read(coordinator,
+                                    oid,
+                                    bufferList,
+                                    offset,
+                                    length,
+                                    length < bufferSize);
+            } catch (Exception e) {
+                bufferList.clear();
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "read ahead of " + oid +
+                               " at offset " + offset + " failed", e);
+                }
+                synchronized (this) {
+                    error = e;
+                    finished = true;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    bufferList.clear();
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+
+                if (read < 1) {
+                    bufferList.clear();
+                    finished = true;
+                } else {
+                    ready.addLast(bufferList);
+                    offsetToRead += read;
+                    totalRead += read;
+                    if ((read < bufferSize) || (totalRead >= lengthToRead)) {
+                        finished = true;
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static void rethrow(Exception e) throws ArchiveException {
+        if (e instanceof ArchiveException) {
+            throw (ArchiveException)e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+        }
+        throw new InternalException(e);
+    }
+}
@@ -42,6 +42,11 @@ import com.sun.honeycomb.common.ObjectCorruptedException;
 import com.sun.honeycomb.common.ObjectLostException;
 import com.sun.honeycomb.common.ProtocolConstants;
 import com.sun.honeycomb.common.BandwidthStatsAccumulator;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
+import com.sun.honeycomb.common.StripedCounter;
+import com.sun.honeycomb.common.ConfigPropertyNames;
+import com.sun.honeycomb.config.ClusterProperties;
 import com.sun.honeycomb.coordinator.Coordinator;
 import com.sun.honeycomb.resources.ByteBufferList;
 
@@ -64,8 +69,22 @@ public class RetrieveHandler extends ProtocolHandler {
     public static BandwidthStatsAccumulator retrieveMDStats =
                                                new BandwidthStatsAccumulator();
 
+    private static final LatencyHistogram retrieveLatency =
+        Metrics.histogram(Metrics.RETRIEVE);
+    private static final LatencyHistogram rangeRetrieveLatency =
+        Metrics.histogram(Metrics.RANGE_RETRIEVE);
+    private static final StripedCounter retrieveBytes =
+        Metrics.counter(Metrics.RETRIEVE_BYTES);
+
+    /** Default number of blocks read ahead of the client writes */
+    private static final int DEFAULT_READAHEAD = 2;
+
+    private int readAheadDepth;
+
     public RetrieveHandler(final ProtocolBase newService) {
         super(newService);
+        readAheadDepth = ClusterProperties.getInstance().getPropertyAsInt
+            (ConfigPropertyNames.PROP_PROTOCOL_READAHEAD, DEFAULT_READAHEAD);
     }
 
     protected void handle(final String pathInContext,
@@ -189,7 +208,7 @@ public class RetrieveHandler extends ProtocolHandler {
 
         writeMulticellConfig(out);
 
-        long t1 = System.currentTimeMillis();
+        long t1 = System.nanoTime();
 
         Coordinator coord = Coordinator.getInstance();
         long offsetToRead = (offset != Coordinator.UNKNOWN_SIZE)
@@ -206,6 +225,7 @@ public class RetrieveHandler extends ProtocolHandler {
 
         ByteBufferList bufferList = new ByteBufferList();
         byte[] bytes = new byte[bufferSize];
+        ReadAhead readAhead = null;
 
         long write_time = 0;
 
@@ -213,12 +233,17 @@ public class RetrieveHandler extends ProtocolHandler {
 
             while (totalRead < lengthToRead) {
 
-                read = read(coord,
+                if (readAhead != null) {
+                    bufferList = readAhead.take();
+                    read = (bufferList != null) ? bufferList.remaining() : 0;
+                } else {
+                    read = read(coord,
                                 oid,
                                 bufferList,
                                 offsetToRead,
                                 readLength,
                                 readLength < bufferSize);
+                }
 
                 if (read < 1)
                     break;
@@ -230,44 +255,70 @@ public class RetrieveHandler extends ProtocolHandler {
                                   offsetToRead);
                 }
 
+                totalRead += read;
+                offsetToRead += read;
+                readLength = (int)Math.min((long)bufferSize, lengthToRead - totalRead);
+
+                boolean more = (read >= bufferSize) && (totalRead < lengthToRead);
+
+                // Object spans several blocks: read the next ones while
+                // this one is written to the client
+                if (more && readAhead == null && !mdOnly && readAheadDepth > 0) {
+                    readAhead = new ReadAhead(this,
+                                              coord,
+                                              oid,
+                                              offsetToRead,
+                                              lengthToRead - totalRead,
+                                              bufferSize,
+                                              readAheadDepth);
+                    readAhead.start();
+                }
+
                 // accumulate the write time to subtract
-                long t2 = System.currentTimeMillis();
+                long t2 = System.nanoTime();
                 writeBufferList(bufferList, bytes, out);
-                write_time += System.currentTimeMillis() - t2;
+                write_time += System.nanoTime() - t2;
 
                 bufferList.clear();
 
-                totalRead += read;
-                offsetToRead += read;
-                readLength = (int)Math.min((long)bufferSize, lengthToRead - totalRead);
-
-                if (read < bufferSize) {
+                if (!more) {
                     break;
                 }
             }
         } finally {
-            bufferList.clear();
+            if (bufferList != null) {
+                bufferList.clear();
+            }
+            if (readAhead != null) {
+                readAhead.close();
+            }
         }
-        long read_time = System.currentTimeMillis() - t1;
-
-        read_time -= write_time;
+        // in nanoseconds for the histograms, the stats take millis
+        long read_nanos = System.nanoTime() - t1 - write_time;
+        long read_time = read_nanos / 1000000;
 
         if (mdOnly) {
             retrieveMDStats.add(totalRead, read_time);
         } else {
             retrieveStats.add(totalRead, read_time);
+            if (length == Coordinator.UNKNOWN_SIZE) {
+                retrieveLatency.record(read_nanos / 1000);
+            } else {
+                rangeRetrieveLatency.record(read_nanos / 1000);
+            }
+            retrieveBytes.add(totalRead);
         }
  
-        if (LOGGER.isLoggable(Level.INFO)) {
+        if (LOGGER.isLoggable(Level.FINE)) {
 
             if (mdOnly)
-                LOGGER.info("MEAS getmd __ size " + totalRead + 
+                LOGGER.fine("MEAS getmd __ size " + totalRead + 
                                                       " time " + read_time);
             else if (length == Coordinator.UNKNOWN_SIZE)
-                LOGGER.info("MEAS retrieve __ size " + totalRead + 
+                LOGGER.fine("MEAS retrieve __ size " + totalRead + 
                                                       " time " + read_time);
             else
-                LOGGER.info("MEAS rretrieve __ size " + totalRead + 
+                LOGGER.fine("MEAS rretrieve __ size " + totalRead + 
                                                       " time " + read_time);
         }
         return true;
@@ -287,16 +338,30 @@ public class RetrieveHandler extends ProtocolHandler {
                                     lastRead);
     }
 
+    /**
+     * Writes the buffers to the client. Heap buffers are written
+     * directly; direct buffers go through the intermediate byte array.
+     */
     private void writeBufferList(ByteBufferList bufferList,
                                  byte[] bytes,
                                  OutputStream out) throws IOException {
         ByteBuffer[] buffers = bufferList.getBuffers();
 
         for (int i = 0; i < buffers.length; i++) {
-            int toWrite = buffers[i].remaining();
-
-            buffers[i].get(bytes, 0, toWrite);
-            out.write(bytes, 0, toWrite);
+            ByteBuffer buffer = buffers[i];
+
+            if (buffer.hasArray()) {
+                out.write(buffer.array(),
+                          buffer.arrayOffset() + buffer.position(),
+                          buffer.remaining());
+                buffer.position(buffer.limit());
+            } else {
+                while (buffer.hasRemaining()) {
+                    int toWrite = Math.min(bytes.length, buffer.remaining());
+                    buffer.get(bytes, 0, toWrite);
+                    out.write(bytes, 0, toWrite);
+                }
+            }
         }
     }
 
@@ -99,8 +99,8 @@ public class StoreBothHandler extends StoreHandler {
                                   (byte)0);
         t1 = System.currentTimeMillis() - t1;
         storeMDSideStats.add(t1);
-        if (LOGGER.isLoggable(Level.INFO))
-            LOGGER.info("MEAS store_md __ time " + t1);
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("MEAS store_md __ time " + t1);
 
         return noo;
     }
@@ -47,7 +47,11 @@ import com.sun.honeycomb.common.UnsatisfiableReliabilityException;
 import com.sun.honeycomb.common.BandwidthStatsAccumulator;
 import com.sun.honeycomb.common.Encoding;
 import com.sun.honeycomb.common.StatsAccumulator;
+import com.sun.honeycomb.common.LatencyHistogram;
+import com.sun.honeycomb.common.Metrics;
+import com.sun.honeycomb.common.StripedCounter;
 import com.sun.honeycomb.emd.config.SessionEncoding;
+import com.sun.honeycomb.coordinator.Compression;
 import com.sun.honeycomb.coordinator.Coordinator;
 import com.sun.honeycomb.resources.ByteBufferPool;
 
@@ -90,6 +94,11 @@ public class StoreHandler extends ProtocolHandler {
     
     public static StatsAccumulator storeMDSideStats = new StatsAccumulator();
 
+    private static final LatencyHistogram storeLatency =
+        Metrics.histogram(Metrics.STORE);
+    private static final StripedCounter storeBytes =
+        Metrics.counter(Metrics.STORE_BYTES);
+
         
     public StoreHandler(final ProtocolBase newService) {
         super(newService);
@@ -286,7 +295,13 @@ public class StoreHandler extends ProtocolHandler {
             }
         }
         
-        long t1 = System.currentTimeMillis();
+        // A client may override the compression policy of the cell
+        String compressionStr = request.getField(ProtocolConstants.COMPRESSION_HEADER);
+        byte codec = (compressionStr != null)
+            ? Compression.getCodec(compressionStr)
+            : -1;
+
+        long t1 = System.nanoTime();
         Coordinator coord = Coordinator.getInstance();
 
         if (getBooleanRequestParameter(ProtocolConstants.ZIP_PARAMETER, false, request, response, trailer) ){
@@ -301,6 +316,9 @@ public class StoreHandler extends ProtocolHandler {
         if (oid == null) {
             return null;
         }
+        if (codec != -1) {
+            coord.setCompression(oid, codec);
+        }
         ByteBufferPool bufferPool = ByteBufferPool.getInstance();
         ByteBuffer buffer = null;
         int bufferSize = coord.getWriteBufferSize();
@@ -320,13 +338,13 @@ public class StoreHandler extends ProtocolHandler {
         	// read until we get some data or reach the end of the
         	// byte array
         	
-            long t2 = System.currentTimeMillis();
+            long t2 = System.nanoTime();
             while (bufferRead < bufferSize &&
                    (read = in.read(bytes, bufferRead, 
                                    bufferSize - bufferRead)) >= 0) {
                 bufferRead += read;
             }
-            read_time += System.currentTimeMillis() - t2;
+            read_time += System.nanoTime() - t2;
 
             if (bufferRead > 0) {
         	    
@@ -372,8 +390,9 @@ public class StoreHandler extends ProtocolHandler {
         writeMulticellConfig(out);
 
         if (smd != null) {
-            long store_time = System.currentTimeMillis() - t1;
-            store_time -= read_time;
+            // in nanoseconds for the histogram, the stats take millis
+            long store_nanos = System.nanoTime() - t1 - read_time;
+            long store_time = store_nanos / 1000000;
 
             if (mdOnly) {
                 storeMDStats.add(smd.getSize(), store_time);
@@ -383,16 +402,20 @@ public class StoreHandler extends ProtocolHandler {
             } else {
                 storeStats.add(smd.getSize(), store_time);
             }
+            if (!mdOnly) {
+                storeLatency.record(store_nanos / 1000);
+                storeBytes.add(smd.getSize());
+            }
 
-            if (LOGGER.isLoggable(Level.INFO)) {
+            if (LOGGER.isLoggable(Level.FINE)) {
                 if (mdOnly) {
-                    LOGGER.info("MEAS addmd __ size " + smd.getSize() +
+                    LOGGER.fine("MEAS addmd __ size " + smd.getSize() +
                                 " time " + store_time);
                 } else if (storeBoth) {
-                    LOGGER.info("MEAS store_b __ size " + smd.getSize() +
+                    LOGGER.fine("MEAS store_b __ size " + smd.getSize() +
                                 " time " + store_time);
                 } else {
-                    LOGGER.info("MEAS store __ size " + smd.getSize() +
+                    LOGGER.fine("MEAS store __ size " + smd.getSize() +
                                 " time " + store_time);
                 }
             }
@@ -44,13 +44,49 @@ public abstract class ByteBufferPool {
     private static final int MEDIUM_BUFFER_SIZE = 64 * 1024;
     private static final int LARGE_BUFFER_SIZE = 64 * 6 * 1024;
 
+    /**
+     * System property to select the pool implementation: "concurrent"
+     * (the default) or "flat" for the original single lock pool.
+     */
+    public static final String POOL_PROPERTY =
+        "honeycomb.resources.bufferpool";
+
+    /**
+     * System property to track every buffer and view checked out, so
+     * that the ones collected without being checked in are reclaimed.
+     * Off by default, as it costs a map update and a weak reference
+     * per check out.
+     */
+    public static final String TRACKING_PROPERTY =
+        "honeycomb.resources.bufferpool.tracking";
+
+    /**
+     * System property to record where each buffer was checked out, to
+     * report buffers that are collected without being checked in.
+     * Implies tracking.
+     */
+    public static final String DEBUG_PROPERTY =
+        "honeycomb.resources.bufferpool.debug";
+
     protected static final Logger LOGGER =
         Logger.getLogger(ByteBufferPool.class.getName());
 
-    private static ByteBufferPool instance =
-        new CompositeByteBufferPool(new int[] {SMALL_BUFFER_SIZE,
-                                               MEDIUM_BUFFER_SIZE,
-                                               LARGE_BUFFER_SIZE});
+    private static ByteBufferPool instance = createInstance();
+
+    private static ByteBufferPool createInstance() {
+        int[] sizes = new int[] {SMALL_BUFFER_SIZE,
+                                 MEDIUM_BUFFER_SIZE,
+                                 LARGE_BUFFER_SIZE};
+
+        if ("flat".equals(System.getProperty(POOL_PROPERTY))) {
+            LOGGER.info("using the flat buffer pool");
+            return new CompositeByteBufferPool(sizes);
+        }
+
+        return new ConcurrentByteBufferPool(sizes,
+                                            Boolean.getBoolean(TRACKING_PROPERTY),
+                                            Boolean.getBoolean(DEBUG_PROPERTY));
+    }
 
     public static ByteBufferPool getInstance() {
         return instance;
@@ -64,6 +100,9 @@ public abstract class ByteBufferPool {
 
     public abstract void checkInBuffer(ByteBuffer buffer);
 
+    /** One line summary of the pool usage, for the logs */
+    public abstract String getStats();
+
     public ByteBufferList checkOutBufferList() {
         return new ByteBufferList();
     }
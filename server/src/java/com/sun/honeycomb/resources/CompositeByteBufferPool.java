@@ -75,6 +75,17 @@ class CompositeByteBufferPool extends ByteBufferPool {
         FlatByteBufferPool.sharedCheckInBuffer(buffer);
     }
 
+    public String getStats() {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < pools.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(pools[i].getStats());
+        }
+        return sb.toString();
+    }
+
     private FlatByteBufferPool poolForCapacity(int capacity) {
         for (int i = 0; i < pools.length; i++) {
             if (pools[i].getBufferSize() >= capacity) {
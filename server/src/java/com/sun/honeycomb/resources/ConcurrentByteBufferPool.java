@@ -0,0 +1,773 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.resources;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Buffer pool without a global lock.
+ *
+ * Buffers are carved out of large direct master buffers, as in
+ * FlatByteBufferPool, and grouped in size classes. Each size class
+ * keeps its free buffers in a lock-free queue, and each thread keeps
+ * a few free buffers of the smaller classes to itself, so that most
+ * check outs and check ins do not touch any shared structure but the
+ * buffer maps.
+ *
+ * Every buffer handed out (the buffer itself or a view of it) holds a
+ * reference on its range; the range is free again once all of them
+ * are checked in. By default each range keeps the buffer it hands
+ * out, and hands it out again while the capacity asked for stays the
+ * same, so a check out of a buffer allocates nothing and only reads
+ * the buffer map. A buffer dropped without being checked in strands
+ * its range.
+ *
+ * With tracking on, every buffer and view is instead a new one,
+ * tracked through a weak reference so that a range whose views were
+ * all dropped without being checked in is reclaimed, with a warning.
+ * In debug mode, which implies tracking, the stack trace of each check
+ * out is kept and logged for such leaks.
+ *
+ * The thread caches are registered with the pool: every REAP_INTERVAL
+ * check outs, the caches of the threads that died are given back to
+ * the size classes, so that request threads coming and going do not
+ * strand ranges. The pool stats are logged from there too.
+ */
+class ConcurrentByteBufferPool extends ByteBufferPool {
+
+    // try to allocate enough space for 50 buffers at a time...
+    private static final int BUFFER_COUNT = 50;
+    // but stop at 8 MB
+    private static final int MAX_MASTER_SIZE = 8 * 1024 * 1024;
+
+    // Max. number of free buffers, and bytes, each thread keeps per class
+    private static final int THREAD_CACHE_BUFFERS = 8;
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+
+    // Max. number of collected views reclaimed per call
+    private static final int PURGE_COUNT = 2;
+
+    // Check outs between two looks for the caches of dead threads
+    private static final int REAP_INTERVAL = 4096; // power of 2
+    // Min. time between two stats log lines
+    private static final long STATS_LOG_INTERVAL = 10 * 60 * 1000; // ms
+
+    private SizeClass[] classes;
+    private boolean tracking;
+    private boolean debug;
+
+    // ViewReference -> itself, to find the range of a view
+    private ConcurrentHashMap views;
+    private ReferenceQueue queue;
+    // Probe -> RangeRecord, to find the range of the buffer it keeps
+    private ConcurrentHashMap bases;
+
+    private ThreadLocal threadCaches;
+    private ThreadLocal probes;
+
+    // Every ThreadCache, live or not, until reaped
+    private ConcurrentLinkedQueue caches;
+    private AtomicBoolean reaping;
+    private volatile long lastStatsLog;
+
+    private AtomicLong checkOuts;
+    private AtomicLong threadCacheHits;
+    private AtomicLong freeListHits;
+    private AtomicLong purged;
+    private AtomicLong reaped;
+
+    // sizes is assumed to be sorted
+    ConcurrentByteBufferPool(int[] sizes,
+                             boolean newTracking,
+                             boolean newDebug) {
+        if (sizes == null || sizes.length == 0) {
+            throw new IllegalArgumentException("must specify at least one size");
+        }
+
+        debug = newDebug;
+        tracking = newTracking || newDebug;
+
+        classes = new SizeClass[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            classes[i] = new SizeClass(i, sizes[i]);
+        }
+
+        views = new ConcurrentHashMap(BUFFER_COUNT * 4);
+        queue = new ReferenceQueue();
+        bases = new ConcurrentHashMap(BUFFER_COUNT * 4);
+
+        caches = new ConcurrentLinkedQueue();
+        reaping = new AtomicBoolean(false);
+        lastStatsLog = System.currentTimeMillis();
+
+        threadCaches = new ThreadLocal() {
+            protected Object initialValue() {
+                return new ThreadCache();
+            }
+        };
+        probes = new ThreadLocal() {
+            protected Object initialValue() {
+                return new Probe();
+            }
+        };
+
+        checkOuts = new AtomicLong();
+        threadCacheHits = new AtomicLong();
+        freeListHits = new AtomicLong();
+        purged = new AtomicLong();
+        reaped = new AtomicLong();
+
+        if (debug) {
+            LOGGER.info("buffer pool leak detection is enabled");
+        } else if (tracking) {
+            LOGGER.info("buffer pool tracking is enabled");
+        }
+    }
+
+    private static String getIdentityString(Object object) {
+        return Integer.toHexString(System.identityHashCode(object));
+    }
+
+    private SizeClass classForCapacity(int capacity) {
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].bufferSize >= capacity) {
+                return classes[i];
+            }
+        }
+
+        throw new IllegalArgumentException("requested capacity " +
+                                           capacity +
+                                           " exceeds maximum " +
+                                           classes[classes.length - 1].bufferSize);
+    }
+
+    public ByteBuffer checkOutBuffer(int capacity) {
+        SizeClass sizeClass = classForCapacity(capacity);
+
+        purge();
+
+        ThreadCache cache = (ThreadCache)threadCaches.get();
+        RangeRecord record = cache.pop(sizeClass);
+        if (record != null) {
+            threadCacheHits.incrementAndGet();
+        } else {
+            record = (RangeRecord)sizeClass.free.poll();
+            if (record != null) {
+                freeListHits.incrementAndGet();
+            } else {
+                record = sizeClass.allocate();
+            }
+        }
+
+        record.refs.set(1);
+        sizeClass.outstanding.incrementAndGet();
+        if ((checkOuts.incrementAndGet() & (REAP_INTERVAL - 1)) == 0) {
+            reap();
+        }
+
+        ByteBuffer result;
+        if (tracking) {
+            record.baseView.clear();
+            record.baseView.limit(capacity);
+            result = record.baseView.slice();
+            register(result, record);
+        } else {
+            result = reuse(record, capacity);
+            record.checkedOut.set(true);
+        }
+
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("checking out buffer " + getIdentityString(result) +
+                          " record = " + getIdentityString(record));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the buffer the range keeps, reset, or a new one if it
+     * does not have the capacity asked for. The caller owns the range.
+     */
+    private ByteBuffer reuse(RangeRecord record, int capacity) {
+        ByteBuffer result = record.buffer;
+        if (result != null && result.capacity() == capacity) {
+            result.clear();
+            result.order(ByteOrder.BIG_ENDIAN);
+            return result;
+        }
+
+        if (record.key != null) {
+            bases.remove(record.key);
+        }
+        record.baseView.clear();
+        record.baseView.limit(capacity);
+        result = record.baseView.slice();
+
+        Probe key = new Probe();
+        key.set(result);
+        bases.put(key, record);
+        record.key = key;
+        record.buffer = result;
+        return result;
+    }
+
+    /** The range of a checked out buffer or view, null if none */
+    private RangeRecord lookup(Probe probe, boolean checkIn) {
+        ViewReference ref = (ViewReference)((checkIn)
+                                            ? views.remove(probe)
+                                            : views.get(probe));
+        if (ref != null) {
+            if (checkIn) {
+                // Checked in: no need to hear about it from the collector
+                ref.clear();
+            }
+            return ref.record;
+        }
+        if (tracking) {
+            return null;
+        }
+
+        RangeRecord record = (RangeRecord)bases.get(probe);
+        if (record == null) {
+            return null;
+        }
+        boolean checkedOut = (checkIn)
+            ? record.checkedOut.compareAndSet(true, false)
+            : record.checkedOut.get();
+        return (checkedOut) ? record : null;
+    }
+
+    public ByteBuffer checkOutDuplicate(ByteBuffer buffer) {
+        return checkOutView(buffer, false, false);
+    }
+
+    public ByteBuffer checkOutReadOnlyBuffer(ByteBuffer buffer) {
+        return checkOutView(buffer, false, true);
+    }
+
+    public ByteBuffer checkOutSlice(ByteBuffer buffer) {
+        return checkOutView(buffer, true, false);
+    }
+
+    private ByteBuffer checkOutView(ByteBuffer buffer,
+                                    boolean slice,
+                                    boolean readOnly) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer cannot be null");
+        }
+
+        purge();
+
+        Probe probe = (Probe)probes.get();
+        probe.set(buffer);
+        RangeRecord record = lookup(probe, false);
+        probe.set(null);
+
+        if (record == null) {
+            throw new IllegalArgumentException("illegal attempt to check out" +
+                                               " duplicate of buffer that isn't" +
+                                               " itself checked out");
+        }
+
+        ByteBuffer result;
+        if (slice) {
+            result = buffer.slice();
+        } else {
+            result = (readOnly)
+                   ? buffer.asReadOnlyBuffer()
+                   : buffer.duplicate();
+        }
+
+        record.refs.incrementAndGet();
+        register(result, record);
+
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("checking out view of buffer " +
+                          getIdentityString(buffer) +
+                          " result = " + getIdentityString(result) +
+                          " record = " + getIdentityString(record));
+        }
+
+        return result;
+    }
+
+    public void checkInBuffer(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer cannot be null");
+        }
+
+        purge();
+
+        Probe probe = (Probe)probes.get();
+        probe.set(buffer);
+        RangeRecord record = lookup(probe, true);
+        probe.set(null);
+
+        if (record == null) {
+            throw new IllegalArgumentException("attempt to check in a buffer" +
+                                               " that has already been checked" +
+                                               " in or was never checked out");
+        }
+
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("checking in buffer " + getIdentityString(buffer) +
+                          " record = " + getIdentityString(record));
+        }
+
+        release(record);
+    }
+
+    private void register(ByteBuffer view, RangeRecord record) {
+        // Untracked views are never purged, nobody polls for them
+        ViewReference ref = new ViewReference(view,
+                                              (tracking) ? queue : null,
+                                              record);
+        if (debug) {
+            ref.checkOutStackTrace = new Exception();
+        }
+        views.put(ref, ref);
+    }
+
+    /** Drops a reference on the range, and frees it after the last one */
+    private void release(RangeRecord record) {
+        if (record.refs.decrementAndGet() > 0) {
+            return;
+        }
+
+        SizeClass sizeClass = record.sizeClass;
+        sizeClass.outstanding.decrementAndGet();
+
+        ThreadCache cache = (ThreadCache)threadCaches.get();
+        if (!cache.push(record)) {
+            sizeClass.free.offer(record);
+        }
+    }
+
+    /** Reclaims the ranges of views collected without being checked in */
+    private void purge() {
+        if (!tracking) {
+            return;
+        }
+        for (int i = 0; i < PURGE_COUNT; i++) {
+            ViewReference ref = (ViewReference)queue.poll();
+            if (ref == null) {
+                return;
+            }
+            if (views.remove(ref) == null) {
+                continue;
+            }
+
+            purged.incrementAndGet();
+
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("purging collected buffer:" +
+                               " ref = " + getIdentityString(ref) +
+                               " record = " + getIdentityString(ref.record));
+
+                if (ref.checkOutStackTrace != null) {
+                    LOGGER.warning("stack trace from check out follows" +
+                                   " - not an exception");
+
+                    StringWriter stringWriter = new StringWriter();
+                    PrintWriter printWriter = new PrintWriter(stringWriter);
+
+                    ref.checkOutStackTrace.printStackTrace(printWriter);
+                    LOGGER.warning(stringWriter.toString());
+                }
+            }
+
+            release(ref.record);
+        }
+    }
+
+    /**
+     * Gives the ranges cached by dead threads back to their size
+     * classes, and logs the stats now and then. Only one thread does
+     * it at a time; the others go on.
+     */
+    private void reap() {
+        if (!reaping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int ranges = reapDeadThreads();
+            if (ranges > 0 && LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("reclaimed " + ranges +
+                            " buffers cached by dead threads");
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastStatsLog >= STATS_LOG_INTERVAL) {
+                lastStatsLog = now;
+                LOGGER.info("buffer pool: " + getStats());
+            }
+        } finally {
+            reaping.set(false);
+        }
+    }
+
+    /**
+     * Empties the caches of the threads that are gone.
+     *
+     * @return the number of ranges given back
+     */
+    int reapDeadThreads() {
+        int result = 0;
+        for (Iterator i = caches.iterator(); i.hasNext(); ) {
+            ThreadCache cache = (ThreadCache)i.next();
+            if (cache.isOwnerAlive()) {
+                continue;
+            }
+            // The owner is gone (isAlive() returned false, which also
+            // makes its last writes to the cache visible): nobody else
+            // touches the cache any more
+            i.remove();
+            result += cache.drain();
+        }
+        reaped.addAndGet(result);
+        return result;
+    }
+
+    /*
+     * Gauges
+     */
+
+    /** Number of buffers checked out since the pool was created */
+    public long getCheckOutCount() {
+        return checkOuts.get();
+    }
+
+    /** Share of the check outs served without allocating a new range */
+    public double getHitRate() {
+        long total = checkOuts.get();
+        if (total == 0) {
+            return 1.0;
+        }
+        return (double)(threadCacheHits.get() + freeListHits.get()) / total;
+    }
+
+    /** Share of the check outs served from the thread caches */
+    public double getThreadCacheHitRate() {
+        long total = checkOuts.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        return (double)threadCacheHits.get() / total;
+    }
+
+    /** Number of buffers of the given size currently checked out */
+    public int getOutstandingBufferCount(int bufferSize) {
+        return classForCapacity(bufferSize).outstanding.get();
+    }
+
+    /** Number of buffers, of all sizes, currently checked out */
+    public int getOutstandingBufferCount() {
+        int result = 0;
+        for (int i = 0; i < classes.length; i++) {
+            result += classes[i].outstanding.get();
+        }
+        return result;
+    }
+
+    /** Number of buffers and views currently checked out */
+    public int getOutstandingViewCount() {
+        return views.size();
+    }
+
+    /** Number of ranges reclaimed from views that were never checked in */
+    public long getPurgedCount() {
+        return purged.get();
+    }
+
+    /** Number of ranges reclaimed from the caches of dead threads */
+    public long getReapedCount() {
+        return reaped.get();
+    }
+
+    /** Number of buffers of the given size carved out so far */
+    public int getTotalBufferCount(int bufferSize) {
+        return classForCapacity(bufferSize).total.get();
+    }
+
+    public String getStats() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("checkouts=").append(checkOuts.get());
+        sb.append(" hitrate=").append((int)(getHitRate() * 100)).append('%');
+        sb.append(" threadhitrate=").append((int)(getThreadCacheHitRate() * 100));
+        sb.append('%');
+        sb.append(" views=").append(views.size());
+        sb.append(" purged=").append(purged.get());
+        sb.append(" reaped=").append(reaped.get());
+        sb.append(" threadcaches=").append(caches.size());
+        for (int i = 0; i < classes.length; i++) {
+            SizeClass sizeClass = classes[i];
+            sb.append(" [").append(sizeClass.bufferSize / 1024).append("KB");
+            sb.append(" total=").append(sizeClass.total.get());
+            sb.append(" out=").append(sizeClass.outstanding.get());
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    /** The ranges of one buffer size */
+    private static class SizeClass {
+
+        private int index;
+        private int bufferSize;
+        private int threadCacheSize;
+        private ConcurrentLinkedQueue free;
+        private List masterBuffers;
+        private AtomicInteger total;
+        private AtomicInteger outstanding;
+
+        private SizeClass(int newIndex, int newBufferSize) {
+            index = newIndex;
+            bufferSize = newBufferSize;
+            threadCacheSize = Math.min(THREAD_CACHE_BUFFERS,
+                                       THREAD_CACHE_BYTES / bufferSize);
+            free = new ConcurrentLinkedQueue();
+            masterBuffers = new ArrayList();
+            total = new AtomicInteger();
+            outstanding = new AtomicInteger();
+        }
+
+        /**
+         * Returns a free range, allocating a new master buffer if there
+         * is none. Only growing the pool takes a lock.
+         */
+        private synchronized RangeRecord allocate() {
+            RangeRecord record = (RangeRecord)free.poll();
+            if (record == null) {
+                addMasterBuffer();
+                record = (RangeRecord)free.poll();
+            }
+            if (record == null) {
+                throw new IllegalStateException("failed to allocate buffer");
+            }
+            return record;
+        }
+
+        private void addMasterBuffer() {
+            int masterSize = bufferSize * BUFFER_COUNT;
+            if (masterSize > MAX_MASTER_SIZE) {
+                // adjust to fit an even multiple of buffer size
+                masterSize = (MAX_MASTER_SIZE / bufferSize) * bufferSize;
+            }
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("allocating " +
+                            (masterSize / 1024) +
+                            " KB in chunks of size " +
+                            (bufferSize / 1024) +
+                            " KB");
+            }
+
+            ByteBuffer buffer = null;
+            try {
+                buffer = ByteBuffer.allocateDirect(masterSize);
+            } catch (OutOfMemoryError e) {
+                System.gc();
+                buffer = ByteBuffer.allocateDirect(masterSize);
+            }
+
+            masterBuffers.add(buffer);
+
+            int bufferCount = buffer.capacity() / bufferSize;
+            for (int i = 0; i < bufferCount; i++) {
+                free.offer(new RangeRecord(this,
+                                           buffer,
+                                           i * bufferSize,
+                                           (i + 1) * bufferSize));
+            }
+            total.addAndGet(bufferCount);
+        }
+    }
+
+    /** A range of a master buffer, handed out as one buffer */
+    private static class RangeRecord {
+
+        private SizeClass sizeClass;
+        private ByteBuffer baseView;
+        private AtomicInteger refs;
+
+        // The buffer handed out when not tracking, and its key in bases
+        private ByteBuffer buffer;
+        private Probe key;
+        private AtomicBoolean checkedOut;
+
+        private RangeRecord(SizeClass newSizeClass,
+                            ByteBuffer master,
+                            int position,
+                            int limit) {
+            sizeClass = newSizeClass;
+            refs = new AtomicInteger();
+            checkedOut = new AtomicBoolean(false);
+
+            ByteBuffer view = master.duplicate();
+            view.position(position);
+            view.limit(limit);
+            baseView = view.slice();
+        }
+    }
+
+    /** The free ranges a thread keeps for itself */
+    private class ThreadCache {
+
+        private RangeRecord[][] records;
+        private int[] counts;
+        private WeakReference owner;
+
+        private ThreadCache() {
+            records = new RangeRecord[classes.length][];
+            counts = new int[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                records[i] = new RangeRecord[classes[i].threadCacheSize];
+            }
+            owner = new WeakReference(Thread.currentThread());
+            caches.offer(this);
+        }
+
+        private boolean isOwnerAlive() {
+            Thread thread = (Thread)owner.get();
+            return (thread != null && thread.isAlive());
+        }
+
+        /** Gives all the cached ranges back to their size classes */
+        private int drain() {
+            int result = 0;
+            for (int i = 0; i < records.length; i++) {
+                while (counts[i] > 0) {
+                    RangeRecord record = records[i][--counts[i]];
+                    records[i][counts[i]] = null;
+                    classes[i].free.offer(record);
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        private RangeRecord pop(SizeClass sizeClass) {
+            int i = sizeClass.index;
+            if (counts[i] == 0) {
+                return null;
+            }
+            RangeRecord result = records[i][--counts[i]];
+            records[i][counts[i]] = null;
+            return result;
+        }
+
+        private boolean push(RangeRecord record) {
+            int i = record.sizeClass.index;
+            if (counts[i] == records[i].length) {
+                return false;
+            }
+            records[i][counts[i]++] = record;
+            return true;
+        }
+    }
+
+    private static interface ObjectContainer {
+        public Object get();
+    }
+
+    private static class Probe implements ObjectContainer {
+
+        Object object;
+        int hash;
+
+        private void set(Object newObject) {
+            object = newObject;
+            if (object != null) {
+                hash = System.identityHashCode(object);
+            }
+        }
+
+        public Object get() {
+            return object;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            return (other == this ||
+                    (other instanceof ObjectContainer &&
+                     ((ObjectContainer)other).get() == object));
+        }
+    }
+
+    private static class ViewReference extends WeakReference
+        implements ObjectContainer {
+
+        private int hash;
+        private RangeRecord record;
+        private Exception checkOutStackTrace;
+
+        private ViewReference(Object referent,
+                              ReferenceQueue newQueue,
+                              RangeRecord newRecord) {
+            super(referent, newQueue);
+            hash = System.identityHashCode(referent);
+            record = newRecord;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            // A cleared reference only matches itself
+            Object referent = get();
+            return (other == this ||
+                    (referent != null &&
+                     other instanceof ObjectContainer &&
+                     ((ObjectContainer)other).get() == referent));
+        }
+    }
+}
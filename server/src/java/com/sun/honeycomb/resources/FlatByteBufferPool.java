@@ -116,6 +116,12 @@ class FlatByteBufferPool extends ByteBufferPool {
         return result;
     }
 
+    public String getStats() {
+        return "[" + (bufferSize / 1024) + "KB" +
+            " free=" + getFreeBufferCount() +
+            " out=" + getCheckedOutBufferCount() + "]";
+    }
+
     private void addMasterBuffer() {
         int masterSize = bufferSize * BUFFER_COUNT;
         if (masterSize > MAX_MASTER_SIZE) {
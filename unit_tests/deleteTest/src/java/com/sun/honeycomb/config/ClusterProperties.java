@@ -121,4 +121,12 @@ public class ClusterProperties
 	        return num;
 	    else return Long.parseLong(prop);
     }
+
+    public boolean getPropertyAsBoolean(String name, boolean defaultValue) {
+        String prop = getProperty(name);
+        if (prop == null)
+            return defaultValue;
+        else
+            return Boolean.valueOf(prop).booleanValue();
+    }
 }
\ No newline at end of file
@@ -36,6 +36,7 @@ package com.sun.honeycomb.protocol.server;
 import com.sun.honeycomb.common.NewObjectIdentifier;
 import com.sun.honeycomb.cm.ManagedServiceException;
 import com.sun.honeycomb.cm.ManagedService;
+import com.sun.honeycomb.coordinator.ChangeJournal;
 
 public class ProtocolService implements ProtocolManagedService {
 
@@ -43,6 +44,12 @@ public class ProtocolService implements ProtocolManagedService {
                                NewObjectIdentifier dataOid) {
        return (false);
     }
+
+    public ChangeJournal.Batch readJournal(long start, long end,
+                                           long segment, long offset,
+                                           int max) {
+        return (null);
+    }
     
     // Workaround for avoiding cellid of -1 in fake framework env
     public static byte CELL_ID = 1;
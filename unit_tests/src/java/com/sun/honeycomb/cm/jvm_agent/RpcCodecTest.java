@@ -0,0 +1,238 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.cm.jvm_agent;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.*;
+
+import com.sun.honeycomb.coding.Codable;
+import com.sun.honeycomb.coding.Decoder;
+import com.sun.honeycomb.coding.Encoder;
+
+public class RpcCodecTest extends TestCase {
+
+    /** 
+     * Constructor for this unit test.
+     *
+     * @param testName the name of the unit test
+     */
+    public RpcCodecTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Allows unit tests to be run together in a suite.
+     * @return a test suite that contains a single test - this one
+     */
+    public static Test suite() {
+        return new TestSuite(RpcCodecTest.class);
+    }
+
+    /** Allows test to be run stand-alone from the command-line.
+     *
+     * java -classpath test/lib/junit-3.8.1.jar:test/classes:classes
+     *     com.sun.honeycomb.cm.jvm_agent.RpcCodecTest
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    /**
+     * Remote interface covering every type of the binary transport.
+     */
+    public interface Api {
+        void primitives(boolean z, byte b, short s, int i, long l,
+                        float f, double d);
+        Integer wrappers(Boolean z, Byte b, Short s, Integer i, Long l,
+                         Float f, Double d);
+        String strings(String s, String[] array);
+        long[] arrays(byte[] bytes, int[] ints, long[] longs);
+        Value codable(Value value);
+        Object unsupported(Object value);
+    }
+
+    public static class Value implements Codable {
+        int count;
+        String name;
+        public Value() {
+        }
+        Value(int count, String name) {
+            this.count = count;
+            this.name = name;
+        }
+        public void encode(Encoder encoder) {
+            encoder.encodeInt(count);
+            encoder.encodeString(name);
+        }
+        public void decode(Decoder decoder) {
+            count = decoder.decodeInt();
+            name = decoder.decodeString();
+        }
+    }
+
+    private static RpcCodec.MethodCodec codec(String name) {
+        Method[] all = Api.class.getMethods();
+        for (int i = 0; i < all.length; i++) {
+            if (all[i].getName().equals(name)) {
+                return RpcCodec.forMethod(all[i]);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private static Object[] roundTripArgs(String name, Object[] args) {
+        RpcCodec.MethodCodec codec = codec(name);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        codec.encodeArgs(RpcChannel.newCoder(buffer), args);
+        buffer.flip();
+        Object[] decoded = codec.decodeArgs(RpcChannel.newCoder(buffer));
+        assertEquals(0, buffer.remaining());
+        return decoded;
+    }
+
+    private static Object roundTripResult(String name, Object result) {
+        RpcCodec.MethodCodec codec = codec(name);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        codec.encodeResult(RpcChannel.newCoder(buffer), result);
+        buffer.flip();
+        Object decoded = codec.decodeResult(RpcChannel.newCoder(buffer));
+        assertEquals(0, buffer.remaining());
+        return decoded;
+    }
+
+    public void testPrimitives() {
+        Object[] args = new Object[] {
+            Boolean.TRUE, new Byte((byte) -7), new Short((short) 1234),
+            new Integer(Integer.MIN_VALUE), new Long(Long.MAX_VALUE),
+            new Float(1.5f), new Double(Double.NaN)
+        };
+        assertTrue(Arrays.equals(args, roundTripArgs("primitives", args)));
+        assertNull(roundTripResult("primitives", null));
+    }
+
+    public void testWrappers() {
+        Object[] args = new Object[] {
+            Boolean.FALSE, new Byte((byte) 1), new Short((short) -1),
+            new Integer(42), new Long(-42L), new Float(-0.0f),
+            new Double(Math.PI)
+        };
+        assertTrue(Arrays.equals(args, roundTripArgs("wrappers", args)));
+        assertEquals(new Integer(7), roundTripResult("wrappers",
+                                                     new Integer(7)));
+    }
+
+    public void testNullWrappers() {
+        Object[] args = new Object[7];
+        assertTrue(Arrays.equals(args, roundTripArgs("wrappers", args)));
+        assertNull(roundTripResult("wrappers", null));
+    }
+
+    public void testStrings() {
+        String[] array = new String[] {"a", null, "", "\u00e9t\u00e9"};
+        Object[] decoded = roundTripArgs("strings",
+                                         new Object[] {"hello", array});
+        assertEquals("hello", decoded[0]);
+        assertTrue(Arrays.equals(array, (String[]) decoded[1]));
+
+        decoded = roundTripArgs("strings", new Object[] {null, null});
+        assertNull(decoded[0]);
+        assertNull(decoded[1]);
+
+        decoded = roundTripArgs("strings", new Object[] {"",
+                                                         new String[0]});
+        assertEquals("", decoded[0]);
+        assertEquals(0, ((String[]) decoded[1]).length);
+    }
+
+    public void testArrays() {
+        byte[] bytes = new byte[] {0, 1, -1, 127, -128};
+        int[] ints = new int[] {0, -1, Integer.MAX_VALUE};
+        long[] longs = new long[] {Long.MIN_VALUE, 0, 1};
+        Object[] decoded = roundTripArgs("arrays",
+                                         new Object[] {bytes, ints, longs});
+        assertTrue(Arrays.equals(bytes, (byte[]) decoded[0]));
+        assertTrue(Arrays.equals(ints, (int[]) decoded[1]));
+        assertTrue(Arrays.equals(longs, (long[]) decoded[2]));
+
+        decoded = roundTripArgs("arrays", new Object[] {null, null, null});
+        assertNull(decoded[0]);
+        assertNull(decoded[1]);
+        assertNull(decoded[2]);
+
+        assertTrue(Arrays.equals(longs, (long[]) roundTripResult("arrays",
+                                                                 longs)));
+        assertNull(roundTripResult("arrays", null));
+    }
+
+    public void testCodable() {
+        Value value = (Value) roundTripResult("codable", new Value(3, "x"));
+        assertEquals(3, value.count);
+        assertEquals("x", value.name);
+        assertNull(roundTripArgs("codable", new Object[] {null})[0]);
+    }
+
+    public void testUnsupported() {
+        assertNull(codec("unsupported"));
+    }
+
+    public void testWrongArgumentCount() {
+        try {
+            codec("strings").encodeArgs(RpcChannel.newCoder
+                                        (ByteBuffer.allocate(64)),
+                                        new Object[] {"only one"});
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testThrowable() throws Exception {
+        CMAException thrown = new CMAException("rpc server busy");
+        byte[] bytes = RpcChannel.writeThrowable(thrown);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        Throwable decoded = RpcChannel.readThrowable(buffer);
+        assertTrue(decoded instanceof CMAException);
+        assertEquals(thrown.getMessage(), decoded.getMessage());
+        assertEquals(0, buffer.remaining());
+
+        IllegalStateException cause = new IllegalStateException("cause");
+        bytes = RpcChannel.writeThrowable(new CMAException(cause));
+        decoded = RpcChannel.readThrowable(ByteBuffer.wrap(bytes));
+        assertTrue(decoded.getCause() instanceof IllegalStateException);
+        assertEquals("cause", decoded.getCause().getMessage());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.common;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public LatencyHistogramTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(LatencyHistogramTest.class);
+    }
+
+    /** Allows test to be run stand-alone from the command-line.
+     *
+     * java -classpath test/lib/junit-3.8.1.jar:test/classes:classes
+     *     com.sun.honeycomb.common.LatencyHistogramTest
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    /** Every bucket starts right after the previous one ends */
+    public void testBucketBoundaries() {
+        for (int v = 0; v < 16; v++) {
+            assertEquals(v, LatencyHistogram.bucket(v));
+        }
+        assertEquals(16, LatencyHistogram.bucket(16));
+
+        for (int b = 0; b < LatencyHistogram.BUCKETS - 1; b++) {
+            long highest = LatencyHistogram.highestValue(b);
+            assertEquals(b, LatencyHistogram.bucket(highest));
+            assertEquals(b + 1, LatencyHistogram.bucket(highest + 1));
+        }
+
+        int last = LatencyHistogram.BUCKETS - 1;
+        assertEquals((1L << 40) - 1, LatencyHistogram.highestValue(last));
+        assertEquals(last, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    /** A value is known within 1/16 of itself */
+    public void testPrecision() {
+        for (long v = 1; v < (1L << 40); v = v * 3 + 1) {
+            long highest =
+                LatencyHistogram.highestValue(LatencyHistogram.bucket(v));
+            assertTrue(highest >= v);
+            assertTrue("value " + v + " in bucket up to " + highest,
+                       highest - v <= v / 16);
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getPercentile(50));
+
+        for (int v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500, snapshot.getMean());
+
+        assertEquals(1, snapshot.getPercentile(0));
+        assertEquals(1000, snapshot.getPercentile(100));
+        assertWithin(500, snapshot.getPercentile(50));
+        assertWithin(990, snapshot.getPercentile(99));
+        assertWithin(999, snapshot.getPercentile(99.9));
+    }
+
+    public void testNegativeIsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getPercentile(100));
+    }
+
+    public void testRecordSince() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordSince(System.nanoTime() - 5000000L);
+        assertTrue(histogram.snapshot().getMax() >= 5000);
+    }
+
+    /** The activity between two snapshots */
+    public void testSnapshotDelta() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10);
+        }
+        LatencyHistogram.Snapshot older = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10000);
+        }
+        LatencyHistogram.Snapshot delta = histogram.snapshot().subtract(older);
+
+        assertEquals(100, delta.getCount());
+        assertEquals(100 * 10000, delta.getSum());
+        assertWithin(10000, delta.getPercentile(1));
+        assertEquals(10000, delta.getMax());
+
+        // A restart makes the counters go down: no negative activity
+        LatencyHistogram.Snapshot restarted =
+            new LatencyHistogram().snapshot().subtract(older);
+        assertEquals(0, restarted.getCount());
+        assertEquals(0, restarted.getSum());
+    }
+
+    public void testAddAndParse() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(100);
+        second.record(200);
+        second.record(300000);
+
+        LatencyHistogram.Snapshot merged =
+            first.snapshot().add(second.snapshot());
+        assertEquals(3, merged.getCount());
+        assertEquals(300300, merged.getSum());
+        assertEquals(300000, merged.getMax());
+
+        LatencyHistogram.Snapshot parsed =
+            LatencyHistogram.Snapshot.parse(merged.toString());
+        assertEquals(merged.toString(), parsed.toString());
+        assertEquals(merged.getPercentile(50), parsed.getPercentile(50));
+
+        try {
+            LatencyHistogram.Snapshot.parse("1 2");
+            fail("short snapshot parsed");
+        } catch (java.util.NoSuchElementException expected) {
+        }
+    }
+
+    /** Records from several threads are all counted */
+    public void testConcurrentRecords() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < perThread; j++) {
+                            histogram.record(j);
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(threads.length * perThread, snapshot.getCount());
+        assertEquals(perThread - 1, snapshot.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " got " + actual,
+                   actual >= expected && actual - expected <= expected / 16);
+    }
+}
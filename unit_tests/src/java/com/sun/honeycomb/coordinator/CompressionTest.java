@@ -0,0 +1,191 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.coordinator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.honeycomb.common.ObjectCorruptedException;
+import com.sun.honeycomb.resources.ByteBufferPool;
+
+public class CompressionTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static ByteBufferPool pool = ByteBufferPool.getInstance();
+
+    private static void fail(String msg) {
+        System.out.println("FAILED: " + msg);
+        System.exit(1);
+    }
+
+    private static void drain(ByteBuffer[] buffers, ByteArrayOutputStream out) {
+        for (int i = 0; i < buffers.length; i++) {
+            byte[] bytes = new byte[buffers[i].remaining()];
+            buffers[i].get(bytes);
+            out.write(bytes, 0, bytes.length);
+            pool.checkInBuffer(buffers[i]);
+        }
+    }
+
+    /** Compresses data, writing it in pieces of writeSize */
+    private static byte[] compress(Compression.Writer writer,
+                                   byte[] data,
+                                   int writeSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += writeSize) {
+            int length = Math.min(writeSize, data.length - offset);
+            drain(writer.write(ByteBuffer.wrap(data, offset, length)), out);
+        }
+        drain(writer.finish(), out);
+        return out.toByteArray();
+    }
+
+    /** Inflates every block of stored and checks it against data */
+    private static void verify(Compression.Reader reader,
+                               byte[] stored,
+                               byte[] data) throws Exception {
+        byte[] index = new byte[reader.getIndexLength()];
+        System.arraycopy(stored, (int)reader.getIndexOffset(),
+                         index, 0, index.length);
+        reader.setIndex(index);
+
+        byte[] input = reader.getInputBuffer();
+        byte[] output = new byte[data.length];
+        int blocks = reader.getIndexLength() / 4;
+        for (int i = 0; i < blocks; i++) {
+            System.arraycopy(stored, (int)reader.getStoredOffset(i),
+                             input, 0, reader.getStoredLength(i));
+            reader.decompress(i, input, output, i * reader.getBlockSize());
+        }
+        if (!Arrays.equals(output, data)) {
+            fail("inflated data differs");
+        }
+    }
+
+    private static void roundTrip(String name,
+                                  byte codec,
+                                  byte[] data,
+                                  int writeSize,
+                                  boolean shrinks) throws Exception {
+        Compression.Writer writer = new Compression.Writer(codec, BLOCK_SIZE);
+        byte[] stored = compress(writer, data, writeSize);
+        writer.dispose();
+
+        if (writer.getLogicalSize() != data.length) {
+            fail(name + ": logical size " + writer.getLogicalSize());
+        }
+        byte[] hash = MessageDigest.getInstance("SHA1").digest(data);
+        if (!Arrays.equals(writer.getContentHash(), hash)) {
+            fail(name + ": content hash is not the one of the data");
+        }
+        if (shrinks && stored.length >= data.length / 2) {
+            fail(name + ": stored " + stored.length + " bytes for " +
+                 data.length);
+        }
+        // Raw blocks cost their 4 index bytes, nothing else
+        if (!shrinks && stored.length > data.length +
+            4 * ((data.length + BLOCK_SIZE - 1) / BLOCK_SIZE)) {
+            fail(name + ": stored " + stored.length + " bytes for " +
+                 data.length);
+        }
+
+        Compression.Reader reader =
+            Compression.Reader.create(writer.getMetadataField());
+        if (reader == null || reader.getLogicalSize() != data.length ||
+            reader.getCodec() != codec ||
+            reader.getStoredSize() != stored.length) {
+            fail(name + ": bad metadata field");
+        }
+        verify(reader, stored, data);
+        reader.dispose();
+        System.out.println(name + " " + data.length + " -> " + stored.length +
+                           "...[PASSED]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(0);
+
+        byte[] text = new byte[5 * BLOCK_SIZE + 1234];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte)('a' + random.nextInt(4));
+        }
+        byte[] noise = new byte[3 * BLOCK_SIZE];
+        random.nextBytes(noise);
+
+        roundTrip("deflate text", Compression.DEFLATE, text, 10000, true);
+        roundTrip("fast text", Compression.FAST, text, BLOCK_SIZE, true);
+        roundTrip("deflate noise", Compression.DEFLATE, noise, 7777, false);
+        roundTrip("fast one byte", Compression.FAST, new byte[1], 1, false);
+        roundTrip("deflate empty", Compression.DEFLATE, new byte[0], 1, false);
+
+        //
+        // Codec names and fields of uncompressed objects
+        //
+        if (Compression.getCodec(" Fast ") != Compression.FAST ||
+            !Compression.getCodecName(Compression.DEFLATE).equals("deflate")) {
+            fail("codec names");
+        }
+        try {
+            Compression.getCodec("lz77");
+            fail("lz77 should not be a codec");
+        } catch (IllegalArgumentException e) {
+        }
+        if (Compression.Reader.create(new byte[64]) != null) {
+            fail("an empty metadata field is not compressed");
+        }
+        System.out.println("Codecs and fields...[PASSED]");
+
+        //
+        // A damaged index is detected
+        //
+        Compression.Writer writer =
+            new Compression.Writer(Compression.DEFLATE, BLOCK_SIZE);
+        byte[] stored = compress(writer, text, BLOCK_SIZE);
+        writer.dispose();
+        Compression.Reader reader =
+            Compression.Reader.create(writer.getMetadataField());
+        byte[] index = new byte[reader.getIndexLength()];
+        System.arraycopy(stored, (int)reader.getIndexOffset(),
+                         index, 0, index.length);
+        index[3]++;
+        try {
+            reader.setIndex(index);
+            fail("damaged index accepted");
+        } catch (ObjectCorruptedException e) {
+        }
+        System.out.println("Damaged index...[PASSED]");
+    }
+}
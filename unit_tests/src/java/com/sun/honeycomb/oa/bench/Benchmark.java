@@ -0,0 +1,121 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A micro benchmark of one operation of the object archive data path.
+ * The {@link BenchmarkRunner} calls {@link #setUp} once, then
+ * {@link #invoke} in a loop from one or more threads during a warmup
+ * and a measurement period, and finally {@link #tearDown}.
+ *
+ * <p>
+ *
+ * Per thread state (buffers, contexts) is created by
+ * {@link #createThreadState} on the thread that uses it, so that
+ * {@link #invoke} only needs to be thread safe with respect to the
+ * state shared in the benchmark itself.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of threads to run when none is given on the
+     * command line. Benchmarks of shared structures override this to
+     * measure them under contention.
+     */
+    public int getDefaultThreads() {
+        return 1;
+    }
+
+    /**
+     * Prepares the state shared by all the threads.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Releases the state allocated by {@link #setUp}.
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Creates the state used by one benchmark thread.
+     *
+     * @return Object the state passed to every invocation of the thread
+     */
+    public Object createThreadState() throws Exception {
+        return null;
+    }
+
+    /**
+     * Releases the state created by {@link #createThreadState}.
+     */
+    public void disposeThreadState(Object state) throws Exception {
+    }
+
+    /**
+     * Runs one operation.
+     *
+     * @param state the state of the calling thread
+     * @return long the number of payload bytes processed, or 0 if the
+     *         throughput in bytes is not meaningful for this operation
+     */
+    public abstract long invoke(Object state) throws Exception;
+
+    /**
+     * Returns a direct buffer of the given size filled with pseudo random
+     * bytes. The seed is fixed so that runs are comparable.
+     */
+    protected static ByteBuffer randomBuffer(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.honeycomb.oa.checksum.ChecksumAlgorithm;
+
+/**
+ * Runs the object archive micro benchmarks in a single JVM and prints
+ * the throughput of each of them. Every benchmark gets a warmup period
+ * so that the JIT has compiled the hot path before the measurement
+ * starts; only the operations completed during the measurement period
+ * are counted.
+ *
+ * <pre>
+ * java com.sun.honeycomb.oa.bench.BenchmarkRunner
+ *     [-warmup seconds] [-time seconds] [-threads n] [-dir path]
+ *     [-list] [name ...]
+ * </pre>
+ *
+ * The names select the benchmarks whose name starts with one of them,
+ * e.g. <CODE>erasure</CODE> runs all the Reed-Solomon benchmarks. The
+ * DAAL benchmarks create their fragments below <CODE>-dir</CODE>, which
+ * defaults to <CODE>java.io.tmpdir</CODE>.
+ */
+public final class BenchmarkRunner {
+
+    private static final int DEFAULT_WARMUP = 2;
+    private static final int DEFAULT_TIME = 5;
+
+    private final int warmupSeconds;
+    private final int measureSeconds;
+    private final int threads;
+
+    private volatile boolean measuring = false;
+    private volatile boolean stopped = false;
+
+    public BenchmarkRunner(int warmupSeconds, int measureSeconds,
+                           int threads) {
+        this.warmupSeconds = warmupSeconds;
+        this.measureSeconds = measureSeconds;
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the benchmarks of the data path, in the order of a store:
+     * hashing, checksums, erasure coding, footers, then the disk.
+     */
+    public static Benchmark[] getBenchmarks(File dir) {
+        List list = new ArrayList();
+        list.add(new Sha1Benchmark(64 * 1024));
+        list.add(new ChecksumBenchmark(ChecksumAlgorithm.ADLER32,
+                                       64 * 1024, false));
+        list.add(new ChecksumBenchmark(ChecksumAlgorithm.ADLER32,
+                                       64 * 1024, true));
+        list.add(new ErasureBenchmark(5, 3, 64 * 1024, 0));
+        list.add(new ErasureBenchmark(5, 3, 64 * 1024, 1));
+        list.add(new ErasureBenchmark(5, 3, 64 * 1024, 2));
+        list.add(new FragmentFooterBenchmark(false));
+        list.add(new FragmentFooterBenchmark(true));
+        list.add(new BloomFilterBenchmark(false));
+        list.add(new BloomFilterBenchmark(true));
+        list.add(new BufferPoolBenchmark(64 * 1024));
+        list.add(new DAALBenchmark(dir, 1024 * 1024, false));
+        list.add(new DAALBenchmark(dir, 1024 * 1024, true));
+        return (Benchmark[]) list.toArray(new Benchmark[list.size()]);
+    }
+
+    /**
+     * Runs one benchmark and returns its result.
+     */
+    public Result run(Benchmark benchmark) throws Exception {
+        int nThreads = (threads > 0) ? threads
+            : benchmark.getDefaultThreads();
+        Worker[] workers = new Worker[nThreads];
+
+        benchmark.setUp();
+        try {
+            measuring = false;
+            stopped = false;
+            for (int i = 0; i < nThreads; i++) {
+                workers[i] = new Worker(benchmark);
+                workers[i].start();
+            }
+
+            Thread.sleep(warmupSeconds * 1000L);
+            long start = System.nanoTime();
+            measuring = true;
+            Thread.sleep(measureSeconds * 1000L);
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+            stopped = true;
+
+            long ops = 0;
+            long bytes = 0;
+            for (int i = 0; i < nThreads; i++) {
+                workers[i].join();
+                if (workers[i].failure != null) {
+                    throw workers[i].failure;
+                }
+                ops += workers[i].ops;
+                bytes += workers[i].bytes;
+            }
+            return new Result(benchmark.getName(), nThreads, ops, bytes,
+                              elapsed);
+        } finally {
+            stopped = true;
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * The throughput of one benchmark.
+     */
+    public static final class Result {
+        public final String name;
+        public final int threads;
+        public final long ops;
+        public final long bytes;
+        public final long nanos;
+
+        Result(String name, int threads, long ops, long bytes, long nanos) {
+            this.name = name;
+            this.threads = threads;
+            this.ops = ops;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public double getOpsPerSecond() {
+            return (ops * 1e9) / nanos;
+        }
+
+        public double getMBPerSecond() {
+            return (bytes * 1e9) / nanos / (1024 * 1024);
+        }
+
+        /** Average latency of an operation, as seen by one thread */
+        public double getMicrosPerOp() {
+            return (ops == 0) ? 0 : (nanos * threads) / 1e3 / ops;
+        }
+
+        public String toString() {
+            return String.format("%-28s %3d %14.1f %10.1f %12.2f",
+                                 new Object[] {
+                                     name,
+                                     new Integer(threads),
+                                     new Double(getOpsPerSecond()),
+                                     new Double(getMBPerSecond()),
+                                     new Double(getMicrosPerOp())
+                                 });
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Benchmark benchmark;
+        long ops = 0;
+        long bytes = 0;
+        Exception failure = null;
+
+        Worker(Benchmark benchmark) {
+            super("Bench-" + benchmark.getName());
+            this.benchmark = benchmark;
+        }
+
+        public void run() {
+            Object state = null;
+            try {
+                state = benchmark.createThreadState();
+                while (!stopped) {
+                    long processed = benchmark.invoke(state);
+                    if (measuring) {
+                        ops++;
+                        bytes += processed;
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+                stopped = true;
+            } finally {
+                try {
+                    benchmark.disposeThreadState(state);
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean selected(Benchmark benchmark, List names) {
+        if (names.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < names.size(); i++) {
+            if (benchmark.getName().startsWith((String) names.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BenchmarkRunner [-warmup seconds] " +
+                           "[-time seconds] [-threads n] [-dir path] " +
+                           "[-list] [name ...]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmup = DEFAULT_WARMUP;
+        int time = DEFAULT_TIME;
+        int threads = 0;
+        boolean list = false;
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        List names = new ArrayList();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-warmup")) {
+                    warmup = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-time")) {
+                    time = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-dir")) {
+                    dir = new File(args[++i]);
+                } else if (args[i].equals("-list")) {
+                    list = true;
+                } else if (args[i].startsWith("-")) {
+                    usage();
+                } else {
+                    names.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+
+        Benchmark[] benchmarks = getBenchmarks(dir);
+        if (list) {
+            for (int i = 0; i < benchmarks.length; i++) {
+                System.out.println(benchmarks[i].getName());
+            }
+            return;
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, time, threads);
+        System.out.println(String.format("%-28s %3s %14s %10s %12s",
+                                         new Object[] {
+                                             "benchmark", "thr", "ops/s",
+                                             "MB/s", "us/op"
+                                         }));
+        boolean failed = false;
+        for (int i = 0; i < benchmarks.length; i++) {
+            if (!selected(benchmarks[i], names)) {
+                continue;
+            }
+            try {
+                System.out.println(runner.run(benchmarks[i]));
+            } catch (Exception e) {
+                System.out.println(benchmarks[i].getName() + " FAILED: " + e);
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.util.BitSet;
+
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.oa.BloomFilter;
+import com.sun.honeycomb.oa.FragmentFooter;
+
+/**
+ * Inserts into and lookups in the deleted references bloom filter of a
+ * fragment footer, sized as in {@link FragmentFooter}.
+ */
+public class BloomFilterBenchmark extends Benchmark {
+
+    /** Number of distinct oids cycled through */
+    private static final int NUM_OIDS = 1024;
+
+    /** Number of references deleted before the lookups */
+    private static final int NUM_DELETED = 16;
+
+    private final boolean lookup;
+    private NewObjectIdentifier[] oids;
+
+    public BloomFilterBenchmark(boolean lookup) {
+        super("bloom." + (lookup ? "lookup" : "insert"));
+        this.lookup = lookup;
+    }
+
+    private static final class State {
+        BloomFilter filter;
+        int next = 0;
+    }
+
+    public void setUp() {
+        oids = new NewObjectIdentifier[NUM_OIDS];
+        for (int i = 0; i < NUM_OIDS; i++) {
+            oids[i] = new NewObjectIdentifier(i % 10000,
+                                              NewObjectIdentifier.NULL_TYPE,
+                                              0, null);
+        }
+    }
+
+    public Object createThreadState() {
+        State state = new State();
+        state.filter = newFilter();
+        if (lookup) {
+            for (int i = 0; i < NUM_DELETED; i++) {
+                state.filter.put(oids[i * (NUM_OIDS / NUM_DELETED)]);
+            }
+        }
+        return state;
+    }
+
+    public long invoke(Object object) {
+        State state = (State) object;
+        NewObjectIdentifier oid = oids[state.next];
+        state.next = (state.next + 1) % NUM_OIDS;
+        if (lookup) {
+            state.filter.hasKey(oid);
+        } else {
+            // Start over before the filter saturates
+            if (state.next % NUM_DELETED == 0) {
+                state.filter = newFilter();
+            }
+            state.filter.put(oid);
+        }
+        return 0;
+    }
+
+    private static BloomFilter newFilter() {
+        return new BloomFilter
+            (new BitSet(FragmentFooter.DELETED_REFS_BLOOM_BITLENGTH));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.resources.ByteBufferPool;
+
+/**
+ * Check out and check in of pooled buffers, with the duplicate and
+ * slice views the fragment code takes of them, from several threads at
+ * once. The pool statistics are printed at the end of the run.
+ */
+public class BufferPoolBenchmark extends Benchmark {
+
+    private static final int THREADS = 8;
+
+    private final int size;
+    private ByteBufferPool pool;
+
+    public BufferPoolBenchmark(int size) {
+        super("bufferpool." + (size / 1024) + "k");
+        this.size = size;
+    }
+
+    public int getDefaultThreads() {
+        return THREADS;
+    }
+
+    public void setUp() {
+        pool = ByteBufferPool.getInstance();
+    }
+
+    public void tearDown() {
+        System.out.println(pool.getStats());
+    }
+
+    public long invoke(Object state) {
+        ByteBuffer buffer = pool.checkOutBuffer(size);
+        ByteBuffer duplicate = pool.checkOutDuplicate(buffer);
+        buffer.limit(size / 2);
+        ByteBuffer slice = pool.checkOutSlice(buffer);
+        pool.checkInBuffer(slice);
+        pool.checkInBuffer(duplicate);
+        pool.checkInBuffer(buffer);
+        return 0;
+    }
+}
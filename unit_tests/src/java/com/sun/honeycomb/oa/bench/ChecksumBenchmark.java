@@ -0,0 +1,91 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.oa.checksum.ChecksumAlgorithm;
+import com.sun.honeycomb.oa.checksum.ChecksumBlock;
+
+/**
+ * Checksum insertion for a buffer of fragment data, as done on the
+ * write path, or verification against the stored checksums, as done on
+ * every read.
+ */
+public class ChecksumBenchmark extends Benchmark {
+
+    private final short algorithmId;
+    private final int size;
+    private final boolean verify;
+    private ByteBuffer data;
+    private ChecksumAlgorithm algorithm;
+
+    public ChecksumBenchmark(short algorithmId, int size, boolean verify) {
+        super("checksum." +
+              ChecksumAlgorithm.getName(algorithmId).toLowerCase() +
+              (verify ? ".verify." : ".insert.") + (size / 1024) + "k");
+        this.algorithmId = algorithmId;
+        this.size = size;
+        this.verify = verify;
+    }
+
+    public void setUp() {
+        data = randomBuffer(size);
+        algorithm = ChecksumAlgorithm.getInstance(algorithmId);
+    }
+
+    public Object createThreadState() {
+        ChecksumBlock block = algorithm.createChecksumBlock();
+        if (verify) {
+            algorithm.insert(data.duplicate(), 0, block);
+        }
+        return block;
+    }
+
+    public void disposeThreadState(Object state) {
+        if (state != null) {
+            ((ChecksumBlock) state).dispose();
+        }
+    }
+
+    public long invoke(Object state) throws Exception {
+        ChecksumBlock block = (ChecksumBlock) state;
+        if (verify) {
+            algorithm.verify(data.duplicate(), 0, block);
+        } else {
+            algorithm.insert(data.duplicate(), 0, block);
+        }
+        return size;
+    }
+}
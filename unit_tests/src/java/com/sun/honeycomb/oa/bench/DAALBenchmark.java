@@ -0,0 +1,165 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.disks.Disk;
+import com.sun.honeycomb.oa.Common;
+import com.sun.honeycomb.oa.daal.DAAL;
+import com.sun.honeycomb.oa.upgrade.TestNfsDAAL;
+
+/**
+ * Fragment file I/O through the NFS DAAL on a local directory that
+ * stands for a disk. The write benchmark creates a fragment, appends
+ * it in blocks, commits and deletes it; the read benchmark opens a
+ * committed fragment and reads it back block by block.
+ */
+public class DAALBenchmark extends Benchmark {
+
+    /** Size of each append or read, the OA block size */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final int size;
+    private final boolean read;
+    private File root;
+    private Disk disk;
+    private ByteBuffer block;
+    private NewObjectIdentifier readOid;
+
+    /**
+     * @param dir the directory in which the benchmark disk is created
+     * @param size the size of a fragment
+     * @param read true to benchmark reads, false for writes
+     */
+    public DAALBenchmark(File dir, int size, boolean read) {
+        super("daal." + (read ? "read." : "write.") + (size / 1024) + "k");
+        this.dir = dir;
+        this.size = size;
+        this.read = read;
+    }
+
+    public void setUp() throws Exception {
+        root = new File(dir, "hcbench-" + System.currentTimeMillis());
+        disk = new Disk(root.getPath());
+        block = randomBuffer(BLOCK_SIZE);
+
+        NewObjectIdentifier oid = newOid();
+        mkdirs(new File(Common.makeTmpDirName(disk)));
+        mkdirs(new File(Common.makeDir(oid, disk)));
+
+        if (read) {
+            readOid = oid;
+            write(readOid);
+        }
+    }
+
+    public void tearDown() {
+        if (root != null) {
+            delete(root);
+        }
+    }
+
+    public Object createThreadState() {
+        return ByteBuffer.allocateDirect(BLOCK_SIZE);
+    }
+
+    public long invoke(Object state) throws Exception {
+        if (!read) {
+            NewObjectIdentifier oid = newOid();
+            write(oid);
+            new TestNfsDAAL(disk, oid, new Integer(0)).delete();
+            return size;
+        }
+
+        ByteBuffer buffer = (ByteBuffer) state;
+        DAAL daal = new TestNfsDAAL(disk, readOid, new Integer(0));
+        long total = 0;
+        daal.open();
+        try {
+            while (total < size) {
+                buffer.clear();
+                long n = daal.read(buffer, total);
+                if (n <= 0) {
+                    throw new IllegalStateException("Short read at " + total +
+                                                    " on " + daal);
+                }
+                total += n;
+            }
+        } finally {
+            daal.close();
+        }
+        return total;
+    }
+
+    private void write(NewObjectIdentifier oid) throws Exception {
+        DAAL daal = new TestNfsDAAL(disk, oid, new Integer(0));
+        daal.create();
+        try {
+            for (int written = 0; written < size; written += BLOCK_SIZE) {
+                ByteBuffer buffer = block.duplicate();
+                buffer.limit(Math.min(BLOCK_SIZE, size - written));
+                daal.append(buffer);
+            }
+        } finally {
+            daal.close();
+        }
+        daal.commit();
+    }
+
+    /** All the oids share layout map 0 so they land in the same dir */
+    private static NewObjectIdentifier newOid() {
+        return new NewObjectIdentifier(0, NewObjectIdentifier.NULL_TYPE,
+                                       0, null);
+    }
+
+    private static void mkdirs(File file) {
+        if (!file.isDirectory() && !file.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + file);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+}
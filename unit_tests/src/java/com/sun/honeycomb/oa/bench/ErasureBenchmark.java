@@ -0,0 +1,154 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.oa.erasure.ErasureAlgorithm;
+
+/**
+ * Reed-Solomon parity calculation for one block of an object, or
+ * reconstruction of the block with one or more data fragments missing,
+ * as done by degraded reads and by the data doctor.
+ */
+public class ErasureBenchmark extends Benchmark {
+
+    private final int numData;
+    private final int numParity;
+    private final int fragSize;
+    private final int missing;
+    private ByteBuffer[] data;
+    private ByteBuffer[] parity;
+    private boolean[] validData;
+    private boolean[] validParity;
+    private ErasureAlgorithm algorithm;
+
+    /**
+     * @param numData the number of data fragments (N)
+     * @param numParity the number of parity fragments (M)
+     * @param fragSize the size of a fragment of the block
+     * @param missing the number of data fragments to reconstruct, or 0
+     *        to benchmark the parity calculation
+     */
+    public ErasureBenchmark(int numData, int numParity, int fragSize,
+                            int missing) {
+        super("erasure." + numData + "+" + numParity +
+              ((missing == 0) ? ".encode" : (".decode" + missing)) + "." +
+              (fragSize / 1024) + "k");
+        if (missing > numParity) {
+            throw new IllegalArgumentException("Cannot reconstruct " +
+                                               missing + " fragments with " +
+                                               numParity + " parities");
+        }
+        this.numData = numData;
+        this.numParity = numParity;
+        this.fragSize = fragSize;
+        this.missing = missing;
+    }
+
+    public void setUp() {
+        algorithm = ErasureAlgorithm.getInstance(ErasureAlgorithm.REED_SOLOMON);
+
+        data = new ByteBuffer[numData];
+        for (int i = 0; i < numData; i++) {
+            data[i] = randomBuffer(fragSize);
+            // Make the fragments differ from each other
+            data[i].put(0, (byte) i);
+        }
+        parity = new ByteBuffer[numParity];
+        for (int i = 0; i < numParity; i++) {
+            parity[i] = ByteBuffer.allocateDirect(fragSize);
+        }
+        algorithm.calculateParityBuffers(duplicate(data), duplicate(parity),
+                                         fragSize, numData, numParity);
+
+        // Lose data fragments spread over the block
+        validData = new boolean[numData];
+        for (int i = 0; i < numData; i++) {
+            validData[i] = true;
+        }
+        for (int i = 0; i < missing; i++) {
+            validData[(i * numData) / missing] = false;
+        }
+        validParity = new boolean[numParity];
+        for (int i = 0; i < numParity; i++) {
+            validParity[i] = true;
+        }
+    }
+
+    /**
+     * Each thread writes in buffers of its own: the parities when
+     * encoding, the missing data fragments when decoding.
+     */
+    public Object createThreadState() {
+        ByteBuffer[] result;
+        if (missing == 0) {
+            result = new ByteBuffer[numParity];
+            for (int i = 0; i < numParity; i++) {
+                result[i] = ByteBuffer.allocateDirect(fragSize);
+            }
+        } else {
+            result = new ByteBuffer[numData];
+            for (int i = 0; i < numData; i++) {
+                result[i] = validData[i] ? data[i]
+                    : ByteBuffer.allocateDirect(fragSize);
+            }
+        }
+        return result;
+    }
+
+    public long invoke(Object state) {
+        ByteBuffer[] buffers = (ByteBuffer[]) state;
+        if (missing == 0) {
+            algorithm.calculateParityBuffers(duplicate(data),
+                                             duplicate(buffers),
+                                             fragSize, numData, numParity);
+        } else {
+            algorithm.reconstructDataFragments(duplicate(buffers),
+                                               duplicate(parity),
+                                               validData, validParity,
+                                               fragSize);
+        }
+        return (long) numData * fragSize;
+    }
+
+    private static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        ByteBuffer[] result = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            result[i] = buffers[i].duplicate();
+            result[i].clear();
+        }
+        return result;
+    }
+}
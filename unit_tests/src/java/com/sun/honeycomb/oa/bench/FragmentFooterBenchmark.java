@@ -0,0 +1,103 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.coding.ByteBufferCoder;
+import com.sun.honeycomb.common.NewObjectIdentifier;
+import com.sun.honeycomb.common.ObjectReliability;
+import com.sun.honeycomb.oa.FragmentFooter;
+import com.sun.honeycomb.oa.checksum.ChecksumAlgorithm;
+
+/**
+ * Encoding of a fragment footer, as done when a fragment is closed, or
+ * decoding and consistency check, as done when a fragment is opened.
+ */
+public class FragmentFooterBenchmark extends Benchmark {
+
+    private final boolean decode;
+    private FragmentFooter footer;
+    private ByteBuffer encoded;
+
+    public FragmentFooterBenchmark(boolean decode) {
+        super("footer." + (decode ? "decode" : "encode"));
+        this.decode = decode;
+    }
+
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        NewObjectIdentifier oid =
+            new NewObjectIdentifier(1, NewObjectIdentifier.NULL_TYPE, 0, null);
+        footer = new FragmentFooter(oid,
+                                    NewObjectIdentifier.NULL,
+                                    1024,
+                                    1,
+                                    now,
+                                    now + 10000,
+                                    now + 20000,
+                                    now + 30000,
+                                    now + 40000,
+                                    (byte) 9,
+                                    ChecksumAlgorithm.ADLER32,
+                                    new ObjectReliability(5, 3),
+                                    64 * 1024,
+                                    2173,
+                                    1,
+                                    1);
+        encoded = ByteBuffer.allocateDirect(FragmentFooter.SIZE);
+        new ByteBufferCoder(encoded, false).encodeKnownClassCodable(footer);
+        encoded.flip();
+    }
+
+    public Object createThreadState() {
+        return ByteBuffer.allocateDirect(FragmentFooter.SIZE);
+    }
+
+    public long invoke(Object state) {
+        if (decode) {
+            FragmentFooter result = new FragmentFooter();
+            new ByteBufferCoder(encoded.duplicate(), false).
+                decodeKnownClassCodable(result);
+            if (!result.isConsistent()) {
+                throw new IllegalStateException("Footer is corrupt");
+            }
+        } else {
+            ByteBuffer buffer = (ByteBuffer) state;
+            buffer.clear();
+            new ByteBufferCoder(buffer, false).encodeKnownClassCodable(footer);
+        }
+        return FragmentFooter.SIZE;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.oa.bench;
+
+import java.nio.ByteBuffer;
+
+import com.sun.honeycomb.oa.hash.ContentHashAlgorithm;
+import com.sun.honeycomb.oa.hash.ContentHashContext;
+
+/**
+ * Content hash of one chunk of object data, including the digest, as
+ * done by the OA client for every object it stores.
+ */
+public class Sha1Benchmark extends Benchmark {
+
+    private final int size;
+    private ByteBuffer data;
+    private ContentHashAlgorithm algorithm;
+
+    public Sha1Benchmark(int size) {
+        super("sha1." + (size / 1024) + "k");
+        this.size = size;
+    }
+
+    public void setUp() {
+        data = randomBuffer(size);
+        algorithm = ContentHashAlgorithm.getInstance(ContentHashAlgorithm.SHA1);
+    }
+
+    public Object createThreadState() {
+        return ContentHashAlgorithm.createContext(ContentHashAlgorithm.SHA1);
+    }
+
+    public void disposeThreadState(Object state) {
+        if (state != null) {
+            ((ContentHashContext) state).dispose();
+        }
+    }
+
+    public long invoke(Object state) {
+        ContentHashContext context = (ContentHashContext) state;
+        algorithm.update(data, 0, size, context.hashContext);
+        algorithm.digest(context);
+        algorithm.resetContext(context);
+        return size;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.honeycomb.oa.checksum;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.sun.honeycomb.common.ObjectCorruptedException;
+import com.sun.honeycomb.resources.ByteBufferList;
+import com.sun.honeycomb.resources.ByteBufferPool;
+
+public class Crc32cAlgorithmTest {
+    private static ByteBufferPool pool = ByteBufferPool.getInstance();
+
+    private static void fail(String msg) {
+        System.out.println("FAILED: " + msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        //
+        // Test the Java implementation against the standard check value
+        //
+        byte[] check = "123456789".getBytes("US-ASCII");
+        Crc32c crc = new Crc32c();
+        crc.update(check, 0, check.length);
+        if (crc.getValue() != 0xe3069283L) {
+            fail("CRC-32C of \"123456789\" is " +
+                 Long.toHexString(crc.getValue()) + " not e3069283");
+        }
+        System.out.println("Check value...[PASSED]");
+
+        //
+        // Test the algorithm numbers
+        //
+        short algorithm = ChecksumAlgorithm.getAlgorithm("CRC32C");
+        if (ChecksumAlgorithm.getDataBlockSize(algorithm) != 64*1024) {
+            fail(ChecksumAlgorithm.getName(algorithm) + " should be 64KB");
+        }
+        if (ChecksumAlgorithm.getAlgorithm("ADLER32") !=
+            ChecksumAlgorithm.ADLER32) {
+            fail("ADLER32 should have the same number as always");
+        }
+        short small = ChecksumAlgorithm.getAlgorithm("crc32c/1024");
+        if (!ChecksumAlgorithm.getName(small).equals("CRC32C/1024")) {
+            fail("Name of " + small + " is " +
+                 ChecksumAlgorithm.getName(small));
+        }
+        try {
+            ChecksumAlgorithm.getAlgorithm("CRC32C/1000");
+            fail("Block size 1000 should not be accepted");
+        } catch (IllegalArgumentException e) {
+        }
+        System.out.println("Algorithm numbers...[PASSED]");
+
+        //
+        // Checksum 4 x 64KB of data and verify each 64KB read
+        //
+        ChecksumAlgorithm crc32c = ChecksumAlgorithm.getInstance(algorithm);
+        ChecksumContext context = crc32c.createContext();
+
+        int blockSize = crc32c.getDataBlockSize();
+        byte[] data = new byte[4 * blockSize];
+        new Random(0).nextBytes(data);
+
+        ByteBufferList list = new ByteBufferList();
+        for (int i=0; i<4; i++) {
+            ByteBuffer buffer = pool.checkOutBuffer(blockSize);
+            buffer.clear();
+            buffer.put(data, i * blockSize, blockSize);
+            buffer.flip();
+            list.appendBuffer(buffer);
+            pool.checkInBuffer(buffer);
+        }
+        crc32c.update(list, context);
+
+        ChecksumBlock block = (ChecksumBlock)context.checksumBlocks.get(0);
+        if (block.numChecksums() != 4) {
+            fail("Expected 4 checksums: " + block);
+        }
+
+        for (int i=0; i<4; i++) {
+            ByteBuffer read = ByteBuffer.wrap(data, i * blockSize, blockSize);
+            crc32c.verify(read.slice(), i, block);
+        }
+
+        try {
+            ByteBuffer read = ByteBuffer.wrap(data, 0, blockSize);
+            crc32c.verify(read.slice(), 1, block);
+            fail("Verified data against the wrong checksum");
+        } catch (ObjectCorruptedException e) {
+        }
+        list.clear();
+        context.dispose();
+        System.out.println("Checksum and verify...[PASSED]");
+    }
+}
@@ -36,6 +36,7 @@ package com.sun.honeycomb.oa.erasure;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Random;
@@ -178,9 +179,208 @@ public class GFLinearAlgebraTest {
         System.out.println("Parity size = " + parityFragments.remaining());
     }
 
+    /**
+     * Compares the parities computed by calculateParityFragments (native
+     * or Java) with the byte array implementation of generateParityFrags,
+     * for data buffers that are not aligned on fragment boundaries.
+     */
+    public static void testRegionCodec() {
+        Random random = new Random();
+        for (int iter=0; iter<20; iter++) {
+            int numData = 2 + random.nextInt(6);
+            int numParity = 1 + random.nextInt(3);
+            int fragSize = 1 + random.nextInt(64*1024);
+
+            ByteBuffer[] fragments = allocateBuffers(numData, fragSize);
+            ByteBuffer all = ByteBuffer.allocateDirect(numData*fragSize);
+            for (int i=0; i<numData; i++) {
+                byte[] bytes = new byte[fragSize];
+                random.nextBytes(bytes);
+                fragments[i].put(bytes);
+                fragments[i].flip();
+                all.put(bytes);
+            }
+            all.flip();
+
+            // Cut the data in buffers of random sizes
+            ArrayList slices = new ArrayList();
+            while (all.hasRemaining()) {
+                int size = Math.min(all.remaining(),
+                                    1 + random.nextInt(20*1024));
+                ByteBuffer slice = all.slice();
+                slice.limit(size);
+                slices.add(slice);
+                all.position(all.position() + size);
+            }
+            ByteBuffer[] dataFragments =
+                (ByteBuffer[]) slices.toArray(new ByteBuffer[0]);
+            ByteBuffer[] parityFragments =
+                allocateBuffers(numParity, fragSize);
+
+            GFLinearAlgebra gfla =
+                new GFLinearAlgebra(numParity,
+                                    numData,
+                                    GFLinearAlgebra.VANDERMONDE);
+            gfla.calculateParityFragments(dataFragments,
+                                          parityFragments,
+                                          fragSize);
+            ByteBuffer[] expected = gfla.generateParityFrags(fragments);
+
+            // Same parities, one region of a data fragment at a time
+            ByteBuffer[] incremental = allocateBuffers(numParity, fragSize);
+            for (int i=0; i<numData; i++) {
+                int offset = 0;
+                while (offset < fragSize) {
+                    int size = Math.min(fragSize - offset,
+                                        1 + random.nextInt(16*1024));
+                    ByteBuffer region = fragments[i].duplicate();
+                    region.position(offset);
+                    region.limit(offset + size);
+                    gfla.updateParityFragments(region, i, incremental,
+                                               offset);
+                    offset += size;
+                }
+            }
+
+            for (int p=0; p<numParity; p++) {
+                if (!parityFragments[p].equals(expected[p])) {
+                    System.out.println("Parity " + p + " differs for " +
+                                       numData + "+" + numParity +
+                                       " fragSize " + fragSize);
+                    System.exit(1);
+                }
+                if (!incremental[p].equals(expected[p])) {
+                    System.out.println("Incremental parity " + p +
+                                       " differs for " + numData + "+" +
+                                       numParity + " fragSize " + fragSize);
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println("Region codec parities match");
+    }
+
+    /**
+     * Erases every combination of data fragments that the available
+     * parities can recover, and checks that reconstructDataFragments
+     * returns the original data. Each pattern is reconstructed twice,
+     * the second time with the inverse served from the cache, and the
+     * cached inverse is compared with a freshly computed one.
+     */
+    public static void testReconstruct() {
+        Random random = new Random();
+        ErasureAlgorithm algorithm = ReedSolomonAlgorithm.getInstance();
+        int[][] layouts = new int[][] {{3, 2}, {5, 2}, {5, 3}, {4, 4}};
+        int patterns = 0;
+
+        for (int l=0; l<layouts.length; l++) {
+            int numData = layouts[l][0];
+            int numParity = layouts[l][1];
+            int fragSize = 1 + random.nextInt(8*1024);
+            GFLinearAlgebra gfla =
+                new GFLinearAlgebra(numParity,
+                                    numData,
+                                    GFLinearAlgebra.VANDERMONDE);
+
+            ByteBuffer[] original = allocateBuffers(numData, fragSize);
+            for (int i=0; i<numData; i++) {
+                byte[] bytes = new byte[fragSize];
+                random.nextBytes(bytes);
+                original[i].put(bytes);
+                original[i].flip();
+            }
+            ByteBuffer[] parities = allocateBuffers(numParity, fragSize);
+            algorithm.calculateParityBuffers(original, parities, fragSize,
+                                             numData, numParity);
+
+            for (int dataMask=1; dataMask<(1<<numData); dataMask++) {
+                for (int parityMask=0; parityMask<(1<<numParity);
+                     parityMask++) {
+                    int nMissing = Integer.bitCount(dataMask);
+                    if (Integer.bitCount(parityMask) < nMissing) {
+                        continue;
+                    }
+                    boolean[] validData = new boolean[numData];
+                    boolean[] validParity = new boolean[numParity];
+                    int[] missing = new int[nMissing];
+                    int[] replacedBy = new int[nMissing];
+                    int m = 0;
+                    for (int i=0; i<numData; i++) {
+                        validData[i] = ((dataMask & (1<<i)) == 0);
+                        if (!validData[i]) {
+                            missing[m++] = i;
+                        }
+                    }
+                    int p = 0;
+                    for (int i=0; i<numParity; i++) {
+                        validParity[i] = ((parityMask & (1<<i)) != 0);
+                        if (validParity[i] && (p < nMissing)) {
+                            replacedBy[p++] = i;
+                        }
+                    }
+
+                    for (int pass=0; pass<2; pass++) {
+                        ByteBuffer[] data = new ByteBuffer[numData];
+                        for (int i=0; i<numData; i++) {
+                            if (validData[i]) {
+                                data[i] = original[i].duplicate();
+                            } else {
+                                data[i] = ByteBuffer.allocateDirect(fragSize);
+                            }
+                        }
+                        ByteBuffer[] parity = new ByteBuffer[numParity];
+                        for (int i=0; i<numParity; i++) {
+                            parity[i] = parities[i].duplicate();
+                        }
+
+                        algorithm.reconstructDataFragments(data, parity,
+                                                           validData,
+                                                           validParity,
+                                                           fragSize);
+
+                        for (int i=0; i<numData; i++) {
+                            data[i].rewind();
+                            if (!data[i].equals(original[i])) {
+                                System.out.println("Fragment " + i +
+                                                   " differs for " +
+                                                   numData + "+" +
+                                                   numParity +
+                                                   " data mask " +
+                                                   dataMask +
+                                                   " parity mask " +
+                                                   parityMask +
+                                                   " pass " + pass);
+                                System.exit(1);
+                            }
+                        }
+                    }
+
+                    byte[][] cached =
+                        gfla.getCachedInverse(missing, replacedBy);
+                    if ((cached != gfla.getCachedInverse(missing,
+                                                         replacedBy)) ||
+                        !Arrays.deepEquals(cached,
+                                           gfla.getInverse(missing,
+                                                           replacedBy))) {
+                        System.out.println("Cached inverse differs for " +
+                                           numData + "+" + numParity +
+                                           " data mask " + dataMask +
+                                           " parity mask " + parityMask);
+                        System.exit(1);
+                    }
+                    patterns++;
+                }
+            }
+        }
+        System.out.println("Reconstructed " + patterns +
+                           " erasure patterns");
+    }
+
     private static void usage() {
         System.out.println("java Main <input file> " +
                            "--mode [generate|calculate]");
+        System.out.println("java Main codec");
+        System.out.println("java Main reconstruct");
         System.exit(1);
     }
 
@@ -384,6 +584,16 @@ public class GFLinearAlgebraTest {
     }
 
     public static void main(String[] args) throws Exception {
+        if ((args.length == 1) && (args[0].equals("codec"))) {
+            testRegionCodec();
+            return;
+        }
+
+        if ((args.length == 1) && (args[0].equals("reconstruct"))) {
+            testReconstruct();
+            return;
+        }
+
         if (args.length != 3) {
             usage();
         }
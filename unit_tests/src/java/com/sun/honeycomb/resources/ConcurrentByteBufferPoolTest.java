@@ -0,0 +1,269 @@
+/*
+ * Copyright  2008, Sun Microsystems, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ *    * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ *    * Neither the name of Sun Microsystems, Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.sun.honeycomb.resources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.*;
+
+public class ConcurrentByteBufferPoolTest extends TestCase {
+
+    private static final int SMALL = 2 * 1024;
+    private static final int MEDIUM = 64 * 1024;
+    private static final int LARGE = 64 * 6 * 1024;
+
+    /** 
+     * Constructor for this unit test.
+     *
+     * @param testName the name of the unit test
+     */
+    public ConcurrentByteBufferPoolTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Allows unit tests to be run together in a suite.
+     * @return a test suite that contains a single test - this one
+     */
+    public static Test suite() {
+        return new TestSuite(ConcurrentByteBufferPoolTest.class);
+    }
+
+    /** Allows test to be run stand-alone from the command-line.
+     *
+     * java -classpath test/lib/junit-3.8.1.jar:test/classes:classes
+     *     com.sun.honeycomb.resources.ConcurrentByteBufferPoolTest
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    ConcurrentByteBufferPool pool;
+
+    public void setUp() {
+        pool = new ConcurrentByteBufferPool(new int[] {SMALL, MEDIUM, LARGE},
+                                            false,
+                                            false);
+    }
+
+    private ConcurrentByteBufferPool createTrackingPool() {
+        return new ConcurrentByteBufferPool(new int[] {SMALL, MEDIUM, LARGE},
+                                            true,
+                                            false);
+    }
+
+    public void testAllocateFree() {
+        ByteBuffer small = pool.checkOutBuffer(100);
+        ByteBuffer medium = pool.checkOutBuffer(SMALL + 1);
+        ByteBuffer large = pool.checkOutBuffer(LARGE);
+
+        assertEquals(100, small.capacity());
+        assertEquals(SMALL + 1, medium.capacity());
+        assertEquals(LARGE, large.capacity());
+        assertEquals(1, pool.getOutstandingBufferCount(SMALL));
+        assertEquals(1, pool.getOutstandingBufferCount(MEDIUM));
+        assertEquals(1, pool.getOutstandingBufferCount(LARGE));
+
+        pool.checkInBuffer(small);
+        pool.checkInBuffer(medium);
+        pool.checkInBuffer(large);
+        assertEquals(0, pool.getOutstandingBufferCount());
+        assertEquals(0, pool.getOutstandingViewCount());
+
+        // The freed range comes back from the thread cache
+        pool.checkInBuffer(pool.checkOutBuffer(100));
+        assertTrue(pool.getThreadCacheHitRate() > 0);
+    }
+
+    public void testViewsHoldTheRange() {
+        ByteBuffer buffer = pool.checkOutBuffer(SMALL);
+        ByteBuffer dup = pool.checkOutDuplicate(buffer);
+        ByteBuffer slice = pool.checkOutSlice(buffer);
+
+        pool.checkInBuffer(buffer);
+        pool.checkInBuffer(dup);
+        assertEquals(1, pool.getOutstandingBufferCount(SMALL));
+        pool.checkInBuffer(slice);
+        assertEquals(0, pool.getOutstandingBufferCount(SMALL));
+    }
+
+    public void testBadCheckIns() {
+        ByteBuffer buffer = pool.checkOutBuffer(SMALL);
+        pool.checkInBuffer(buffer);
+        try {
+            pool.checkInBuffer(buffer);
+            fail("double check in accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.checkInBuffer(ByteBuffer.allocate(SMALL));
+            fail("foreign buffer accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.checkOutBuffer(LARGE + 1);
+            fail("oversize buffer handed out");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /** Without tracking, a range hands out the same buffer again */
+    public void testBufferReuse() {
+        ByteBuffer buffer = pool.checkOutBuffer(100);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(10);
+        pool.checkInBuffer(buffer);
+
+        ByteBuffer again = pool.checkOutBuffer(100);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(100, again.limit());
+        assertEquals(ByteOrder.BIG_ENDIAN, again.order());
+        pool.checkInBuffer(again);
+
+        // Another capacity needs another buffer, the old one is gone
+        ByteBuffer other = pool.checkOutBuffer(200);
+        assertNotSame(buffer, other);
+        assertEquals(200, other.capacity());
+        try {
+            pool.checkInBuffer(buffer);
+            fail("replaced buffer accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        pool.checkInBuffer(other);
+        assertEquals(0, pool.getOutstandingBufferCount());
+    }
+
+    /** With tracking, every check out is a new, tracked buffer */
+    public void testTracking() {
+        pool = createTrackingPool();
+
+        ByteBuffer buffer = pool.checkOutBuffer(SMALL);
+        ByteBuffer dup = pool.checkOutDuplicate(buffer);
+        assertEquals(2, pool.getOutstandingViewCount());
+        pool.checkInBuffer(buffer);
+        pool.checkInBuffer(dup);
+        assertEquals(0, pool.getOutstandingViewCount());
+        assertEquals(0, pool.getOutstandingBufferCount());
+
+        try {
+            pool.checkInBuffer(buffer);
+            fail("double check in accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        ByteBuffer again = pool.checkOutBuffer(SMALL);
+        assertNotSame(buffer, again);
+        pool.checkInBuffer(again);
+    }
+
+    /** Running out of a master buffer carves a new one, no overlap */
+    public void testSlabExhaustion() {
+        int initial = 0;
+        List buffers = new ArrayList();
+
+        buffers.add(pool.checkOutBuffer(MEDIUM));
+        initial = pool.getTotalBufferCount(MEDIUM);
+        for (int i = 1; i <= initial; i++) {
+            buffers.add(pool.checkOutBuffer(MEDIUM));
+        }
+        assertTrue(pool.getTotalBufferCount(MEDIUM) > initial);
+        assertEquals(initial + 1, pool.getOutstandingBufferCount(MEDIUM));
+
+        for (int i = 0; i < buffers.size(); i++) {
+            ByteBuffer buffer = (ByteBuffer)buffers.get(i);
+            while (buffer.remaining() >= 4) {
+                buffer.putInt(i);
+            }
+        }
+        for (int i = 0; i < buffers.size(); i++) {
+            ByteBuffer buffer = (ByteBuffer)buffers.get(i);
+            buffer.flip();
+            while (buffer.remaining() >= 4) {
+                assertEquals("ranges overlap", i, buffer.getInt());
+            }
+            pool.checkInBuffer(buffer);
+        }
+        assertEquals(0, pool.getOutstandingBufferCount());
+    }
+
+    /** A buffer checked out by a thread can be checked in by another */
+    public void testCrossThreadFree() throws Exception {
+        final ByteBuffer[] holder = new ByteBuffer[1];
+        Thread thread = new Thread() {
+                public void run() {
+                    holder[0] = pool.checkOutBuffer(SMALL);
+                }
+            };
+        thread.start();
+        thread.join();
+
+        assertEquals(1, pool.getOutstandingBufferCount(SMALL));
+        pool.checkInBuffer(holder[0]);
+        assertEquals(0, pool.getOutstandingBufferCount(SMALL));
+
+        // The range went to this thread's cache
+        long hits = (long)(pool.getThreadCacheHitRate() * 1000);
+        pool.checkInBuffer(pool.checkOutBuffer(SMALL));
+        assertTrue((long)(pool.getThreadCacheHitRate() * 1000) > hits);
+    }
+
+    /** The ranges cached by a thread that died are given back */
+    public void testDeadThreadCache() throws Exception {
+        final int count = 4;
+        Thread thread = new Thread() {
+                public void run() {
+                    ByteBuffer[] buffers = new ByteBuffer[count];
+                    for (int i = 0; i < count; i++) {
+                        buffers[i] = pool.checkOutBuffer(SMALL);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        pool.checkInBuffer(buffers[i]);
+                    }
+                }
+            };
+        thread.start();
+        thread.join();
+
+        assertEquals(count, pool.reapDeadThreads());
+        assertEquals(count, pool.getReapedCount());
+        assertEquals(0, pool.reapDeadThreads());
+
+        // This thread's cache is live and kept
+        pool.checkInBuffer(pool.checkOutBuffer(SMALL));
+        assertEquals(0, pool.reapDeadThreads());
+    }
+}